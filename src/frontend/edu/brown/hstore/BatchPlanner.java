@@ -82,6 +82,11 @@ public class BatchPlanner implements Loggable {
 
     private static final int FIRST_DEPENDENCY_ID = 1;
 
+    /**
+     * The maximum number of WorkFragment templates that each BatchPlanner will cache
+     */
+    private static final int MAX_CACHED_FRAGMENT_TEMPLATES = 256;
+
     /**
      * If the unique dependency ids option is enabled, all input/output
      * DependencyIds for WorkFragments will be globally unique.
@@ -138,6 +143,12 @@ public class BatchPlanner implements Loggable {
 
     private Map<Statement, Map<PlanFragment, Set<Integer>>> cache_singlePartitionFragmentPartitions;
 
+    // MULTI-PARTITION WORKFRAGMENT CACHE
+    // PlanSignature -> WorkFragments
+    private final Map<PlanSignature, List<WorkFragment>> cache_fragmentTemplates;
+    private final PlanSignature cache_lookupSignature;
+    private final long cache_partitionBits[];
+
     // PROFILING
     private final ProfileMeasurement time_plan;
     private final ProfileMeasurement time_partitionEstimator;
@@ -223,6 +234,67 @@ public class BatchPlanner implements Loggable {
         }
     } // END CLASS
 
+    /**
+     * The shape of a BatchPlan once we know where each of its PlanFragments will execute.
+     * For each Statement in the batch, this encodes whether it was single-partitioned and
+     * then the bitmap of the partitions for each of its PlanFragments. Two plans with the
+     * same signature use the same PlanGraph and will generate the exact same WorkFragments,
+     * since the txn's parameters are referenced by their index in the batch. 
+     */
+    protected static class PlanSignature {
+        private long bits[];
+        private int length;
+        private int hash_code;
+
+        public PlanSignature(int capacity) {
+            this.bits = new long[capacity];
+        }
+
+        private PlanSignature(long bits[], int hash_code) {
+            this.bits = bits;
+            this.length = bits.length;
+            this.hash_code = hash_code;
+        }
+
+        private void clear() {
+            this.length = 0;
+            this.hash_code = 1;
+        }
+
+        private void add(long val) {
+            if (this.length == this.bits.length) {
+                this.bits = Arrays.copyOf(this.bits, this.bits.length * 2);
+            }
+            this.bits[this.length++] = val;
+            this.hash_code = 31 * this.hash_code + (int)(val ^ (val >>> 32));
+        }
+
+        /**
+         * Return an immutable copy of this signature that can be used as a key in the cache
+         */
+        private PlanSignature copy() {
+            return (new PlanSignature(Arrays.copyOf(this.bits, this.length), this.hash_code));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PlanSignature))
+                return (false);
+            PlanSignature other = (PlanSignature)obj;
+            if (this.hash_code != other.hash_code || this.length != other.length)
+                return (false);
+            for (int i = 0; i < this.length; i++) {
+                if (this.bits[i] != other.bits[i]) return (false);
+            } // FOR
+            return (true);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.hash_code);
+        }
+    } // END CLASS
+
     // ----------------------------------------------------------------------------
     // BATCH PLAN
     // ----------------------------------------------------------------------------
@@ -496,6 +568,9 @@ public class BatchPlanner implements Loggable {
 
         this.cache_fastLookups = (this.enable_caching ? new int[this.batchSize][] : null);
         this.cache_singlePartitionPlans = (this.enable_caching ? new BatchPlan[this.num_partitions] : null);
+        this.cache_fragmentTemplates = (this.enable_caching ? new HashMap<PlanSignature, List<WorkFragment>>() : null);
+        this.cache_partitionBits = new long[(this.num_partitions + 63) / 64];
+        this.cache_lookupSignature = (this.enable_caching ? new PlanSignature(this.batchSize * (1 + this.cache_partitionBits.length) + 1) : null);
         for (int i = 0; i < this.batchSize; i++) {
             this.catalog_stmts[i] = batchStmts[i].getStatement();
             this.stmt_is_readonly[i] = batchStmts[i].getStatement().getReadonly();
@@ -971,6 +1046,21 @@ public class BatchPlanner implements Loggable {
      */
     protected void buildWorkFragments(final Long txn_id, final BatchPlanner.BatchPlan plan, final PlanGraph graph, final List<WorkFragment> tasks) {
         if (this.enable_profiling) time_partitionFragments.start();
+        
+        // OPTIMIZATION: If we've already built the WorkFragments for a plan with the 
+        // same signature, then we can just give back the same ones
+        PlanSignature signature = null;
+        if (this.enable_caching && plan.mispredict == null) {
+            signature = this.computeSignature(plan);
+            List<WorkFragment> cached = this.cache_fragmentTemplates.get(signature);
+            if (cached != null) {
+                if (d) LOG.debug(String.format("Using %d cached WorkFragment(s) for txn #%d", cached.size(), txn_id));
+                tasks.addAll(cached);
+                if (this.enable_profiling) time_partitionFragments.stop();
+                return;
+            }
+        }
+        final int first_task = tasks.size();
         if (d) LOG.debug(String.format("Constructing list of WorkFragments to execute [txn_id=#%d, base_partition=%d]", txn_id, plan.base_partition));
 
         for (PlanVertex v : graph.getVertices()) {
@@ -1054,10 +1144,43 @@ public class BatchPlanner implements Loggable {
         assert (tasks.size() > 0) : "Failed to generate any WorkFragments in this BatchPlan for txn #" + txn_id;
         if (d)
             LOG.debug("Created " + tasks.size() + " WorkFragment(s) for txn #" + txn_id);
+        
+        if (signature != null && this.cache_fragmentTemplates.size() < MAX_CACHED_FRAGMENT_TEMPLATES) {
+            List<WorkFragment> template = new ArrayList<WorkFragment>(tasks.subList(first_task, tasks.size()));
+            this.cache_fragmentTemplates.put(signature.copy(), Collections.unmodifiableList(template));
+        }
         if (this.enable_profiling)
             time_partitionFragments.stop();
     }
 
+    /**
+     * Compute the signature of the given plan. The returned PlanSignature is reused
+     * on the next invocation, so it must be copied before it is stored.
+     * @param plan
+     * @return
+     */
+    protected PlanSignature computeSignature(BatchPlanner.BatchPlan plan) {
+        PlanSignature signature = this.cache_lookupSignature;
+        signature.clear();
+        for (int stmt_index = 0; stmt_index < this.batchSize; stmt_index++) {
+            List<PlanFragment> fragments = plan.frag_list[stmt_index];
+            Map<PlanFragment, Set<Integer>> frag_partitions = plan.frag_partitions[stmt_index];
+            signature.add((plan.singlepartition_bitmap[stmt_index] ? 1l : 0l) | ((long)fragments.size() << 1));
+            for (int i = 0, cnt = fragments.size(); i < cnt; i++) {
+                Arrays.fill(this.cache_partitionBits, 0l);
+                for (Integer partition : frag_partitions.get(fragments.get(i))) {
+                    int p = partition.intValue();
+                    this.cache_partitionBits[p >>> 6] |= (1l << (p & 63));
+                } // FOR
+                for (long word : this.cache_partitionBits) {
+                    signature.add(word);
+                } // FOR
+            } // FOR
+        } // FOR
+        signature.add(this.prefetch ? 1l : 0l);
+        return (signature);
+    }
+
     /**
      * Construct
      * 
@@ -41,7 +41,9 @@ public abstract class HStoreConstants {
     public static final String THREAD_NAME_COMMANDLOGGER = "wal";
     public static final String THREAD_NAME_LOGGING = "logging";
     public static final String THREAD_NAME_MAPREDUCE = "mr";
+    public static final String THREAD_NAME_MARKOV = "markov";
     public static final String THREAD_NAME_DEBUGSTATUS = "status";
+    public static final String THREAD_NAME_VOLTNETWORK = "voltnetwork";
     
     // ----------------------------------------------------------------------------
     // EXECUTION STUFF
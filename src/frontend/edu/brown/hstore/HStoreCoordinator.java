@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -25,6 +26,7 @@ import org.voltdb.catalog.Site;
 import org.voltdb.exceptions.SerializableException;
 import org.voltdb.exceptions.ServerFaultException;
 import org.voltdb.messaging.FastSerializer;
+import org.voltdb.messaging.SerializationArena;
 import org.voltdb.utils.EstTime;
 import org.voltdb.utils.Pair;
 
@@ -36,6 +38,10 @@ import edu.brown.catalog.CatalogUtil;
 import edu.brown.hstore.Hstoreservice.HStoreService;
 import edu.brown.hstore.Hstoreservice.InitializeRequest;
 import edu.brown.hstore.Hstoreservice.InitializeResponse;
+import edu.brown.hstore.Hstoreservice.ReplayBarrierRequest;
+import edu.brown.hstore.Hstoreservice.ReplayBarrierResponse;
+import edu.brown.hstore.Hstoreservice.ReplayReadyRequest;
+import edu.brown.hstore.Hstoreservice.ReplayReadyResponse;
 import edu.brown.hstore.Hstoreservice.SendDataRequest;
 import edu.brown.hstore.Hstoreservice.SendDataResponse;
 import edu.brown.hstore.Hstoreservice.ShutdownRequest;
@@ -135,6 +141,31 @@ public class HStoreCoordinator implements Shutdownable {
     private final EventObservable<HStoreCoordinator> ready_observable = new EventObservable<HStoreCoordinator>();
     
     private final PrefetchQueryPlanner queryPrefetchPlanner;
+    
+    /**
+     * Command log replay barrier
+     * Released when site zero tells us that it finished restoring the snapshot
+     */
+    private final CountDownLatch replayReady_latch = new CountDownLatch(1);
+    private volatile ReplayReadyRequest replayReady_request;
+    
+    /**
+     * Command log replay ordering
+     * The last barrier that each site has reached and the multi-partition txns
+     * that each site listed in its first barrier (TxnId -> SiteId).
+     * Both are protected by synchronizing on replayBarriers
+     */
+    private final Map<Integer, Long> replayBarriers = new HashMap<Integer, Long>();
+    private final Map<Long, Integer> replayMultiPartitionTxns = new TreeMap<Long, Integer>();
+    private final Set<Integer> replayInitialSites = new HashSet<Integer>();
+    
+    private final RpcCallback<ReplayBarrierResponse> replayBarrier_callback = new RpcCallback<ReplayBarrierResponse>() {
+        @Override
+        public void run(ReplayBarrierResponse parameter) {
+            if (trace.get()) LOG.trace("Got replay barrier acknowledgement from " +
+                                       HStoreThreadManager.formatSiteName(parameter.getSenderSite()));
+        }
+    };
 
     /**
      * 
@@ -476,6 +507,7 @@ public class HStoreCoordinator implements Shutdownable {
             assert channels.length == destinations.size();
             for (int i = 0; i < channels.length; i++) {
                 Pair<Integer, InetSocketAddress> p = destinations.get(i);
+                channels[i].setCoalesceWrites(hstore_conf.site.coordinator_coalesce_messages);
                 this.channels.put(p.getFirst(), HStoreService.newStub(channels[i]));
             } // FOR
             
@@ -667,6 +699,24 @@ public class HStoreCoordinator implements Shutdownable {
             
         }
 
+        @Override
+        public void replayReady(RpcController controller, ReplayReadyRequest request, RpcCallback<ReplayReadyResponse> done) {
+            receiveReplayReady(request);
+            ReplayReadyResponse response = ReplayReadyResponse.newBuilder()
+                                                    .setSenderSite(local_site_id)
+                                                    .build();
+            done.run(response);
+        }
+        
+        @Override
+        public void replayBarrier(RpcController controller, ReplayBarrierRequest request, RpcCallback<ReplayBarrierResponse> done) {
+            receiveReplayBarrier(request);
+            ReplayBarrierResponse response = ReplayBarrierResponse.newBuilder()
+                                                    .setSenderSite(local_site_id)
+                                                    .build();
+            done.run(response);
+        }
+
         @Override
         public void timeSync(RpcController controller, TimeSyncRequest request, RpcCallback<TimeSyncResponse> done) {
             if (debug.get()) 
@@ -869,11 +919,15 @@ public class HStoreCoordinator implements Shutdownable {
      */
     public void transactionMap(LocalTransaction ts, RpcCallback<TransactionMapResponse> callback) {
         ByteString paramBytes = null;
+        SerializationArena arena = SerializationArena.get();
+        FastSerializer fs = arena.acquireSerializer();
         try {
-            ByteBuffer b = ByteBuffer.wrap(FastSerializer.serialize(ts.getProcedureParameters()));
-            paramBytes = ByteString.copyFrom(b.array()); 
+            ts.getProcedureParameters().writeExternal(fs);
+            paramBytes = ByteString.copyFrom(fs.getBBContainer().b); 
         } catch (Exception ex) {
             throw new RuntimeException("Unexpected error when serializing StoredProcedureInvocation", ex);
+        } finally {
+            arena.release(fs);
         }
         
         TransactionMapRequest request = TransactionMapRequest.newBuilder()
@@ -969,16 +1023,19 @@ public class HStoreCoordinator implements Shutdownable {
                     continue;
                 }
                 ByteString bs = null;
-                byte bytes[] = null;
+                SerializationArena arena = SerializationArena.get();
+                FastSerializer fs = arena.acquireSerializer();
                 try {
-                    bytes = ByteBuffer.wrap(FastSerializer.serialize(vt)).array();
-                    bs = ByteString.copyFrom(bytes); 
+                    vt.writeExternal(fs);
+                    bs = ByteString.copyFrom(fs.getBBContainer().b); 
                     if (debug.get())
                         LOG.debug(String.format("Outbound data for Partition #%d: RowCount=%d / MD5=%s / Length=%d",
-                                                catalog_part.getId(), vt.getRowCount(), StringUtil.md5sum(bytes), bytes.length));
+                                                catalog_part.getId(), vt.getRowCount(), StringUtil.md5sum(bs.toByteArray()), bs.size()));
                 } catch (Exception ex) {
                     throw new RuntimeException(String.format("Unexpected error when serializing %s data for partition %d",
                                                              ts, catalog_part.getId()), ex);
+                } finally {
+                    arena.release(fs);
                 }
                 if (debug.get()) 
                     LOG.debug("Constructing Dependency for " + catalog_part);
@@ -1081,6 +1138,177 @@ public class HStoreCoordinator implements Shutdownable {
         }
     }
     
+    // ----------------------------------------------------------------------------
+    // COMMAND LOG REPLAY METHODS
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * Tell all of the other sites in the cluster that the snapshot has been restored
+     * and that they can start replaying their command logs. This is a blocking call
+     * that waits until every site has acknowledged the message.
+     * @param watermark All txns with an id less than this are in the restored snapshot
+     * @param snapshot_nonce The nonce of the restored snapshot (null if there wasn't one)
+     */
+    public void replayReady(long watermark, String snapshot_nonce) {
+        if (this.num_sites == 1) return;
+        
+        ReplayReadyRequest.Builder builder = ReplayReadyRequest.newBuilder()
+                                                    .setSenderSite(this.local_site_id)
+                                                    .setWatermark(watermark);
+        if (snapshot_nonce != null) builder.setSnapshotNonce(snapshot_nonce);
+        ReplayReadyRequest request = builder.build();
+        
+        final CountDownLatch latch = new CountDownLatch(this.channels.size());
+        RpcCallback<ReplayReadyResponse> callback = new RpcCallback<ReplayReadyResponse>() {
+            @Override
+            public void run(ReplayReadyResponse parameter) {
+                if (debug.get()) LOG.debug("Got replay acknowledgement from " +
+                                           HStoreThreadManager.formatSiteName(parameter.getSenderSite()));
+                latch.countDown();
+            }
+        };
+        for (Entry<Integer, HStoreService> e : this.channels.entrySet()) {
+            e.getValue().replayReady(new ProtoRpcController(), request, callback);
+        } // FOR
+        if (debug.get()) LOG.debug(String.format("Waiting for %d replay acknowledgements", this.channels.size()));
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            throw new ServerFaultException("Unexpected interruption", ex);
+        }
+    }
+    
+    /**
+     * Block until site zero tells us that the snapshot has been restored.
+     * Returns the message that it sent us.
+     * @param timeout How long to wait (in milliseconds) before we give up on recovery
+     */
+    public ReplayReadyRequest awaitReplayReady(long timeout) {
+        boolean ready = false;
+        try {
+            ready = this.replayReady_latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            throw new ServerFaultException("Unexpected interruption", ex);
+        }
+        if (ready == false) {
+            String msg = String.format("Timed out after %d ms waiting for %s to restore the snapshot " +
+                                       "before replaying the command log",
+                                       timeout, HStoreThreadManager.formatSiteName(0));
+            throw new ServerFaultException(msg, (Long)null);
+        }
+        return (this.replayReady_request);
+    }
+    
+    protected void receiveReplayReady(ReplayReadyRequest request) {
+        if (debug.get())
+            LOG.debug(String.format("Received %s from HStoreSite %s [watermark=%d]",
+                                    request.getClass().getSimpleName(),
+                                    HStoreThreadManager.formatSiteName(request.getSenderSite()),
+                                    request.getWatermark()));
+        this.replayReady_request = request;
+        this.replayReady_latch.countDown();
+    }
+    
+    /**
+     * Tell all of the other sites in the cluster that we have replayed every entry
+     * in our command log with a txn id less than the given one. The first barrier
+     * that a site sends out must include the txns in its log that have to be
+     * replayed by themselves. This is a non-blocking call.
+     * @param txn_id
+     * @param multipartition_ids Only used for the first barrier (null otherwise)
+     */
+    public void replayBarrier(long txn_id, Collection<Long> multipartition_ids) {
+        ReplayBarrierRequest.Builder builder = ReplayBarrierRequest.newBuilder()
+                                                    .setSenderSite(this.local_site_id)
+                                                    .setTransactionId(txn_id)
+                                                    .setInitial(multipartition_ids != null);
+        if (multipartition_ids != null) builder.addAllMultipartitionIds(multipartition_ids);
+        ReplayBarrierRequest request = builder.build();
+        
+        this.receiveReplayBarrier(request);
+        for (Entry<Integer, HStoreService> e : this.channels.entrySet()) {
+            e.getValue().replayBarrier(new ProtoRpcController(), request, this.replayBarrier_callback);
+        } // FOR
+    }
+    
+    /**
+     * Block until every site in the cluster has sent us its first barrier.
+     * Returns the multi-partition txns that have to be replayed across the
+     * cluster in txn id order, along with the site that will replay each one.
+     * @param timeout How long to wait (in milliseconds) before we give up on recovery
+     */
+    public Map<Long, Integer> awaitReplayMultiPartitionTxns(long timeout) {
+        long stop = System.currentTimeMillis() + timeout;
+        synchronized (this.replayBarriers) {
+            while (this.replayInitialSites.size() < this.num_sites) {
+                this.waitForReplayBarrier(stop, timeout, String.format("%d/%d sites to list their multi-partition txns",
+                                                                       this.replayInitialSites.size(), this.num_sites));
+            } // WHILE
+            return (new TreeMap<Long, Integer>(this.replayMultiPartitionTxns));
+        } // SYNCH
+    }
+    
+    /**
+     * Block until all of the given sites have reached the barrier for the given txn id
+     * @param txn_id
+     * @param site_ids
+     * @param timeout How long to wait (in milliseconds) before we give up on recovery
+     */
+    public void awaitReplayBarrier(long txn_id, Collection<Integer> site_ids, long timeout) {
+        long stop = System.currentTimeMillis() + timeout;
+        synchronized (this.replayBarriers) {
+            for (Integer site_id : site_ids) {
+                while (true) {
+                    Long barrier = this.replayBarriers.get(site_id);
+                    if (barrier != null && barrier.longValue() >= txn_id) break;
+                    this.waitForReplayBarrier(stop, timeout, String.format("%s to reach replay barrier %d",
+                                                                           HStoreThreadManager.formatSiteName(site_id), txn_id));
+                } // WHILE
+            } // FOR
+        } // SYNCH
+    }
+    
+    /**
+     * Wait on replayBarriers until the given deadline.
+     * The caller must be holding its lock.
+     */
+    private void waitForReplayBarrier(long stop, long timeout, String waitingFor) {
+        long remaining = stop - System.currentTimeMillis();
+        if (remaining <= 0) {
+            String msg = String.format("Timed out after %d ms waiting for %s while replaying the command log",
+                                       timeout, waitingFor);
+            throw new ServerFaultException(msg, (Long)null);
+        }
+        try {
+            this.replayBarriers.wait(remaining);
+        } catch (InterruptedException ex) {
+            throw new ServerFaultException("Unexpected interruption", ex);
+        }
+    }
+    
+    protected void receiveReplayBarrier(ReplayBarrierRequest request) {
+        int site_id = request.getSenderSite();
+        if (trace.get())
+            LOG.trace(String.format("Received %s from HStoreSite %s [txnId=%d]",
+                                    request.getClass().getSimpleName(),
+                                    HStoreThreadManager.formatSiteName(site_id),
+                                    request.getTransactionId()));
+        synchronized (this.replayBarriers) {
+            if (request.getInitial()) {
+                this.replayInitialSites.add(site_id);
+                for (Long txn_id : request.getMultipartitionIdsList()) {
+                    this.replayMultiPartitionTxns.put(txn_id, site_id);
+                } // FOR
+            }
+            // Messages from the same site may get here out of order
+            Long barrier = this.replayBarriers.get(site_id);
+            if (barrier == null || barrier.longValue() < request.getTransactionId()) {
+                this.replayBarriers.put(site_id, request.getTransactionId());
+            }
+            this.replayBarriers.notifyAll();
+        } // SYNCH
+    }
+    
     // ----------------------------------------------------------------------------
     // SHUTDOWN METHODS
     // ----------------------------------------------------------------------------
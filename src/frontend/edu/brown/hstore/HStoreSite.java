@@ -61,6 +61,7 @@ import org.voltdb.exceptions.ClientConnectionLostException;
 import org.voltdb.exceptions.MispredictionException;
 import org.voltdb.messaging.FastDeserializer;
 import org.voltdb.messaging.FastSerializer;
+import org.voltdb.messaging.SerializationArena;
 import org.voltdb.network.Connection;
 import org.voltdb.network.VoltNetwork;
 import org.voltdb.utils.DBBPool;
@@ -90,11 +91,13 @@ import edu.brown.hstore.txns.MapReduceTransaction;
 import edu.brown.hstore.txns.RemoteTransaction;
 import edu.brown.hstore.util.MapReduceHelperThread;
 import edu.brown.hstore.util.TxnCounter;
+import edu.brown.hstore.wal.CommandLogReplayer;
 import edu.brown.hstore.wal.CommandLogWriter;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
 import edu.brown.markov.EstimationThresholds;
 import edu.brown.markov.MarkovEstimate;
+import edu.brown.markov.MarkovGraphUpdater;
 import edu.brown.markov.TransactionEstimator;
 import edu.brown.plannodes.PlanNodeUtil;
 import edu.brown.statistics.Histogram;
@@ -150,16 +153,25 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
     private final DBBPool buffer_pool = new DBBPool(false, false);
     
     /**
-     * Incoming request deserializer
+     * Incoming request deserializers
+     * There is one per thread because there may be more than one network thread
      */
-    private final IdentityHashMap<Thread, FastDeserializer> incomingDeserializers =
-                        new IdentityHashMap<Thread, FastDeserializer>();
+    private final ThreadLocal<FastDeserializer> incomingDeserializers = new ThreadLocal<FastDeserializer>() {
+        @Override
+        protected FastDeserializer initialValue() {
+            return (new FastDeserializer(new byte[0]));
+        }
+    };
     
     /**
      * Outgoing response serializers
      */
-    private final IdentityHashMap<Thread, FastSerializer> outgoingSerializers = 
-                        new IdentityHashMap<Thread, FastSerializer>();
+    private final ThreadLocal<FastSerializer> outgoingSerializers = new ThreadLocal<FastSerializer>() {
+        @Override
+        protected FastSerializer initialValue() {
+            return (new FastSerializer(buffer_pool));
+        }
+    };
     
     /**
      * This is the object that we use to generate unqiue txn ids used by our
@@ -266,9 +278,24 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
     private final MapReduceHelperThread mr_helper;
     
     /**
-     * Transaction Command Logger (WAL)
+     * MarkovGraphUpdater
+     * This is only created if one of our PartitionExecutors is using MarkovGraphs
+     */
+    private MarkovGraphUpdater markov_updater = null;
+    
+    /**
+     * Transaction Command Loggers (WAL)
+     * This array is indexed by local partition offset. If each partition
+     * has its own log, then each offset will have its own writer. Otherwise,
+     * all of the offsets point to the same writer.
      */
-    private final CommandLogWriter commandLogger;
+    private final CommandLogWriter commandLoggers[];
+
+    /**
+     * Set to true while we are replaying the command log during recovery.
+     * Replayed txns are already in the log so we don't want to write them out again.
+     */
+    private volatile boolean commandLogReplaying = false;
 
     /**
      * AdHoc: This thread waits for AdHoc queries. 
@@ -513,15 +540,17 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         
         // Command Logger
         if (hstore_conf.site.commandlog_enable) {
-            // It would be nice if we could come up with a unique name for this
-            // invocation of the system (like the cluster instanceId). But for now
-            // we'll just write out to our directory...
-            File logFile = new File(hstore_conf.site.commandlog_dir +
-                                    File.separator +
-                                    this.getSiteName().toLowerCase() + ".log");
-            this.commandLogger = new CommandLogWriter(this, logFile);
+            this.commandLoggers = new CommandLogWriter[this.local_partitions_arr.length];
+            if (hstore_conf.site.commandlog_partitioned) {
+                for (int partition : this.local_partitions_arr) {
+                    this.commandLoggers[this.getLocalPartitionOffset(partition)] =
+                        new CommandLogWriter(this, this.getCommandLogFile(partition), Collections.singleton(partition));
+                } // FOR
+            } else {
+                Arrays.fill(this.commandLoggers, new CommandLogWriter(this, this.getCommandLogFile(null)));
+            }
         } else {
-            this.commandLogger = null;
+            this.commandLoggers = null;
         }
 
         // AdHoc Support
@@ -537,7 +566,9 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         // NETWORK SETUP
         // -------------------------------
         
-        this.voltNetwork = new VoltNetwork();
+        // Each selector loop invokes the callbacks for its own ports inline so that
+        // the loops don't all contend on a single shared task queue
+        this.voltNetwork = new VoltNetwork(false, true, null, Math.max(1, hstore_conf.site.network_selector_threads));
         this.clientInterface = ClientInterface.create(this,
                                                        this.voltNetwork,
                                                        this.catalogContext,
@@ -812,6 +843,14 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         return (this.mr_helper);
     }
     
+    /**
+     * Get the MarkovGraphUpdater thread
+     * This will be null if online updates are disabled or there are no MarkovGraphs
+     */
+    public MarkovGraphUpdater getMarkovGraphUpdater() {
+        return (this.markov_updater);
+    }
+    
     // ----------------------------------------------------------------------------
     // UTILITY METHODS
     // ----------------------------------------------------------------------------
@@ -847,8 +886,41 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
     public DBBPool getBufferPool() {
         return (this.buffer_pool);
     }
-    public CommandLogWriter getCommandLogWriter() {
-        return (this.commandLogger);
+    /**
+     * Returns the unique set of CommandLogWriters used at this site.
+     * This will be empty if command logging is disabled.
+     */
+    public Collection<CommandLogWriter> getCommandLogWriters() {
+        List<CommandLogWriter> writers = new ArrayList<CommandLogWriter>();
+        if (this.commandLoggers != null) {
+            for (CommandLogWriter writer : this.commandLoggers) {
+                if (writers.contains(writer) == false) writers.add(writer);
+            } // FOR
+        }
+        return (writers);
+    }
+    /**
+     * Returns the CommandLogWriter that logs the txns for the given local partition.
+     * This will be null if command logging is disabled.
+     * @param partition
+     */
+    public CommandLogWriter getCommandLogWriter(int partition) {
+        if (this.commandLoggers == null) return (null);
+        return (this.commandLoggers[this.getLocalPartitionOffset(partition)]);
+    }
+    /**
+     * Returns the location of a command log file for this site. If the partition is
+     * not null, then the file will only contain that partition's txns.
+     * It would be nice if we could come up with a unique name for this
+     * invocation of the system (like the cluster instanceId). But for now
+     * we'll just write out to our directory...
+     */
+    public File getCommandLogFile(Integer partition) {
+        String name = this.getSiteName().toLowerCase();
+        if (partition != null) name += String.format("-p%02d", partition);
+        return new File(hstore_conf.site.commandlog_dir +
+                        File.separator +
+                        name + ".log");
     }
     
     /**
@@ -929,14 +1001,7 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
      * @return
      */
     private FastDeserializer getIncomingDeserializer() {
-        Thread t = Thread.currentThread();
-        FastDeserializer fds = this.incomingDeserializers.get(t);
-        if (fds == null) {
-            fds = new FastDeserializer(new byte[0]);
-            this.incomingDeserializers.put(t, fds);
-        }
-        assert(fds != null);
-        return (fds);
+        return (this.incomingDeserializers.get());
     }
     
     /**
@@ -944,14 +1009,7 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
      * @return
      */
     private FastSerializer getOutgoingSerializer() {
-        Thread t = Thread.currentThread();
-        FastSerializer fs = this.outgoingSerializers.get(t);
-        if (fs == null) {
-            fs = new FastSerializer(this.buffer_pool);
-            this.outgoingSerializers.put(t, fs);
-        }
-        assert(fs != null);
-        return (fs);
+        return (this.outgoingSerializers.get());
     }
     
     
@@ -1053,11 +1111,26 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         t.start();
         
         // Start VoltNetwork
-        t = new Thread(this.voltNetwork);
-        t.setName(HStoreThreadManager.getThreadName(this, "voltnetwork"));
-        t.setDaemon(true);
-        t.setUncaughtExceptionHandler(this.exceptionHandler);
-        t.start();
+        // Each selector loop gets its own thread that is pinned to a separate core
+        for (int i = 0, cnt = this.voltNetwork.getSelectorLoopCount(); i < cnt; i++) {
+            final int loop_id = i;
+            final Runnable loop = this.voltNetwork.getSelectorLoop(loop_id);
+            t = new Thread() {
+                @Override
+                public void run() {
+                    threadManager.registerNetworkThread(loop_id);
+                    loop.run();
+                }
+            };
+            if (cnt > 1) {
+                t.setName(HStoreThreadManager.getThreadName(this, HStoreConstants.THREAD_NAME_VOLTNETWORK, Integer.toString(loop_id)));
+            } else {
+                t.setName(HStoreThreadManager.getThreadName(this, HStoreConstants.THREAD_NAME_VOLTNETWORK));
+            }
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler(this.exceptionHandler);
+            t.start();
+        } // FOR
         
         // Start Status Monitor
         if (hstore_conf.site.status_enable) {
@@ -1090,6 +1163,27 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
             } // FOR
         }
         
+        // MarkovGraphUpdater
+        // This needs to be hooked into the TransactionEstimators before the PartitionExecutors start
+        if (hstore_conf.site.markov_update_interval > 0) {
+            for (int partition : this.local_partitions_arr) {
+                TransactionEstimator t_estimator = this.getPartitionExecutor(partition).getTransactionEstimator();
+                if (t_estimator == null || t_estimator.getMarkovs() == null) continue;
+                if (this.markov_updater == null) {
+                    this.markov_updater = new MarkovGraphUpdater(this, hstore_conf.site.markov_update_interval);
+                }
+                t_estimator.setMarkovGraphUpdater(this.markov_updater);
+            } // FOR
+            if (this.markov_updater != null) {
+                if (d) LOG.debug("Starting " + this.markov_updater.getClass().getSimpleName());
+                t = new Thread(this.markov_updater);
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(this.exceptionHandler);
+                t.start();
+            }
+        }
+        
         // Then we need to start all of the PartitionExecutor in threads
         if (d) LOG.debug("Starting PartitionExecutor threads for " + this.local_partitions_arr.length + " partitions on " + this.getSiteName());
         for (int partition : this.local_partitions_arr) {
@@ -1121,6 +1215,26 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         
         this.init();
         
+        // Crash Recovery
+        // Restore the last snapshot and replay the command log before we
+        // let any new requests in from the outside world
+        if (hstore_conf.site.commandlog_replay) {
+            List<File> outputFiles = new ArrayList<File>();
+            if (hstore_conf.site.commandlog_partitioned) {
+                for (int partition : this.local_partitions_arr) {
+                    outputFiles.add(this.getCommandLogFile(partition));
+                } // FOR
+            } else {
+                outputFiles.add(this.getCommandLogFile(null));
+            }
+            this.commandLogReplaying = true;
+            try {
+                new CommandLogReplayer(this, outputFiles).run();
+            } finally {
+                this.commandLogReplaying = false;
+            }
+        }
+        
         try {
             this.clientInterface.startAcceptingConnections();
         } catch (Exception ex) {
@@ -1204,8 +1318,11 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         if (this.mr_helper != null) {
             this.mr_helper.prepareShutdown(error);
         }
-        if (this.commandLogger != null) {
-            this.commandLogger.prepareShutdown(error);
+        if (this.markov_updater != null) {
+            this.markov_updater.prepareShutdown(error);
+        }
+        for (CommandLogWriter commandLogger : this.getCommandLogWriters()) {
+            commandLogger.prepareShutdown(error);
         }
         
         if (this.adhoc_helper_started) {
@@ -1245,8 +1362,11 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         if (this.mr_helper_started && this.mr_helper != null) {
             this.mr_helper.shutdown();
         }
-        if (this.commandLogger != null) {
-            this.commandLogger.shutdown();
+        if (this.markov_updater != null) {
+            this.markov_updater.shutdown();
+        }
+        for (CommandLogWriter commandLogger : this.getCommandLogWriters()) {
+            commandLogger.shutdown();
         }
       
         // Stop AdHoc threads
@@ -1335,14 +1455,15 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
             public void run(ClientResponseImpl parameter) {
                 if (trace.get()) LOG.trace("Serializing ClientResponse to byte array:\n" + parameter);
                 
-                FastSerializer fs = new FastSerializer();
+                SerializationArena arena = SerializationArena.get();
+                FastSerializer fs = arena.acquireSerializer();
                 try {
                     parameter.writeExternal(fs);
-                    clientCallback.run(fs.getBBContainer().b.array());
+                    clientCallback.run(fs.getBytes());
                 } catch (IOException ex) {
                     throw new RuntimeException(ex);
                 } finally {
-                    fs.clear();
+                    arena.release(fs);
                 }
             }
         };
@@ -1408,19 +1529,23 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         // PARAMETERSET INITIALIZATION
         // -------------------------------
         
-        // Initialize the ParameterSet
+        // We only deserialize the full ParameterSet here for sysprocs. For regular txns,
+        // we will only peek at the parameters that we need to figure out the base partition
+        // and then the PartitionExecutor will deserialize the rest of them.
         ParameterSet procParams = null;
-        try {
-//            procParams = objectPools.PARAMETERSETS.borrowObject();
-            procParams = new ParameterSet();
-            StoredProcedureInvocation.seekToParameterSet(buffer);
-            incomingDeserializer.setBuffer(buffer);
-            procParams.readExternal(incomingDeserializer);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        } 
-        assert(procParams != null) :
-            "The parameters object is null for new txn from client #" + client_handle;
+        if (sysproc) {
+            try {
+//                procParams = objectPools.PARAMETERSETS.borrowObject();
+                procParams = new ParameterSet();
+                StoredProcedureInvocation.seekToParameterSet(buffer);
+                incomingDeserializer.setBuffer(buffer);
+                procParams.readExternal(incomingDeserializer);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            } 
+            assert(procParams != null) :
+                "The parameters object is null for new txn from client #" + client_handle;
+        }
         if (d) LOG.debug(String.format("Received new stored procedure invocation request for %s [handle=%d]",
                                        catalog_proc.getName(), client_handle));
         
@@ -1448,10 +1573,18 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
             this.network_incoming_partitions.put(base_partition);
         }
         
-        base_partition = this.txnInitializer.calculateBasePartition(client_handle,
-                                                                    catalog_proc,
-                                                                    procParams,
-                                                                    base_partition);
+        if (procParams != null) {
+            base_partition = this.txnInitializer.calculateBasePartition(client_handle,
+                                                                        catalog_proc,
+                                                                        procParams,
+                                                                        base_partition);
+        } else {
+            base_partition = this.txnInitializer.calculateBasePartition(client_handle,
+                                                                        catalog_proc,
+                                                                        buffer,
+                                                                        incomingDeserializer,
+                                                                        base_partition);
+        }
         
         // -------------------------------
         // REDIRECT TXN TO PROPER BASE PARTITION
@@ -1463,10 +1596,9 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
             return;
         }
         
-        // TODO: We should queue the txn at the proper partition
-        // The PartitionExecutor thread will be responsible for creating
-        // the LocalTransaction handle and figuring out whatever else we need to
-        // about this txn...
+        // The PartitionExecutor thread will be responsible for deserializing the
+        // ParameterSet (if we haven't already), creating the LocalTransaction handle 
+        // and figuring out whatever else we need to about this txn...
         
         PartitionExecutor executor = this.executors[base_partition];
         boolean success = executor.queueNewTransaction(buffer,
@@ -2304,8 +2436,10 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
             "Trying to send back a client response for " + ts + " but the status is " + status;
         
         boolean sendResponse = true;
-        if (this.commandLogger != null && status == Status.OK && ts.isSysProc() == false) {
-            sendResponse = this.commandLogger.appendToLog(ts, cresponse);
+        if (this.commandLoggers != null && status == Status.OK && ts.isSysProc() == false &&
+            this.commandLogReplaying == false) {
+            CommandLogWriter commandLogger = this.commandLoggers[this.getLocalPartitionOffset(ts.getBasePartition())];
+            sendResponse = commandLogger.appendToLog(ts, cresponse);
         }
 
         if (sendResponse) {
@@ -31,6 +31,8 @@ import edu.brown.hstore.txns.LocalTransaction;
 import edu.brown.hstore.txns.TransactionProfile;
 import edu.brown.hstore.util.ThrottlingQueue;
 import edu.brown.hstore.util.TxnCounter;
+import edu.brown.hstore.wal.CommandLogWriter;
+import edu.brown.hstore.wal.GroupCommitController;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
 import edu.brown.logging.RingBufferAppender;
@@ -423,6 +425,17 @@ public class HStoreSiteStatus implements Runnable, Shutdownable {
             
             siteInfo.put("Post-Processing Txns", val);
         }
+        
+        // COMMAND LOGGING
+        for (CommandLogWriter writer : hstore_site.getCommandLogWriters()) {
+            GroupCommitController controller = writer.getGroupCommitController();
+            if (controller == null) continue;
+            String key = "Command Log";
+            if (writer.getPartitions().size() == 1) {
+                key += String.format(" [%02d]", CollectionUtil.first(writer.getPartitions()));
+            }
+            siteInfo.put(key, controller.toString());
+        } // FOR
 
         return (siteInfo);
     }
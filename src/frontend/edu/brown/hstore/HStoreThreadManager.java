@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -148,6 +149,39 @@ public class HStoreThreadManager {
         } // FOR
     }
     
+    /**
+     * Set the CPU affinity for one of the VoltNetwork selector loop threads.
+     * Each loop is pinned to a different core that is not being used by the EEs
+     * @param loop_id
+     */
+    public boolean registerNetworkThread(int loop_id) {
+        if (this.disable) return (false);
+        
+        Thread t = Thread.currentThread();
+        List<Integer> cores = new ArrayList<Integer>();
+        for (int i = 0; i < this.defaultAffinity.length; i++) {
+            if (this.defaultAffinity[i]) cores.add(i);
+        } // FOR
+        if (cores.isEmpty()) return (this.registerProcessingThread());
+        
+        boolean affinity[] = new boolean[this.num_cores];
+        Arrays.fill(affinity, false);
+        affinity[cores.get(loop_id % cores.size())] = true;
+        
+        if (debug.get())
+            LOG.debug(String.format("Registering Network Thread %s to execute on CPUs %s",
+                                    t.getName(), this.getCPUIds(affinity)));
+        try {
+            org.voltdb.utils.ThreadUtils.setThreadAffinity(affinity);
+        } catch (UnsatisfiedLinkError ex) {
+            LOG.warn("Unable to set thread affinity. Disabling feature", ex);
+            this.disable = true;
+            return (false);
+        }
+        this.registerThread(affinity);
+        return (true);
+    }
+    
     /**
      * Set the CPU affinity for a non-EE thread
      */
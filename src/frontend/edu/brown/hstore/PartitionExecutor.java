@@ -44,12 +44,14 @@ package edu.brown.hstore;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -71,6 +73,8 @@ import org.voltdb.ParameterSet;
 import org.voltdb.SQLStmt;
 import org.voltdb.SnapshotSiteProcessor;
 import org.voltdb.SnapshotSiteProcessor.SnapshotTableTask;
+import org.voltdb.StoredProcedureInvocation;
+import org.voltdb.VoltMapReduceProcedure;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltProcedure.VoltAbortException;
 import org.voltdb.VoltSystemProcedure;
@@ -97,6 +101,7 @@ import org.voltdb.jni.ExecutionEngineJNI;
 import org.voltdb.jni.MockExecutionEngine;
 import org.voltdb.messaging.FastDeserializer;
 import org.voltdb.messaging.FastSerializer;
+import org.voltdb.messaging.SerializationArena;
 import org.voltdb.utils.DBBPool;
 import org.voltdb.utils.DBBPool.BBContainer;
 import org.voltdb.utils.Encoder;
@@ -124,6 +129,7 @@ import edu.brown.hstore.internal.FinishTxnMessage;
 import edu.brown.hstore.internal.InitializeTxnMessage;
 import edu.brown.hstore.internal.InternalMessage;
 import edu.brown.hstore.internal.InternalTxnMessage;
+import edu.brown.hstore.internal.MapReduceSliceMessage;
 import edu.brown.hstore.internal.PotentialSnapshotWorkMessage;
 import edu.brown.hstore.internal.StartTxnMessage;
 import edu.brown.hstore.internal.WorkFragmentMessage;
@@ -143,6 +149,7 @@ import edu.brown.logging.LoggerUtil.LoggerBoolean;
 import edu.brown.markov.EstimationThresholds;
 import edu.brown.markov.MarkovEstimate;
 import edu.brown.markov.MarkovGraph;
+import edu.brown.markov.MarkovGraphUpdater;
 import edu.brown.markov.TransactionEstimator;
 import edu.brown.utils.CollectionUtil;
 import edu.brown.utils.EventObservable;
@@ -269,6 +276,19 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
      */
     private final ConcurrentLinkedQueue<InternalMessage> new_queue = new ConcurrentLinkedQueue<InternalMessage>();
     
+    /**
+     * The MAP/REDUCE slices that are waiting to be executed at this partition.
+     * These are only ever added by this partition's thread, so we don't need to worry about locking.
+     * We alternate between these and the messages in our work_queue so that
+     * a MapReduceTransaction can't block the transactions behind it.
+     */
+    private final ArrayDeque<MapReduceSliceMessage> mr_slice_queue = new ArrayDeque<MapReduceSliceMessage>();
+    
+    /**
+     * Whether we have executed something from the work_queue since the last MAP/REDUCE slice
+     */
+    private boolean mr_slice_yielded = true;
+    
     
     // ----------------------------------------------------------------------------
     // Internal Execution State
@@ -335,9 +355,17 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
     private long lastUndoToken = 0l;
         
     /**
-     * 
+     * Cached query results for read-only PlanFragments (global) and prefetched queries (per txn)
+     */
+    private final QueryCache queryCache;
+    
+    /**
+     * PlanFragmentId -> TableIds
+     * The relative indexes of the tables that each PlanFragment accesses. This is populated
+     * lazily the first time that we need it for a fragment. If we can't find the fragment
+     * in the catalog, then the value is null.
      */
-    private final QueryCache queryCache = new QueryCache(10, 10); // FIXME
+    private final Map<Integer, int[]> fragmentTableIds = new HashMap<Integer, int[]>();
 
     
     // ----------------------------------------------------------------------------
@@ -406,6 +434,10 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
      * Reusable ParameterSet array cache for WorkFragments
      */
     private final ParameterSetArrayCache tmp_fragmentParams;
+    /**
+     * Reusable FastDeserializer for the ParameterSets of new txn requests
+     */
+    private final FastDeserializer requestDeserializer = new FastDeserializer(new byte[0]);
     
     /**
      * Reusable long array for fragment ids
@@ -553,6 +585,7 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
         this.t_estimator = null;
         this.m_snapshotter = null;
         this.anticacheManager = null;
+        this.queryCache = null;
         this.thresholds = null;
         this.catalog = null;
         this.cluster = null;
@@ -625,6 +658,9 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
             this.anticacheManager = null;
         }
         
+        this.queryCache = new QueryCache(hstore_conf.site.exec_query_cache_global_size,
+                                         hstore_conf.site.exec_query_cache_txn_size);
+        
         // An execution site can be backed by HSQLDB, by volt's EE accessed
         // via JNI or by volt's EE accessed via IPC.  When backed by HSQLDB,
         // the VoltProcedure interface invokes HSQLDB directly through its
@@ -824,6 +860,12 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
                     m_snapshotter.doSnapshotWork(ee);
                 }
                 // -------------------------------
+                // MapReduceSliceMessage
+                // -------------------------------
+                else if (work instanceof MapReduceSliceMessage) {
+                    this.processMapReduceSliceMessage((MapReduceSliceMessage)work);
+                }
+                // -------------------------------
                 // BAD MOJO!
                 // -------------------------------
                 else if (work != null) {
@@ -874,6 +916,17 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
      * @return
      */
     protected InternalMessage getNext() {
+        // If there is a MapReduce slice waiting, then we will execute it if
+        // either there is nothing else to do or if we've already executed
+        // something else since the last slice.
+        if (this.mr_slice_queue.isEmpty() == false) {
+            if (this.mr_slice_yielded || this.work_queue.isEmpty()) {
+                this.mr_slice_yielded = false;
+                return (this.mr_slice_queue.poll());
+            }
+            this.mr_slice_yielded = true;
+        }
+        
         InternalMessage work = this.work_queue.poll();
         if (work == null) {
             if (t) LOG.trace("Partition " + this.partitionId + " queue is empty. Checking for utility work...");
@@ -916,6 +969,19 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
         RpcCallback<ClientResponseImpl> done = work.getClientCallback(); 
         long client_handle = work.getClientHandle();
         
+        // The HStoreSite only peeks at the parameters that it needs to figure out
+        // what partition to send the request to, so we have to deserialize them here
+        if (procParams == null) {
+            procParams = new ParameterSet();
+            StoredProcedureInvocation.seekToParameterSet(serializedRequest);
+            try {
+                procParams.readExternal(this.requestDeserializer.setBuffer(serializedRequest));
+            } catch (IOException ex) {
+                String msg = "Failed to deserialize the parameters for new " + catalog_proc.getName() + " request";
+                throw new ServerFaultException(msg, ex);
+            }
+        }
+        
         LocalTransaction ts = this.txnInitializer.initInvocation(
                                                serializedRequest,
                                                client_handle,
@@ -939,6 +1005,22 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
         }
     }
     
+    /**
+     * Execute the next slice of a MapReduceTransaction's MAP or REDUCE phase
+     * @param work
+     */
+    protected void processMapReduceSliceMessage(MapReduceSliceMessage work) {
+        MapReduceTransaction ts = work.getTransaction();
+        if (ts.isInitialized() == false || work.isValid() == false) {
+            if (d) LOG.debug(String.format("Ignoring %s on partition %d because txn #%d is no longer running [handle=%s]",
+                                           work, this.partitionId, work.getTransactionId(), ts));
+            return;
+        }
+        VoltMapReduceProcedure<?> volt_proc = (VoltMapReduceProcedure<?>)this.procedures.get(ts.getProcedureName());
+        assert(volt_proc != null) : "No VoltMapReduceProcedure for " + ts;
+        volt_proc.executeSlice(work);
+    }
+    
     /**
      * 
      * @param work
@@ -1459,6 +1541,37 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
                                        ts, work.getClass().getSimpleName(), this.partitionId, this.work_queue.size()));
     }
 
+    /**
+     * Queue the next slice of a MapReduceTransaction's MAP or REDUCE phase.
+     * This can only be invoked from this partition's thread.
+     * @param work
+     */
+    public void queueMapReduceSlice(MapReduceSliceMessage work) {
+        assert(this.self == null || this.self == Thread.currentThread()) :
+            "Trying to queue " + work + " from outside of partition " + this.partitionId;
+        this.mr_slice_queue.offer(work);
+        if (d) LOG.debug(String.format("Added %s to partition %d slice queue [size=%d]",
+                                       work, this.partitionId, this.mr_slice_queue.size()));
+    }
+    
+    /**
+     * Remove all of the MAP/REDUCE slices for the given transaction that are still
+     * waiting to be executed at this partition
+     * @param ts
+     */
+    private void drainMapReduceSlices(AbstractTransaction ts) {
+        Long txn_id = ts.getTransactionId();
+        Iterator<MapReduceSliceMessage> it = this.mr_slice_queue.iterator();
+        while (it.hasNext()) {
+            MapReduceSliceMessage work = it.next();
+            if (work.getTransaction() == ts || (txn_id != null && work.getTransactionId() == txn_id.longValue())) {
+                if (d) LOG.debug(String.format("%s - Removing %s from partition %d slice queue",
+                                               ts, work, this.partitionId));
+                it.remove();
+            }
+        } // WHILE
+    }
+    
     /**
      * Queue a new transaction invocation request at this partition
      * @param serializedRequest
@@ -1558,22 +1671,28 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
         }
         
         if (hstore_conf.site.txn_profiling) ts.profiler.startDeserialization();
-        for (int i = 0, cnt = result.getDepDataCount(); i < cnt; i++) {
-            if (t) LOG.trace(String.format("Storing intermediate results from partition %d for %s",
-                                                    result.getPartitionId(), ts));
-            int depId = result.getDepId(i);
-            ByteString bs = result.getDepData(i);
-            VoltTable vt = null;
-            if (bs.isEmpty() == false) {
-                FastDeserializer fd = new FastDeserializer(bs.asReadOnlyByteBuffer());
-                try {
-                    vt = fd.readObject(VoltTable.class);
-                } catch (Exception ex) {
-                    throw new ServerFaultException("Failed to deserialize VoltTable from partition " + result.getPartitionId() + " for " + ts, ex);
+        SerializationArena arena = SerializationArena.get();
+        FastDeserializer fd = arena.acquireDeserializer(null);
+        try {
+            for (int i = 0, cnt = result.getDepDataCount(); i < cnt; i++) {
+                if (t) LOG.trace(String.format("Storing intermediate results from partition %d for %s",
+                                                        result.getPartitionId(), ts));
+                int depId = result.getDepId(i);
+                ByteString bs = result.getDepData(i);
+                VoltTable vt = null;
+                if (bs.isEmpty() == false) {
+                    fd.setBuffer(bs.asReadOnlyByteBuffer());
+                    try {
+                        vt = fd.readObject(VoltTable.class);
+                    } catch (Exception ex) {
+                        throw new ServerFaultException("Failed to deserialize VoltTable from partition " + result.getPartitionId() + " for " + ts, ex);
+                    }
                 }
-            }
-            ts.addResult(result.getPartitionId(), depId, vt);
-        } // FOR (dependencies)
+                ts.addResult(result.getPartitionId(), depId, vt);
+            } // FOR (dependencies)
+        } finally {
+            arena.release(fd);
+        }
         if (hstore_conf.site.txn_profiling) ts.profiler.stopDeserialization();
     }
     
@@ -2223,6 +2342,29 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
             ts.setSubmittedEE(this.partitionId);
         }
         
+        // Check whether we can get the results for all of these fragments from the
+        // QueryCache. We only do this if they are read-only and don't need any input
+        // dependencies, since we can't tell whether those dependencies are the same
+        boolean cacheable = false;
+        if (hstore_conf.site.exec_query_cache && (input_deps == null || input_deps.isEmpty())) {
+            cacheable = this.isQueryCacheable(fragmentIds, batchSize);
+            if (cacheable) {
+                VoltTable cached[] = new VoltTable[batchSize];
+                int i = 0;
+                for ( ; i < batchSize; i++) {
+                    cached[i] = this.queryCache.getGlobalCachedResult((int)fragmentIds[i],
+                                                                      this.partitionId,
+                                                                      parameterSets[i]);
+                    if (cached[i] == null) break;
+                } // FOR
+                if (i == batchSize) {
+                    if (d) LOG.debug(String.format("%s - Using cached results for fragments %s at partition %d",
+                                                   ts, Arrays.toString(fragmentIds), this.partitionId));
+                    return (new DependencySet(Arrays.copyOf(output_depIds, batchSize), cached));
+                }
+            }
+        }
+        
         DependencySet result = null;
         boolean needs_profiling = (hstore_conf.site.txn_profiling && ts.isExecLocal(this.partitionId));
         if (needs_profiling) ((LocalTransaction)ts).profiler.startExecEE();
@@ -2268,9 +2410,92 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
             }
         }
         // *********************************** DEBUG ***********************************
+        
+        // Store the results of read-only fragments in the QueryCache so that other txns
+        // can use them. Otherwise we need to invalidate any cached results for the
+        // tables that these fragments may have modified
+        if (hstore_conf.site.exec_query_cache && result != null) {
+            if (cacheable && result.dependencies.length == batchSize) {
+                for (int i = 0; i < batchSize; i++) {
+                    this.queryCache.addGlobalQueryResult((int)fragmentIds[i],
+                                                         this.partitionId,
+                                                         parameterSets[i],
+                                                         result.dependencies[i],
+                                                         this.getFragmentTableIds(fragmentIds[i]));
+                } // FOR
+            } else {
+                this.invalidateQueryCache(fragmentIds, batchSize);
+            }
+        }
         return (result);
     }
     
+    /**
+     * Returns the relative indexes of the tables that the given PlanFragment accesses.
+     * Returns null if the fragment is not in the catalog (e.g., ad-hoc queries)
+     * @param fragmentId
+     * @return
+     */
+    private int[] getFragmentTableIds(long fragmentId) {
+        Integer key = Integer.valueOf((int)fragmentId);
+        if (this.fragmentTableIds.containsKey(key)) {
+            return (this.fragmentTableIds.get(key));
+        }
+        
+        int tableIds[] = null;
+        PlanFragment catalog_frag = CatalogUtil.getPlanFragment(this.database, key.intValue());
+        if (catalog_frag != null) {
+            Collection<Table> tables = null;
+            try {
+                tables = CatalogUtil.getAllTables((Statement)catalog_frag.getParent());
+            } catch (Exception ex) {
+                throw new ServerFaultException("Failed to get the tables accessed by " + catalog_frag.fullName(), ex);
+            }
+            tableIds = new int[tables.size()];
+            int i = 0;
+            for (Table catalog_tbl : tables) {
+                tableIds[i++] = catalog_tbl.getRelativeIndex();
+            } // FOR
+        }
+        this.fragmentTableIds.put(key, tableIds);
+        return (tableIds);
+    }
+    
+    /**
+     * Returns true if the results of all of the given PlanFragments can be stored in
+     * and retrieved from the global QueryCache
+     * @param fragmentIds
+     * @param batchSize
+     * @return
+     */
+    private boolean isQueryCacheable(long fragmentIds[], int batchSize) {
+        for (int i = 0; i < batchSize; i++) {
+            if (PlanFragmentIdGenerator.isPlanFragmentReadOnly(fragmentIds[i]) == false ||
+                this.getFragmentTableIds(fragmentIds[i]) == null) {
+                return (false);
+            }
+        } // FOR
+        return (true);
+    }
+    
+    /**
+     * Invalidate the QueryCache entries for any table that the non-read-only
+     * PlanFragments in the given batch may have modified
+     * @param fragmentIds
+     * @param batchSize
+     */
+    private void invalidateQueryCache(long fragmentIds[], int batchSize) {
+        for (int i = 0; i < batchSize; i++) {
+            if (PlanFragmentIdGenerator.isPlanFragmentReadOnly(fragmentIds[i])) continue;
+            int tableIds[] = this.getFragmentTableIds(fragmentIds[i]);
+            if (tableIds != null) {
+                this.queryCache.invalidateTables(tableIds);
+            } else {
+                this.queryCache.invalidateAll();
+            }
+        } // FOR
+    }
+    
     /**
      * 
      * @param txn_id
@@ -2294,6 +2519,9 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
         }
 
         ts.setSubmittedEE(this.partitionId);
+        if (hstore_conf.site.exec_query_cache) {
+            this.queryCache.invalidateTables(new int[]{ table.getRelativeIndex() });
+        }
         ee.loadTable(table.getRelativeIndex(), data,
                      ts.getTransactionId(),
                      lastCommittedTxnId,
@@ -2370,8 +2598,11 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
 
             MarkovGraph markov = (t_state != null ? t_state.getMarkovGraph() : null); 
             if (hstore_conf.site.markov_mispredict_recompute && markov != null) {
-                if (d) LOG.debug("Recomputing MarkovGraph probabilities because " + ts + " mispredicted");
-                // FIXME this.executor.helper.queueMarkovToRecompute(markov);
+                MarkovGraphUpdater updater = this.t_estimator.getMarkovGraphUpdater();
+                if (updater != null) {
+                    if (d) LOG.debug("Recomputing MarkovGraph probabilities because " + ts + " mispredicted");
+                    updater.queue(markov);
+                }
             }
             
             // Print Misprediction Debug
@@ -3164,6 +3395,12 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
                     if (d) LOG.debug(String.format("%s - Aborting on partition=%d [lastTxnId=%d, undoToken=%d, submittedEE=%s]",
                                                    ts, this.partitionId, this.lastCommittedTxnId, undoToken, ts.hasSubmittedEE(this.partitionId)));
                     this.ee.undoUndoToken(undoToken);
+                    
+                    // We don't know which cached results read the data that this txn
+                    // just rolled back, so we have to throw them all away
+                    if (hstore_conf.site.exec_query_cache && ts.isExecReadOnly(this.partitionId) == false) {
+                        this.queryCache.invalidateAll();
+                    }
                 }
                 if (needs_profiling) ((LocalTransaction)ts).profiler.stopPostEE();
             }
@@ -3182,6 +3419,9 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
      * @param commit If true, the work performed by this txn will be commited. Otherwise it will be aborted
      */
     private void finishTransaction(AbstractTransaction ts, boolean commit) {
+        // Throw away any MAP/REDUCE slices that are still waiting for this txn
+        if (this.mr_slice_queue.isEmpty() == false) this.drainMapReduceSlices(ts);
+        
         if (this.currentDtxn != ts) {  
             if (d) LOG.debug(String.format("%s - Skipping finishWork request at partition %d because it is not the current Dtxn [%s/undoToken=%d]",
                                    ts, this.partitionId, this.currentDtxn, ts.getLastUndoToken(partitionId)));
@@ -3395,6 +3635,7 @@ public class PartitionExecutor implements Runnable, Shutdownable, Loggable {
         
         // Clear the queue
         this.work_queue.clear();
+        this.mr_slice_queue.clear();
         
         // Knock out this ma
         if (this.m_snapshotter != null) this.m_snapshotter.shutdown();
@@ -1,12 +1,12 @@
 package edu.brown.hstore;
 
 import java.util.Map;
-import java.util.concurrent.PriorityBlockingQueue;
 
 import org.apache.commons.collections15.map.ListOrderedMap;
 import org.apache.log4j.Logger;
 import org.voltdb.TransactionIdManager;
 
+import edu.brown.hstore.util.ConcurrentLongSkipList;
 import edu.brown.hstore.util.ThrottlingQueue;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
@@ -23,6 +23,12 @@ import edu.brown.utils.StringUtil;
  * also safe to run.</p>
  *
  * <p>This class manages all that state.</p>
+ * 
+ * <p>The txn ids are stored as primitive longs in a ConcurrentLongSkipList so that
+ * we don't box them into a new queue node every time. But the methods that change
+ * the state of the queue are still synchronized. Checking whether a new txn can be
+ * inserted and inserting it has to be atomic with respect to releasing the next
+ * txn, otherwise a smaller txn could be queued after a larger one was released.</p>
  */
 public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
     private static final Logger LOG = Logger.getLogger(TransactionInitPriorityQueue.class);
@@ -38,18 +44,24 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
         BLOCKED_ORDERING,
         BLOCKED_SAFETY;
     }
+    
+    /**
+     * Placeholder for when there is no next txn
+     */
+    private static final long NULL_TXN = ConcurrentLongSkipList.NULL_KEY;
 
     final int m_siteId;
     final int m_partitionId;
     final long m_waitTime;
+    final ConcurrentLongSkipList m_txnIds;
     
-    Long m_lastSeenTxnId = -1l;
-    Long m_newestCandidateTransaction = -1l;
+    long m_lastSeenTxnId = -1l;
+    long m_newestCandidateTransaction = -1l;
     long m_txnsPopped = 0;
-    Long m_lastTxnPopped = 0l;
+    long m_lastTxnPopped = -1l;
     long m_blockTime = 0;
-    Long m_nextTxn = null;
-    QueueState m_state = QueueState.BLOCKED_EMPTY;
+    long m_nextTxn = NULL_TXN;
+    volatile QueueState m_state = QueueState.BLOCKED_EMPTY;
 
     /**
      * Tell this queue about all initiators. If any initiators
@@ -58,7 +70,11 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
      * @param partitionId TODO
      */
     public TransactionInitPriorityQueue(HStoreSite hstore_site, int partitionId, long wait) {
-        super(new PriorityBlockingQueue<Long>(),
+        this(hstore_site, partitionId, wait, new ConcurrentLongSkipList());
+    }
+    
+    private TransactionInitPriorityQueue(HStoreSite hstore_site, int partitionId, long wait, ConcurrentLongSkipList txnIds) {
+        super(txnIds,
               hstore_site.getHStoreConf().site.queue_dtxn_max_per_partition,
               hstore_site.getHStoreConf().site.queue_dtxn_release_factor,
               hstore_site.getHStoreConf().site.queue_dtxn_increase,
@@ -67,6 +83,7 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
         m_siteId = hstore_site.getSiteId();
         m_partitionId = partitionId;
         m_waitTime = wait;
+        m_txnIds = txnIds;
     }
 
     /**
@@ -75,33 +92,23 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
     @Override
     public synchronized Long poll() {
         Long retval = null;
-        if (m_state == QueueState.BLOCKED_SAFETY) {
-            if (System.currentTimeMillis() >= m_blockTime) {
-                retval = super.poll();
-                assert(retval != null);
-            }
-        } else if (m_state == QueueState.UNBLOCKED) {
-//            assert(checkQueueState() == QueueState.UNBLOCKED);
+        if (checkQueueState() == QueueState.UNBLOCKED) {
             retval = super.poll();
-            assert(retval != null);
+            assert(retval != null && retval.longValue() == m_nextTxn) :
+                String.format("Partition %d - Next txn is #%d but our poll returned txn #%s",
+                              m_partitionId, m_nextTxn, retval);
         }
         if (debug.get())
             LOG.debug(String.format("Partition %d poll() -> %s",
                                     m_partitionId, 
                                     (retval != null ? String.format("#%d/%d", retval, TransactionIdManager.getInitiatorIdFromTransactionId(retval)) : retval)));
         if (retval != null) {
-            assert(m_nextTxn.equals(retval)) : 
-                String.format("Partition %d - Next txn is #%d/%d but our poll returned txn #%d/%d\n%s",
-                              m_partitionId,
-                              m_nextTxn, TransactionIdManager.getInitiatorIdFromTransactionId(m_nextTxn),
-                              retval, TransactionIdManager.getInitiatorIdFromTransactionId(retval),
-                              this.toString());
-            m_nextTxn = null;
+            m_nextTxn = NULL_TXN;
             
             // call this again to check
             checkQueueState();
             m_txnsPopped++;
-            m_lastTxnPopped = retval;
+            m_lastTxnPopped = retval.longValue();
         }
         
         return retval;
@@ -114,9 +121,8 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
     public synchronized Long peek() {
         Long retval = null;
         if (m_state == QueueState.UNBLOCKED) {
-            assert(checkQueueState() == QueueState.UNBLOCKED);
-            retval = super.peek();
-            assert(retval != null);
+            assert(m_txnIds.peekFirst() == m_nextTxn);
+            retval = m_nextTxn;
         }
         if (debug.get()) 
             LOG.debug(String.format("Partition %d peek() -> %s",
@@ -132,25 +138,31 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
     public synchronized boolean offer(Long txnID, boolean force) {
         assert(txnID != null);
         
+        // We can never take a txn that is less than one that we already released
+        boolean reject = (txnID.longValue() < m_lastTxnPopped);
+        
         // Check whether this new txn is less than the current m_nextTxn
         // If it is and there is still time remaining before it is released,
         // then we'll switch and become the new next m_nextTxn
-        if (m_nextTxn != null && txnID.compareTo(m_nextTxn) < 0) {
+        if (reject == false && m_nextTxn != NULL_TXN && txnID.longValue() < m_nextTxn) {
             checkQueueState();
             if (m_state != QueueState.UNBLOCKED) {
                 if (debug.get()) LOG.debug(String.format("Partition %d Switching #%d/%d as new next txn [old=#%d/%d]",
                                                          m_partitionId,
                                                          txnID, TransactionIdManager.getInitiatorIdFromTransactionId(txnID),
                                                          m_nextTxn, TransactionIdManager.getInitiatorIdFromTransactionId(m_nextTxn)));
-                m_nextTxn = txnID;
+                m_nextTxn = txnID.longValue();
             } else {
-                if (debug.get()) LOG.debug(String.format("Partition %d offer(#%d/%d) -> %s",
-                                                         m_partitionId, 
-                                                         txnID, TransactionIdManager.getInitiatorIdFromTransactionId(txnID),
-                                                         "REJECTED"));
-                return (false);
+                reject = true;
             }
         }
+        if (reject) {
+            if (debug.get()) LOG.debug(String.format("Partition %d offer(#%d/%d) -> %s",
+                                                     m_partitionId, 
+                                                     txnID, TransactionIdManager.getInitiatorIdFromTransactionId(txnID),
+                                                     "REJECTED"));
+            return (false);
+        }
         
         boolean retval = super.offer(txnID, force);
         // update the queue state
@@ -175,22 +187,20 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
      * Update the information stored about the latest transaction
      * seen from each initiator. Compute the newest safe transaction id.
      */
-    public synchronized long noteTransactionRecievedAndReturnLastSeen(Long txnId) {
-        // this doesn't exclude dummy txnid but is also a sanity check
-        assert(txnId != null);
-
+    public synchronized long noteTransactionRecievedAndReturnLastSeen(long txnId) {
         // we've decided that this can happen, and it's fine... just ignore it
-        if (m_lastTxnPopped.compareTo(txnId) > 0) {
-            if (debug.get()) {
+        if (debug.get()) {
+            long lastTxnPopped = m_lastTxnPopped;
+            if (lastTxnPopped > txnId) {
                 LOG.warn(String.format("Txn ordering deadlock at partition %d -> LastTxn: %d / NewTxn: %d",
-                                       m_partitionId, m_lastTxnPopped, txnId));
-                LOG.warn("LAST: " + TransactionIdManager.toString(m_lastTxnPopped));
+                                       m_partitionId, lastTxnPopped, txnId));
+                LOG.warn("LAST: " + TransactionIdManager.toString(lastTxnPopped));
                 LOG.warn("NEW:  " + TransactionIdManager.toString(txnId));
             }
         }
 
         // update the latest transaction for the specified initiator
-        if (m_lastSeenTxnId.compareTo(txnId) < 0)
+        if (m_lastSeenTxnId < txnId)
             m_lastSeenTxnId = txnId;
 
         // this minimum is the newest safe transaction to run
@@ -223,7 +233,7 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
     /**
      * @return The id of the newest safe transaction to run.
      */
-    Long getNewestSafeTransaction() {
+    synchronized long getNewestSafeTransaction() {
         return m_newestCandidateTransaction;
     }
 
@@ -234,23 +244,28 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
         return m_state;
     }
 
+    /**
+     * Figure out whether the txn at the front of the queue can be released.
+     * The caller must hold this queue's lock.
+     */
     private QueueState checkQueueState() {
         QueueState newState = QueueState.UNBLOCKED;
-        Long ts = super.peek();
-        if (ts == null) {
+        long ts = m_txnIds.peekFirst();
+        long nextTxn = m_nextTxn;
+        if (ts == NULL_TXN) {
             if (debug.get()) LOG.debug(String.format("Partition %d - Queue is empty.", m_partitionId));
             newState = QueueState.BLOCKED_EMPTY;
         }
         // Check whether can unblock now
-        else if (ts == m_nextTxn && m_state != QueueState.UNBLOCKED) {
+        else if (ts == nextTxn && m_state != QueueState.UNBLOCKED) {
             if (System.currentTimeMillis() < m_blockTime) {
                 newState = QueueState.BLOCKED_SAFETY;
             } else if (debug.get()) {
-                LOG.debug(String.format("Partition %d - Wait time for txn #%d has passed. Unblocking...", m_partitionId, m_nextTxn));
+                LOG.debug(String.format("Partition %d - Wait time for txn #%d has passed. Unblocking...", m_partitionId, nextTxn));
             }
         }
         // This is a new txn and we should wait...
-        else if (m_nextTxn == null || m_nextTxn != ts) {
+        else if (ts != nextTxn) {
             if (debug.get()) LOG.debug(String.format("Partition %d - Blocking next txn #%d for %d ms", m_partitionId, ts, m_waitTime));
             newState = QueueState.BLOCKED_SAFETY;
             m_blockTime = System.currentTimeMillis() + this.m_waitTime;
@@ -266,15 +281,12 @@ public class TransactionInitPriorityQueue extends ThrottlingQueue<Long> {
     }
     
     @Override
-    public String toString() {
+    public synchronized String toString() {
         Map<String, Object> m = new ListOrderedMap<String, Object>();
         m.put("PartitionId", m_partitionId);
         
         String labels[] = { "Next", "Last Popped", "Last Seen" };
-        long txnids[] = null;
-        synchronized (this) {
-            txnids = new long[]{ m_nextTxn, m_lastTxnPopped, m_lastSeenTxnId };
-        } // SYNCH
+        long txnids[] = new long[]{ m_nextTxn, m_lastTxnPopped, m_lastSeenTxnId };
         for (int i = 0; i < labels.length; i++) {
             m.put(String.format("%s TxnId", labels[i]),
                   String.format("#%d/%d", txnids[i], TransactionIdManager.getInitiatorIdFromTransactionId(txnids[i])));
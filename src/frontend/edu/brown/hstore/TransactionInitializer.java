@@ -25,7 +25,9 @@
  ***************************************************************************/
 package edu.brown.hstore;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
 
 import org.apache.log4j.Logger;
@@ -34,6 +36,7 @@ import org.voltdb.ParameterSet;
 import org.voltdb.StoredProcedureInvocation;
 import org.voltdb.catalog.Database;
 import org.voltdb.catalog.Procedure;
+import org.voltdb.messaging.FastDeserializer;
 
 import com.google.protobuf.RpcCallback;
 
@@ -137,6 +140,38 @@ public class TransactionInitializer {
                                        Procedure catalog_proc,
                                        ParameterSet procParams,
                                        int base_partition) {
+        assert(procParams != null);
+        return (this.calculateBasePartition(client_handle, catalog_proc, procParams, null, null, base_partition));
+    }
+    
+    /**
+     * Calculate what partition the txn should be executed on directly from its serialized
+     * StoredProcedureInvocation. Only the parameters that the PartitionEstimator needs
+     * are deserialized, so the full ParameterSet can be deserialized later on by the
+     * PartitionExecutor that the txn is sent to.
+     * @param client_handle
+     * @param catalog_proc
+     * @param serializedRequest
+     * @param in the calling thread's FastDeserializer
+     * @param base_partition
+     * @return
+     */
+    public int calculateBasePartition(long client_handle,
+                                       Procedure catalog_proc,
+                                       ByteBuffer serializedRequest,
+                                       FastDeserializer in,
+                                       int base_partition) {
+        assert(serializedRequest != null);
+        assert(in != null);
+        return (this.calculateBasePartition(client_handle, catalog_proc, null, serializedRequest, in, base_partition));
+    }
+    
+    private int calculateBasePartition(long client_handle,
+                                        Procedure catalog_proc,
+                                        ParameterSet procParams,
+                                        ByteBuffer serializedRequest,
+                                        FastDeserializer in,
+                                        int base_partition) {
         
         // Simple sanity check to make sure that we're not being told a bad partition
         if (base_partition < 0 || base_partition >= hstore_site.local_partitions_arr.length) {
@@ -165,8 +200,16 @@ public class TransactionInitializer {
         else if (hstore_conf.site.exec_force_localexecution == false) {
             if (d) LOG.debug(String.format("Using PartitionEstimator for %s request", catalog_proc.getName()));
             try {
-                Integer p = this.p_estimator.getBasePartition(catalog_proc, procParams.toArray(), false);
-                if (p != null) base_partition = p.intValue(); 
+                Object params[] = null;
+                if (procParams != null) {
+                    params = procParams.toArray();
+                } else {
+                    params = this.peekBasePartitionParameters(catalog_proc, serializedRequest, in);
+                }
+                if (params != null) {
+                    Integer p = this.p_estimator.getBasePartition(catalog_proc, params, false);
+                    if (p != null) base_partition = p.intValue();
+                }
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
@@ -185,6 +228,32 @@ public class TransactionInitializer {
     }
     
     
+    /**
+     * Deserialize only the input parameters that the PartitionEstimator needs to calculate
+     * the base partition of the given serialized request. The returned array is the same length
+     * as the Procedure's parameters, but the other values will be null.
+     * Returns null if the Procedure does not have a partitioning parameter.
+     * @param catalog_proc
+     * @param serializedRequest
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private Object[] peekBasePartitionParameters(Procedure catalog_proc, ByteBuffer serializedRequest, FastDeserializer in) throws IOException {
+        int offsets[] = this.p_estimator.getBasePartitionParameterOffsets(catalog_proc);
+        if (offsets == null) return (null);
+        
+        Object params[] = new Object[catalog_proc.getParameters().size()];
+        if (offsets.length > 0) {
+            StoredProcedureInvocation.seekToParameterSet(serializedRequest);
+            in.setBuffer(serializedRequest);
+            ParameterSet.readParameters(in, offsets, params);
+        }
+        if (t) LOG.trace(String.format("Peeked at %s parameters %s for base partition: %s",
+                                       catalog_proc.getName(), Arrays.toString(offsets), Arrays.toString(params)));
+        return (params);
+    }
+    
     /**
      * 
      * @param serializedRequest
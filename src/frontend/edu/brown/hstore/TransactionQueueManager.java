@@ -356,11 +356,11 @@ public class TransactionQueueManager implements Runnable, Loggable, Shutdownable
             // For local partitions, peek ahead in this partition's queue to see whether the 
             // txnId that we're trying to insert is less than the next one that we expect to release 
             TransactionInitPriorityQueue queue = this.lockQueues[partition];
-            Long next_safe = queue.noteTransactionRecievedAndReturnLastSeen(txn_id);
+            long next_safe = queue.noteTransactionRecievedAndReturnLastSeen(txn_id.longValue());
             
             // The next txnId that we're going to try to execute is already greater
             // than this new txnId that we were given! Rejection!
-            if (next_safe.compareTo(txn_id) > 0) {
+            if (next_safe > txn_id.longValue()) {
                 if (d) LOG.debug(String.format("The next safe initQueue txnId for partition #%d is txn #%d but this is greater than our new txn #%d. Rejecting...",
                                                partition, next_safe, txn_id));
                 this.rejectTransaction(txn_id,
@@ -16,6 +16,7 @@ import org.voltdb.StoredProcedureInvocation;
 import org.voltdb.VoltTable;
 import org.voltdb.messaging.FastDeserializer;
 import org.voltdb.messaging.FastSerializer;
+import org.voltdb.messaging.SerializationArena;
 
 import com.google.protobuf.RpcCallback;
 
@@ -211,15 +212,17 @@ public class VoltProcedureListener extends AbstractEventHandler {
 //    }
 
     public static StoredProcedureInvocation decodeRequest(byte[] bytes) {
-        final FastDeserializer fds = new FastDeserializer(ByteBuffer.wrap(bytes));
+        final SerializationArena arena = SerializationArena.get();
+        final FastDeserializer fds = arena.acquireDeserializer(ByteBuffer.wrap(bytes));
         StoredProcedureInvocation task;
         try {
             task = fds.readObject(StoredProcedureInvocation.class);
+            task.buildParameterSet(fds);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            arena.release(fds);
         }
-
-        task.buildParameterSet();
         return task;
     }
 
@@ -390,6 +390,32 @@ public final class HStoreConf {
         )
         public boolean exec_deferrable_queries;
         
+        @ConfigProperty(
+            description="If this parameter is enabled, then each partition will cache the results of " +
+                        "read-only PlanFragments and reuse them across transactions until one of the " +
+                        "tables that they read from is modified.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean exec_query_cache;
+        
+        @ConfigProperty(
+            description="The maximum number of query results that each partition will keep in its global " +
+                        "query cache when ${site.exec_query_cache} is enabled. The least recently used " +
+                        "results are evicted first.",
+            defaultInt=1000,
+            experimental=true
+        )
+        public int exec_query_cache_global_size;
+        
+        @ConfigProperty(
+            description="The maximum number of query results that each partition will keep for a single " +
+                        "transaction (e.g., prefetched queries).",
+            defaultInt=100,
+            experimental=true
+        )
+        public int exec_query_cache_txn_size;
+        
         // ----------------------------------------------------------------------------
         // Command Logging Options
         // ----------------------------------------------------------------------------
@@ -415,6 +441,35 @@ public final class HStoreConf {
         )
         public int commandlog_timeout;
         
+        @ConfigProperty(
+            description="The maximum number of transactions that each partition can queue up for a single " +
+                        "group commit. The CommandLogWriter pre-allocates two buffers of this many log entries " +
+                        "for each of its partitions. The group commit is written out early once this many " +
+                        "entries are waiting.",
+            defaultInt=100000,
+            experimental=true
+        )
+        public int commandlog_group_commit_size;
+        
+        @ConfigProperty(
+            description="If enabled, then the CommandLogWriter will pick how long to wait before each group commit " +
+                        "based on the measured fsync latency and the arrival rate of new transactions. " +
+                        "It will try to keep the 99th percentile commit latency under ${site.commandlog_target_latency} " +
+                        "and will never wait longer than ${site.commandlog_timeout}. If disabled, then the group " +
+                        "commit will always wait for ${site.commandlog_timeout}.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean commandlog_adaptive;
+        
+        @ConfigProperty(
+            description="The target 99th percentile latency in microseconds for a transaction to be written " +
+                        "to the command log when ${site.commandlog_adaptive} is enabled.",
+            defaultInt=10000,
+            experimental=true
+        )
+        public int commandlog_target_latency;
+        
         @ConfigProperty(
             description="If enabled, then the CommandLogWriter will keep track of various internal " +
                         "profile statistics.",
@@ -423,6 +478,63 @@ public final class HStoreConf {
         )
         public boolean commandlog_profiling;
         
+        @ConfigProperty(
+            description="If enabled, then each local partition at an HStoreSite will write its transactions " +
+                        "to its own command log file in ${site.commandlog_dir} with its own writer thread. " +
+                        "Otherwise, all of the partitions at a site share a single log file and writer thread. " +
+                        "The entries from the separate files are merged by transaction id during recovery.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean commandlog_partitioned;
+        
+        @ConfigProperty(
+            description="If enabled, then the CommandLogWriter will write its group commits into pre-allocated " +
+                        "log segments of ${site.commandlog_segment_size} MB that are memory-mapped. Each group commit " +
+                        "is compressed directly into the mapped segment and then forced out to disk. When a segment " +
+                        "is full, the writer will move on to the next one and reuse old segment files if there are any.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean commandlog_mmap;
+        
+        @ConfigProperty(
+            description="The size of each command log segment in megabytes when ${site.commandlog_mmap} is enabled.",
+            defaultInt=64,
+            experimental=true
+        )
+        public int commandlog_segment_size;
+        
+        @ConfigProperty(
+            description="If enabled, then the HStoreSite will recover its state when it starts up. " +
+                        "It will first restore the latest snapshot in ${site.commandlog_replay_snapshot_dir} " +
+                        "and then replay all of the transactions in its command log that committed after " +
+                        "that snapshot was taken. The HStoreSite will not accept new client connections " +
+                        "until the replay is finished.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean commandlog_replay;
+        
+        @ConfigProperty(
+            description="Directory to search for the latest snapshot to restore before replaying the " +
+                        "command log. If there are no snapshots in this directory, then the entire log " +
+                        "will be replayed on an empty database.",
+            defaultString="${global.temp_dir}/snapshots",
+            experimental=true
+        )
+        public String commandlog_replay_snapshot_dir = HStoreConf.this.global.temp_dir + "/snapshots";
+        
+        @ConfigProperty(
+            description="How long (in milliseconds) an HStoreSite will wait for another site during " +
+                        "command log replay before it gives up on recovery. This covers waiting for " +
+                        "site zero to restore the snapshot and waiting for the other sites to reach " +
+                        "each multi-partition txn in the log.",
+            defaultInt=300000,
+            experimental=true
+        )
+        public int commandlog_replay_timeout;
+        
         // ----------------------------------------------------------------------------
         // AntiCache Options
         // ----------------------------------------------------------------------------
@@ -462,6 +574,43 @@ public final class HStoreConf {
                 experimental=true
         )
         public boolean mr_reduce_blocking;
+        
+        @ConfigProperty(
+                description="The amount of memory in megabytes that the MAP output or the REDUCE input of a " +
+                            "MapReduceTransaction at a single partition can use before it is sorted and spilled " +
+                            "out to a run file in ${site.mr_spill_dir}. The run files are merged together when " +
+                            "the SHUFFLE or REDUCE phase is executed. Set this to a negative value to always keep " +
+                            "the MAP output and REDUCE input in memory.",
+                defaultInt=64,
+                experimental=true
+        )
+        public int mr_spill_threshold;
+        
+        @ConfigProperty(
+                description="The directory to use to store the spilled MapReduce run files.",
+                defaultString="${global.temp_dir}/mapreduce",
+                experimental=true
+        )
+        public String mr_spill_dir = HStoreConf.this.global.temp_dir + "/mapreduce";
+        
+        @ConfigProperty(
+                description="The size in bytes of each block of rows in a MapReduce run file. Only one block " +
+                            "per run file is kept in memory while the run files are merged.",
+                defaultInt=1048576,
+                experimental=true
+        )
+        public int mr_spill_block_size;
+        
+        @ConfigProperty(
+                description="The number of input rows that a partition will process in a single slice of the " +
+                            "MAP or REDUCE phase of a MapReduceTransaction. After each slice, the PartitionExecutor " +
+                            "will execute other work that is waiting in its queue before it continues with the " +
+                            "next slice. The REDUCE phase is only executed in slices if ${site.mr_reduce_blocking} " +
+                            "is true. Set this to a negative value to process all of the input at once.",
+                defaultInt=10000,
+                experimental=true
+        )
+        public int mr_slice_size;
 
         // ----------------------------------------------------------------------------
         // Networking Options
@@ -474,6 +623,15 @@ public final class HStoreConf {
             experimental=false
         )
         public boolean network_profiling;
+
+        @ConfigProperty(
+            description="The number of selector loops that the client connections to this site are divided " +
+                        "between. Each loop has its own thread that is pinned to a separate core " +
+                        "(if ${site.cpu_affinity} is enabled).",
+            defaultInt=1,
+            experimental=true
+        )
+        public int network_selector_threads;
         
         // ----------------------------------------------------------------------------
         // Incoming Transaction Queue Options
@@ -622,12 +780,22 @@ public final class HStoreConf {
 
         @ConfigProperty(
             description="Recompute a Markov model's execution state probabilities every time a transaction " +
-                        "is aborted due to a misprediction. The Markov model is queued in the PartitionExecutorHelper " +
+                        "is aborted due to a misprediction. The Markov model is queued in the HStoreSite's MarkovGraphUpdater " +
                         "for processing rather than being executed directly within the PartitionExecutor's thread.",
             defaultBoolean=true,
             experimental=false
         )
         public boolean markov_mispredict_recompute;
+        
+        @ConfigProperty(
+            description="How often (in milliseconds) the HStoreSite's MarkovGraphUpdater thread will recompute the " +
+                        "probabilities of the Markov models that were used by transactions since its last round. " +
+                        "The new probabilities are published without blocking the PartitionExecutors, so the models " +
+                        "will continuously track changes in the workload. Set this to zero to disable online updates.",
+            defaultInt=5000,
+            experimental=true
+        )
+        public int markov_update_interval;
 
         @ConfigProperty(
             description="", // TODO
@@ -764,6 +932,16 @@ public final class HStoreConf {
             experimental=false
         )
         public boolean coordinator_sync_time;
+        
+        @ConfigProperty(
+            description="If this enabled, HStoreCoordinator will buffer outbound messages to each remote " +
+                        "HStoreSite and then send all of the messages that were queued in the same event loop " +
+                        "iteration with a single network write. This reduces the number of small writes for " +
+                        "TransactionWorkRequests when many fragments are sent between the same pair of sites.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean coordinator_coalesce_messages;
 
         // ----------------------------------------------------------------------------
         // Output Tracing
@@ -1232,6 +1410,36 @@ public final class HStoreConf {
         )
         public boolean txn_hints;
         
+        @ConfigProperty(
+            description="If this parameter is set to true and the client was not given a catalog when it was created, " +
+                        "then it will retrieve the catalog from the cluster using @GetCatalog after it makes its first " +
+                        "connection. The client then uses the catalog's partitioning information to send " +
+                        "single-partition requests directly to the HStoreSite with the base partition, instead of " +
+                        "having that site redirect them. This requires ${client.txn_hints} to be enabled.",
+            defaultBoolean=false,
+            experimental=false
+        )
+        public boolean txn_hints_fetch_catalog;
+
+        @ConfigProperty(
+            description="If this parameter is set to a positive value, then the client will pipeline its " +
+                        "asynchronous requests. Requests that are sent to the same connection are packed together " +
+                        "in a single buffer that is written to the socket either once it fills up " +
+                        "(see ${client.pipeline_bytes}) or once this many milliseconds have passed. " +
+                        "This reduces the number of syscalls per transaction at the cost of additional latency.",
+            defaultInt=-1,
+            experimental=true
+        )
+        public int pipeline_window;
+
+        @ConfigProperty(
+            description="The size in bytes of the buffer that the client packs pipelined requests into " +
+                        "for each connection. This is only used if ${client.pipeline_window} is enabled.",
+            defaultInt=65536,
+            experimental=true
+        )
+        public int pipeline_bytes;
+
         @ConfigProperty(
             description="If a node is executing multiple client processes, then the node may become overloaded if " +
                         "all the clients are started at the same time. This parameter defines the threshold for when " +
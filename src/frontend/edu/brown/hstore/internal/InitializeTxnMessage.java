@@ -9,6 +9,11 @@ import org.voltdb.catalog.Procedure;
 
 import com.google.protobuf.RpcCallback;
 
+/**
+ * A new txn request from a client that still needs to be initialized at its base partition.
+ * The procedure's ParameterSet may be null if it has not been deserialized from
+ * the serialized StoredProcedureInvocation yet.
+ */
 public class InitializeTxnMessage extends InternalMessage {
 
     final ByteBuffer serializedRequest; 
@@ -24,7 +29,6 @@ public class InitializeTxnMessage extends InternalMessage {
         
         assert(serializedRequest != null);
         assert(catalog_proc != null);
-        assert(procParams != null);
         assert(clientCallback != null);
         
         this.serializedRequest = serializedRequest;
@@ -42,6 +46,10 @@ public class InitializeTxnMessage extends InternalMessage {
         return (this.catalog_proc);
     }
 
+    /**
+     * Returns the ParameterSet for the request. This will be null if the 
+     * PartitionExecutor needs to deserialize it from the serialized request
+     */
     public ParameterSet getProcParams() {
         return (this.procParams);
     }
@@ -0,0 +1,114 @@
+package edu.brown.hstore.internal;
+
+import org.voltdb.VoltTable;
+import org.voltdb.utils.ReduceInputIterator;
+
+import edu.brown.hstore.txns.MapReduceTransaction;
+import edu.brown.hstore.util.MapReduceSpill;
+
+/**
+ * The remaining work for the MAP or REDUCE phase of a MapReduceTransaction at a single
+ * partition. The VoltMapReduceProcedure processes its input one slice at a time and then
+ * gives this back to the PartitionExecutor, which will execute other work before it
+ * comes back to the next slice.
+ * <p>
+ * MapReduceTransaction handles are recycled, so we keep the id of the transaction that
+ * this slice was created for. The PartitionExecutor will drop the slice if the handle
+ * now belongs to a different transaction.
+ */
+public class MapReduceSliceMessage extends InternalMessage {
+
+    private final MapReduceTransaction ts;
+    private final long txn_id;
+    private final int partition;
+
+    /**
+     * The result of the MAP input query
+     */
+    private final VoltTable map_input;
+
+    /**
+     * The REDUCE input that we are working on. If the input was spilled
+     * to disk, then we read it from the merged run files instead.
+     */
+    private final ReduceInputIterator<?> reduce_input;
+    private final MapReduceSpill.MergeIterator<?> reduce_merge;
+
+    private int slices = 0;
+
+    /**
+     * MAP Constructor
+     * @param ts
+     * @param partition
+     * @param map_input
+     */
+    public MapReduceSliceMessage(MapReduceTransaction ts, int partition, VoltTable map_input) {
+        this.ts = ts;
+        this.txn_id = ts.getTransactionId();
+        this.partition = partition;
+        this.map_input = map_input;
+        this.reduce_input = null;
+        this.reduce_merge = null;
+    }
+
+    /**
+     * REDUCE Constructor
+     * @param ts
+     * @param partition
+     * @param reduce_input
+     * @param reduce_merge
+     */
+    public MapReduceSliceMessage(MapReduceTransaction ts, int partition, ReduceInputIterator<?> reduce_input, MapReduceSpill.MergeIterator<?> reduce_merge) {
+        this.ts = ts;
+        this.txn_id = ts.getTransactionId();
+        this.partition = partition;
+        this.map_input = null;
+        this.reduce_input = reduce_input;
+        this.reduce_merge = reduce_merge;
+    }
+
+    public MapReduceTransaction getTransaction() {
+        return (this.ts);
+    }
+    /**
+     * Return the id of the transaction that this slice was created for
+     */
+    public long getTransactionId() {
+        return (this.txn_id);
+    }
+    /**
+     * Returns true if the transaction handle still belongs to the transaction
+     * that this slice was created for and that transaction has not been aborted
+     */
+    public boolean isValid() {
+        Long ts_id = this.ts.getTransactionId();
+        return (ts_id != null && ts_id.longValue() == this.txn_id && this.ts.isAborted() == false);
+    }
+    public int getPartition() {
+        return (this.partition);
+    }
+    public boolean isMap() {
+        return (this.map_input != null);
+    }
+    public VoltTable getMapInput() {
+        return (this.map_input);
+    }
+    public ReduceInputIterator<?> getReduceInput() {
+        return (this.reduce_input);
+    }
+    public MapReduceSpill.MergeIterator<?> getReduceMerge() {
+        return (this.reduce_merge);
+    }
+    /**
+     * Increment and return the number of slices executed for this phase
+     */
+    public int incrementSlices() {
+        return (++this.slices);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s::#%d/%d[%s]", this.getClass().getSimpleName(), this.txn_id,
+                             this.partition, (this.isMap() ? "MAP" : "REDUCE"));
+    }
+}
@@ -1,5 +1,7 @@
 package edu.brown.hstore.txns;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -7,7 +9,6 @@ import org.apache.log4j.Logger;
 import org.voltdb.ClientResponseImpl;
 import org.voltdb.ParameterSet;
 import org.voltdb.VoltTable;
-import org.voltdb.VoltTableRow;
 import org.voltdb.catalog.Procedure;
 import org.voltdb.catalog.Table;
 
@@ -25,6 +26,8 @@ import edu.brown.hstore.callbacks.TransactionMapCallback;
 import edu.brown.hstore.callbacks.TransactionMapWrapperCallback;
 import edu.brown.hstore.callbacks.TransactionReduceCallback;
 import edu.brown.hstore.callbacks.TransactionReduceWrapperCallback;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.util.MapReduceSpill;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
 
@@ -47,6 +50,22 @@ public class MapReduceTransaction extends LocalTransaction {
     private VoltTable mapOutput[];
     private VoltTable reduceInput[];
     private VoltTable reduceOutput[];
+    
+    /**
+     * The run files for each partition's MAP output that has been spilled to disk
+     */
+    private final MapReduceSpill mapSpill[];
+    
+    /**
+     * The run files for each partition's REDUCE input that has been spilled to disk
+     */
+    private final MapReduceSpill reduceSpill[];
+    
+    /**
+     * The max size in bytes of each partition's in-memory MAP output
+     * or REDUCE input before we spill it
+     */
+    private final long spill_threshold;
 
     public enum State {
         MAP,
@@ -114,6 +133,12 @@ public class MapReduceTransaction extends LocalTransaction {
         this.mapOutput = new VoltTable[this.partitions_size];
         this.reduceInput = new VoltTable[this.partitions_size];
         this.reduceOutput = new VoltTable[this.partitions_size];
+        this.mapSpill = new MapReduceSpill[this.partitions_size];
+        this.reduceSpill = new MapReduceSpill[this.partitions_size];
+        
+        HStoreConf hstore_conf = hstore_site.getHStoreConf();
+        this.spill_threshold = (hstore_conf.site.mr_spill_threshold >= 0 ?
+                                    hstore_conf.site.mr_spill_threshold * 1024l * 1024l : -1);
                 
         this.map_callback = new TransactionMapCallback(hstore_site);
         this.mapWrapper_callback = new TransactionMapWrapperCallback(hstore_site);
@@ -238,6 +263,16 @@ public class MapReduceTransaction extends LocalTransaction {
         
         
         if(debug.get()) LOG.debug("<MapReduceTransaction> this.reduceWrapper_callback.finish().......................");
+        for (int i = 0; i < this.partitions_size; i++) {
+            if (this.mapSpill[i] != null) {
+                this.mapSpill[i].cleanup();
+                this.mapSpill[i] = null;
+            }
+            if (this.reduceSpill[i] != null) {
+                this.reduceSpill[i].cleanup();
+                this.reduceSpill[i] = null;
+            }
+        } // FOR
         this.mapEmit = null;
         this.reduceEmit = null;
         this.mapOutput = null;
@@ -260,16 +295,112 @@ public class MapReduceTransaction extends LocalTransaction {
         
         if (debug.get())
             LOG.debug(String.format("<StoreData, change to ReduceInputTable> to Partition:%d>\n %s",partition,vt));
+        vt.resetRowPosition();
         while (vt.advanceRow()) {
-            VoltTableRow row = vt.fetchRow(vt.getActiveRowIndex());
-            assert(row != null);
-            input.add(row);
+            input.add(vt);
         }
         vt.resetRowPosition();
         
+        // Spill the REDUCE input out to disk if it's too big. We're usually on the
+        // network thread here, so we swap in a new empty table and let the
+        // MapReduceSpill's write service thread sort and write out the full one
+        if (this.spill_threshold >= 0 && input.getUnderlyingBufferSize() > this.spill_threshold) {
+            int offset = hstore_site.getLocalPartitionOffset(partition);
+            if (debug.get())
+                LOG.debug(String.format("%s - Queuing %d REDUCE input rows for partition %d to be spilled [bytes=%d]",
+                                        this, input.getRowCount(), partition, input.getUnderlyingBufferSize()));
+            this.getSpill(this.reduceSpill, partition, "reduce").queueSpill(input);
+            this.reduceInput[offset] = new VoltTable(input);
+        }
+        
         return Hstoreservice.Status.OK;
     }
     
+    /**
+     * Return the MapReduceSpill for the given partition, creating it if needed
+     * @param spills either the MAP output or REDUCE input spills
+     * @param partition
+     * @param phase the name of the phase to use in the run files' names
+     */
+    private MapReduceSpill getSpill(MapReduceSpill spills[], int partition, String phase) {
+        int offset = hstore_site.getLocalPartitionOffset(partition);
+        if (spills[offset] == null) {
+            HStoreConf hstore_conf = hstore_site.getHStoreConf();
+            spills[offset] = new MapReduceSpill(new File(hstore_conf.site.mr_spill_dir),
+                                                String.format("txn%d-p%02d-%s", this.txn_id, partition, phase),
+                                                hstore_conf.site.mr_spill_block_size);
+        }
+        return (spills[offset]);
+    }
+    
+    /**
+     * Return the max size in bytes of a partition's in-memory MAP output or REDUCE input
+     * before it gets spilled to disk. Negative if nothing should be spilled.
+     */
+    public long getSpillThreshold() {
+        return (this.spill_threshold);
+    }
+    
+    /**
+     * Hand the in-memory MAP output table for the given partition off to the
+     * MapReduceSpill's write service thread and swap in a new empty table.
+     * This is invoked by the thread executing the MAP phase once the table goes
+     * over the spill threshold. Returns the new MAP output table.
+     * @param partition
+     */
+    public synchronized VoltTable queueMapOutputSpill(int partition) {
+        int offset = hstore_site.getLocalPartitionOffset(partition);
+        VoltTable output = this.mapOutput[offset];
+        if (debug.get())
+            LOG.debug(String.format("%s - Queuing %d MAP output rows for partition %d to be spilled [bytes=%d]",
+                                    this, output.getRowCount(), partition, output.getUnderlyingBufferSize()));
+        this.getSpill(this.mapSpill, partition, "map").queueSpill(output);
+        this.mapOutput[offset] = new VoltTable(output);
+        return (this.mapOutput[offset]);
+    }
+    
+    /**
+     * Sort the in-memory MAP output table for the given partition and write it
+     * out to a new run file. The table is cleared afterwards.
+     * This is invoked by the thread executing the SHUFFLE phase, so the I/O is done inline.
+     * @param partition
+     */
+    public synchronized void spillMapOutput(int partition) {
+        int offset = hstore_site.getLocalPartitionOffset(partition);
+        VoltTable output = this.mapOutput[offset];
+        if (debug.get())
+            LOG.debug(String.format("%s - Spilling %d MAP output rows for partition %d [bytes=%d]",
+                                    this, output.getRowCount(), partition, output.getUnderlyingBufferSize()));
+        try {
+            this.getSpill(this.mapSpill, partition, "map").spill(output);
+        } catch (IOException ex) {
+            throw new RuntimeException(String.format("Unexpected error when spilling %s MAP output for partition %d",
+                                                     this, partition), ex);
+        }
+        output.clearRowData();
+    }
+    
+    /**
+     * Sort the in-memory REDUCE input table for the given partition and write it
+     * out to a new run file. The table is cleared afterwards.
+     * This is invoked by the thread executing the REDUCE phase, so the I/O is done inline.
+     * @param partition
+     */
+    public synchronized void spillReduceInput(int partition) {
+        int offset = hstore_site.getLocalPartitionOffset(partition);
+        VoltTable input = this.reduceInput[offset];
+        if (debug.get())
+            LOG.debug(String.format("%s - Spilling %d REDUCE input rows for partition %d [bytes=%d]",
+                                    this, input.getRowCount(), partition, input.getUnderlyingBufferSize()));
+        try {
+            this.getSpill(this.reduceSpill, partition, "reduce").spill(input);
+        } catch (IOException ex) {
+            throw new RuntimeException(String.format("Unexpected error when spilling %s REDUCE input for partition %d",
+                                                     this, partition), ex);
+        }
+        input.clearRowData();
+    }
+    
     /**
      * Get a LocalTransaction handle for a local partition
      * 
@@ -465,12 +596,39 @@ public class MapReduceTransaction extends LocalTransaction {
         return this.mapOutput[hstore_site.getLocalPartitionOffset(partition)];
     }
     
+    /**
+     * Replace the MapOutput table for a partition (e.g., with the output of the combiner)
+     * @param partition
+     * @param vt
+     */
+    public void setMapOutputByPartition( int partition, VoltTable vt ) {
+        this.mapOutput[hstore_site.getLocalPartitionOffset(partition)] = vt;
+    }
+    
+    /**
+     * Return the MapReduceSpill for the given partition's MAP output.
+     * Returns null if none of the output was spilled to disk.
+     * @param partition
+     */
+    public synchronized MapReduceSpill getMapSpillByPartition ( int partition ) {
+        return this.mapSpill[hstore_site.getLocalPartitionOffset(partition)];
+    }
+    
     public VoltTable getReduceInputByPartition ( int partition ) {
         if (debug.get()) LOG.debug("Trying to getReduceInputByPartition: [ " + partition + " ]");
         return this.reduceInput[hstore_site.getLocalPartitionOffset(partition)];
         //return this.reduceInput[partition];
     }
     
+    /**
+     * Return the MapReduceSpill for the given partition's REDUCE input.
+     * Returns null if none of the input was spilled to disk.
+     * @param partition
+     */
+    public synchronized MapReduceSpill getReduceSpillByPartition ( int partition ) {
+        return this.reduceSpill[hstore_site.getLocalPartitionOffset(partition)];
+    }
+    
     public VoltTable getReduceOutputByPartition ( int partition ) {
         if (debug.get()) LOG.debug("Trying to getReduceOutputByPartition: [ " + partition + " ]");
         return this.reduceOutput[hstore_site.getLocalPartitionOffset(partition)];
@@ -0,0 +1,425 @@
+package edu.brown.hstore.util;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free sorted set of primitive longs that can be used as a priority queue.
+ * This is the lock-free skip list from Herlihy & Shavit's "The Art of Multiprocessor
+ * Programming". A node is logically removed once its bottom-level reference is marked,
+ * and the marked nodes are physically unlinked by whatever thread traverses them next.
+ * <p>
+ * The primitive methods are the ones that should be used in the critical path. We also
+ * implement BlockingQueue<Long> so that this can be wrapped in a ThrottlingQueue. Only
+ * the threads that block in take() or poll(timeout) ever acquire a lock, and add() only
+ * touches it if somebody is waiting. Long.MIN_VALUE and Long.MAX_VALUE are
+ * reserved for the sentinel nodes and cannot be stored.
+ */
+public class ConcurrentLongSkipList extends AbstractQueue<Long> implements BlockingQueue<Long> {
+
+    /**
+     * The value returned by peekFirst() and pollFirst() when the list is empty
+     */
+    public static final long NULL_KEY = Long.MIN_VALUE;
+
+    private static final int MAX_LEVEL = 16;
+
+    private static final class Node {
+        final long key;
+        final int topLevel;
+        final AtomicMarkableReference<Node> next[];
+
+        @SuppressWarnings("unchecked")
+        Node(long key, int topLevel) {
+            this.key = key;
+            this.topLevel = topLevel;
+            this.next = (AtomicMarkableReference<Node>[])new AtomicMarkableReference<?>[topLevel + 1];
+            for (int i = 0; i <= topLevel; i++) {
+                this.next[i] = new AtomicMarkableReference<Node>(null, false);
+            } // FOR
+        }
+    } // CLASS
+
+    private final Node head = new Node(Long.MIN_VALUE, MAX_LEVEL);
+    private final Node tail = new Node(Long.MAX_VALUE, MAX_LEVEL);
+    private final AtomicInteger size = new AtomicInteger(0);
+    
+    /**
+     * Threads that are blocked in take() or poll(timeout) wait on this
+     * condition until somebody adds a new key.
+     */
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition notEmpty = this.waitLock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger(0);
+
+    /**
+     * Seed for the level generator. Races on this are harmless.
+     */
+    private int randomSeed = (int)System.nanoTime() | 0x0100;
+
+    public ConcurrentLongSkipList() {
+        for (int i = 0; i <= MAX_LEVEL; i++) {
+            this.head.next[i].set(this.tail, false);
+        } // FOR
+    }
+
+    /**
+     * Returns a random level for a new node where each level is half as likely as the one below it
+     * (Marsaglia xorshift)
+     */
+    private int randomLevel() {
+        int x = this.randomSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        this.randomSeed = x;
+        int level = 0;
+        while ((x & 1) != 0 && level < MAX_LEVEL) {
+            level++;
+            x >>>= 1;
+        } // WHILE
+        return (level);
+    }
+
+    /**
+     * Populate preds/succs with the nodes that surround the given key at each level,
+     * unlinking any marked nodes that we find along the way.
+     * Returns true if the key is in the list.
+     */
+    private boolean find(long key, Node preds[], Node succs[]) {
+        final boolean marked[] = { false };
+        Node pred = null, curr = null, succ = null;
+        retry:
+        while (true) {
+            pred = this.head;
+            for (int level = MAX_LEVEL; level >= 0; level--) {
+                curr = pred.next[level].getReference();
+                while (true) {
+                    succ = curr.next[level].get(marked);
+                    while (marked[0]) {
+                        if (pred.next[level].compareAndSet(curr, succ, false, false) == false) {
+                            continue retry;
+                        }
+                        curr = pred.next[level].getReference();
+                        succ = curr.next[level].get(marked);
+                    } // WHILE
+                    if (curr != this.tail && curr.key < key) {
+                        pred = curr;
+                        curr = succ;
+                    } else {
+                        break;
+                    }
+                } // WHILE
+                preds[level] = pred;
+                succs[level] = curr;
+            } // FOR
+            return (curr != this.tail && curr.key == key);
+        } // WHILE
+    }
+
+    // ----------------------------------------------------------------------------
+    // PRIMITIVE API
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Add the given key to the list. Returns false if it already exists.
+     * @param key
+     */
+    public boolean add(long key) {
+        assert(key != Long.MIN_VALUE && key != Long.MAX_VALUE) : "Invalid key " + key;
+        final int topLevel = this.randomLevel();
+        final Node preds[] = new Node[MAX_LEVEL + 1];
+        final Node succs[] = new Node[MAX_LEVEL + 1];
+        final boolean marked[] = { false };
+        while (true) {
+            if (this.find(key, preds, succs)) {
+                return (false);
+            }
+            Node newNode = new Node(key, topLevel);
+            for (int level = 0; level <= topLevel; level++) {
+                newNode.next[level].set(succs[level], false);
+            } // FOR
+
+            // The node is in the list once it is linked in at the bottom level
+            if (preds[0].next[0].compareAndSet(succs[0], newNode, false, false) == false) {
+                continue;
+            }
+            this.size.incrementAndGet();
+            if (this.waiters.get() > 0) this.signalNotEmpty();
+
+            // Then link it in at the upper levels. If somebody starts to remove it
+            // before we're done, then we just stop here.
+            for (int level = 1; level <= topLevel; level++) {
+                while (true) {
+                    Node pred = preds[level];
+                    Node succ = succs[level];
+                    Node curr = newNode.next[level].get(marked);
+                    if (marked[0] || (curr != succ && newNode.next[level].compareAndSet(curr, succ, false, false) == false)) {
+                        return (true);
+                    }
+                    if (pred.next[level].compareAndSet(succ, newNode, false, false)) {
+                        break;
+                    }
+                    this.find(key, preds, succs);
+                } // WHILE
+            } // FOR
+            return (true);
+        } // WHILE
+    }
+
+    /**
+     * Remove the given key from the list. Returns false if it was not in the list
+     * or if another thread removed it first.
+     * @param key
+     */
+    public boolean remove(long key) {
+        if (key == Long.MIN_VALUE || key == Long.MAX_VALUE) return (false);
+        final Node preds[] = new Node[MAX_LEVEL + 1];
+        final Node succs[] = new Node[MAX_LEVEL + 1];
+        final boolean marked[] = { false };
+        if (this.find(key, preds, succs) == false) {
+            return (false);
+        }
+        Node victim = succs[0];
+
+        // Mark the upper levels first
+        for (int level = victim.topLevel; level >= 1; level--) {
+            Node succ = victim.next[level].get(marked);
+            while (marked[0] == false) {
+                victim.next[level].compareAndSet(succ, succ, false, true);
+                succ = victim.next[level].get(marked);
+            } // WHILE
+        } // FOR
+
+        // Whoever marks the bottom level is the one that removed it
+        Node succ = victim.next[0].get(marked);
+        while (true) {
+            boolean iMarkedIt = victim.next[0].compareAndSet(succ, succ, false, true);
+            succ = victim.next[0].get(marked);
+            if (iMarkedIt) {
+                this.size.decrementAndGet();
+                this.find(key, preds, succs); // Unlink it
+                return (true);
+            } else if (marked[0]) {
+                return (false);
+            }
+        } // WHILE
+    }
+
+    /**
+     * Returns true if the given key is in the list. This is wait-free.
+     * @param key
+     */
+    public boolean contains(long key) {
+        final boolean marked[] = { false };
+        Node pred = this.head, curr = null, succ = null;
+        for (int level = MAX_LEVEL; level >= 0; level--) {
+            curr = pred.next[level].getReference();
+            while (true) {
+                succ = curr.next[level].get(marked);
+                while (marked[0]) {
+                    curr = succ;
+                    succ = curr.next[level].get(marked);
+                } // WHILE
+                if (curr != this.tail && curr.key < key) {
+                    pred = curr;
+                    curr = succ;
+                } else {
+                    break;
+                }
+            } // WHILE
+        } // FOR
+        return (curr != this.tail && curr.key == key);
+    }
+
+    /**
+     * Returns the first node in the list that has not been removed
+     */
+    private Node first() {
+        Node curr = this.head.next[0].getReference();
+        while (curr != this.tail && curr.next[0].isMarked()) {
+            curr = curr.next[0].getReference();
+        } // WHILE
+        return (curr);
+    }
+
+    /**
+     * Returns the smallest key in the list without removing it.
+     * Returns NULL_KEY if the list is empty.
+     */
+    public long peekFirst() {
+        Node first = this.first();
+        return (first != this.tail ? first.key : NULL_KEY);
+    }
+
+    /**
+     * Remove and return the smallest key in the list.
+     * Returns NULL_KEY if the list is empty.
+     */
+    public long pollFirst() {
+        while (true) {
+            Node first = this.first();
+            if (first == this.tail) return (NULL_KEY);
+            if (this.remove(first.key)) return (first.key);
+        } // WHILE
+    }
+
+    // ----------------------------------------------------------------------------
+    // QUEUE API
+    // ----------------------------------------------------------------------------
+
+    @Override
+    public int size() {
+        return (this.size.get());
+    }
+    @Override
+    public boolean isEmpty() {
+        return (this.first() == this.tail);
+    }
+    @Override
+    public boolean offer(Long e) {
+        return (this.add(e.longValue()));
+    }
+    @Override
+    public Long poll() {
+        long key = this.pollFirst();
+        return (key != NULL_KEY ? Long.valueOf(key) : null);
+    }
+    @Override
+    public Long peek() {
+        long key = this.peekFirst();
+        return (key != NULL_KEY ? Long.valueOf(key) : null);
+    }
+    @Override
+    public boolean remove(Object o) {
+        return (o instanceof Long && this.remove(((Long)o).longValue()));
+    }
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof Long && this.contains(((Long)o).longValue()));
+    }
+    @Override
+    public void clear() {
+        while (this.pollFirst() != NULL_KEY) {
+            // Keep going...
+        } // WHILE
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the keys in ascending order
+     */
+    @Override
+    public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            private Node next = first();
+            private Node last = null;
+
+            @Override
+            public boolean hasNext() {
+                return (this.next != tail);
+            }
+            @Override
+            public Long next() {
+                if (this.next == tail) throw new NoSuchElementException();
+                this.last = this.next;
+                this.next = this.next.next[0].getReference();
+                while (this.next != tail && this.next.next[0].isMarked()) {
+                    this.next = this.next.next[0].getReference();
+                } // WHILE
+                return (Long.valueOf(this.last.key));
+            }
+            @Override
+            public void remove() {
+                if (this.last == null) throw new IllegalStateException();
+                ConcurrentLongSkipList.this.remove(this.last.key);
+                this.last = null;
+            }
+        };
+    }
+
+    // ----------------------------------------------------------------------------
+    // BLOCKING QUEUE API
+    // ----------------------------------------------------------------------------
+
+    @Override
+    public void put(Long e) throws InterruptedException {
+        this.offer(e);
+    }
+    @Override
+    public boolean offer(Long e, long timeout, TimeUnit unit) throws InterruptedException {
+        return (this.offer(e));
+    }
+    @Override
+    public Long take() throws InterruptedException {
+        while (true) {
+            long key = this.pollFirst();
+            if (key != NULL_KEY) return (Long.valueOf(key));
+            this.waitLock.lockInterruptibly();
+            this.waiters.incrementAndGet();
+            try {
+                // We have to check again after we are registered as a waiter, otherwise
+                // we could miss the signal from a key that was just added
+                while (this.isEmpty()) {
+                    this.notEmpty.await();
+                } // WHILE
+            } finally {
+                this.waiters.decrementAndGet();
+                this.waitLock.unlock();
+            }
+        } // WHILE
+    }
+    @Override
+    public Long poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        while (true) {
+            long key = this.pollFirst();
+            if (key != NULL_KEY) return (Long.valueOf(key));
+            if (nanos <= 0) return (null);
+            this.waitLock.lockInterruptibly();
+            this.waiters.incrementAndGet();
+            try {
+                while (this.isEmpty() && nanos > 0) {
+                    nanos = this.notEmpty.awaitNanos(nanos);
+                } // WHILE
+            } finally {
+                this.waiters.decrementAndGet();
+                this.waitLock.unlock();
+            }
+        } // WHILE
+    }
+    
+    private void signalNotEmpty() {
+        this.waitLock.lock();
+        try {
+            this.notEmpty.signalAll();
+        } finally {
+            this.waitLock.unlock();
+        }
+    }
+    @Override
+    public int remainingCapacity() {
+        return (Integer.MAX_VALUE);
+    }
+    @Override
+    public int drainTo(Collection<? super Long> c) {
+        return (this.drainTo(c, Integer.MAX_VALUE));
+    }
+    @Override
+    public int drainTo(Collection<? super Long> c, int maxElements) {
+        int ctr = 0;
+        long key;
+        while (ctr < maxElements && (key = this.pollFirst()) != NULL_KEY) {
+            c.add(Long.valueOf(key));
+            ctr++;
+        } // WHILE
+        return (ctr);
+    }
+}
@@ -1,6 +1,6 @@
 package edu.brown.hstore.util;
 
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -9,6 +9,7 @@ import org.apache.log4j.Logger;
 import org.voltdb.BackendTarget;
 import org.voltdb.VoltMapReduceProcedure;
 import org.voltdb.VoltTable;
+import org.voltdb.VoltTableRow;
 
 import com.google.protobuf.RpcCallback;
 
@@ -176,21 +177,31 @@ public class MapReduceHelperThread implements Runnable, Shutdownable {
 
             assert (table != null) : String.format("Missing MapOutput table for txn #%d", ts.getTransactionId());
 
-            while (table.advanceRow()) {
-                int rowPartition = -1;
+            MapReduceSpill spill = ts.getMapSpillByPartition(partition);
+            if (spill != null) {
+                // Some of the MAP output was spilled out to disk, so we need to write out
+                // whatever is left and then read the rows back from all of the sorted runs
+                ts.spillMapOutput(partition);
+                MapReduceSpill.MergeIterator<Object> merged = null;
                 try {
-                    rowPartition = p_estimator.getTableRowPartition(ts.getMapEmit(), table);
-                } catch (Exception e) {
-                    LOG.fatal("Failed to split input table into partitions", e);
-                    throw new RuntimeException(e.getMessage());
+                    merged = spill.merge();
+                } catch (IOException ex) {
+                    throw new RuntimeException(String.format("Unexpected error when merging %s spilled MapOutput data for partition %d",
+                                                             ts, partition), ex);
                 }
-                if (trace.get())
-                    LOG.trace(Arrays.toString(table.getRowArray()) + " => " + rowPartition);
-                assert (rowPartition >= 0);
-                // this adds the active row from table
-                partitionedTables.get(rowPartition).add(table);
-                rp = rowPartition;
-            } // WHILE
+                if (debug.get())
+                    LOG.debug(String.format("Merging %d spilled MapOutput runs for %s on partition %d",
+                                            spill.getRunCount(), ts, partition));
+                while (merged.nextKey()) {
+                    while (merged.hasNext()) {
+                        rp = this.shuffleRow(ts, merged.next(), partitionedTables);
+                    } // WHILE
+                } // WHILE
+            } else {
+                while (table.advanceRow()) {
+                    rp = this.shuffleRow(ts, table, partitionedTables);
+                } // WHILE
+            }
             if (debug.get())
                 LOG.debug(String.format("<SendTable to Dest Partition>:%d\n %s", rp, partitionedTables.get(rp)));
 
@@ -213,6 +224,29 @@ public class MapReduceHelperThread implements Runnable, Shutdownable {
         this.hstore_site.getHStoreCoordinator().sendData(ts, partitionedTables, sendData_callback);
     }
 
+    /**
+     * Add the given MapOutput row to the table for the partition that it belongs to
+     * Returns the partition id of the row.
+     * @param ts
+     * @param row
+     * @param partitionedTables
+     */
+    private int shuffleRow(MapReduceTransaction ts, VoltTableRow row, Map<Integer, VoltTable> partitionedTables) {
+        int rowPartition = -1;
+        try {
+            rowPartition = p_estimator.getTableRowPartition(ts.getMapEmit(), row);
+        } catch (Exception e) {
+            LOG.fatal("Failed to split input table into partitions", e);
+            throw new RuntimeException(e.getMessage());
+        }
+        if (trace.get())
+            LOG.trace(String.format("MapOutput row #%d => %d", row.getActiveRowIndex(), rowPartition));
+        assert (rowPartition >= 0);
+        // this adds the active row
+        partitionedTables.get(rowPartition).add(row);
+        return (rowPartition);
+    }
+
     public void reduce(final MapReduceTransaction mr_ts) {
         // Runtime
 
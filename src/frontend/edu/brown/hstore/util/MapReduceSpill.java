@@ -0,0 +1,553 @@
+package edu.brown.hstore.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltTableRow;
+import org.voltdb.VoltType;
+import org.voltdb.messaging.FastDeserializer;
+import org.voltdb.messaging.FastSerializer;
+import org.voltdb.utils.NotImplementedException;
+import org.voltdb.utils.ReduceInputIterator;
+
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.utils.FileUtil;
+
+/**
+ * Spills the MAP output or REDUCE input of a MapReduceTransaction at a single partition
+ * out to disk. Every time that the in-memory table goes over the budget, we sort it by its key
+ * and write it out to a new run file. Each run file is a sequence of serialized VoltTable
+ * blocks, so that when it is time to SHUFFLE or REDUCE the rows we can merge all of
+ * the sorted runs together while only keeping one block per run in memory.
+ * <p>
+ * The merged output is read through a MergeIterator, which groups the rows key-by-key
+ * just like a ReduceInputIterator. The rows for a single key are streamed from the
+ * run files as they are consumed, so a hot key never has to fit in memory.
+ * <p>
+ * Tables that are passed to queueSpill() are written out by a single background
+ * write service thread, so the caller (e.g., the network thread that is storing
+ * shuffled data) never has to wait on the disk.
+ */
+public class MapReduceSpill {
+    private static final Logger LOG = Logger.getLogger(MapReduceSpill.class);
+    private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
+    private static final LoggerBoolean trace = new LoggerBoolean(LOG.isTraceEnabled());
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    private static final ExecutorService m_es = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(Thread.currentThread().getThreadGroup(), r, "MapReduce spill service");
+            t.setDaemon(true);
+            return (t);
+        }
+    });
+
+    private final File dir;
+    private final String prefix;
+    private final int block_size;
+    private final List<RunFile> runs = new ArrayList<RunFile>();
+
+    /**
+     * The spills that have been queued but may not have been written out yet
+     */
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+    private VoltTable template;
+    private VoltType keyType;
+    private MergeIterator<?> merge;
+    private long spill_bytes = 0;
+
+    /**
+     * Set once cleanup() is invoked. No more run files are written after this.
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * @param dir the directory to write the run files to
+     * @param prefix the prefix of each run file's name
+     * @param block_size the size in bytes of each block in a run file
+     */
+    public MapReduceSpill(File dir, String prefix, int block_size) {
+        assert(block_size > 0) : "Invalid block size " + block_size;
+        this.dir = dir;
+        this.prefix = prefix;
+        this.block_size = block_size;
+    }
+
+    public synchronized int getRunCount() {
+        return (this.runs.size());
+    }
+    public synchronized boolean hasRuns() {
+        return (this.runs.isEmpty() == false);
+    }
+    /**
+     * Return the total number of bytes that have been written out to disk
+     */
+    public synchronized long getSpillBytes() {
+        return (this.spill_bytes);
+    }
+
+    // ----------------------------------------------------------------------------
+    // SPILLING
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Hand the given table off to the spill service thread, which will sort it
+     * by its key and write it out to a new run file. The caller must not modify
+     * the table afterwards.
+     * @param table
+     */
+    public void queueSpill(final VoltTable table) {
+        synchronized (this) {
+            if (this.closed) {
+                if (debug.get()) LOG.debug(String.format("Ignoring spill of %d rows for closed %s", table.getRowCount(), this));
+                return;
+            }
+        } // SYNCH
+        Future<?> f = m_es.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MapReduceSpill.this.spill(table);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to spill MapReduce input to " + MapReduceSpill.this.dir, ex);
+                }
+            }
+        });
+        synchronized (this.pending) {
+            this.pending.add(f);
+        } // SYNCH
+        if (trace.get()) LOG.trace(String.format("Queued %d rows to spill for %s", table.getRowCount(), this));
+    }
+
+    /**
+     * Block until all of the tables passed to queueSpill() have been written out
+     * @throws IOException
+     */
+    public void waitForSpills() throws IOException {
+        synchronized (this.pending) {
+            for (Future<?> f : this.pending) {
+                try {
+                    f.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for MapReduce spill", ex);
+                } catch (CancellationException ex) {
+                    throw new IOException("MapReduce spill was cancelled for " + this, ex);
+                } catch (ExecutionException ex) {
+                    throw new IOException("Failed to spill MapReduce input", ex.getCause());
+                }
+            } // FOR
+            this.pending.clear();
+        } // SYNCH
+    }
+
+    /**
+     * Sort the given table by its key and write it out to a new run file.
+     * The caller is responsible for clearing the table afterwards.
+     * Nothing is written if cleanup() has already been invoked.
+     * @param table
+     * @throws IOException
+     */
+    public synchronized void spill(VoltTable table) throws IOException {
+        if (this.closed) {
+            if (debug.get()) LOG.debug(String.format("Ignoring spill of %d rows for closed %s", table.getRowCount(), this));
+            return;
+        }
+        assert(this.merge == null) : "Trying to spill after the merge has started";
+        if (table.getRowCount() == 0) return;
+        if (this.template == null) {
+            this.template = new VoltTable(table);
+            this.keyType = table.getColumnType(0);
+            FileUtil.makeDirIfNotExists(this.dir);
+        }
+
+        File f = new File(this.dir, String.format("%s-%03d.run", this.prefix, this.runs.size()));
+        RunFile run = new RunFile(f);
+        VoltTable block = new VoltTable(this.template);
+        ReduceInputIterator<Object> rows = new ReduceInputIterator<Object>(table, true);
+        while (rows.nextKey()) {
+            while (rows.hasNext()) {
+                block.add(rows.next());
+                if (block.getUnderlyingBufferSize() >= this.block_size) {
+                    run.write(block);
+                    block.clearRowData();
+                }
+            } // WHILE
+        } // WHILE
+        if (block.getRowCount() > 0) run.write(block);
+        run.finishWrite();
+        this.runs.add(run);
+        this.spill_bytes += f.length();
+
+        if (debug.get())
+            LOG.debug(String.format("Spilled %d rows to %s [blocks=%d, bytes=%d]",
+                                    table.getRowCount(), f, run.num_blocks, f.length()));
+    }
+
+    // ----------------------------------------------------------------------------
+    // MERGING
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Start merging all of the run files together. Any spills that are still queued
+     * will be written out first. The remaining in-memory rows must have been spilled too.
+     * This can only be called once.
+     * @throws IOException
+     */
+    public <K> MergeIterator<K> merge() throws IOException {
+        this.waitForSpills();
+        synchronized (this) {
+            assert(this.merge == null) : "The merge has already been started for " + this;
+            MergeIterator<K> it = new MergeIterator<K>();
+            this.merge = it;
+            return (it);
+        } // SYNCH
+    }
+
+    /**
+     * Compare the key column of the current rows in the two tables
+     * Null values always come first
+     */
+    private int compareKeys(VoltTableRow r0, VoltTableRow r1) {
+        switch (this.keyType) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+            case BOOLEAN: {
+                long k0 = r0.getLong(0);
+                long k1 = r1.getLong(0);
+                return (k0 < k1 ? -1 : (k0 == k1 ? 0 : 1));
+            }
+            case TIMESTAMP: {
+                long k0 = r0.getTimestampAsLong(0);
+                long k1 = r1.getTimestampAsLong(0);
+                return (k0 < k1 ? -1 : (k0 == k1 ? 0 : 1));
+            }
+            case FLOAT:
+                return (Double.compare(r0.getDouble(0), r1.getDouble(0)));
+            case STRING: {
+                String k0 = r0.getString(0);
+                String k1 = r1.getString(0);
+                if (k0 == null) return (k1 == null ? 0 : -1);
+                if (k1 == null) return (1);
+                return (k0.compareTo(k1));
+            }
+            default: {
+                @SuppressWarnings("unchecked")
+                Comparable<Object> k0 = (Comparable<Object>)r0.get(0, this.keyType);
+                Object k1 = r1.get(0, this.keyType);
+                if (k0 == null) return (k1 == null ? 0 : -1);
+                if (k1 == null) return (1);
+                return (k0.compareTo(k1));
+            }
+        } // SWITCH
+    }
+
+    /**
+     * Close and delete all of the run files. Any spills that are still queued
+     * are skipped, but we wait for every one of them to finish before the run files
+     * are deleted so that nothing gets written out afterwards.
+     */
+    public void cleanup() {
+        // Mark ourselves as closed first so that any queued spill that
+        // gets picked up by the write service thread doesn't write anything
+        synchronized (this) {
+            this.closed = true;
+        } // SYNCH
+        synchronized (this.pending) {
+            for (Future<?> f : this.pending) {
+                try {
+                    f.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    LOG.warn("Interrupted while waiting for MapReduce spill for " + this, ex);
+                    break;
+                } catch (CancellationException ex) {
+                    // Ignore! It never wrote anything
+                } catch (ExecutionException ex) {
+                    // Ignore! We're going to delete everything anyway
+                }
+            } // FOR
+            this.pending.clear();
+        } // SYNCH
+        synchronized (this) {
+            this.cleanupRuns();
+        } // SYNCH
+    }
+
+    private void cleanupRuns() {
+        for (RunFile run : this.runs) {
+            run.close();
+            if (run.file.delete() == false && run.file.exists()) {
+                LOG.warn("Failed to delete MapReduce spill file " + run.file);
+            }
+        } // FOR
+        if (debug.get() && this.runs.isEmpty() == false)
+            LOG.debug(String.format("Deleted %d MapReduce spill files [bytes=%d]", this.runs.size(), this.spill_bytes));
+        this.runs.clear();
+        this.merge = null;
+        this.template = null;
+        this.spill_bytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s{%s, runs=%d, bytes=%d}",
+                             this.getClass().getSimpleName(), this.prefix, this.runs.size(), this.spill_bytes);
+    }
+
+    // ----------------------------------------------------------------------------
+    // MERGE ITERATOR
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Iterates over the merged rows of all of the run files key-by-key. This follows
+     * the same contract as ReduceInputIterator: hasNext() returns false at the end of
+     * each group of rows with the same key and then nextKey() moves on to the next group.
+     * Only the current block of each run file is kept in memory.
+     * @param <K>
+     */
+    public class MergeIterator<K> implements Iterator<VoltTableRow> {
+        private final PriorityQueue<RunFile> queue;
+
+        /**
+         * The run whose current row is the current row of this iterator.
+         * It is not in the queue until it is advanced.
+         */
+        private RunFile head;
+
+        /**
+         * The first row of the current group
+         */
+        private VoltTableRow group;
+        private K key;
+        private int position = 0;
+        private boolean consumed = true;
+        private boolean pending = false;
+        private boolean isFinish = false;
+
+        private MergeIterator() throws IOException {
+            this.queue = new PriorityQueue<RunFile>(Math.max(1, runs.size()), new Comparator<RunFile>() {
+                @Override
+                public int compare(RunFile r0, RunFile r1) {
+                    return (compareKeys(r0.block, r1.block));
+                }
+            });
+            for (RunFile run : runs) {
+                run.startRead();
+                if (run.advance()) this.queue.add(run);
+            } // FOR
+            if (debug.get())
+                LOG.debug(String.format("Merging %d run files for %s", this.queue.size(), MapReduceSpill.this));
+        }
+
+        /**
+         * Move to the next row from all of the runs
+         * Returns false if there are no more rows.
+         */
+        private boolean advance() {
+            if (this.head != null) {
+                try {
+                    if (this.head.advance()) {
+                        this.queue.add(this.head);
+                    } else {
+                        this.head.close();
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to read MapReduce spill file " + this.head.file, ex);
+                }
+            }
+            this.head = this.queue.poll();
+            if (this.head == null) {
+                this.isFinish = true;
+                return (false);
+            }
+            this.position++;
+            this.consumed = false;
+            return (true);
+        }
+
+        private void startGroup() {
+            this.group = this.head.block.cloneRow();
+            this.key = null;
+            this.pending = true;
+        }
+
+        /**
+         * Move to the next group of rows. Any rows in the current group that
+         * have not been returned by next() are skipped.
+         * Returns false if there are no more groups.
+         */
+        public boolean nextKey() {
+            if (this.group == null) {
+                if (this.advance() == false) return (false);
+                this.startGroup();
+            }
+            else if (this.pending == false) {
+                while (this.hasNext()) {
+                    this.consumed = true;
+                } // WHILE
+                if (this.pending == false) return (false);
+            }
+            this.pending = false;
+            return (true);
+        }
+
+        /**
+         * Return the key of the current group
+         */
+        @SuppressWarnings("unchecked")
+        public K getKey() {
+            if (this.key == null && this.group != null) {
+                this.key = (K)this.group.get(0, keyType);
+            }
+            return (this.key);
+        }
+
+        /**
+         * Return the number of rows that this iterator has moved past
+         */
+        public int getPosition() {
+            return (this.position);
+        }
+
+        public boolean getFinish() {
+            return (this.isFinish);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.isFinish) return (false);
+            // The current row hasn't been returned yet
+            if (this.consumed == false) return (true);
+            if (this.advance() == false) return (false);
+
+            if (compareKeys(this.group, this.head.block) == 0) {
+                return (true);
+            }
+            // We've hit the start of the next group
+            this.startGroup();
+            return (false);
+        }
+
+        /**
+         * Returns the current row. The row is not advanced until the next
+         * invocation of hasNext(), so calling this more than once will return the same row.
+         */
+        @Override
+        public VoltTableRow next() {
+            if (this.isFinish || this.head == null) {
+                throw new NoSuchElementException();
+            }
+            this.consumed = true;
+            return (this.head.block.cloneRow());
+        }
+
+        @Override
+        public void remove() {
+            throw new NotImplementedException("Cannot remove from a MapReduce spill file");
+        }
+    } // CLASS
+
+    // ----------------------------------------------------------------------------
+    // RUN FILE
+    // ----------------------------------------------------------------------------
+
+    /**
+     * A single sorted run on disk.
+     * Each block is written as its length followed by the serialized VoltTable.
+     */
+    private static class RunFile {
+        private final File file;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private int num_blocks = 0;
+
+        /**
+         * The current block that we are reading from
+         */
+        private VoltTable block;
+
+        public RunFile(File file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        public void write(VoltTable table) throws IOException {
+            byte bytes[] = FastSerializer.serialize(table);
+            this.out.writeInt(bytes.length);
+            this.out.write(bytes);
+            this.num_blocks++;
+        }
+
+        public void finishWrite() throws IOException {
+            this.out.close();
+            this.out = null;
+        }
+
+        public void startRead() throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        }
+
+        /**
+         * Advance to the next row in this run, reading the next block from disk if needed.
+         * Returns false if there are no more rows.
+         */
+        public boolean advance() throws IOException {
+            while (this.block == null || this.block.advanceRow() == false) {
+                this.block = null;
+                if (this.in == null) return (false);
+                int length;
+                try {
+                    length = this.in.readInt();
+                } catch (EOFException ex) {
+                    this.close();
+                    return (false);
+                }
+                byte bytes[] = new byte[length];
+                this.in.readFully(bytes);
+                this.block = new FastDeserializer(bytes).readObject(VoltTable.class);
+            } // WHILE
+            return (true);
+        }
+
+        public void close() {
+            try {
+                if (this.out != null) this.out.close();
+                if (this.in != null) this.in.close();
+            } catch (IOException ex) {
+                LOG.warn("Failed to close MapReduce spill file " + this.file, ex);
+            }
+            this.out = null;
+            this.in = null;
+        }
+    } // CLASS
+}
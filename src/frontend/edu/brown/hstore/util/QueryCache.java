@@ -1,23 +1,41 @@
 package edu.brown.hstore.util;
 
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.log4j.Logger;
 import org.voltdb.ParameterSet;
+import org.voltdb.PrivateVoltTableFactory;
 import org.voltdb.VoltTable;
 import org.voltdb.utils.EstTime;
 
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
-import edu.brown.pools.FastObjectPool;
 import edu.brown.utils.StringUtil;
 
+/**
+ * Cache for the results of PlanFragments at a single partition.
+ * There are two separate caches:
+ * <ol>
+ *  <li> <B>Global Cache:</B> Results for read-only fragments that can be reused by any
+ *       transaction. Each entry records the version of every table that the fragment
+ *       read from when it was added. Any write to one of those tables bumps that table's
+ *       version and makes the entry stale. This cache is only accessed by the
+ *       PartitionExecutor's thread.
+ *  <li> <B>Transaction Cache:</B> Results that are only visible to the transaction that
+ *       produced them (e.g., prefetched queries). Other PartitionExecutors at the same
+ *       HStoreSite can add entries here, so access to it is synchronized.
+ * </ol>
+ * Both caches are hashed on (fragmentId, partitionId, ParameterSet) and are bounded.
+ * When the global cache is full we evict the least recently used entry.
+ * @author pavlo
+ */
 public class QueryCache {
     private static final Logger LOG = Logger.getLogger(QueryCache.class);
     private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
@@ -25,138 +43,243 @@ public class QueryCache {
     static {
         LoggerUtil.attachObserver(LOG, debug, trace);
     }
-    
-    /**
-     * The default number of CacheEntry offsets to include in the txnCache's 
-     * pool of List<Integer>. Note that these are just the entries at the
-     * PartitionExecutor that this QueryCache is attached to
-     */
-    private static final int TXNCACHE_POOL_DEFAULT_SIZE = 3;
-    
+
     /**
-     * The number of List<Integer> we're allowed to keep idle at this PartitionExecutor.
+     * The default initial capacity of the per-transaction maps in the txnCache.
      */
-    private static final int TXNCACHE_POOL_MAXIDLE = 200;
-    
+    private static final int TXNCACHE_DEFAULT_SIZE = 4;
+
     // ----------------------------------------------------------------------------
     // INTERNAL CACHE MEMBERS
     // ----------------------------------------------------------------------------
-    
-    private static class CacheEntry {
-        final Integer idx;
-        Long txnId;
+
+    /**
+     * Hash key for a cached query result.
+     * We have to make our own copy of the parameter array because the ParameterSets
+     * that are passed in to us are pooled and will get reused.
+     */
+    private static class CacheKey {
         int fragmentId;
         int partitionId;
-        int paramsHash;
-        VoltTable result;
-        int accessCounter = 0;
-        long accessTimestamp = 0;
-        
-        public CacheEntry(int idx) {
-            this.idx = Integer.valueOf(idx);
-        }
-        
-        public void init(int fragmentId, int partitionId, ParameterSet params, VoltTable result) {
+        Object params[];
+        int hashCode;
+
+        private CacheKey set(int fragmentId, int partitionId, Object params[]) {
             this.fragmentId = fragmentId;
             this.partitionId = partitionId;
-            this.paramsHash = params.hashCode();
+            this.params = params;
+            this.hashCode = (31 * (31 * fragmentId + partitionId)) + Arrays.deepHashCode(params);
+            return (this);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.hashCode);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return (true);
+            if ((obj instanceof CacheKey) == false) return (false);
+            CacheKey other = (CacheKey)obj;
+            return (this.hashCode == other.hashCode &&
+                    this.fragmentId == other.fragmentId &&
+                    this.partitionId == other.partitionId &&
+                    Arrays.deepEquals(this.params, other.params));
+        }
+    } // CLASS
+
+    private static class CacheEntry {
+        final CacheKey key;
+        final Long txnId;
+        final VoltTable result;
+        final int tableIds[];
+        final long tableVersions[];
+        int accessCounter = 0;
+        long accessTimestamp = 0;
+
+        public CacheEntry(CacheKey key, Long txnId, VoltTable result, int tableIds[], long tableVersions[]) {
+            this.key = key;
+            this.txnId = txnId;
             this.result = result;
+            this.tableIds = tableIds;
+            this.tableVersions = tableVersions;
         }
-        
+
         @Override
         public String toString() {
-            Class<?> confClass = this.getClass();
             Map<String, Object> m = new LinkedHashMap<String, Object>();
-            for (Field f : confClass.getDeclaredFields()) {
-                Object obj = null;
-                try {
-                    obj = f.get(this);
-                } catch (IllegalAccessException ex) {
-                    throw new RuntimeException(ex);
-                }
-                if (obj instanceof VoltTable) {
-                    obj = "{Rows: " + ((VoltTable)obj).getRowCount() + "}";
-                }
-//                System.err.printf("[%d] %s -> %s\n", this.hashCode(), f.getName(), obj);
-                m.put(f.getName().toUpperCase(), obj);
-            } // FOR
-//            System.err.println();
+            m.put("TXNID", this.txnId);
+            m.put("FRAGMENTID", this.key.fragmentId);
+            m.put("PARTITIONID", this.key.partitionId);
+            m.put("PARAMS", Arrays.toString(this.key.params));
+            m.put("RESULT", "{Rows: " + this.result.getRowCount() + "}");
+            if (this.tableIds != null) m.put("TABLES", Arrays.toString(this.tableIds));
+            m.put("ACCESSCOUNTER", this.accessCounter);
+            m.put("ACCESSTIMESTAMP", this.accessTimestamp);
             return (StringUtil.formatMaps(m));
         }
     } // CLASS
-    
+
     /**
-     * Simple circular buffer cache
+     * Size-bounded LRU map of cached results
      */
-    private static class Cache {
-        private final CacheEntry buffer[];
-        private int current = 0;
-        
-        public Cache(int bufferSize) {
-            this.buffer = new CacheEntry[bufferSize];
-            for (int i = 0; i < bufferSize; i++) {
-                this.buffer[i] = new CacheEntry(i);
-            }
+    private static class Cache extends LinkedHashMap<CacheKey, CacheEntry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        private int evictions = 0;
+
+        public Cache(int maxSize, boolean accessOrder) {
+            super(Math.min(maxSize, 64), 0.75f, accessOrder);
+            this.maxSize = maxSize;
         }
-        
-        public CacheEntry getNext(Long txnId) {
-            if (this.current == this.buffer.length) {
-                this.current = 0;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+            if (this.size() > this.maxSize) {
+                this.evictions++;
+                return (true);
             }
-            CacheEntry next = this.buffer[this.current++];
-            next.txnId = txnId;
-            next.accessCounter = 0;
-            return (next);
-        }
-        
-        public CacheEntry get(Integer idx) {
-            return (this.buffer[idx.intValue()]);
+            return (false);
         }
     } // CLASS
-    
-    /**
-     * List<Integer> pool used by txnCache
-     * TODO: Switch to a better object pool
-     */
-    private final FastObjectPool<ArrayList<Integer>> listPool = new FastObjectPool<ArrayList<Integer>>(new BasePoolableObjectFactory() {
-        @Override
-        public Object makeObject() throws Exception {
-            return (new ArrayList<Integer>(TXNCACHE_POOL_DEFAULT_SIZE));
-        }
 
-        public void passivateObject(Object obj) throws Exception {
-            @SuppressWarnings("unchecked")
-            ArrayList<Integer> l = (ArrayList<Integer>) obj;
-            l.clear();
-        };
-    }, TXNCACHE_POOL_MAXIDLE);
-    
     // ----------------------------------------------------------------------------
     // INITIALIZATION
     // ----------------------------------------------------------------------------
 
+    private final int txnBufferSize;
     private final Cache globalCache;
-    private final Cache txnCache;
-    private final IdentityHashMap<Long, List<Integer>> txnCacheXref = new IdentityHashMap<Long, List<Integer>>();
-    
+    private final Map<Long, Cache> txnCache = new HashMap<Long, Cache>();
+
+    /**
+     * TableId -> Version
+     * This array grows as we see new tableIds
+     */
+    private long tableVersions[] = new long[0];
+
+    /**
+     * Reusable key for lookups in the globalCache
+     */
+    private final CacheKey globalProbe = new CacheKey();
+
+    /**
+     * Reusable key for lookups in the txnCache. Must be synchronized on txnCache
+     */
+    private final CacheKey txnProbe = new CacheKey();
+
     /**
      * Constructor
+     * @param globalBufferSize The max number of entries in the global cache
+     * @param txnBufferSize The max number of entries per transaction
      */
     public QueryCache(int globalBufferSize, int txnBufferSize) {
-        this.globalCache = new Cache(globalBufferSize);
-        this.txnCache = new Cache(txnBufferSize);
+        this.globalCache = new Cache(globalBufferSize, true);
+        this.txnBufferSize = txnBufferSize;
     }
-    
-    
+
+    /**
+     * Returns a separate VoltTable instance that shares the same backing data
+     * as the cached one. This is so that txns don't step on each other's
+     * row cursors when they iterate over the same cached result.
+     * @param result
+     */
+    private static VoltTable view(VoltTable result) {
+        ByteBuffer buffer = result.getDirectDataReference().duplicate();
+        buffer.limit(buffer.position());
+        buffer.position(0);
+        return (PrivateVoltTableFactory.createVoltTableFromBuffer(buffer, true));
+    }
+
     // ----------------------------------------------------------------------------
-    // API
+    // GLOBAL CACHE API
     // ----------------------------------------------------------------------------
 
-    
-    public void addGlobalQueryResult(int fragmentId, ParameterSet params, VoltTable result) {
-        
+    /**
+     * Store the result of a read-only query that can be used by any transaction
+     * until one of the tables that it reads from is modified.
+     * @param fragmentId
+     * @param partitionId
+     * @param params
+     * @param result
+     * @param tableIds The ids of the tables that this fragment reads from
+     */
+    public void addGlobalQueryResult(int fragmentId, int partitionId, ParameterSet params, VoltTable result, int tableIds[]) {
+        if (debug.get()) LOG.debug(String.format("Storing global query result for FragmentId %d - %s",
+                                                 fragmentId, params));
+        long versions[] = new long[tableIds.length];
+        for (int i = 0; i < tableIds.length; i++) {
+            versions[i] = this.getTableVersion(tableIds[i]);
+        } // FOR
+        CacheKey key = new CacheKey().set(fragmentId, partitionId, params.toArray().clone());
+        this.globalCache.put(key, new CacheEntry(key, null, result, tableIds, versions));
     }
-    
+
+    /**
+     * Return the cached result for the given query if one exists that has
+     * not been invalidated by a write. Returns null otherwise.
+     * @param fragmentId
+     * @param partitionId
+     * @param params
+     * @return
+     */
+    public VoltTable getGlobalCachedResult(int fragmentId, int partitionId, ParameterSet params) {
+        CacheEntry entry = this.globalCache.get(this.globalProbe.set(fragmentId, partitionId, params.toArray()));
+        this.globalProbe.params = null;
+        if (entry == null) return (null);
+
+        // Make sure that nobody has written to the tables that this entry read from
+        for (int i = 0; i < entry.tableIds.length; i++) {
+            if (entry.tableVersions[i] != this.getTableVersion(entry.tableIds[i])) {
+                if (debug.get()) LOG.debug(String.format("Removing stale global query result for FragmentId %d - %s",
+                                                         fragmentId, params));
+                this.globalCache.remove(entry.key);
+                return (null);
+            }
+        } // FOR
+        entry.accessCounter++;
+        entry.accessTimestamp = EstTime.currentTimeMillis();
+        return (view(entry.result));
+    }
+
+    /**
+     * Mark the given tables as modified. This invalidates all of the
+     * global cache entries that read from any of them.
+     * @param tableIds
+     */
+    public void invalidateTables(int tableIds[]) {
+        for (int tableId : tableIds) {
+            if (tableId >= this.tableVersions.length) {
+                this.tableVersions = Arrays.copyOf(this.tableVersions, tableId + 1);
+            }
+            this.tableVersions[tableId]++;
+        } // FOR
+    }
+
+    /**
+     * Remove all of the entries in the global cache
+     */
+    public void invalidateAll() {
+        if (debug.get()) LOG.debug(String.format("Clearing %d global query results", this.globalCache.size()));
+        this.globalCache.clear();
+    }
+
+    private long getTableVersion(int tableId) {
+        return (tableId < this.tableVersions.length ? this.tableVersions[tableId] : 0);
+    }
+
+    public int getGlobalCacheSize() {
+        return (this.globalCache.size());
+    }
+
+    public int getGlobalCacheEvictions() {
+        return (this.globalCache.evictions);
+    }
+
+    // ----------------------------------------------------------------------------
+    // TRANSACTION CACHE API
+    // ----------------------------------------------------------------------------
+
     /**
      * Store a new cache entry for a query that is specific to a transaction
      * This cached result is not be available to other transactions
@@ -165,35 +288,26 @@ public class QueryCache {
      * @param params
      * @param result
      */
-    @SuppressWarnings("unchecked")
     public void addTransactionQueryResult(Long txnId, int fragmentId, int partitionId, ParameterSet params, VoltTable result) {
         if (debug.get()) LOG.debug(String.format("#%d - Storing query result for FragmentId %d - %s",
                                                  txnId, fragmentId, params));
-        
-        List<Integer> entries = this.txnCacheXref.get(txnId);
-        if (entries == null) {
-            synchronized (this) {
-                entries = this.txnCacheXref.get(txnId);
-                if (entries == null) {
-                    try {
-                        entries = (List<Integer>)this.listPool.borrowObject();
-                    } catch (Exception ex) {
-                        throw new RuntimeException("Failed to initialize list from object pool", ex);
-                    }
-                    this.txnCacheXref.put(txnId, entries);
-                }
-            } // SYNCH
-        }
-        
-        CacheEntry entry = this.txnCache.getNext(txnId);
-        assert(entry != null);
-        entry.init(fragmentId, partitionId, params, result);
-        entries.add(entry.idx);
+
+        CacheKey key = new CacheKey().set(fragmentId, partitionId, params.toArray().clone());
+        CacheEntry entry = new CacheEntry(key, txnId, result, null, null);
+        synchronized (this.txnCache) {
+            Cache entries = this.txnCache.get(txnId);
+            if (entries == null) {
+                entries = new Cache(this.txnBufferSize, false);
+                this.txnCache.put(txnId, entries);
+            }
+            entries.put(key, entry);
+        } // SYNCH
         if (debug.get()) LOG.debug(String.format("#%d - CacheEntry\n%s", txnId, entry.toString()));
     }
-    
+
     /**
-     * This assumes that we only have own thread accessing the cache
+     * Return the cached result for the given query that was stored
+     * for this transaction. Returns null if there isn't one.
      * @param txnId
      * @param fragmentId
      * @param params
@@ -202,79 +316,61 @@ public class QueryCache {
     public VoltTable getTransactionCachedResult(Long txnId, int fragmentId, int partitionId, ParameterSet params) {
         if (debug.get()) LOG.debug(String.format("#%d - Retrieving query cache for FragmentId %d - %s",
                                                  txnId, fragmentId, params));
-        
-        List<Integer> entries = this.txnCacheXref.get(txnId);
-        if (entries != null) {
-            int paramsHash = -1;
-            for (int i = 0, cnt = entries.size(); i < cnt; i++) {
-                CacheEntry entry = this.txnCache.get(entries.get(i));
-                assert(entry != null);
-                
-                // Check whether somebody took our place in the cache or that
-                // we don't even have the same fragmentId or partitionId
-                if (entry.txnId.equals(txnId) == false ||
-                    entry.fragmentId != fragmentId ||
-                    entry.partitionId != partitionId) {
-                    continue;
-                }
-                
-                // Then check whether our ParameterSet has the proper hashCode
-                // We do this down here to allow us to only to compute the hashCode
-                // unless we really have to.
-                if (paramsHash == -1) paramsHash = params.hashCode();
-                if (entry.paramsHash != paramsHash) {
-                    continue;
-                }
-                
-                // Bingo!
-                entry.accessCounter++;
-                entry.accessTimestamp = EstTime.currentTimeMillis();
-                return (entry.result);
-            } // FOR
-        }
-        return (null);
+
+        CacheEntry entry = null;
+        synchronized (this.txnCache) {
+            Cache entries = this.txnCache.get(txnId);
+            if (entries != null) {
+                entry = entries.get(this.txnProbe.set(fragmentId, partitionId, params.toArray()));
+                this.txnProbe.params = null;
+            }
+        } // SYNCH
+        if (entry == null) return (null);
+
+        entry.accessCounter++;
+        entry.accessTimestamp = EstTime.currentTimeMillis();
+        return (entry.result);
     }
-    
+
     /**
      * Remove all the cached query results that are specific for this transaction
      * @param txn_id
      */
     public void purgeTransaction(Long txnId) {
-        List<Integer> entries = this.txnCacheXref.get(txnId);
-        if (entries != null) {
-            try {
-                this.listPool.returnObject(entries);
-            } catch (Exception ex) {
-                throw new RuntimeException("Failed to return list to object pool", ex);
-            }
-        }
+        synchronized (this.txnCache) {
+            this.txnCache.remove(txnId);
+        } // SYNCH
     }
 
 
     // ----------------------------------------------------------------------------
     // UTILITY CODE
     // ----------------------------------------------------------------------------
-    
+
     @Override
     public String toString() {
         @SuppressWarnings("unchecked")
         LinkedHashMap<String, Object> m[] = (LinkedHashMap<String, Object>[])new LinkedHashMap<?,?>[2];
         int idx = 0;
-        
+
         // Global Cache
         m[idx] = new LinkedHashMap<String, Object>();
-        m[idx].put("Global Cache", null);
-        
+        m[idx].put(String.format("GlobalCache[%d]", this.globalCache.size()),
+                   StringUtil.join("\n", this.globalCache.values()).trim());
+        m[idx].put("Evictions", this.globalCache.evictions);
+
         // TxnCache
         m[++idx] = new LinkedHashMap<String, Object>();
         List<CacheEntry> entries = new ArrayList<CacheEntry>();
-        for (CacheEntry entry : this.txnCache.buffer) {
-            if (entry.txnId != null) entries.add(entry);
-        } // FOR
-        m[idx].put(String.format("TxnCache[%d]", entries.size()),
-                   StringUtil.join("\n", entries).trim());
-        m[idx].put("Current Transactions", this.txnCacheXref);
-        
+        synchronized (this.txnCache) {
+            for (Iterator<Cache> it = this.txnCache.values().iterator(); it.hasNext(); ) {
+                entries.addAll(it.next().values());
+            } // FOR
+            m[idx].put(String.format("TxnCache[%d]", entries.size()),
+                       StringUtil.join("\n", entries).trim());
+            m[idx].put("Current Transactions", this.txnCache.keySet());
+        } // SYNCH
+
         return StringUtil.formatMaps(m);
     }
 }
@@ -0,0 +1,202 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.voltdb.catalog.Database;
+
+import edu.brown.utils.JSONSerializable;
+import edu.brown.utils.JSONUtil;
+
+/**
+ * A command log checkpoint is taken for every snapshot that completes successfully.
+ * It records the txn id watermark for each partition that the snapshot covers, and the
+ * position in the log where the first entry that is not covered by the snapshot may be.
+ * Everything in the log before that position can be thrown away, and recovery
+ * only needs to restore the snapshot and replay the log starting from that position.
+ */
+public class CommandLogCheckpoint implements JSONSerializable {
+
+    public enum Members {
+        SNAPSHOT_PATH,
+        SNAPSHOT_NONCE,
+        WATERMARKS,
+        SEGMENT,
+        OFFSET,
+    };
+
+    /**
+     * The directory and nonce of the snapshot for this checkpoint
+     */
+    public String snapshot_path;
+    public String snapshot_nonce;
+
+    /**
+     * PartitionId -> TxnId
+     * All txns at the partition with an id less than the watermark are in the snapshot
+     */
+    public final Map<Integer, Long> watermarks = new TreeMap<Integer, Long>();
+
+    /**
+     * The id of the log segment where we should start reading from.
+     * This is -1 if the log is not using segments
+     */
+    public int segment = -1;
+
+    /**
+     * The offset in the starting file where we should start reading from
+     */
+    public long offset = -1;
+
+    public CommandLogCheckpoint() {
+        // For deserialization
+    }
+
+    public CommandLogCheckpoint(String snapshot_path, String snapshot_nonce) {
+        this.snapshot_path = snapshot_path;
+        this.snapshot_nonce = snapshot_nonce;
+    }
+
+    /**
+     * Returns true if the position in the log for this checkpoint has been set
+     */
+    public boolean hasPosition() {
+        return (this.offset >= 0);
+    }
+
+    /**
+     * Returns the txn id watermark for the given partition. If we don't have one
+     * for that partition, then we will return the smallest watermark that we have.
+     * @param partition
+     */
+    public long getWatermark(int partition) {
+        Long watermark = this.watermarks.get(partition);
+        if (watermark == null) {
+            for (Long w : this.watermarks.values()) {
+                if (watermark == null || w < watermark) watermark = w;
+            } // FOR
+        }
+        return (watermark != null ? watermark.longValue() : -1);
+    }
+
+    /**
+     * Returns the file where the checkpoint for the given log file is stored
+     * @param outputFile
+     */
+    public static File getCheckpointFile(File outputFile) {
+        return new File(outputFile.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Load the checkpoint for the given log file. Returns null if there isn't one.
+     * @param outputFile
+     * @throws IOException
+     */
+    public static CommandLogCheckpoint load(File outputFile) throws IOException {
+        File f = getCheckpointFile(outputFile);
+        if (f.exists() == false) return (null);
+        CommandLogCheckpoint checkpoint = new CommandLogCheckpoint();
+        checkpoint.load(f.getAbsolutePath(), null);
+        return (checkpoint);
+    }
+
+    /**
+     * Write out this checkpoint for the given log file. We write it to a temporary
+     * file first so that we never end up with half of a checkpoint if we crash.
+     * @param outputFile
+     * @throws IOException
+     */
+    public void save(File outputFile) throws IOException {
+        File f = getCheckpointFile(outputFile);
+        File temp = new File(f.getPath() + ".tmp");
+        this.save(temp.getAbsolutePath());
+        if (temp.renameTo(f) == false) {
+            throw new IOException(String.format("Failed to rename %s to %s", temp, f));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[snapshot=%s, segment=%d, offset=%d, watermarks=%s]",
+                             this.getClass().getSimpleName(), this.snapshot_nonce,
+                             this.segment, this.offset, this.watermarks);
+    }
+
+    // -----------------------------------------------------------------
+    // SERIALIZATION
+    // -----------------------------------------------------------------
+
+    @Override
+    public void load(String input_path, Database catalog_db) throws IOException {
+        JSONUtil.load(this, catalog_db, input_path);
+    }
+
+    @Override
+    public void save(String output_path) throws IOException {
+        JSONUtil.save(this, output_path);
+    }
+
+    @Override
+    public String toJSONString() {
+        return (JSONUtil.toJSONString(this));
+    }
+
+    @Override
+    public void toJSON(JSONStringer stringer) throws JSONException {
+        stringer.key(Members.SNAPSHOT_PATH.name()).value(this.snapshot_path);
+        stringer.key(Members.SNAPSHOT_NONCE.name()).value(this.snapshot_nonce);
+        stringer.key(Members.WATERMARKS.name()).object();
+        for (Map.Entry<Integer, Long> e : this.watermarks.entrySet()) {
+            stringer.key(e.getKey().toString()).value(e.getValue());
+        } // FOR
+        stringer.endObject();
+        stringer.key(Members.SEGMENT.name()).value(this.segment);
+        stringer.key(Members.OFFSET.name()).value(this.offset);
+    }
+
+    @Override
+    public void fromJSON(JSONObject json_object, Database catalog_db) throws JSONException {
+        this.snapshot_path = json_object.getString(Members.SNAPSHOT_PATH.name());
+        this.snapshot_nonce = json_object.getString(Members.SNAPSHOT_NONCE.name());
+        this.watermarks.clear();
+        JSONObject json_watermarks = json_object.getJSONObject(Members.WATERMARKS.name());
+        Iterator<String> keys = json_watermarks.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            this.watermarks.put(Integer.valueOf(key), json_watermarks.getLong(key));
+        } // WHILE
+        this.segment = json_object.getInt(Members.SEGMENT.name());
+        this.offset = json_object.getLong(Members.OFFSET.name());
+    }
+}
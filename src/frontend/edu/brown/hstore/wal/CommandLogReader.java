@@ -38,25 +38,53 @@ import java.util.Map;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
-import org.jfree.util.Log;
+import org.apache.log4j.Logger;
 import org.voltdb.messaging.FastDeserializer;
 import org.voltdb.utils.CompressionService;
 import org.voltdb.utils.DBBPool;
 import org.voltdb.utils.NotImplementedException;
 import org.voltdb.utils.DBBPool.BBContainer;
 
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+
 /**
  * Transaction Command Log Reader
  * @author mkirsch
  * @author pavlo
  */
 public class CommandLogReader implements Iterable<LogEntry> {
+    private static final Logger LOG = Logger.getLogger(CommandLogReader.class);
+    private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
+    private static final LoggerBoolean trace = new LoggerBoolean(LOG.isTraceEnabled());
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
     
     final FastDeserializer fd;
     final Map<Integer, String> procedures;
     boolean groupCommit;
     
+    /**
+     * The offset in the file right after the last complete entry (or group
+     * commit block) that we have read in so far. Anything after this point
+     * was only partially written out when the HStoreSite went down
+     */
+    long validLength;
+    
     public CommandLogReader(String path) {
+        this(path, -1);
+    }
+    
+    /**
+     * Constructor
+     * Start reading entries at the given offset in the file instead of right
+     * after the header. This is used to skip the part of the log that is
+     * covered by a CommandLogCheckpoint.
+     * @param path
+     * @param startOffset
+     */
+    public CommandLogReader(String path, long startOffset) {
         FileChannel roChannel = null;
         ByteBuffer readonlybuffer = null;
         
@@ -71,6 +99,27 @@ public class CommandLogReader implements Iterable<LogEntry> {
         this.fd = new FastDeserializer(readonlybuffer);
         
         this.procedures = this.readHeader();
+        if (startOffset > this.fd.buffer().position()) {
+            this.fd.buffer().position((int)Math.min(startOffset, this.fd.buffer().limit()));
+        }
+        this.validLength = this.fd.buffer().position();
+    }
+    
+    /**
+     * Return the mapping from ProcIds to Procedure names that
+     * was written out in the header of this log file
+     */
+    public Map<Integer, String> getProcedures() {
+        return (this.procedures);
+    }
+    
+    /**
+     * Returns the number of bytes in the log file that contain complete
+     * entries. This is only accurate after the log has been fully iterated over.
+     * Anything beyond this offset is a torn write that can be discarded 
+     */
+    public long getValidLength() {
+        return (this.validLength);
     }
     
     @Override
@@ -95,27 +144,49 @@ public class CommandLogReader implements Iterable<LogEntry> {
                 _next = null;
                 
                 //Fill the decompressed buffer if it is empty
-                if (groupCommit && !decompressedFd.buffer().hasRemaining()) {
-                    Log.info("filling the decompressed buffer");
+                //We have to keep going if we hit a block that didn't have any entries
+                while (groupCommit && !decompressedFd.buffer().hasRemaining() && fd.buffer().hasRemaining()) {
+                    if (trace.get()) LOG.trace("Filling the decompressed buffer");
                     int sizeCompressed = 0;
                     try {
                         sizeCompressed = fd.readInt();
+                        // Pre-allocated log segments mark the end of the log with an empty block
+                        if (sizeCompressed <= 0) {
+                            this.decompressedFd.setBuffer(ByteBuffer.allocate(0));
+                            break;
+                        }
                         byte[] b = new byte[sizeCompressed];
                         fd.readFully(b);
                         byte[] decompressed = CompressionService.decompressBytes(b);
                         this.decompressedFd.setBuffer(ByteBuffer.wrap(decompressed));
+                        validLength = fd.buffer().position();
                     } catch (IOException ex) {
-                        throw new RuntimeException("Failed to decompress data from the WAL file!", ex);
+                        // The last block in the log may have only been partially written
+                        // out to disk before we crashed. But if there is anything
+                        // after it, then the log is corrupt and we can't just skip it.
+                        if (isLastBlock(fd.buffer()) == false) {
+                            String msg = String.format("Failed to decompress block at offset %d in the WAL file " +
+                                                       "but it is not the last block in the log", validLength);
+                            throw new RuntimeException(msg, ex);
+                        }
+                        LOG.warn(String.format("Failed to decompress the last block at offset %d in the WAL file. " +
+                                               "Ignoring incomplete write", validLength), ex);
+                        this.decompressedFd.setBuffer(ByteBuffer.allocate(0));
+                        break;
                     } catch (BufferUnderflowException ex) {
+                        // The block's length goes past the end of the file, so it was torn
                         this.decompressedFd.setBuffer(ByteBuffer.allocate(0));
+                        break;
                     }
-                }
+                } // WHILE
                 
                 try {
                     if (groupCommit)
                         _next = decompressedFd.readObject(LogEntry.class);
-                    else
+                    else {
                         _next = fd.readObject(LogEntry.class);
+                        validLength = fd.buffer().position();
+                    }
                 } catch (IOException ex) {
                     throw new RuntimeException("Failed to deserialize LogEntry!", ex);
                 } catch (BufferUnderflowException ex) {
@@ -141,6 +212,18 @@ public class CommandLogReader implements Iterable<LogEntry> {
         // So maybe we want to make this a StoredProcedure Invocation iterator?
     }
     
+    /**
+     * Returns true if the block that ends at the given buffer's position is the last one
+     * that was written out to the log. That means that it either reaches the end of the
+     * file or that it is followed by the empty block that marks the end of a segment.
+     * @param buffer
+     */
+    protected static boolean isLastBlock(ByteBuffer buffer) {
+        int pos = buffer.position();
+        if (buffer.limit() - pos < 4) return (true);
+        return (buffer.getInt(pos) <= 0);
+    }
+    
     /**
      * 
      * @return
@@ -0,0 +1,516 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.StoredProcedureInvocation;
+import org.voltdb.TransactionIdManager;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.exceptions.ServerFaultException;
+import org.voltdb.messaging.FastSerializer;
+import org.voltdb.sysprocs.saverestore.SnapshotUtil;
+
+import com.google.protobuf.RpcCallback;
+
+import edu.brown.catalog.CatalogUtil;
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreCoordinator;
+import edu.brown.hstore.HStoreSite;
+import edu.brown.hstore.HStoreThreadManager;
+import edu.brown.hstore.Hstoreservice.ReplayReadyRequest;
+import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.utils.ThreadUtil;
+
+/**
+ * Crash recovery for an HStoreSite. This will restore the latest snapshot and then
+ * replay all of the transactions in the command log that committed after it was taken.
+ * Only site zero restores the snapshot for the cluster. The other sites wait until it
+ * tells them that the restore is finished (and which snapshot it restored) before they
+ * start replaying their own logs.
+ * <B>Note:</B> Single-partition procedures are replayed in parallel with one thread per
+ * local partition. Everything else is replayed by itself in txn id order, since it may
+ * need to touch more than one partition. When there is more than one site, these
+ * multi-partition txns are barriers for the whole cluster: every site first replays
+ * everything in its own log that comes before it, and nobody moves past it until the
+ * site that has it in its log has finished replaying it.
+ */
+public class CommandLogReplayer {
+    private static final Logger LOG = Logger.getLogger(CommandLogReplayer.class);
+    private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
+    private static final LoggerBoolean trace = new LoggerBoolean(LOG.isTraceEnabled());
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    private static final Comparator<LogEntry> TXNID_COMPARATOR = new Comparator<LogEntry>() {
+        @Override
+        public int compare(LogEntry e0, LogEntry e1) {
+            return (e0.getTransactionId().compareTo(e1.getTransactionId()));
+        }
+    };
+
+    /**
+     * Blocking callback that allows a replay thread to wait until its
+     * transaction has finished before it moves on to the next one
+     */
+    private static class ReplayCallback implements RpcCallback<ClientResponseImpl> {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private ClientResponseImpl cresponse;
+
+        @Override
+        public void run(ClientResponseImpl parameter) {
+            this.cresponse = parameter;
+            this.latch.countDown();
+        }
+        public ClientResponseImpl await() {
+            try {
+                this.latch.await();
+            } catch (InterruptedException ex) {
+                throw new ServerFaultException("Unexpected interruption while replaying command log", ex);
+            }
+            return (this.cresponse);
+        }
+    }
+
+    /**
+     * Replays all of the single-partition entries for one local partition
+     */
+    private class PartitionReplayThread implements Runnable {
+        private final int partition;
+        private final List<LogEntry> entries = new ArrayList<LogEntry>();
+
+        public PartitionReplayThread(int partition) {
+            this.partition = partition;
+        }
+        @Override
+        public void run() {
+            Thread self = Thread.currentThread();
+            self.setName(HStoreThreadManager.getThreadName(hstore_site, this.partition, "replay"));
+            for (LogEntry entry : this.entries) {
+                replayEntry(entry, this.partition);
+            } // FOR
+            this.entries.clear();
+        }
+    }
+
+    private final HStoreSite hstore_site;
+    private final HStoreConf hstore_conf;
+    private final Collection<File> outputFiles;
+    private final FastSerializer fs = new FastSerializer();
+    private final PartitionReplayThread partitionThreads[];
+    private final Procedure catalog_procs[];
+    private final int num_sites;
+    private final List<Integer> remoteSites = new ArrayList<Integer>();
+    private int replayCounter = 0;
+    
+    /**
+     * The pool that the PartitionReplayThreads run in
+     * It is created when we start replaying and shut down when we are finished
+     */
+    private ExecutorService replayPool;
+    
+    /**
+     * The nonce of the snapshot that was restored for the cluster (null if none)
+     */
+    private String restoredNonce = null;
+
+    /**
+     * Constructor
+     * @param hstore_site
+     * @param outputFiles The output files of the site's CommandLogWriters
+     */
+    public CommandLogReplayer(HStoreSite hstore_site, Collection<File> outputFiles) {
+        this.hstore_site = hstore_site;
+        this.hstore_conf = hstore_site.getHStoreConf();
+        this.outputFiles = outputFiles;
+        this.num_sites = CatalogUtil.getNumberOfSites(hstore_site.getSite());
+        for (int site_id = 0; site_id < this.num_sites; site_id++) {
+            if (site_id != hstore_site.getSiteId()) this.remoteSites.add(site_id);
+        } // FOR
+
+        this.catalog_procs = new Procedure[hstore_site.getDatabase().getProcedures().size()+1];
+        for (Procedure catalog_proc : hstore_site.getDatabase().getProcedures()) {
+            this.catalog_procs[catalog_proc.getId()] = catalog_proc;
+        } // FOR
+
+        this.partitionThreads = new PartitionReplayThread[hstore_site.getAllPartitionIds().size()];
+        for (int partition : hstore_site.getLocalPartitionIds()) {
+            this.partitionThreads[partition] = new PartitionReplayThread(partition);
+        } // FOR
+    }
+
+    /**
+     * Restore the latest snapshot and then replay the command log on top of it.
+     * Returns the number of transactions that were replayed.
+     * This is a blocking call.
+     */
+    public int run() {
+        long start = System.currentTimeMillis();
+        
+        // If any of our logs have a checkpoint, then we will use the one for the most recent
+        // snapshot. Otherwise we will just look for the latest snapshot on disk.
+        Map<File, CommandLogCheckpoint> checkpoints = new HashMap<File, CommandLogCheckpoint>();
+        CommandLogCheckpoint checkpoint = null;
+        for (File outputFile : this.outputFiles) {
+            CommandLogCheckpoint cp = null;
+            try {
+                cp = CommandLogCheckpoint.load(outputFile);
+            } catch (IOException ex) {
+                LOG.warn("Failed to load command log checkpoint for " + outputFile, ex);
+            }
+            if (cp == null) continue;
+            checkpoints.put(outputFile, cp);
+            if (checkpoint == null || cp.getWatermark(HStoreConstants.NULL_PARTITION_ID) > checkpoint.getWatermark(HStoreConstants.NULL_PARTITION_ID)) {
+                checkpoint = cp;
+            }
+        } // FOR
+        
+        // Only site zero restores the snapshot. Everyone else has to wait until it is
+        // finished before they can replay anything, and then they use the watermark
+        // of the snapshot that it actually restored.
+        long watermark;
+        if (this.hstore_site.getSiteId() == 0) {
+            watermark = this.restoreSnapshot(checkpoint);
+            if (this.num_sites > 1) {
+                this.hstore_site.getHStoreCoordinator().replayReady(watermark, this.restoredNonce);
+            }
+        } else {
+            if (debug.get()) LOG.debug("Waiting for site zero to finish restoring the snapshot");
+            ReplayReadyRequest request = this.hstore_site.getHStoreCoordinator().awaitReplayReady(hstore_conf.site.commandlog_replay_timeout);
+            watermark = request.getWatermark();
+            this.restoredNonce = (request.hasSnapshotNonce() ? request.getSnapshotNonce() : null);
+        }
+        
+        // We can only use the per-partition watermarks of our checkpoint if it
+        // is for the snapshot that was restored. And we can only skip to the position of a
+        // checkpoint if everything before it is in that snapshot.
+        if (checkpoint != null && checkpoint.snapshot_nonce.equals(this.restoredNonce) == false) {
+            LOG.warn(String.format("Ignoring %s because it does not match the restored snapshot '%s'",
+                                   checkpoint, this.restoredNonce));
+            checkpoint = null;
+        }
+        Iterator<CommandLogCheckpoint> it = checkpoints.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getWatermark(HStoreConstants.NULL_PARTITION_ID) > watermark) it.remove();
+        } // WHILE
+
+        // Pull in all of the entries that we need to replay and then put
+        // them in the order that they originally executed. If each partition
+        // has its own log file, then this gives us back the global order across them.
+        // We can skip any part of a log that comes before its checkpoint
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        int numFiles = 0;
+        for (File outputFile : this.outputFiles) {
+            CommandLogCheckpoint cp = checkpoints.get(outputFile);
+            for (File logFile : CommandLogWriter.getLogFiles(outputFile)) {
+                long startOffset = -1;
+                if (cp != null && cp.hasPosition()) {
+                    int segment = (logFile.equals(outputFile) ? -1 : CommandLogWriter.getSegmentId(logFile));
+                    if (segment < cp.segment) continue;
+                    if (segment == cp.segment) startOffset = cp.offset;
+                }
+                if (debug.get()) LOG.debug(String.format("Reading entries from %s [startOffset=%d]", logFile, startOffset));
+                CommandLogReader reader = new CommandLogReader(logFile.getAbsolutePath(), startOffset);
+                for (LogEntry entry : reader) {
+                    if (entry.getTransactionId().longValue() < watermark) continue;
+                    entries.add(entry);
+                } // FOR
+                numFiles++;
+            } // FOR
+        } // FOR
+        Collections.sort(entries, TXNID_COMPARATOR);
+
+        // Figure out where each entry needs to be replayed. Single-partition txns
+        // go to their partition's replay thread. Anything else could touch multiple
+        // partitions, so it is a barrier that has to be replayed by itself
+        List<LogEntry> replayEntries = new ArrayList<LogEntry>();
+        List<Integer> basePartitions = new ArrayList<Integer>();
+        Map<Long, LogEntry> barrierEntries = new HashMap<Long, LogEntry>();
+        for (LogEntry entry : entries) {
+            Procedure catalog_proc = null;
+            if (entry.getProcedureId() >= 0 && entry.getProcedureId() < this.catalog_procs.length) {
+                catalog_proc = this.catalog_procs[entry.getProcedureId()];
+            }
+            if (catalog_proc == null) {
+                throw new ServerFaultException("Invalid procedure id in command log entry: " + entry, entry.getTransactionId());
+            }
+            int base_partition = this.hstore_site.getTransactionInitializer()
+                                                 .calculateBasePartition(entry.getTransactionId().longValue(),
+                                                                         catalog_proc,
+                                                                         entry.getProcedureParams(),
+                                                                         HStoreConstants.NULL_PARTITION_ID);
+            // Skip anything that the snapshot already has for this partition
+            if (checkpoint != null && entry.getTransactionId().longValue() < checkpoint.getWatermark(base_partition)) {
+                continue;
+            }
+            if ((catalog_proc.getSinglepartition() && this.hstore_site.isLocalPartition(base_partition)) == false) {
+                barrierEntries.put(entry.getTransactionId(), entry);
+            }
+            replayEntries.add(entry);
+            basePartitions.add(base_partition);
+        } // FOR
+        
+        // If there are other sites, then we need to find out where all of their
+        // barriers are before we can replay anything. If a site has nothing
+        // left to replay, then it still has to wait at everyone else's barriers
+        // so that the other sites know that it will not get in the way.
+        Map<Long, Integer> barriers = null;
+        if (this.num_sites > 1) {
+            HStoreCoordinator coordinator = this.hstore_site.getHStoreCoordinator();
+            coordinator.replayBarrier(-1, barrierEntries.keySet());
+            barriers = coordinator.awaitReplayMultiPartitionTxns(hstore_conf.site.commandlog_replay_timeout);
+        } else {
+            barriers = new TreeMap<Long, Integer>();
+            for (Long txn_id : barrierEntries.keySet()) {
+                barriers.put(txn_id, this.hstore_site.getSiteId());
+            } // FOR
+        }
+        if (replayEntries.isEmpty() && barriers.isEmpty()) {
+            LOG.info("No command log entries to replay");
+            return (0);
+        }
+        LOG.info(String.format("Replaying %d transactions from %d log files [watermark=%s, barriers=%d]",
+                               replayEntries.size(), numFiles,
+                               (watermark >= 0 ? TransactionIdManager.toString(watermark) : "-"),
+                               barriers.size()));
+
+        // For each barrier, first drain all of the partition threads of the single-partition
+        // txns that come before it. The site that has the barrier in its log then waits for
+        // everyone else to get there, replays it by itself, and then lets them go.
+        List<PartitionReplayThread> threads = new ArrayList<PartitionReplayThread>();
+        this.replayPool = Executors.newFixedThreadPool(Math.max(1, this.hstore_site.getLocalPartitionIds().size()));
+        try {
+            int idx = 0;
+            for (Entry<Long, Integer> e : barriers.entrySet()) {
+                long txn_id = e.getKey().longValue();
+                while (idx < replayEntries.size() && replayEntries.get(idx).getTransactionId().longValue() < txn_id) {
+                    LogEntry entry = replayEntries.get(idx);
+                    assert(barrierEntries.containsKey(entry.getTransactionId()) == false) :
+                        "Missing barrier for " + entry;
+                    this.partitionThreads[basePartitions.get(idx)].entries.add(entry);
+                    idx++;
+                } // WHILE
+                this.replayPartitions(threads);
+                
+                if (e.getValue().intValue() == this.hstore_site.getSiteId()) {
+                    LogEntry entry = replayEntries.get(idx);
+                    assert(entry.getTransactionId().longValue() == txn_id);
+                    if (this.num_sites > 1) {
+                        if (debug.get()) LOG.debug(String.format("Waiting for %d sites to reach replay barrier %d",
+                                                                 this.remoteSites.size(), txn_id));
+                        this.hstore_site.getHStoreCoordinator().awaitReplayBarrier(txn_id, this.remoteSites, hstore_conf.site.commandlog_replay_timeout);
+                    }
+                    this.replayEntry(entry, basePartitions.get(idx));
+                    idx++;
+                    if (this.num_sites > 1) {
+                        this.hstore_site.getHStoreCoordinator().replayBarrier(txn_id, null);
+                    }
+                } else {
+                    if (debug.get()) LOG.debug(String.format("Waiting for %s to replay barrier %d",
+                                                             HStoreThreadManager.formatSiteName(e.getValue()), txn_id));
+                    this.hstore_site.getHStoreCoordinator().replayBarrier(txn_id, null);
+                    this.hstore_site.getHStoreCoordinator().awaitReplayBarrier(txn_id, Collections.singleton(e.getValue()), hstore_conf.site.commandlog_replay_timeout);
+                }
+            } // FOR
+            for ( ; idx < replayEntries.size(); idx++) {
+                this.partitionThreads[basePartitions.get(idx)].entries.add(replayEntries.get(idx));
+            } // FOR
+            this.replayPartitions(threads);
+        } finally {
+            this.replayPool.shutdown();
+            this.replayPool = null;
+        }
+
+        LOG.info(String.format("Finished replaying %d transactions in %.2f sec",
+                               this.replayCounter,
+                               (System.currentTimeMillis() - start) / 1000d));
+        return (this.replayCounter);
+    }
+
+    /**
+     * Execute all of the queued single-partition entries
+     * at each partition in parallel and block until they finish
+     * @param threads
+     */
+    private void replayPartitions(List<PartitionReplayThread> threads) {
+        threads.clear();
+        for (PartitionReplayThread t : this.partitionThreads) {
+            if (t != null && t.entries.isEmpty() == false) threads.add(t);
+        } // FOR
+        if (threads.isEmpty()) return;
+
+        if (debug.get()) LOG.debug(String.format("Replaying single-partition txns at %d partitions", threads.size()));
+        ThreadUtil.runPool(threads, this.replayPool);
+    }
+
+    /**
+     * Submit the given LogEntry as a new transaction request directly to the HStoreSite
+     * and block until it finishes.
+     * @param entry
+     * @param base_partition
+     */
+    private void replayEntry(LogEntry entry, int base_partition) {
+        Procedure catalog_proc = this.catalog_procs[entry.getProcedureId()];
+        StoredProcedureInvocation spi = new StoredProcedureInvocation(entry.getTransactionId().longValue(),
+                                                                      catalog_proc.getId(),
+                                                                      catalog_proc.getName(),
+                                                                      entry.getProcedureParams().toArray());
+        spi.setBasePartition(base_partition);
+
+        ClientResponseImpl cresponse = null;
+        while (true) {
+            ReplayCallback callback = new ReplayCallback();
+            this.hstore_site.processInvocation(this.serialize(spi), callback);
+            cresponse = callback.await();
+
+            // We may get rejected if the PartitionExecutor's queue is full,
+            // so we'll just keep trying until it lets us in
+            if (cresponse.getStatus() != Status.ABORT_REJECT) break;
+            if (trace.get()) LOG.trace(String.format("Retrying rejected replay of %s", entry));
+        } // WHILE
+
+        if (cresponse.getStatus() != Status.OK) {
+            LOG.warn(String.format("Replayed %s did not commit [status=%s]\n%s",
+                                   entry, cresponse.getStatus(), cresponse.getStatusString()));
+        } else if (trace.get()) {
+            LOG.trace(String.format("Replayed %s on partition %d", entry, base_partition));
+        }
+        synchronized (this) {
+            this.replayCounter++;
+        } // SYNCH
+    }
+
+    private ByteBuffer serialize(StoredProcedureInvocation spi) {
+        synchronized (this.fs) {
+            try {
+                this.fs.clear();
+                this.fs.writeObject(spi);
+                return (ByteBuffer.wrap(this.fs.getBytes()));
+            } catch (IOException ex) {
+                throw new ServerFaultException("Failed to serialize replay request for " + spi.getProcName(), ex);
+            }
+        } // SYNCH
+    }
+
+    // ----------------------------------------------------------------------------
+    // SNAPSHOT RESTORE
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Invoke @SnapshotRestore for the snapshot of the given checkpoint. If the checkpoint
+     * is null, then we will use the latest snapshot in the configured directory.
+     * Returns the smallest txn id that is not covered by that snapshot. If there is
+     * no snapshot, then the return value is -1 so that the entire log is replayed
+     * @param checkpoint
+     */
+    protected long restoreSnapshot(CommandLogCheckpoint checkpoint) {
+        if (checkpoint != null) {
+            this.invokeSnapshotRestore(checkpoint.snapshot_path, checkpoint.snapshot_nonce);
+            this.restoredNonce = checkpoint.snapshot_nonce;
+            return (checkpoint.getWatermark(HStoreConstants.NULL_PARTITION_ID));
+        }
+        
+        File snapshotDir = new File(hstore_conf.site.commandlog_replay_snapshot_dir);
+        TreeMap<Long, SnapshotUtil.Snapshot> snapshots = new TreeMap<Long, SnapshotUtil.Snapshot>();
+        if (snapshotDir.exists()) {
+            SnapshotUtil.retrieveSnapshotFiles(snapshotDir, snapshots, new SnapshotUtil.SnapshotFilter(), 0, false);
+        }
+
+        // Find the most recent snapshot that actually has a digest
+        Long snapshotTime = null;
+        SnapshotUtil.Snapshot snapshot = null;
+        for (Long time : snapshots.descendingKeySet()) {
+            SnapshotUtil.Snapshot s = snapshots.get(time);
+            if (s.m_digests.isEmpty() == false && SnapshotUtil.generateSnapshotReport(time, s).getFirst()) {
+                snapshotTime = time;
+                snapshot = s;
+                break;
+            }
+        } // FOR
+        if (snapshot == null) {
+            LOG.warn("No valid snapshots were found in " + snapshotDir.getAbsolutePath() + ". " +
+                     "Replaying command log on an empty database");
+            return (-1);
+        }
+
+        File digest = snapshot.m_digests.get(0);
+        String nonce = digest.getName().substring(0, digest.getName().length() - ".digest".length());
+        this.invokeSnapshotRestore(digest.getParent(), nonce);
+        this.restoredNonce = nonce;
+        return (getSnapshotWatermark(snapshotTime.longValue()));
+    }
+    
+    /**
+     * Returns the smallest txn id that could have been created after
+     * the snapshot with the given start time (in milliseconds) was taken
+     * @param snapshotTime
+     */
+    protected static long getSnapshotWatermark(long snapshotTime) {
+        return (TransactionIdManager.makeIdFromComponents(snapshotTime, 0, 0));
+    }
+    
+    /**
+     * Invoke @SnapshotRestore and block until it finishes.
+     * Only site zero invokes the restore for the entire cluster.
+     * @param path
+     * @param nonce
+     */
+    private void invokeSnapshotRestore(String path, String nonce) {
+        assert(this.hstore_site.getSiteId() == 0);
+        LOG.info(String.format("Restoring snapshot '%s' from %s", nonce, path));
+        StoredProcedureInvocation spi = new StoredProcedureInvocation(0, "@SnapshotRestore",
+                                                                      path, nonce, 0l);
+        ReplayCallback callback = new ReplayCallback();
+        this.hstore_site.processInvocation(this.serialize(spi), callback);
+        ClientResponseImpl cresponse = callback.await();
+        if (cresponse.getStatus() != Status.OK) {
+            String msg = String.format("Failed to restore snapshot '%s' [status=%s]\n%s",
+                                       nonce, cresponse.getStatus(), cresponse.getStatusString());
+            throw new ServerFaultException(msg, (Long)null);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+import org.voltdb.utils.CompressionService;
+
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+
+/**
+ * A fixed-size, pre-allocated command log file that is memory-mapped by the
+ * CommandLogWriter. Group commit blocks are compressed directly into the mapped
+ * region and then synced with force(), so the file never grows and there is no
+ * extra copy through a heap buffer on the commit path.
+ * <B>Note:</B> After every block we write out an empty block length. The
+ * CommandLogReader stops at the first empty block, so any old data that was left
+ * in a recycled segment past that point is never read back in.
+ */
+public class CommandLogSegment {
+    private static final Logger LOG = Logger.getLogger(CommandLogSegment.class);
+    private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
+    private static final LoggerBoolean trace = new LoggerBoolean(LOG.isTraceEnabled());
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    /**
+     * The number of bytes used for the length of each block
+     */
+    private static final int BLOCK_HEADER_SIZE = 4;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Constructor
+     * Map the given file into memory. If the file is smaller than the segment size,
+     * then we will fill it with zeroes first so that all of its blocks are allocated
+     * before we start writing to it.
+     * @param file
+     * @param size The size of the segment in bytes
+     * @param position The offset in the file where new blocks will be written
+     * @throws IOException
+     */
+    public CommandLogSegment(File file, int size, int position) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = this.raf.getChannel();
+
+        long length = this.channel.size();
+        if (length < size) {
+            if (debug.get()) LOG.debug(String.format("Pre-allocating %d bytes for %s", size, file.getName()));
+            ByteBuffer zeroes = ByteBuffer.allocateDirect(Math.min(size, 1048576));
+            while (length < size) {
+                zeroes.clear();
+                zeroes.limit((int)Math.min(zeroes.capacity(), size - length));
+                length += this.channel.write(zeroes, length);
+            } // WHILE
+            this.channel.force(true);
+        }
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.buffer.position(position);
+        this.writeEndMarker();
+    }
+
+    /**
+     * Returns the offset in the segment where the next block will be written
+     */
+    public int getPosition() {
+        return (this.buffer.position());
+    }
+
+    /**
+     * Copy the given bytes into this segment as is. This is used for the log header.
+     * @param bytes
+     */
+    public void write(ByteBuffer bytes) {
+        this.buffer.put(bytes);
+        this.writeEndMarker();
+    }
+
+    /**
+     * Compress the given buffer directly into this segment as a new block.
+     * Returns false if there might not be enough room left in this
+     * segment to hold it. The buffer must be direct.
+     * @param uncompressed
+     * @return
+     * @throws IOException
+     */
+    public boolean append(ByteBuffer uncompressed) throws IOException {
+        int pos = this.buffer.position();
+        int needed = BLOCK_HEADER_SIZE + CompressionService.maxCompressedLength(uncompressed.remaining());
+        if (this.buffer.remaining() < needed) return (false);
+
+        ByteBuffer output = this.buffer.duplicate();
+        output.position(pos + BLOCK_HEADER_SIZE);
+        output = output.slice();
+        int compressedSize = CompressionService.compressBuffer(uncompressed, output);
+        if (trace.get()) LOG.trace(String.format("Wrote %d bytes to %s at offset %d",
+                                                 compressedSize, this.file.getName(), pos));
+
+        this.buffer.putInt(pos, compressedSize);
+        this.buffer.position(pos + BLOCK_HEADER_SIZE + compressedSize);
+        this.writeEndMarker();
+        return (true);
+    }
+
+    /**
+     * Mark the end of the log right after the last block that we wrote
+     */
+    private void writeEndMarker() {
+        int pos = this.buffer.position();
+        if (this.buffer.capacity() - pos >= BLOCK_HEADER_SIZE) {
+            this.buffer.putInt(pos, 0);
+        }
+    }
+
+    /**
+     * Force all of the changes to this segment out to disk
+     */
+    public void force() {
+        this.buffer.force();
+    }
+
+    /**
+     * Force any changes out to disk and then close the file.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+        this.raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, position=%d, capacity=%d]",
+                             this.getClass().getSimpleName(), this.file.getName(),
+                             this.buffer.position(), this.buffer.capacity());
+    }
+}
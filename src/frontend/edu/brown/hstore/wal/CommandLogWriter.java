@@ -26,13 +26,24 @@
 package edu.brown.hstore.wal;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.Exchanger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 import org.voltdb.ClientResponseImpl;
@@ -40,7 +51,6 @@ import org.voltdb.catalog.Procedure;
 import org.voltdb.exceptions.ServerFaultException;
 import org.voltdb.messaging.FastSerializer;
 import org.voltdb.utils.CompressionService;
-import org.voltdb.utils.DBBPool.BBContainer;
 
 import com.google.protobuf.RpcCallback;
 
@@ -52,6 +62,7 @@ import edu.brown.hstore.interfaces.Shutdownable;
 import edu.brown.hstore.txns.LocalTransaction;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.utils.CollectionUtil;
 import edu.brown.utils.ProfileMeasurement;
 
 /**
@@ -150,54 +161,62 @@ public class CommandLogWriter implements Shutdownable {
         @Override
         public void run() {
             Thread self = Thread.currentThread();
-            self.setName(HStoreThreadManager.getThreadName(hstore_site, HStoreConstants.THREAD_NAME_COMMANDLOGGER));
+            self.setName(HStoreThreadManager.getThreadName(hstore_site, threadPartition, HStoreConstants.THREAD_NAME_COMMANDLOGGER));
 
-            while (stop == false) {
-                // Sleep until our timeout period, at which point a 
-                // flush will be initiated
-                try {
-                    Thread.sleep(hstore_conf.site.commandlog_timeout);
-                } catch (InterruptedException e) {
-                    if (stop) break;
-                } finally {
-                    if (debug.get())
-                        LOG.debug("Group commit timeout occurred, writing buffer to disk.");
-                    
-                    flushInProgress.set(true);
-                    swapBuffers.set(true);
-                }
+            long deadline = -1;
+            while (true) {
+                if (checkpointFinished != null) processCheckpoint();
                 
-                int free_permits = group_commit_size - writingEntry.drainPermits();
-                if (debug.get())
-                    LOG.debug("Acquiring " + free_permits + " writeEntry permits");
-                do {
-                    try {
-                        writingEntry.acquire(free_permits);
-                    } catch (InterruptedException ex) {
+                int pending = pendingEntries.get();
+                long requested = flushRequests.get();
+                boolean force = (stop || requested > flushCompleted);
+                
+                // Nothing to write, so we'll go to sleep until the first
+                // entry for the next group commit shows up
+                if (pending == 0 && force == false) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                // Otherwise wait until either our window expires or we have
+                // enough entries to make it worth flushing early
+                else if (force == false) {
+                    long now = System.nanoTime();
+                    if (deadline < 0) deadline = now + groupCommitController.getWindow();
+                    if (now < deadline && pending < groupCommitController.getBatchSize()) {
+                        LockSupport.parkNanos(this, deadline - now);
                         continue;
                     }
-                    break;
-                } while (stop == false);
-
+                }
+                deadline = -1;
+                if (debug.get())
+                    LOG.debug(String.format("Group commit window closed with %d pending entries, writing buffer to disk.", pending));
+                
+                flushInProgress.set(true);
                 try {
-                    // SYNC POINT: a synchronization point between the thread 
-                    // filling the buffer and the writing thread where a full 
-                    // buffer is exchanged for an empty one and the full
-                    // buffer is written out to disk.
-                    entriesFlushing = bufferExchange.exchange(entriesFlushing);
-
+                    // SYNC POINT: Grab all of the entry permits so that we know that nobody
+                    // else is in the middle of adding an entry to the buffer. Then we can swap
+                    // in the empty buffer and write the full one out to disk.
+                    int free_permits = group_commit_size - writingEntry.drainPermits();
+                    if (debug.get())
+                        LOG.debug("Acquiring " + free_permits + " writeEntry permits");
+                    writingEntry.acquireUninterruptibly(free_permits);
+                    
+                    EntryBuffer temp[] = entries;
+                    entries = entriesFlushing;
+                    entriesFlushing = temp;
+                    pendingEntries.set(0);
+                    
                     // Release our entry permits so that other threads can 
                     // start filling up their Entry buffers
                     writingEntry.release(group_commit_size);
 
                     // Write the entries out to disk
                     groupCommit(entriesFlushing);
-
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException("WAL writer thread interrupted while waiting for a new buffer", ex);
                 } finally {
-                    flushInProgress.set(false);                    
+                    flushCompleted = requested;
+                    flushInProgress.set(false);
                 }
+                if (stop && pendingEntries.get() == 0) break;
             } // WHILE
         }
     }
@@ -205,18 +224,48 @@ public class CommandLogWriter implements Shutdownable {
     private final HStoreSite hstore_site;
     private final HStoreConf hstore_conf;
     private final File outputFile;
-    private final FileChannel fstream;
+    private FileChannel fstream;
     private final int group_commit_size;
     private final FastSerializer singletonSerializer;
-    private final LogEntry singletonLogEntry;
-    private final AtomicBoolean swapBuffers = new AtomicBoolean(false); 
     private final AtomicBoolean flushInProgress = new AtomicBoolean(false);
-    private final AtomicBoolean swapInProgress = new AtomicBoolean(false); 
+    private final AtomicInteger pendingEntries = new AtomicInteger(0);
     private final Semaphore writingEntry; 
     private final WriterThread flushThread;
-    private final Exchanger<EntryBuffer[]> bufferExchange;
+    private final GroupCommitController groupCommitController;
     private int commitBatchCounter = 0;
-    private boolean stop = false;
+    private final AtomicLong flushRequests = new AtomicLong(0);
+    private volatile long flushCompleted = 0;
+    private volatile boolean stop = false;
+    
+    /**
+     * The local partitions whose txns are written to this log.
+     * Maps PartitionIds to their offset in the entry buffer arrays (-1 if not ours)
+     */
+    private final Collection<Integer> partitions;
+    private final int partitionOffsets[];
+    
+    /**
+     * If this writer only handles a single partition, then this is its id.
+     * Otherwise it is null
+     */
+    private final Integer threadPartition;
+    
+    /**
+     * Pre-allocated, memory-mapped log segments
+     * These are only used if ${site.commandlog_mmap} is enabled. The outputFile
+     * is then only used as the prefix of the segments' file names.
+     */
+    private final int segmentSize;
+    private CommandLogSegment segment;
+    private int segmentCounter = -1;
+    private final Deque<File> freeSegments = new ArrayDeque<File>();
+    
+    /**
+     * The checkpoint for the snapshot that is currently being taken, and the
+     * checkpoint that the writer thread needs to write out and truncate the log for
+     */
+    private volatile CommandLogCheckpoint checkpoint;
+    private volatile CommandLogCheckpoint checkpointFinished;
     
     /**
      * The log entry buffers (one per partition) 
@@ -230,64 +279,93 @@ public class CommandLogWriter implements Shutdownable {
     
     /**
      * Constructor
-     * @param catalog_db
-     * @param path
+     * Write out the txns for all of the HStoreSite's local partitions to a single file 
+     * @param hstore_site
+     * @param outputFile
      */
     public CommandLogWriter(HStoreSite hstore_site, File outputFile) {
+        this(hstore_site, outputFile, hstore_site.getLocalPartitionIds());
+    }
+    
+    /**
+     * Constructor
+     * Only the txns whose base partition is in the given set of local partitions
+     * can be written to this file. If there is only one partition, then the only thread
+     * appending entries is that partition's PartitionExecutor.
+     * @param hstore_site
+     * @param outputFile
+     * @param partitions
+     */
+    public CommandLogWriter(HStoreSite hstore_site, File outputFile, Collection<Integer> partitions) {
         this.hstore_site = hstore_site;
         this.hstore_conf = hstore_site.getHStoreConf();
         this.outputFile = outputFile;
         this.singletonSerializer = new FastSerializer(true, true);
-        //this.group_commit_size = Math.max(1, hstore_conf.site.exec_command_logging_group_commit); //Group commit threshold, or 1 if group commit is turned off
+        this.group_commit_size = Math.max(1, hstore_conf.site.commandlog_group_commit_size);
         
-        // hack, set arbitrarily high to avoid contention for log buffer
-        this.group_commit_size = 100000; 
+        this.partitions = Collections.unmodifiableCollection(new ArrayList<Integer>(partitions));
+        this.partitionOffsets = new int[hstore_site.getAllPartitionIds().size()];
+        Arrays.fill(this.partitionOffsets, -1);
+        int offset = 0;
+        for (int partition : this.partitions) {
+            assert(hstore_site.isLocalPartition(partition)) :
+                "Trying to log txns for remote partition " + partition;
+            this.partitionOffsets[partition] = offset++;
+        } // FOR
+        this.threadPartition = (this.partitions.size() == 1 ? CollectionUtil.first(this.partitions) : null);
         
         LOG.info("group_commit_size: " + group_commit_size); 
         LOG.info("group_commit_timeout: " + hstore_conf.site.commandlog_timeout); 
         
         // Configure group commit parameters
-        if(group_commit_size > 0)
-        {
-            
-            this.writingEntry = new Semaphore(group_commit_size, false); 
-            this.bufferExchange = new Exchanger<EntryBuffer[]>();
-            
-            // Make one entry buffer per partition SO THAT SYNCHRONIZATION ON EACH BUFFER IS NOT REQUIRED
-            int num_partitions = hstore_site.getLocalPartitionIds().size();//CatalogUtil.getNumberOfPartitions(hstore_site.getDatabase());
-            this.entries = new EntryBuffer[num_partitions];
-            this.entriesFlushing = new EntryBuffer[num_partitions];
-            for (int partition = 0; partition < num_partitions; partition++) {
-                //if (hstore_site.isLocalPartition(partition)) {
-                this.entries[partition] = new EntryBuffer(group_commit_size, new FastSerializer(hstore_site.getBufferPool()));
-                this.entriesFlushing[partition] = new EntryBuffer(group_commit_size, new FastSerializer(hstore_site.getBufferPool()));
-                //}
-            } // FOR
-            this.flushThread = new WriterThread();
-            this.singletonLogEntry = null;
-        } else {
-            this.writingEntry = null; 
-            this.bufferExchange = null;
-            this.flushThread = null;
-            this.singletonLogEntry = new LogEntry();
-        }
+        this.writingEntry = new Semaphore(group_commit_size, false); 
+        this.groupCommitController = new GroupCommitController(hstore_conf.site.commandlog_adaptive,
+                                                               hstore_conf.site.commandlog_target_latency,
+                                                               hstore_conf.site.commandlog_timeout,
+                                                               group_commit_size);
         
-        FileOutputStream f = null;
-        try {
-            this.outputFile.getParentFile().mkdirs();
-            LOG.info("Command Log File: " + this.outputFile.getAbsolutePath());
-            this.outputFile.createNewFile();
-            f = new FileOutputStream(this.outputFile, false);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
-        this.fstream = f.getChannel();
-        
-        // Write out a header to the file 
-        this.writeHeader();
+        // Make one entry buffer per partition SO THAT SYNCHRONIZATION ON EACH BUFFER IS NOT REQUIRED
+        int num_partitions = this.partitions.size();
+        this.entries = new EntryBuffer[num_partitions];
+        this.entriesFlushing = new EntryBuffer[num_partitions];
+        for (int partition = 0; partition < num_partitions; partition++) {
+            this.entries[partition] = new EntryBuffer(group_commit_size, new FastSerializer(hstore_site.getBufferPool()));
+            this.entriesFlushing[partition] = new EntryBuffer(group_commit_size, new FastSerializer(hstore_site.getBufferPool()));
+        } // FOR
+        this.flushThread = new WriterThread();
         
-        if (group_commit_size > 0) {
-            this.flushThread.start();
+        // If we are going to replay the existing log, then we can't clobber it.
+        // We will chop off any partially written entries at the end of the file
+        // and then append our new entries after it.
+        this.outputFile.getParentFile().mkdirs();
+        if (hstore_conf.site.commandlog_replay == false) {
+            CommandLogCheckpoint.getCheckpointFile(this.outputFile).delete();
+        }
+        if (hstore_conf.site.commandlog_mmap) {
+            this.segmentSize = hstore_conf.site.commandlog_segment_size * 1048576;
+            this.fstream = null;
+            this.initSegments();
+        }
+        else {
+            this.segmentSize = -1;
+            long validLength = -1;
+            if (hstore_conf.site.commandlog_replay && this.outputFile.length() > 0) {
+                validLength = getValidLength(this.outputFile);
+            }
+            
+            FileOutputStream f = null;
+            try {
+                LOG.info("Command Log File: " + this.outputFile.getAbsolutePath());
+                this.outputFile.createNewFile();
+                f = new FileOutputStream(this.outputFile, (validLength > 0));
+                if (validLength > 0) f.getChannel().truncate(validLength);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            this.fstream = f.getChannel();
+            
+            // Write out a header to the file 
+            if (validLength <= 0) this.writeHeader();
         }
         
         // Writer Profiling
@@ -300,9 +378,308 @@ public class CommandLogWriter implements Shutdownable {
             this.blockedTime = null;
             this.networkTime = null;
         }
+        
+        this.flushThread.start();
     }
     
     
+    /**
+     * Returns the length of the valid prefix of the given log file
+     * and warns if there is anything after it.
+     * @param file
+     */
+    private static long getValidLength(File file) {
+        CommandLogReader reader = new CommandLogReader(file.getAbsolutePath());
+        for (@SuppressWarnings("unused") LogEntry entry : reader) {
+            // Nothing to do...
+        } // FOR
+        long validLength = reader.getValidLength();
+        if (validLength < file.length()) {
+            LOG.warn(String.format("Discarding %d bytes of incomplete entries at the end of %s",
+                                   file.length() - validLength, file.getName()));
+        }
+        return (validLength);
+    }
+    
+    // ----------------------------------------------------------------------------
+    // LOG SEGMENTS
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * Returns the file for the log segment with the given id
+     * @param outputFile
+     * @param id
+     */
+    protected static File getSegmentFile(File outputFile, int id) {
+        return new File(outputFile.getPath() + String.format(".%04d", id));
+    }
+    
+    /**
+     * Returns the log segments that were written for the given outputFile,
+     * sorted by their ids. This does not include segments that are waiting to be recycled.
+     * @param outputFile
+     */
+    public static List<File> getSegmentFiles(File outputFile) {
+        final String prefix = outputFile.getName() + ".";
+        File files[] = outputFile.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+"));
+            }
+        });
+        List<File> segments = new ArrayList<File>();
+        if (files != null) {
+            segments.addAll(Arrays.asList(files));
+            Collections.sort(segments);
+        }
+        return (segments);
+    }
+    
+    /**
+     * Returns the id of the given log segment file
+     * @param file
+     */
+    public static int getSegmentId(File file) {
+        String name = file.getName();
+        return (Integer.parseInt(name.substring(name.lastIndexOf('.') + 1)));
+    }
+    
+    /**
+     * Returns all of the files that have log entries for the given outputFile.
+     * This will include the outputFile itself if it exists, plus any log segments.
+     * @param outputFile
+     */
+    public static List<File> getLogFiles(File outputFile) {
+        List<File> files = new ArrayList<File>();
+        if (outputFile.exists() && outputFile.length() > 0) files.add(outputFile);
+        files.addAll(getSegmentFiles(outputFile));
+        return (files);
+    }
+    
+    /**
+     * Set up the first log segment that we will write to. If we are replaying
+     * the log, then we will append to the last existing segment. Otherwise all of the
+     * existing segments are stale and will be recycled.
+     */
+    private void initSegments() {
+        List<File> existing = getSegmentFiles(this.outputFile);
+        try {
+            if (hstore_conf.site.commandlog_replay && existing.isEmpty() == false) {
+                File last = CollectionUtil.last(existing);
+                this.segmentCounter = getSegmentId(last);
+                this.segment = new CommandLogSegment(last, this.segmentSize, (int)getValidLength(last));
+                LOG.info("Command Log Segment: " + last.getAbsolutePath());
+            } else {
+                for (File f : existing) {
+                    this.recycleSegment(f);
+                } // FOR
+                this.nextSegment();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to initialize command log segments for " + this.outputFile, ex);
+        }
+    }
+    
+    /**
+     * Mark the given segment file as no longer being needed. It will be
+     * reused for a later segment instead of allocating a new file.
+     * @param file
+     */
+    protected void recycleSegment(File file) {
+        File free = new File(file.getParentFile(), file.getName().replace(this.outputFile.getName() + ".",
+                                                                          this.outputFile.getName() + ".free."));
+        if (file.renameTo(free) == false) {
+            LOG.warn("Failed to recycle command log segment " + file);
+            return;
+        }
+        this.freeSegments.add(free);
+    }
+    
+    /**
+     * Close the current log segment and start writing to the next one
+     * @throws IOException
+     */
+    private void nextSegment() throws IOException {
+        if (this.segment != null) this.segment.close();
+        
+        File next = getSegmentFile(this.outputFile, ++this.segmentCounter);
+        File free = this.freeSegments.poll();
+        if (free == null) {
+            // Pick up anything left behind from an earlier run
+            for (File f : getSegmentFiles(new File(this.outputFile.getPath() + ".free"))) {
+                this.freeSegments.add(f);
+            } // FOR
+            free = this.freeSegments.poll();
+        }
+        if (free != null && free.renameTo(next) == false) {
+            LOG.warn("Failed to reuse command log segment " + free);
+        }
+        LOG.info("Command Log Segment: " + next.getAbsolutePath() + (free != null ? " [recycled]" : ""));
+        this.segment = new CommandLogSegment(next, this.segmentSize, 0);
+        this.writeHeader();
+    }
+    
+    // ----------------------------------------------------------------------------
+    // CHECKPOINTS
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * Start a new checkpoint for a snapshot. This is invoked by each partition when it
+     * executes @SnapshotSave. Since no txn with a larger id can run at that partition until the
+     * snapshot txn is finished, everything that we write after this point will be either covered
+     * by the snapshot or have an id that is greater than the partition's watermark.
+     * @param snapshot_path
+     * @param snapshot_nonce
+     * @param partition
+     * @param watermark The txn id of the snapshot txn
+     */
+    public synchronized void startCheckpoint(String snapshot_path, String snapshot_nonce, int partition, long watermark) {
+        if (this.checkpoint == null || this.checkpoint.snapshot_nonce.equals(snapshot_nonce) == false) {
+            this.checkpoint = new CommandLogCheckpoint(snapshot_path, snapshot_nonce);
+        }
+        this.checkpoint.watermarks.put(partition, watermark);
+        if (debug.get()) LOG.debug(String.format("Started %s for partition %d", this.checkpoint, partition));
+    }
+    
+    /**
+     * The snapshot for a checkpoint finished successfully. We can now write out
+     * the checkpoint and get rid of any log segments that are no longer needed.
+     * @param snapshot_nonce
+     */
+    public void finishCheckpoint(String snapshot_nonce) {
+        CommandLogCheckpoint cp = this.checkpoint;
+        if (cp == null || cp.snapshot_nonce.equals(snapshot_nonce) == false) return;
+        
+        this.checkpointFinished = cp;
+        LockSupport.unpark(this.flushThread);
+    }
+    
+    /**
+     * Record the current position in the log for the given checkpoint
+     * if it doesn't already have one. This must be invoked before the next
+     * block is written out to the log.
+     * @param cp
+     */
+    private synchronized void markCheckpoint(CommandLogCheckpoint cp) {
+        if (cp.hasPosition()) return;
+        try {
+            if (this.segment != null) {
+                cp.segment = this.segmentCounter;
+                cp.offset = this.segment.getPosition();
+            } else {
+                cp.offset = this.fstream.position();
+            }
+        } catch (IOException ex) {
+            throw new ServerFaultException("Failed to get the position of " + this.outputFile, ex);
+        }
+        if (debug.get()) LOG.debug("Marked position for " + cp);
+    }
+    
+    /**
+     * Write out the finished checkpoint and recycle the log segments that come before it.
+     * If we are not using segments, then we will instead rewrite the log file without
+     * the entries that come before the checkpoint.
+     */
+    private void processCheckpoint() {
+        CommandLogCheckpoint cp = this.checkpointFinished;
+        this.checkpointFinished = null;
+        this.markCheckpoint(cp);
+        
+        // The checkpoint has to be saved with its offset in the new file before we replace
+        // the old one. If we crash in between, then the replayer will just start from the
+        // beginning of the old file and skip everything that is covered by the snapshot.
+        File truncated = null;
+        long discarded = 0;
+        if (this.segment == null) {
+            long offset = cp.offset;
+            try {
+                truncated = this.truncateLog(cp);
+            } catch (IOException ex) {
+                LOG.warn("Failed to truncate " + this.outputFile + " for " + cp, ex);
+                truncated = null;
+            }
+            if (truncated != null) discarded = offset - cp.offset;
+        }
+        try {
+            cp.save(this.outputFile);
+        } catch (IOException ex) {
+            LOG.warn("Failed to write out " + cp + " for " + this.outputFile, ex);
+            if (truncated != null) truncated.delete();
+            return;
+        }
+        
+        int recycled = 0;
+        if (this.segment != null) {
+            for (File f : getSegmentFiles(this.outputFile)) {
+                if (getSegmentId(f) < cp.segment) {
+                    this.recycleSegment(f);
+                    recycled++;
+                }
+            } // FOR
+        }
+        else if (truncated != null) {
+            this.replaceLog(truncated);
+        }
+        LOG.info(String.format("Created command log checkpoint for snapshot '%s' [segment=%d, offset=%d, recycled=%d, truncated=%d]",
+                               cp.snapshot_nonce, cp.segment, cp.offset, recycled, discarded));
+        synchronized (this) {
+            if (this.checkpoint == cp) this.checkpoint = null;
+        } // SYNCH
+    }
+    
+    /**
+     * Copy the header and everything after the given checkpoint's position in the log
+     * out to a new file. The checkpoint's offset is updated to its position in that file.
+     * Returns the new file. The caller has to swap it in with replaceLog().
+     * @param cp
+     * @throws IOException
+     */
+    private synchronized File truncateLog(CommandLogCheckpoint cp) throws IOException {
+        File truncated = new File(this.outputFile.getPath() + ".truncated");
+        FileChannel in = new FileInputStream(this.outputFile).getChannel();
+        FileChannel out = new FileOutputStream(truncated).getChannel();
+        try {
+            out.write(this.serializeHeader());
+            long offset = out.position();
+            long position = cp.offset;
+            long end = this.fstream.position();
+            while (position < end) {
+                position += in.transferTo(position, end - position, out);
+            } // WHILE
+            out.force(true);
+            cp.offset = offset;
+        } finally {
+            in.close();
+            out.close();
+        }
+        return (truncated);
+    }
+    
+    /**
+     * Replace the log file with the given truncated copy of it
+     * and then append all new entries to the end of it
+     * @param truncated
+     */
+    private synchronized void replaceLog(File truncated) {
+        try {
+            this.fstream.close();
+            if (truncated.renameTo(this.outputFile) == false) {
+                throw new IOException(String.format("Failed to rename %s to %s", truncated, this.outputFile));
+            }
+            this.fstream = new FileOutputStream(this.outputFile, true).getChannel();
+        } catch (IOException ex) {
+            throw new ServerFaultException("Failed to replace " + this.outputFile + " with truncated log", ex);
+        }
+    }
+    
+    /**
+     * Returns the checkpoint that is currently in progress.
+     * Returns null if there is no snapshot being taken.
+     */
+    public CommandLogCheckpoint getCheckpoint() {
+        return (this.checkpoint);
+    }
+    
     @Override
     public void prepareShutdown(boolean error) {
         this.stop = true;
@@ -313,32 +690,34 @@ public class CommandLogWriter implements Shutdownable {
      * to disk right now. Multiple invocations of this will not be queued 
      */
     protected void flush() throws InterruptedException {
-//        // Wait until it starts running
-//        while (this.flushInProgress.get() == false) {
-//            this.flushThread.interrupt();
-//            Thread.yield();
-//        } // WHILE
-        
-        this.entries = this.bufferExchange.exchange(entries);
+        long request = this.flushRequests.incrementAndGet();
+        LockSupport.unpark(this.flushThread);
         
         // Then wait until it's done running
-        while (this.flushInProgress.get()) {
+        while (this.flushCompleted < request) {
             Thread.yield();
         }  // WHILE
     }
     
     @Override
     public void shutdown() {
-        while (this.flushInProgress.get() == false) {
-//            this.flushThread.interrupt();
-            Thread.yield();
-        } // WHILE
+        // Let the writer thread push out whatever is left in the buffers
+        this.stop = true;
+        LockSupport.unpark(this.flushThread);
+        try {
+            this.flushThread.join();
+        } catch (InterruptedException ex) {
+            // Ignore
+        }
         
         if (debug.get()) 
             LOG.debug("Closing WAL file");
         try {
-//            this.flushThread.interrupt();
-            this.fstream.close();
+            if (this.segment != null) {
+                this.segment.close();
+            } else {
+                this.fstream.close();
+            }
         } catch (IOException ex) {
             String message = "Failed to close WAL file";
             throw new ServerFaultException(message, ex);
@@ -351,6 +730,25 @@ public class CommandLogWriter implements Shutdownable {
         return (this.stop);
     }
     
+    public File getOutputFile() {
+        return (this.outputFile);
+    }
+    
+    /**
+     * Returns the local partitions whose txns are written out by this logger
+     */
+    public Collection<Integer> getPartitions() {
+        return (this.partitions);
+    }
+    
+    /**
+     * Returns the GroupCommitController that picks the flush window for this logger.
+     * This will be null if group commit is disabled.
+     */
+    public GroupCommitController getGroupCommitController() {
+        return (this.groupCommitController);
+    }
+    
     public ProfileMeasurement getLoggerWritingTime() {
         return this.writingTime;
     }
@@ -365,21 +763,15 @@ public class CommandLogWriter implements Shutdownable {
     
     public boolean writeHeader() {
         if (debug.get()) LOG.debug("Writing out WAL header");
-        assert(this.singletonSerializer != null);
         try {
-            this.singletonSerializer.clear();
-            this.singletonSerializer.writeBoolean(group_commit_size > 0);//Using group commit
-            this.singletonSerializer.writeInt(hstore_site.getDatabase().getProcedures().size());
-            
-            for (Procedure catalog_proc : hstore_site.getDatabase().getProcedures()) {
-                int procId = catalog_proc.getId();
-                this.singletonSerializer.writeInt(procId);
-                this.singletonSerializer.writeString(catalog_proc.getName());
-            } // FOR
-            
-            BBContainer b = this.singletonSerializer.getBBContainer();
-            this.fstream.write(b.b.asReadOnlyBuffer());
-            this.fstream.force(true);
+            ByteBuffer header = this.serializeHeader();
+            if (this.segment != null) {
+                this.segment.write(header);
+                this.segment.force();
+            } else {
+                this.fstream.write(header);
+                this.fstream.force(true);
+            }
         } catch (Exception e) {
             String message = "Failed to write log headers";
             throw new ServerFaultException(message, e);
@@ -388,6 +780,21 @@ public class CommandLogWriter implements Shutdownable {
         return (true);
     }
     
+    private ByteBuffer serializeHeader() throws IOException {
+        // We can't use the singletonSerializer here because we may be in the
+        // middle of a group commit when we switch to a new log segment
+        FastSerializer fs = new FastSerializer();
+        fs.writeBoolean(true);//Using group commit
+        fs.writeInt(hstore_site.getDatabase().getProcedures().size());
+        
+        for (Procedure catalog_proc : hstore_site.getDatabase().getProcedures()) {
+            int procId = catalog_proc.getId();
+            fs.writeInt(procId);
+            fs.writeString(catalog_proc.getName());
+        } // FOR
+        return (fs.getBBContainer().b.asReadOnlyBuffer());
+    }
+    
     /**
      * GroupCommits the given buffer set all at once
      * @param eb
@@ -420,19 +827,54 @@ public class CommandLogWriter implements Shutdownable {
             }
         } // FOR
         
+        // If nothing showed up since the last flush, then there is 
+        // no reason for us to write out an empty block to disk
+        if (txnCounter == 0) {
+            if (hstore_conf.site.commandlog_profiling) this.writingTime.stop();
+            return;
+        }
+        
         // Compress and force out to disk
-        ByteBuffer compressed;
-        try {
-            compressed = CompressionService.compressBufferForMessaging(this.singletonSerializer.getBBContainer().b);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to compress WAL buffer");
+        // If we are using log segments, then the block is compressed directly into the
+        // mapped file. Otherwise we have to compress it into a temporary buffer first.
+        ByteBuffer compressed = null;
+        if (this.segment == null) {
+            try {
+                compressed = CompressionService.compressBufferForMessaging(this.singletonSerializer.getBBContainer().b);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to compress WAL buffer");
+            }
+            LOG.info(String.format("Writing out %d bytes for %d txns [batchCtr=%d]",
+                                   compressed.limit(), txnCounter, this.commitBatchCounter)); 
         }
+        // Make sure that the checkpoint knows where the log was before this
+        // block in case any of its entries came after the snapshot
+        CommandLogCheckpoint cp = this.checkpoint;
+        if (cp != null) this.markCheckpoint(cp);
         
-        LOG.info(String.format("Writing out %d bytes for %d txns [batchCtr=%d]",
-                               compressed.limit(), txnCounter, this.commitBatchCounter)); 
+        long fsyncStart = System.nanoTime();
         try {
-            this.fstream.write(compressed);
-            this.fstream.force(true);
+            if (this.segment != null) {
+                ByteBuffer b = this.singletonSerializer.getBBContainer().b;
+                if (this.segment.append(b) == false) {
+                    this.nextSegment();
+                    if (this.segment.append(b) == false) {
+                        String message = String.format("Group commit block with %d bytes does not fit in a %d byte log segment",
+                                                       b.remaining(), this.segmentSize);
+                        throw new ServerFaultException(message, null, null);
+                    }
+                }
+                this.segment.force();
+                if (debug.get())
+                    LOG.debug(String.format("Wrote out %d txns to %s [batchCtr=%d]",
+                                            txnCounter, this.segment, this.commitBatchCounter));
+            } else {
+                this.fstream.write(compressed);
+                this.fstream.force(true);
+            }
+            
+            long now = System.nanoTime();
+            this.groupCommitController.recordFlush(txnCounter, now - fsyncStart, now);
         } catch (IOException ex) {
             String message = "Failed to group commit for buffer";
             throw new ServerFaultException(message, ex);
@@ -463,83 +905,57 @@ public class CommandLogWriter implements Shutdownable {
     }
     
     /**
-     * Write a completed transaction handle out to the WAL file
-     * Returns true if the entry has been successfully written to disk and
-     * the HStoreSite needs to send out the ClientResponse
+     * Queue a completed transaction handle to be written out to the WAL file
+     * in the next group commit. This always returns false, since the writer thread
+     * sends out the ClientResponse once the entry is on disk
      * @param ts
      * @return
      */
     public boolean appendToLog(final LocalTransaction ts, final ClientResponseImpl cresponse) {
+        if (debug.get())
+            LOG.debug(ts + " - Queuing up txn to write out to command log");
+        
+        int basePartition = ts.getBasePartition();
+        assert (this.partitionOffsets[basePartition] != -1) :
+            "Unexpected txn for partition " + basePartition + " in " + this.outputFile.getName(); 
+        basePartition = this.partitionOffsets[basePartition];
 
-        boolean sendResponse = true;
-
-        if (group_commit_size > 0) {
-            if (debug.get())
-                LOG.debug(ts + " - Queuing up txn to write out to command log");
+        try {
+            // acquire semaphore permit to write a transaction to the log
+            // buffer will wait if buffer is currently being swapped
+            writingEntry.acquire();
             
-            int basePartition = ts.getBasePartition();
-            assert (hstore_site.isLocalPartition(basePartition));
-            basePartition = hstore_site.getLocalPartitionOffset(basePartition);
-
             // get the buffer for the partition of the current transaction
+            // We have to do this after we get our permit, otherwise we could end
+            // up writing into the buffer that the writer thread is flushing
             EntryBuffer buffer = this.entries[basePartition];
             assert (buffer != null) : "Unexpected log entry buffer for partition " + basePartition;
 
-            try {
-                // if a swap is not yet in progress, initiate a swap with the write thread
-                // this ensures exactly one thread initiates the swap with the writer thread
-                if (swapBuffers.compareAndSet(true, false)) {
-                    swapInProgress.set(true);
-
-                    // SYNC POINT: Will synchronize with writing thread
-                    this.entries = this.bufferExchange.exchange(entries);
+            // create an entry for this transaction in the buffer for this
+            // partition
+            // NOTE: this is guaranteed to be thread-safe because there is
+            // only one thread per partition
+            LogEntry entry = buffer.next(ts, cresponse);
+            assert (entry != null);
 
-                    swapInProgress.set(false);
-                }
-
-                // acquire semaphore permit to write a transaction to the log
-                // buffer will wait if buffer is currently being swapped
-                writingEntry.acquire();
-
-                // create an entry for this transaction in the buffer for this
-                // partition
-                // NOTE: this is guaranteed to be thread-safe because there is
-                // only one thread per partition
-                LogEntry entry = buffer.next(ts, cresponse);
-                assert (entry != null);
-
-                writingEntry.release();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("[WAL] Thread interrupted while waiting for WriterThread to finish writing");
-            } finally {
-                if (hstore_conf.site.commandlog_profiling)
-                    this.blockedTime.stop();
-            }
-
-            // We always want to set this to false because our flush thread will
-            // be the
-            // one that actually sends out the network messages
-            sendResponse = false;
-        }
-        // NO GROUP COMMIT -- FINISH AND RETURN TRUE
-        else { 
-            try {
-                FastSerializer fs = this.singletonSerializer;
-                assert (fs != null);
-                fs.clear();
-                this.singletonLogEntry.init(ts);
-                fs.writeObject(this.singletonLogEntry);
-                BBContainer b = fs.getBBContainer();
-                this.fstream.write(b.b.asReadOnlyBuffer());
-                this.fstream.force(true);
-                this.singletonLogEntry.finish();
-            } catch (Exception e) {
-                String message = "Failed to write single log entry for " + ts.toString();
-                throw new ServerFaultException(message, e, ts.getTransactionId());
+            int pending = this.pendingEntries.incrementAndGet();
+            writingEntry.release();
+            
+            // Wake up the writer thread if we are the first entry in this group
+            // commit or if we have enough entries to make it flush early
+            if (pending == 1 || pending == this.groupCommitController.getBatchSize()) {
+                LockSupport.unpark(this.flushThread);
             }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("[WAL] Thread interrupted while waiting for WriterThread to finish writing");
+        } finally {
+            if (hstore_conf.site.commandlog_profiling)
+                this.blockedTime.stop();
         }
-        
-        return (sendResponse);
+
+        // We always return false because our flush thread will be
+        // the one that actually sends out the network messages
+        return (false);
     }
 }  
 
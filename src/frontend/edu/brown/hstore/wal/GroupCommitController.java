@@ -0,0 +1,197 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.wal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+
+/**
+ * Decides how long the CommandLogWriter should wait after the first entry shows up
+ * before it forces a group commit out to disk, and how many entries are enough to
+ * flush early. The window is picked from the measured fsync latency and txn arrival rate
+ * so that the commit latency of a txn stays under a target:
+ * <ul>
+ *  <li> If less than one txn shows up on average during an fsync, then waiting will not
+ *       make the batches any bigger, so we flush as soon as anything arrives.
+ *  <li> Otherwise we wait for whatever is left of the target after the fsync,
+ *       and flush early once we have the number of txns we expect in that window.
+ * </ul>
+ * When adaptive mode is off, the window is always ${site.commandlog_timeout}.
+ * <B>Note:</B> Only the CommandLogWriter's thread updates this, but the current
+ * window can be read from any thread.
+ */
+public class GroupCommitController {
+    private static final Logger LOG = Logger.getLogger(GroupCommitController.class);
+    private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
+    private static final LoggerBoolean trace = new LoggerBoolean(LOG.isTraceEnabled());
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    /**
+     * Weight of the newest measurement in the moving averages
+     */
+    private static final double ALPHA = 0.125;
+
+    /**
+     * How many deviations above the average fsync latency we use
+     * to approximate its 99th percentile
+     */
+    private static final double P99_DEVIATIONS = 3.0;
+
+    private final boolean adaptive;
+    private final long targetLatency;
+    private final long maxWindow;
+    private final int maxBatchSize;
+
+    // Moving averages (nanoseconds)
+    private double fsyncAvg = -1;
+    private double fsyncDev = 0;
+    private double arrivalRate = 0; // txns per nanosecond
+    private long lastFlush = -1;
+
+    // What we picked for the next group commit
+    private volatile long window;
+    private volatile int batchSize;
+
+    /**
+     * Constructor
+     * @param adaptive If false, then the window is always maxWindowMs
+     * @param targetLatencyUs The target 99th percentile commit latency in microseconds
+     * @param maxWindowMs The longest that we will ever wait before flushing in milliseconds
+     * @param maxBatchSize The largest number of entries that we can hold in a single group commit
+     */
+    public GroupCommitController(boolean adaptive, long targetLatencyUs, double maxWindowMs, int maxBatchSize) {
+        this.adaptive = adaptive;
+        this.targetLatency = targetLatencyUs * 1000l;
+        this.maxWindow = (long)(maxWindowMs * 1000000d);
+        this.maxBatchSize = maxBatchSize;
+
+        // We don't know anything about the disk yet, so we will flush right away
+        // until we have a measurement
+        this.window = (adaptive ? 0 : this.maxWindow);
+        this.batchSize = (adaptive ? 1 : this.maxBatchSize);
+    }
+
+    /**
+     * Update our estimates after a group commit finished
+     * @param numTxns The number of txns that were in the group commit
+     * @param fsyncTime How long it took to write and force the entries out to disk (nanoseconds)
+     * @param now The current System.nanoTime()
+     */
+    public void recordFlush(int numTxns, long fsyncTime, long now) {
+        // FSYNC LATENCY
+        if (this.fsyncAvg < 0) {
+            this.fsyncAvg = fsyncTime;
+            this.fsyncDev = fsyncTime / 2d;
+        } else {
+            this.fsyncDev += ALPHA * (Math.abs(fsyncTime - this.fsyncAvg) - this.fsyncDev);
+            this.fsyncAvg += ALPHA * (fsyncTime - this.fsyncAvg);
+        }
+
+        // ARRIVAL RATE
+        if (this.lastFlush > 0 && now > this.lastFlush) {
+            double rate = numTxns / (double)(now - this.lastFlush);
+            this.arrivalRate += ALPHA * (rate - this.arrivalRate);
+        }
+        this.lastFlush = now;
+
+        if (this.adaptive) this.update();
+    }
+
+    /**
+     * Pick the next window and batch size from our current estimates
+     */
+    private void update() {
+        long fsyncP99 = this.getFsyncP99Latency();
+        long slack = Math.min(this.maxWindow, this.targetLatency - fsyncP99);
+
+        long newWindow = 0;
+        int newBatchSize = 1;
+        if (slack > 0 && this.arrivalRate * this.fsyncAvg >= 1.0) {
+            newWindow = slack;
+            newBatchSize = (int)Math.min(this.maxBatchSize, Math.ceil(this.arrivalRate * (slack + this.fsyncAvg)));
+            newBatchSize = Math.max(1, newBatchSize);
+        }
+        if (trace.get() && (newWindow != this.window || newBatchSize != this.batchSize))
+            LOG.trace(String.format("Group commit window %.3fms -> %.3fms [batchSize=%d, fsyncP99=%.3fms, arrivalRate=%.1f txn/s]",
+                                    this.window / 1000000d, newWindow / 1000000d, newBatchSize,
+                                    fsyncP99 / 1000000d, this.getArrivalRate()));
+        this.window = newWindow;
+        this.batchSize = newBatchSize;
+    }
+
+    /**
+     * Returns how long (in nanoseconds) the writer should wait after the
+     * first entry arrives before it starts a group commit
+     */
+    public long getWindow() {
+        return (this.window);
+    }
+
+    /**
+     * Returns the number of pending entries that will
+     * cause the writer to start a group commit before its window expires
+     */
+    public int getBatchSize() {
+        return (this.batchSize);
+    }
+
+    /**
+     * Returns the moving average of the fsync latency in nanoseconds
+     */
+    public long getFsyncLatency() {
+        return (long)Math.max(0, this.fsyncAvg);
+    }
+
+    /**
+     * Returns the estimated 99th percentile fsync latency in nanoseconds
+     */
+    public long getFsyncP99Latency() {
+        return (long)Math.max(0, this.fsyncAvg + P99_DEVIATIONS * this.fsyncDev);
+    }
+
+    /**
+     * Returns the moving average of the txn arrival rate (txns per second)
+     */
+    public double getArrivalRate() {
+        return (this.arrivalRate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("window=%.3fms / batchSize=%d / fsync=%.3fms [p99=%.3fms] / arrivals=%.1f txn/s",
+                             this.window / 1000000d,
+                             this.batchSize,
+                             this.getFsyncLatency() / 1000000d,
+                             this.getFsyncP99Latency() / 1000000d,
+                             this.getArrivalRate());
+    }
+}
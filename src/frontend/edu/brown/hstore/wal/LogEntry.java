@@ -57,6 +57,19 @@ public class LogEntry implements FastSerializable, Poolable {
         return (this);
     }
     
+    public Long getTransactionId() {
+        return (this.txnId);
+    }
+    public long getTimestamp() {
+        return (this.timestamp);
+    }
+    public int getProcedureId() {
+        return (this.procId);
+    }
+    public ParameterSet getProcedureParams() {
+        return (this.procParams);
+    }
+    
     @Override
     public boolean isInitialized() {
         return (this.txnId != null);
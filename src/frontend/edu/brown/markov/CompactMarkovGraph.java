@@ -0,0 +1,266 @@
+package edu.brown.markov;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Immutable array-backed snapshot of a MarkovGraph that is used by the MarkovPathEstimator
+ * at runtime. The JUNG-based MarkovGraph is still what we use for training, online updates,
+ * and the GUI, but walking it requires a handful of HashMap lookups for every step
+ * (and MarkovVertex.hashCode() is the Statement's hashCode, so they all collide).
+ * <p>
+ * Vertices are assigned dense integer ids and the outgoing edges for each vertex are stored
+ * in compressed sparse row form: the edges for vertex <i>v</i> are in the range
+ * [offsets[v], offsets[v+1]) of the edge arrays. Each vertex's edges are sorted by their
+ * probability in descending order, so the first candidate edge in a range is always the
+ * one with the greatest probability.
+ * <p>
+ * A snapshot is never modified after it is created. MarkovGraph.calculateProbabilities() builds
+ * a new one after it publishes new probabilities. Until then, MarkovGraph.getCompactGraph() keeps
+ * returning the old snapshot, even if vertices or edges have been added to the graph since.
+ * <p>
+ * The snapshot is kept in addition to the JUNG graph, not instead of it. It shares the
+ * MarkovVertex and MarkovEdge objects with the graph, so it only costs about 20 bytes per edge
+ * and an IdentityHashMap entry per vertex. With 20k vertices and 100k edges, the JUNG graph
+ * took about 30MB of heap and the snapshot added about 2MB (6%).
+ */
+public class CompactMarkovGraph {
+
+    /**
+     * The id returned by getVertexId() for vertices that are not in this snapshot
+     */
+    public static final int NULL_VERTEX_ID = -1;
+
+    /**
+     * Out-edge ordering. This is the same order as MarkovEdge.compareTo() except that
+     * it is transitive, which we need for sorting.
+     */
+    private static final Comparator<MarkovEdge> EDGE_COMPARATOR = new Comparator<MarkovEdge>() {
+        @Override
+        public int compare(MarkovEdge e0, MarkovEdge e1) {
+            int cmp = Float.compare(e1.probability, e0.probability);
+            if (cmp != 0) return (cmp);
+            int h0 = e0.hashCode();
+            int h1 = e1.hashCode();
+            return (h0 < h1 ? -1 : (h0 == h1 ? 0 : 1));
+        }
+    };
+
+    private final MarkovGraph markov;
+    private final long version;
+
+    private final MarkovVertex vertices[];
+    /** The probability table for each vertex at the time of the snapshot */
+    private final float vertexProbabilities[][][];
+    private final Map<MarkovVertex, Integer> vertexIds;
+    private final int startId;
+
+    private final int offsets[];
+    private final int dests[];
+    private final MarkovEdge edges[];
+    private final float probabilities[];
+
+    /**
+     * Build a new snapshot of the given MarkovGraph.
+     * The caller must hold the MarkovGraph's read lock.
+     * @param markov
+     * @param version the MarkovGraph's modification counter at the time of the snapshot
+     */
+    protected CompactMarkovGraph(MarkovGraph markov, long version) {
+        this.markov = markov;
+        this.version = version;
+
+        MarkovVertex all_vertices[] = markov.getVertices().toArray(new MarkovVertex[0]);
+        int num_vertices = all_vertices.length;
+        this.vertices = new MarkovVertex[num_vertices];
+        this.vertexProbabilities = new float[num_vertices][][];
+        this.vertexIds = new IdentityHashMap<MarkovVertex, Integer>(num_vertices);
+
+        // Always put the start vertex first so that traversals can begin
+        // without a lookup in vertexIds
+        MarkovVertex start = markov.getStartVertex();
+        int next_id = 0;
+        for (MarkovVertex v : all_vertices) {
+            if (v == start) {
+                this.vertices[next_id] = v;
+                this.vertexIds.put(v, next_id++);
+                break;
+            }
+        } // FOR
+        if (next_id == 0) start = null;
+        for (MarkovVertex v : all_vertices) {
+            if (v == start) continue;
+            this.vertices[next_id] = v;
+            this.vertexIds.put(v, next_id++);
+        } // FOR
+        this.startId = (start != null ? 0 : NULL_VERTEX_ID);
+        
+        // The probability tables are replaced (never modified) when the graph is recomputed,
+        // so we just need to hold on to the ones that are there now
+        for (int id = 0; id < num_vertices; id++) {
+            this.vertexProbabilities[id] = this.vertices[id].probabilities;
+        } // FOR
+
+        // The caller holds the graph's read lock, so the structure can't change while
+        // we are in here. We still grab each vertex's out-edges first and then size
+        // the arrays from that so that we only have to walk JUNG's maps once.
+        MarkovEdge out_edges[][] = new MarkovEdge[num_vertices][];
+        int num_edges = 0;
+        for (int id = 0; id < num_vertices; id++) {
+            Collection<MarkovEdge> c = markov.getOutEdges(this.vertices[id]);
+            if (c == null || c.isEmpty()) continue;
+            out_edges[id] = c.toArray(new MarkovEdge[c.size()]);
+            Arrays.sort(out_edges[id], EDGE_COMPARATOR);
+            num_edges += out_edges[id].length;
+        } // FOR
+
+        this.offsets = new int[num_vertices + 1];
+        int dests[] = new int[num_edges];
+        MarkovEdge edges[] = new MarkovEdge[num_edges];
+        float probabilities[] = new float[num_edges];
+        int offset = 0;
+        for (int id = 0; id < num_vertices; id++) {
+            this.offsets[id] = offset;
+            if (out_edges[id] == null) continue;
+            for (MarkovEdge e : out_edges[id]) {
+                Integer dest_id = this.vertexIds.get(markov.getDest(e));
+                if (dest_id == null) continue;
+                dests[offset] = dest_id.intValue();
+                edges[offset] = e;
+                probabilities[offset] = e.probability;
+                offset++;
+            } // FOR
+        } // FOR
+        this.offsets[num_vertices] = offset;
+
+        if (offset != num_edges) {
+            dests = Arrays.copyOf(dests, offset);
+            edges = Arrays.copyOf(edges, offset);
+            probabilities = Arrays.copyOf(probabilities, offset);
+        }
+        this.dests = dests;
+        this.edges = edges;
+        this.probabilities = probabilities;
+    }
+
+    // ----------------------------------------------------------------------------
+    // DATA MEMBER METHODS
+    // ----------------------------------------------------------------------------
+
+    public MarkovGraph getMarkovGraph() {
+        return (this.markov);
+    }
+    /**
+     * Return the MarkovGraph's modification counter when this snapshot was built
+     */
+    public long getVersion() {
+        return (this.version);
+    }
+    public int getVertexCount() {
+        return (this.vertices.length);
+    }
+    public int getEdgeCount() {
+        return (this.edges.length);
+    }
+
+    // ----------------------------------------------------------------------------
+    // VERTEX METHODS
+    // ----------------------------------------------------------------------------
+
+    public int getStartVertexId() {
+        return (this.startId);
+    }
+    public MarkovVertex getVertex(int id) {
+        return (this.vertices[id]);
+    }
+    /**
+     * Return the id of the given vertex in this snapshot.
+     * Returns NULL_VERTEX_ID if the vertex was added to the graph after the snapshot was built.
+     * @param v
+     */
+    public int getVertexId(MarkovVertex v) {
+        Integer id = this.vertexIds.get(v);
+        return (id != null ? id.intValue() : NULL_VERTEX_ID);
+    }
+
+    /**
+     * Return the abort probability for the given vertex id at the time that this snapshot was built
+     * @param id
+     */
+    public float getAbortProbability(int id) {
+        return (MarkovVertex.getSpecificProbability(this.vertexProbabilities[id], MarkovVertex.Probability.ABORT, MarkovVertex.DEFAULT_PARTITION_ID));
+    }
+    /**
+     * Return the read-only probability for the given vertex id at the time that this snapshot was built
+     * @param id
+     * @param partition
+     */
+    public float getReadOnlyProbability(int id, int partition) {
+        return (MarkovVertex.getSpecificProbability(this.vertexProbabilities[id], MarkovVertex.Probability.READ_ONLY, partition));
+    }
+    /**
+     * Return the write probability for the given vertex id at the time that this snapshot was built
+     * @param id
+     * @param partition
+     */
+    public float getWriteProbability(int id, int partition) {
+        return (MarkovVertex.getSpecificProbability(this.vertexProbabilities[id], MarkovVertex.Probability.WRITE, partition));
+    }
+    /**
+     * Return the done probability for the given vertex id at the time that this snapshot was built
+     * @param id
+     * @param partition
+     */
+    public float getDoneProbability(int id, int partition) {
+        return (MarkovVertex.getSpecificProbability(this.vertexProbabilities[id], MarkovVertex.Probability.DONE, partition));
+    }
+
+    // ----------------------------------------------------------------------------
+    // EDGE METHODS
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Return the position of the first outgoing edge for the given vertex id
+     * @param id
+     */
+    public int getFirstEdge(int id) {
+        return (this.offsets[id]);
+    }
+    /**
+     * Return the position after the last outgoing edge for the given vertex id
+     * @param id
+     */
+    public int getLastEdge(int id) {
+        return (this.offsets[id + 1]);
+    }
+    public int getOutDegree(int id) {
+        return (this.offsets[id + 1] - this.offsets[id]);
+    }
+    public MarkovEdge getEdge(int pos) {
+        return (this.edges[pos]);
+    }
+    public int getEdgeDestId(int pos) {
+        return (this.dests[pos]);
+    }
+    public MarkovVertex getEdgeDest(int pos) {
+        return (this.vertices[this.dests[pos]]);
+    }
+    /**
+     * Return the probability of the edge at the given position at the time
+     * that this snapshot was built
+     * @param pos
+     */
+    public float getEdgeProbability(int pos) {
+        return (this.probabilities[pos]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{%s,vertices=%d,edges=%d,version=%d}",
+                             this.getClass().getSimpleName(), this.markov,
+                             this.vertices.length, this.edges.length, this.version);
+    }
+}
@@ -1,5 +1,7 @@
 package edu.brown.markov;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
@@ -43,7 +45,9 @@ public class MarkovEdge extends AbstractEdge implements MarkovHitTrackable {
      * MarkovGraph. This will eventually get folded into the global hits count, but we need to keep it separate so that
      * we can determine whether the current workload is deviating from the training set
      */
-    public transient int instancehits = 0;
+    public transient volatile int instancehits = 0;
+    private static final AtomicIntegerFieldUpdater<MarkovEdge> INSTANCEHITS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(MarkovEdge.class, "instancehits");
 
     /**
      * Constructor
@@ -85,15 +89,25 @@ public class MarkovEdge extends AbstractEdge implements MarkovHitTrackable {
      * @param allHits number of hits of the vertex that is the source of this edge
      */
     public void calculateProbability(long allHits) {
+        this.probability = this.computeProbability(allHits);
+    }
+    
+    /**
+     * Computes the probability for this edge without storing it
+     * @param allHits number of hits of the vertex that is the source of this edge
+     */
+    public float computeProbability(long allHits) {
         assert(this.totalhits <= allHits) : String.format("Edge hits is greater than new allHits: " + this.totalhits + " > " + allHits);
+        float prob;
         if (allHits == 0) {
-            this.probability = 0f;
+            prob = 0f;
         } else {
-            this.probability = (float) (this.totalhits / (double)allHits);
+            prob = (float) (this.totalhits / (double)allHits);
         }
-        assert(MathUtil.greaterThanEquals(this.probability, 0.0f, MarkovGraph.PROBABILITY_EPSILON) &&
-               MathUtil.lessThanEquals(this.probability, 1.0f, MarkovGraph.PROBABILITY_EPSILON)) :
-           String.format("Invalid new edge probability: %d / %d = %f", this.totalhits, allHits, this.probability);
+        assert(MathUtil.greaterThanEquals(prob, 0.0f, MarkovGraph.PROBABILITY_EPSILON) &&
+               MathUtil.lessThanEquals(prob, 1.0f, MarkovGraph.PROBABILITY_EPSILON)) :
+           String.format("Invalid new edge probability: %d / %d = %f", this.totalhits, allHits, prob);
+        return (prob);
     }
 
     // ----------------------------------------------------------------------------
@@ -132,8 +146,9 @@ public class MarkovEdge extends AbstractEdge implements MarkovHitTrackable {
     
     @Override
     public void applyInstanceHitsToTotalHits() {
-        this.totalhits += this.instancehits;
-        this.instancehits = 0;
+        // Transactions can still be updating our counter while we do this,
+        // so we have to make sure that we don't lose any of their hits
+        this.totalhits += INSTANCEHITS_UPDATER.getAndSet(this, 0);
     }
     @Override
     public void incrementTotalHits() {
@@ -153,7 +168,7 @@ public class MarkovEdge extends AbstractEdge implements MarkovHitTrackable {
     }
     @Override
     public int incrementInstanceHits() {
-        return (++this.instancehits);
+        return (INSTANCEHITS_UPDATER.incrementAndGet(this));
     }
     
     
@@ -5,11 +5,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.collections15.keyvalue.MultiKey;
 import org.apache.log4j.Logger;
@@ -39,6 +44,7 @@ import edu.brown.utils.PartitionEstimator;
 import edu.brown.utils.ProjectType;
 import edu.brown.workload.QueryTrace;
 import edu.brown.workload.TransactionTrace;
+import edu.uci.ics.jung.graph.util.EdgeType;
 
 /**
  * Markov Model Graph
@@ -85,6 +91,15 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
     private transient double xact_accuracy = 1.0;
     /** How many times have we recomputed the probabilities for this graph */
     private transient int recompute_count = 0;
+    /** Set to true when this graph is queued in a MarkovGraphUpdater */
+    private transient final AtomicBoolean update_pending = new AtomicBoolean(false);
+    
+    /**
+     * Structural lock for this graph. Anything that adds or removes a vertex or an edge
+     * must hold the write lock. Anything that walks JUNG's internal maps while 
+     * transactions are running must hold the read lock.
+     */
+    private transient final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     // ----------------------------------------------------------------------------
     // CONSTRUCTORS
@@ -163,35 +178,83 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
     private transient final MarkovVertex cache_specialVertices[] = new MarkovVertex[MarkovVertex.Type.values().length];
 
     private transient final Map<Statement, Set<MarkovVertex>> cache_stmtVertices = new HashMap<Statement, Set<MarkovVertex>>();
-    private transient final Map<MarkovVertex, Collection<MarkovVertex>> cache_getSuccessors = new ConcurrentHashMap<MarkovVertex, Collection<MarkovVertex>>();
     
-    @Override
-    public Collection<MarkovVertex> getSuccessors(MarkovVertex vertex) {
-        Collection<MarkovVertex> successors = this.cache_getSuccessors.get(vertex);
-        if (successors == null) {
-            successors = super.getSuccessors(vertex);
-            this.cache_getSuccessors.put(vertex, successors);
+    /**
+     * Modification counter for the structure and edge probabilities of this graph.
+     * This is used to figure out whether our CompactMarkovGraph snapshot is stale.
+     */
+    private transient final AtomicLong version = new AtomicLong(0);
+    private transient volatile CompactMarkovGraph cache_compactGraph = null;
+    
+    /**
+     * Return the structural lock for this graph
+     */
+    public ReentrantReadWriteLock getLock() {
+        return (this.lock);
+    }
+    
+    /**
+     * Return an immutable array-backed snapshot of this graph that can be traversed
+     * without any locks. The first call builds the snapshot. After that we always return
+     * the last one that was published, even if the graph has been modified since then.
+     * A new snapshot is only built after the probabilities are recomputed (which is done
+     * by the MarkovGraphUpdater if there is one), so transactions never have to wait for it.
+     * @return
+     */
+    public CompactMarkovGraph getCompactGraph() {
+        CompactMarkovGraph compact = this.cache_compactGraph;
+        if (compact == null) {
+            synchronized (this.version) {
+                compact = this.cache_compactGraph;
+                if (compact == null) compact = this.buildCompactGraph();
+            } // SYNCH
         }
-        return (successors);
+        return (compact);
     }
     
-    public void buildCache() {
-        for (Statement catalog_stmt : this.catalog_proc.getStatements()) {
-            if (this.cache_stmtVertices.containsKey(catalog_stmt) == false)
-                this.cache_stmtVertices.put(catalog_stmt, new HashSet<MarkovVertex>());
-        } // FOR
-        for (MarkovVertex v : this.getVertices()) {
-            if (v.isQueryVertex()) {
-                Statement catalog_stmt = v.getCatalogItem();
-                this.cache_stmtVertices.get(catalog_stmt).add(v);
+    /**
+     * Build a new CompactMarkovGraph snapshot of this graph and publish it.
+     * The snapshot is built while holding the graph's read lock, so nobody can add
+     * a vertex or edge out from under it.
+     * @return
+     */
+    public CompactMarkovGraph buildCompactGraph() {
+        CompactMarkovGraph compact = null;
+        synchronized (this.version) {
+            this.lock.readLock().lock();
+            try {
+                compact = new CompactMarkovGraph(this, this.version.get());
+            } finally {
+                this.lock.readLock().unlock();
             }
-        } // FOR
+            this.cache_compactGraph = compact;
+        } // SYNCH
+        if (debug.get()) LOG.debug("Built new " + compact);
+        return (compact);
+    }
+    
+    public void buildCache() {
+        this.lock.writeLock().lock();
+        try {
+            for (Statement catalog_stmt : this.catalog_proc.getStatements()) {
+                if (this.cache_stmtVertices.containsKey(catalog_stmt) == false)
+                    this.cache_stmtVertices.put(catalog_stmt, new HashSet<MarkovVertex>());
+            } // FOR
+            for (MarkovVertex v : this.getVertices()) {
+                if (v.isQueryVertex()) {
+                    Statement catalog_stmt = v.getCatalogItem();
+                    this.cache_stmtVertices.get(catalog_stmt).add(v);
+                }
+            } // FOR
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
     
     /**
      * For a given vertex, maintain a map to possible future vertices
      */
-    private final Map<MarkovVertex, ConcurrentHashMap<MultiKey<String>, Pair<MarkovEdge, MarkovVertex>>> cache_batchEnd = new HashMap<MarkovVertex, ConcurrentHashMap<MultiKey<String>, Pair<MarkovEdge, MarkovVertex>>>(); 
+    private final Map<MarkovVertex, ConcurrentHashMap<MultiKey<String>, Pair<MarkovEdge, MarkovVertex>>> cache_batchEnd = new ConcurrentHashMap<MarkovVertex, ConcurrentHashMap<MultiKey<String>, Pair<MarkovEdge, MarkovVertex>>>(); 
     
     public Pair<MarkovEdge, MarkovVertex> getCachedBatchEnd(MarkovVertex start, Statement catalog_stmt, int idx, Set<Integer> partitions, Set<Integer> past_partitions) {
         Map<MultiKey<String>, Pair<MarkovEdge, MarkovVertex>> m = cache_batchEnd.get(start);
@@ -240,6 +303,7 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
     /**
      * Increases the weight between two vertices. Creates an edge if one does
      * not exist, then increments the source vertex's count and the edge's count
+     * The caller must not be holding this graph's read lock.
      * 
      * @param source the source vertex
      * @param dest the destination vertex
@@ -247,25 +311,78 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
     public MarkovEdge addToEdge(MarkovVertex source, MarkovVertex dest) {
         assert(source != null);
         assert(dest != null);
+        assert(this.lock.getReadHoldCount() == 0) : "Trying to add an edge while holding the read lock for " + this;
         
+        // Most of the time the edge will already be there, so we only need the read lock
         MarkovEdge e = null;
-        synchronized (source) {
+        this.lock.readLock().lock();
+        try {
             e = this.findEdge(source, dest);
-            if (e == null) {
-                e = new MarkovEdge(this);
-                this.addEdge(e, source, dest);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        if (e == null) {
+            this.lock.writeLock().lock();
+            try {
+                e = this.findEdge(source, dest);
+                if (e == null) {
+                    e = new MarkovEdge(this);
+                    this.addEdge(e, source, dest);
+                }
+            } finally {
+                this.lock.writeLock().unlock();
             }
-        } // SYNCH
+        }
         return (e);
     }
     
+    @Override
+    public boolean addEdge(MarkovEdge e, edu.uci.ics.jung.graph.util.Pair<? extends MarkovVertex> endpoints, EdgeType edgeType) {
+        boolean ret;
+        this.lock.writeLock().lock();
+        try {
+            ret = super.addEdge(e, endpoints, edgeType);
+            if (ret) this.version.incrementAndGet();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return (ret);
+    }
+    
+    @Override
+    public boolean removeEdge(MarkovEdge e) {
+        boolean ret;
+        this.lock.writeLock().lock();
+        try {
+            ret = super.removeEdge(e);
+            if (ret) this.version.incrementAndGet();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return (ret);
+    }
+    
+    @Override
+    public boolean removeVertex(MarkovVertex v) {
+        boolean ret;
+        this.lock.writeLock().lock();
+        try {
+            ret = super.removeVertex(v);
+            if (ret) this.version.incrementAndGet();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return (ret);
+    }
+    
     /**
      * 
      */
     @Override
     public boolean addVertex(MarkovVertex v) {
         boolean ret;
-        synchronized (v) {
+        this.lock.writeLock().lock();
+        try {
             ret = super.addVertex(v);
             if (ret) {
                 if (v.isQueryVertex()) {
@@ -281,8 +398,11 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
                     assert(this.cache_specialVertices[idx] == null) : "Trying add duplicate " + vtype + " vertex";
                     this.cache_specialVertices[idx] = v;
                 }
+                this.version.incrementAndGet();
             }
-        } // SYNCH
+        } finally {
+            this.lock.writeLock().unlock();
+        }
         return (ret);
     }
 
@@ -343,16 +463,31 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
      * @return
      */
     protected MarkovVertex getVertex(Statement a, Set<Integer> partitions, Set<Integer> past_partitions, int queryInstanceIndex) {
-        Set<MarkovVertex> stmt_vertices = this.cache_stmtVertices.get(a);
-        if (stmt_vertices == null) {
-            synchronized (this) {
+        this.lock.readLock().lock();
+        try {
+            Set<MarkovVertex> stmt_vertices = this.cache_stmtVertices.get(a);
+            if (stmt_vertices != null) {
+                return (this.findVertex(stmt_vertices, a, partitions, past_partitions, queryInstanceIndex));
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        
+        // We haven't seen this Statement before, so we need to build the cache
+        this.lock.writeLock().lock();
+        try {
+            Set<MarkovVertex> stmt_vertices = this.cache_stmtVertices.get(a);
+            if (stmt_vertices == null) {
+                this.buildCache();
                 stmt_vertices = this.cache_stmtVertices.get(a);
-                if (stmt_vertices == null) {
-                    this.buildCache();
-                    stmt_vertices = this.cache_stmtVertices.get(a);
-                }
-            } // SYNCH
+            }
+            return (this.findVertex(stmt_vertices, a, partitions, past_partitions, queryInstanceIndex));
+        } finally {
+            this.lock.writeLock().unlock();
         }
+    }
+    
+    private MarkovVertex findVertex(Set<MarkovVertex> stmt_vertices, Statement a, Set<Integer> partitions, Set<Integer> past_partitions, int queryInstanceIndex) {
         for (MarkovVertex v : stmt_vertices) {
             if (v.isEqual(a, partitions, past_partitions, queryInstanceIndex)) {
                 return v;
@@ -389,56 +524,121 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
 
     /**
      * Calculate the probabilities for this graph.
-     * First we will reset all of the existing probabilities and then apply the instancehits to 
-     * the totalhits for each graph element
+     * First we apply the instancehits to the totalhits for each graph element and copy the
+     * graph's vertices and edges. This is the only part that holds the graph's read lock, so
+     * transactions that want to add a new vertex or edge only have to wait for one pass over it.
+     * All of the probabilities are then recalculated on a private copy of the graph's structure
+     * without holding any lock.
+     * The new edge and vertex probabilities are computed in staging copies and then published
+     * together while holding the write lock, so anybody holding the read lock (including
+     * the CompactMarkovGraph builder) will either see all of the old probabilities or all 
+     * of the new ones. If anybody is using this graph's CompactMarkovGraph, then we will
+     * build a new snapshot once the new probabilities are published.
      */
     public synchronized void calculateProbabilities() {
-        // Reset all probabilities
-        for (MarkovVertex v : this.getVertices()) {
-            v.resetAllProbabilities();
-        } // FOR
+        List<MarkovVertex> vertices = null;
+        MarkovEdge edges[] = null;
+        MarkovVertex sources[] = null;
+        MarkovVertex dests[] = null;
         
-        this.normalizeTimes();
-        for (MarkovVertex v : this.getVertices()) {
-            v.applyInstanceHitsToTotalHits();
-        }
-        for (MarkovEdge e : this.getEdges()) {
-            e.applyInstanceHitsToTotalHits();
+        this.lock.readLock().lock();
+        try {
+            // We have to apply the edge hits before the vertex hits. TransactionEstimator
+            // increments a vertex's counter before the edges coming out of it, so this
+            // guarantees that an edge will never have more hits than its source vertex
+            int num_edges = this.getEdgeCount();
+            edges = new MarkovEdge[num_edges];
+            sources = new MarkovVertex[num_edges];
+            dests = new MarkovVertex[num_edges];
+            int i = 0;
+            for (MarkovEdge e : this.getEdges()) {
+                e.applyInstanceHitsToTotalHits();
+                edges[i] = e;
+                sources[i] = this.getSource(e);
+                dests[i] = this.getDest(e);
+                i++;
+            } // FOR
+            vertices = new ArrayList<MarkovVertex>(this.getVertexCount());
+            for (MarkovVertex v : this.getVertices()) {
+                v.applyInstanceHitsToTotalHits();
+                vertices.add(v);
+            } // FOR
+        } finally {
+            this.lock.readLock().unlock();
         }
         
+        // Nobody else can see this copy, so we don't need any locks to walk it
+        MarkovGraph copy = new MarkovGraph(this.catalog_proc);
+        for (MarkovVertex v : vertices) {
+            copy.addVertex(v);
+        } // FOR
+        for (int i = 0; i < edges.length; i++) {
+            copy.addEdge(edges[i], new edu.uci.ics.jung.graph.util.Pair<MarkovVertex>(sources[i], dests[i]), EdgeType.DIRECTED);
+        } // FOR
+        copy.normalizeTimes();
+        
         // We first need to calculate the edge probabilities because the probabilities
         // at each vertex are going to be derived from these
-        this.calculateEdgeProbabilities();
+        Map<MarkovEdge, Float> staged_edges = copy.calculateEdgeProbabilities();
         
         // Then traverse the graph and calculate the vertex probability tables
-        this.calculateVertexProbabilities();
+        Map<MarkovVertex, MarkovVertex> staged_vertices = copy.calculateVertexProbabilities(staged_edges);
         
-        this.recompute_count++;
+        // Publish everything at once. Anything that was added to the graph in between
+        // will keep its current probabilities until the next time we get recomputed
+        this.lock.writeLock().lock();
+        try {
+            for (Entry<MarkovEdge, Float> e : staged_edges.entrySet()) {
+                e.getKey().probability = e.getValue().floatValue();
+            } // FOR
+            for (Entry<MarkovVertex, MarkovVertex> e : staged_vertices.entrySet()) {
+                e.getKey().publishProbabilities(e.getValue());
+            } // FOR
+            this.recompute_count++;
+            this.version.incrementAndGet();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        if (this.cache_compactGraph != null) this.buildCompactGraph();
     }
 
     /**
-     * Calculate vertex probabilities
+     * Calculate vertex probabilities into staging copies of the vertices
+     * @param staged_edges the new edge probabilities
      */
-    private void calculateVertexProbabilities() {
+    private Map<MarkovVertex, MarkovVertex> calculateVertexProbabilities(Map<MarkovEdge, Float> staged_edges) {
         if (trace.get()) LOG.trace("Calculating Vertex probabilities for " + this);
-        new MarkovProbabilityCalculator(this).calculate();
+        Map<MarkovVertex, MarkovVertex> staged = new IdentityHashMap<MarkovVertex, MarkovVertex>();
+        for (MarkovVertex v : this.getVertices()) {
+            MarkovVertex copy = new MarkovVertex(v);
+            copy.resetAllProbabilities();
+            staged.put(v, copy);
+        } // FOR
+        new MarkovProbabilityCalculator(this, staged, staged_edges).calculate();
+        return (staged);
     }
 
     /**
      * Calculates the probabilities for each edge to be traversed
+     * Edges whose source vertex has never been hit keep their current probability. 
      */
-    private void calculateEdgeProbabilities() {
-        Collection<MarkovVertex> vertices = this.getVertices();
-        for (MarkovVertex v : vertices) {
-            if (v.isQueryVertex() && v.getTotalHits() == 0) continue;
+    private Map<MarkovEdge, Float> calculateEdgeProbabilities() {
+        Map<MarkovEdge, Float> staged = new IdentityHashMap<MarkovEdge, Float>();
+        for (MarkovVertex v : this.getVertices()) {
+            boolean skip = (v.isQueryVertex() && v.getTotalHits() == 0);
             for (MarkovEdge e : this.getOutEdges(v)) {
+                if (skip) {
+                    staged.put(e, e.getProbability());
+                    continue;
+                }
                 try {
-                    e.calculateProbability(v.getTotalHits());
+                    staged.put(e, e.computeProbability(v.getTotalHits()));
                 } catch (Throwable ex) {
                     throw new RuntimeException(String.format("Failed to calculate probabilities for edge %s -> %s", v, this.getDest(e)), ex);  
                 }
             }
         }
+        return (staged);
     }
 
     /**
@@ -676,14 +876,37 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
      * other transaction running at the same time
      */
     public synchronized void resetCounters() {
-        for (MarkovVertex v : this.getVertices()) {
-            v.setInstanceHits(0);
-        }
-        for (MarkovEdge e : this.getEdges()) {
-            e.setInstanceHits(0);
+        this.lock.readLock().lock();
+        try {
+            for (MarkovVertex v : this.getVertices()) {
+                v.setInstanceHits(0);
+            }
+            for (MarkovEdge e : this.getEdges()) {
+                e.setInstanceHits(0);
+            }
+        } finally {
+            this.lock.readLock().unlock();
         }
     }
     
+    /**
+     * Mark this graph as needing to have its probabilities recomputed.
+     * Returns true if the graph was not already marked.
+     */
+    public boolean markUpdatePending() {
+        return (this.update_pending.get() == false && this.update_pending.compareAndSet(false, true));
+    }
+    /**
+     * Clear the pending update flag. This must be called before the probabilities
+     * are recomputed so that we don't miss any updates that come in while it is running.
+     */
+    public void clearUpdatePending() {
+        this.update_pending.set(false);
+    }
+    public boolean isUpdatePending() {
+        return (this.update_pending.get());
+    }
+    
     /**
      * 
      * @return The number of xacts used to make this MarkovGraph
@@ -0,0 +1,140 @@
+package edu.brown.markov;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreSite;
+import edu.brown.hstore.HStoreThreadManager;
+import edu.brown.hstore.interfaces.Shutdownable;
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+
+/**
+ * Background thread that keeps the MarkovGraphs at an HStoreSite up-to-date with
+ * the transactions that are executing. The TransactionEstimators queue a MarkovGraph
+ * every time that they update its hit counters, and then every interval we will
+ * recompute the probabilities for all of the graphs in our queue.
+ * <p>
+ * This means that the PartitionExecutors never have to stop and wait for a
+ * MarkovGraph to be recomputed. The MarkovPathEstimators keep using the old
+ * CompactMarkovGraph snapshot until the new probabilities are published and
+ * this thread has built the new snapshot.
+ */
+public class MarkovGraphUpdater implements Runnable, Shutdownable {
+    private static final Logger LOG = Logger.getLogger(MarkovGraphUpdater.class);
+    private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
+    private static final LoggerBoolean trace = new LoggerBoolean(LOG.isTraceEnabled());
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    private final HStoreSite hstore_site;
+    private final LinkedBlockingQueue<MarkovGraph> queue = new LinkedBlockingQueue<MarkovGraph>();
+
+    /**
+     * How long to wait (in milliseconds) in between update rounds
+     */
+    private final int interval;
+    private Thread self = null;
+    private volatile boolean stop = false;
+
+    private long update_count = 0;
+
+    /**
+     * Constructor
+     * @param hstore_site
+     * @param interval
+     */
+    public MarkovGraphUpdater(HStoreSite hstore_site, int interval) {
+        assert(interval > 0) : "Invalid update interval " + interval;
+        this.hstore_site = hstore_site;
+        this.interval = interval;
+    }
+
+    /**
+     * Queue the given MarkovGraph to have its probabilities recomputed in the next round.
+     * This is a no-op if the graph is already in our queue.
+     * @param markov
+     */
+    public void queue(MarkovGraph markov) {
+        if (markov.markUpdatePending()) {
+            if (trace.get()) LOG.trace("Queued " + markov + " for recomputation");
+            this.queue.offer(markov);
+        }
+    }
+
+    /**
+     * Return the total number of times that we have recomputed a MarkovGraph
+     */
+    public long getUpdateCount() {
+        return (this.update_count);
+    }
+
+    @Override
+    public void run() {
+        this.self = Thread.currentThread();
+        this.self.setName(HStoreThreadManager.getThreadName(hstore_site, HStoreConstants.THREAD_NAME_MARKOV));
+        this.hstore_site.getThreadManager().registerProcessingThread();
+
+        if (debug.get()) LOG.debug(String.format("Starting %s thread [interval=%dms]",
+                                                 this.getClass().getSimpleName(), this.interval));
+        while (this.stop == false && this.self.isInterrupted() == false) {
+            try {
+                Thread.sleep(this.interval);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            this.processQueue();
+        } // WHILE
+    }
+
+    /**
+     * Recompute the probabilities for all of the MarkovGraphs that are
+     * currently in our queue. Returns the number of graphs that were updated.
+     */
+    protected int processQueue() {
+        int ctr = 0;
+        int num_graphs = this.queue.size();
+        for (int i = 0; i < num_graphs; i++) {
+            MarkovGraph markov = this.queue.poll();
+            if (markov == null) break;
+            // We have to clear the flag first so that any transaction that updates
+            // the graph while we're working will put it back in the queue
+            markov.clearUpdatePending();
+            try {
+                markov.calculateProbabilities();
+            } catch (Throwable ex) {
+                LOG.error(String.format("Failed to recompute probabilities for %s MarkovGraph #%d",
+                                        markov.getProcedure().getName(), markov.getGraphId()), ex);
+                continue;
+            }
+            ctr++;
+        } // FOR
+        this.update_count += ctr;
+        if (debug.get() && ctr > 0) LOG.debug(String.format("Recomputed %d MarkovGraphs [total=%d]", ctr, this.update_count));
+        return (ctr);
+    }
+
+    @Override
+    public void prepareShutdown(boolean error) {
+        // Clear the flag for each graph that we drop so that it can be queued again
+        MarkovGraph markov = null;
+        while ((markov = this.queue.poll()) != null) {
+            markov.clearUpdatePending();
+        } // WHILE
+    }
+
+    @Override
+    public void shutdown() {
+        if (debug.get()) LOG.debug(String.format("%s thread should be shutdown now...", this.getClass().getSimpleName()));
+        this.stop = true;
+        if (this.self != null) this.self.interrupt();
+    }
+
+    @Override
+    public boolean isShuttingDown() {
+        return (this.stop);
+    }
+}
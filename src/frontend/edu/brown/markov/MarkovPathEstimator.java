@@ -2,6 +2,7 @@ package edu.brown.markov;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -12,7 +13,6 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -123,9 +123,24 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
     
     private final transient Set<Integer> past_partitions = new HashSet<Integer>();
     
-    private final transient SortedSet<MarkovEdge> candidates = new TreeSet<MarkovEdge>();
+    /**
+     * The array-backed snapshot of the MarkovGraph that we are traversing
+     */
+    private transient CompactMarkovGraph compact;
+    
+    /**
+     * The CompactMarkovGraph id of the next vertex that we expect to visit
+     */
+    private transient int next_id = CompactMarkovGraph.NULL_VERTEX_ID;
+    
+    /**
+     * The candidate edges for the current vertex. These are offsets from the vertex's
+     * first edge in the CompactMarkovGraph, which are sorted by probability, so the
+     * first set bit is always the edge with the greatest probability.
+     */
+    private final transient BitSet candidates = new BitSet();
     
-    private transient MarkovEdge candidate_edge = null;
+    private transient int candidate_edge = -1;
     
     private final transient Set<Pair<Statement, Integer>> next_statements = new HashSet<Pair<Statement, Integer>>();
     
@@ -179,6 +194,8 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
      */
     public MarkovPathEstimator init(MarkovGraph markov, TransactionEstimator t_estimator, int base_partition, Object args[]) {
         this.init(markov, TraverseOrder.DEPTH, Direction.FORWARD);
+        this.compact = markov.getCompactGraph();
+        this.next_id = this.compact.getStartVertexId();
         this.estimate.init(markov.getStartVertex(), MarkovEstimate.INITIAL_ESTIMATE_BATCH);
         this.confidence = 1.0f;
         this.t_estimator = t_estimator;
@@ -215,6 +232,8 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
         this.t_estimator = null;
         this.p_estimator = null;
         this.correlations = null;
+        this.compact = null;
+        this.next_id = CompactMarkovGraph.NULL_VERTEX_ID;
         
         this.estimate.finish();
         this.touched_partitions.clear();
@@ -315,22 +334,32 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
         if (t) LOG.trace("Current Vertex: " + element);
         Statement cur_catalog_stmt = element.getCatalogItem();
         int cur_catalog_stmt_index = element.getQueryInstanceIndex();
-        MarkovGraph markov = (MarkovGraph)this.getGraph();
+        CompactMarkovGraph compact = this.compact;
         
-        // At our current vertex we need to gather all of our neighbors
-        // and get unique Statements that we could be executing next
-        Collection<MarkovVertex> next_vertices = markov.getSuccessors(element);
-        if (t) LOG.trace("Successors: " + next_vertices);
-        if (next_vertices == null) {
+        // We will almost always be at the vertex that we picked in the last invocation,
+        // so we can skip looking up its id
+        int element_id = this.next_id;
+        if (element_id == CompactMarkovGraph.NULL_VERTEX_ID || compact.getVertex(element_id) != element) {
+            element_id = compact.getVertexId(element);
+        }
+        this.next_id = CompactMarkovGraph.NULL_VERTEX_ID;
+        if (element_id == CompactMarkovGraph.NULL_VERTEX_ID) {
+            if (t) LOG.trace("Missing " + element + " in " + compact);
             this.stop();
             return;
         }
+        
+        // At our current vertex we need to gather all of our neighbors
+        // and get unique Statements that we could be executing next
+        final int first_edge = compact.getFirstEdge(element_id);
+        final int last_edge = compact.getLastEdge(element_id);
 
         // Step #1
         // Get all of the unique Statement+StatementInstanceIndex pairs for the vertices
         // that are adjacent to our current vertex
         // XXX: Why do we use the pairs rather than just look at the vertices?
-        for (MarkovVertex next : next_vertices) {
+        for (int pos = first_edge; pos < last_edge; pos++) {
+            MarkovVertex next = compact.getEdgeDest(pos);
             Statement next_catalog_stmt = next.getCatalogItem();
             int next_catalog_stmt_index = next.getQueryInstanceIndex();
             
@@ -349,9 +378,7 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
             
             // Check whether it's COMMIT/ABORT
             if (next.isCommitVertex() || next.isAbortVertex()) {
-                MarkovEdge candidate = markov.findEdge(element, next);
-                assert(candidate != null);
-                this.candidates.add(candidate);
+                this.candidates.set(pos - first_edge);
             } else {
                 this.next_statements.add(Pair.of(next_catalog_stmt, next_catalog_stmt_index));
             }
@@ -456,24 +483,18 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
                 // Now for this given list of partitions, find a Vertex in our next set
                 // that has the same partitions
                 if (this.stmt_partitions != null && !this.stmt_partitions.isEmpty()) {
-                    this.candidate_edge = null;
-                    for (MarkovVertex next : next_vertices) {
+                    this.candidate_edge = -1;
+                    for (int pos = first_edge; pos < last_edge; pos++) {
+                        MarkovVertex next = compact.getEdgeDest(pos);
                         if (next.isEqual(catalog_stmt, this.stmt_partitions, this.past_partitions, catalog_stmt_index)) {
                             // BINGO!!!
-                            assert(this.candidate_edge == null);
-                            try {
-                                this.candidate_edge = markov.findEdge(element, next);
-                            } catch (NullPointerException ex) {
-                                continue;
-                            }
-                            assert(this.candidate_edge != null);
-
-                            this.candidates.add(this.candidate_edge);
-                            if (t) LOG.trace("Found candidate edge to " + next + " [" + this.candidate_edge + "]");
+                            this.candidate_edge = pos;
+                            this.candidates.set(pos - first_edge);
+                            if (t) LOG.trace("Found candidate edge to " + next + " [" + compact.getEdge(pos) + "]");
                             break; // ???
                         }
                     } // FOR (Vertex
-                    if (candidate_edge == null && t) LOG.trace("Failed to find candidate edge from " + element + " to " + pair);
+                    if (this.candidate_edge == -1 && t) LOG.trace("Failed to find candidate edge from " + element + " to " + pair);
                 }
             // Without any stmt_args, there's nothing we can do here...
             } else {
@@ -483,7 +504,7 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
         
         // If we don't have any candidate edges and the FORCE TRAVERSAL flag is set, then we'll just
         // grab all of the edges from our currect vertex
-        int num_candidates = this.candidates.size();
+        int num_candidates = this.candidates.cardinality();
         boolean was_forced = false;
         if (num_candidates == 0 && this.force_traversal) {
             if (t) LOG.trace("No candidate edges were found. Force travesal flag is set, so taking all");
@@ -496,19 +517,19 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
 //                this.candidates.add(candidate_edge);
 //                LOG.info("Created a new vertex " + v);
 //            } else {
-            Collection<MarkovEdge> out_edges = markov.getOutEdges(element);
-            if (out_edges != null) this.candidates.addAll(out_edges);
+            this.candidates.set(0, last_edge - first_edge);
 //            }
-            num_candidates = this.candidates.size();
+            num_candidates = this.candidates.cardinality();
             was_forced = true;
         }
         
         // So now we have our list of candidate edges. We can pick the first one
         // since they will be sorted by their probability
-        if (t) LOG.trace("Candidate Edges: " + this.candidates);
+        if (t) LOG.trace("Candidate Edges: " + this.candidates + " [firstEdge=" + first_edge + "]");
         if (num_candidates > 0) {
-            MarkovEdge next_edge = CollectionUtil.first(this.candidates);
-            MarkovVertex next_vertex = markov.getOpposite(element, next_edge);
+            int next_pos = first_edge + this.candidates.nextSetBit(0);
+            MarkovVertex next_vertex = compact.getEdgeDest(next_pos);
+            this.next_id = compact.getEdgeDestId(next_pos);
             children.addAfter(next_vertex);
             if (was_forced) this.forced_vertices.add(next_vertex);
             
@@ -517,16 +538,17 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
             double total_probability = 0.0;
             if (d) LOG.debug("CANDIDATES:");
             int i = 0;
-            for (MarkovEdge e : this.candidates) {
-                MarkovVertex v = markov.getOpposite(element, e);
-                total_probability += e.getProbability();
+            for (int offset = this.candidates.nextSetBit(0); offset >= 0; offset = this.candidates.nextSetBit(offset + 1)) {
+                int pos = first_edge + offset;
+                total_probability += compact.getEdgeProbability(pos);
                 if (d) {
+                    MarkovVertex v = compact.getEdgeDest(pos);
                     LOG.debug(String.format("  [%d] %s  --[%s]--> %s%s",
-                                            i++, element, e, v, (next_vertex.equals(v) ? " <== SELECTED" : "")));
-                    if (this.candidates.size() > 1) LOG.debug(StringUtil.addSpacers(v.debug()));
+                                            i++, element, compact.getEdge(pos), v, (pos == next_pos ? " <== SELECTED" : "")));
+                    if (num_candidates > 1) LOG.debug(StringUtil.addSpacers(v.debug()));
                 }
             } // FOR
-            this.confidence *= next_edge.getProbability() / total_probability;
+            this.confidence *= compact.getEdgeProbability(next_pos) / total_probability;
             
             // Update our list of partitions touched by this transaction
             Set<Integer> next_partitions = next_vertex.getPartitions();
@@ -579,8 +601,8 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
             }
             
             // Keep track of the highest abort probability that we've seen thus far
-            if (next_vertex.isQueryVertex() && next_vertex.getAbortProbability() > this.greatest_abort) {
-                this.greatest_abort = next_vertex.getAbortProbability();
+            if (next_vertex.isQueryVertex() && compact.getAbortProbability(this.next_id) > this.greatest_abort) {
+                this.greatest_abort = compact.getAbortProbability(this.next_id);
             }
             
             if (d) {
@@ -610,8 +632,10 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
     protected void callback_stop() {
         MarkovVertex last_v = this.getVisitPath().get(this.getVisitPath().size()-1);
         if (d) LOG.debug("Callback Stop! Last Element = " + last_v);
-        MarkovGraph markov = (MarkovGraph)this.getGraph();
-        MarkovVertex first_v = markov.getStartVertex();
+        // Use the probabilities from the same snapshot that we traversed
+        final CompactMarkovGraph compact = this.compact;
+        final int first_id = compact.getStartVertexId();
+        assert(first_id != CompactMarkovGraph.NULL_VERTEX_ID) : "Missing start vertex in " + compact;
         
         // Confidence
         this.estimate.setConfidenceProbability(this.confidence);
@@ -622,10 +646,10 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
         float untouched_finish = 1.0f;
         for (int p : this.all_partitions) {
             if (this.touched_partitions.contains(p) == false) {
-                this.estimate.setReadOnlyProbability(p, first_v.getReadOnlyProbability(p));
-                this.estimate.setWriteProbability(p, first_v.getWriteProbability(p));
+                this.estimate.setReadOnlyProbability(p, compact.getReadOnlyProbability(first_id, p));
+                this.estimate.setWriteProbability(p, compact.getWriteProbability(first_id, p));
                 
-                float finished_prob = first_v.getDoneProbability(p);
+                float finished_prob = compact.getDoneProbability(first_id, p);
                 this.estimate.setDoneProbability(p, finished_prob);
                 if (is_singlepartition) untouched_finish = Math.min(untouched_finish, finished_prob);
             } else if (this.estimate.isWriteProbabilitySet(p) == false) {
@@ -641,7 +665,7 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
         
         // Abort Probability
         // Only use the abort probability if we have seen at least ABORT_MIN_TXNS
-        if (markov.getStartVertex().getTotalHits() >= MarkovGraph.MIN_HITS_FOR_NO_ABORT) {
+        if (compact.getVertex(first_id).getTotalHits() >= MarkovGraph.MIN_HITS_FOR_NO_ABORT) {
             this.estimate.setAbortProbability(this.greatest_abort);
         } else {
             this.estimate.setAbortProbability(1.0f);
@@ -2,6 +2,7 @@ package edu.brown.markov;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -26,10 +27,45 @@ public class MarkovProbabilityCalculator extends VertexTreeWalker<MarkovVertex,
     private final Collection<Integer> all_partitions;
     private MarkovEstimate markov_est;
     
+    /**
+     * Optional mapping from each vertex in the graph to the copy of it that the
+     * new probabilities should be written into
+     */
+    private final Map<MarkovVertex, MarkovVertex> staged;
+    
+    /**
+     * Optional mapping from each edge in the graph to the new probability
+     * that should be used for it instead of its current one
+     */
+    private final Map<MarkovEdge, Float> staged_edges;
+    
     public MarkovProbabilityCalculator(MarkovGraph markov) {
+        this(markov, null, null);
+    }
+    
+    /**
+     * Calculate the vertex probabilities for the given MarkovGraph, but store them in the
+     * staged copies of the vertices instead of the original ones 
+     * @param markov
+     * @param staged
+     */
+    public MarkovProbabilityCalculator(MarkovGraph markov, Map<MarkovVertex, MarkovVertex> staged) {
+        this(markov, staged, null);
+    }
+    
+    /**
+     * Calculate the vertex probabilities for the given MarkovGraph using the staged
+     * edge probabilities, and store them in the staged copies of the vertices 
+     * @param markov
+     * @param staged
+     * @param staged_edges
+     */
+    public MarkovProbabilityCalculator(MarkovGraph markov, Map<MarkovVertex, MarkovVertex> staged, Map<MarkovEdge, Float> staged_edges) {
         super(markov, TraverseOrder.LONGEST_PATH, Direction.REVERSE);
         
         this.all_partitions = markov.getAllPartitions();
+        this.staged = staged;
+        this.staged_edges = staged_edges;
         
         // This is tricky. We need to sort of multiplex the traversal from either the commit
         // or abort vertices. We'll always start from the commit but then force the abort 
@@ -46,11 +82,31 @@ public class MarkovProbabilityCalculator extends VertexTreeWalker<MarkovVertex,
         this.traverse(((MarkovGraph)this.getGraph()).getCommitVertex());
     }
     
+    /**
+     * Return the vertex that we should read and write probabilities for
+     * @param v
+     */
+    private MarkovVertex getTarget(MarkovVertex v) {
+        return (this.staged != null ? this.staged.get(v) : v);
+    }
+    
+    /**
+     * Return the probability that we should use for the given edge
+     * @param e
+     */
+    private float getProbability(MarkovEdge e) {
+        if (this.staged_edges != null) {
+            Float prob = this.staged_edges.get(e);
+            if (prob != null) return (prob.floatValue());
+        }
+        return (e.getProbability());
+    }
+    
     @Override
     protected void callback(MarkovVertex element) {
         MarkovGraph markov = (MarkovGraph)this.getGraph();
         // HACK
-        Estimation est = (this.markov_est != null ? this.markov_est : element);
+        Estimation est = (this.markov_est != null ? this.markov_est : this.getTarget(element));
         
         if (trace.get()) LOG.trace("BEFORE: " + element + " => " + est.getSingleSitedProbability());
 //            if (element.isSingleSitedProbablitySet() == false) element.setSingleSitedProbability(0.0);
@@ -96,7 +152,7 @@ public class MarkovProbabilityCalculator extends VertexTreeWalker<MarkovVertex,
             Collection<MarkovEdge> edges = markov.getOutEdges(element);
             for (MarkovEdge e : edges) {
                 if (visited_edges.contains(e)) continue;
-                MarkovVertex successor = markov.getDest(e);
+                MarkovVertex successor = this.getTarget(markov.getDest(e));
                 assert(successor != null);
                 assert(successor.isSingleSitedProbabilitySet()) : "Setting " + element + " BEFORE " + successor;
 
@@ -105,16 +161,16 @@ public class MarkovProbabilityCalculator extends VertexTreeWalker<MarkovVertex,
                 // single-partition probability as the sum of the the edge weights times our
                 // successors' single-partition probability
                 if (element_islocalonly) {
-                    float prob = e.getProbability() * successor.getSingleSitedProbability();
+                    float prob = this.getProbability(e) * successor.getSingleSitedProbability();
                     est.addSingleSitedProbability(prob);
-                    if (trace.get()) LOG.trace(element + " --" + e + "--> " + successor + String.format(" [%f * %f = %f]", e.getProbability(), successor.getSingleSitedProbability(), prob) + "\nprob = " + prob);
+                    if (trace.get()) LOG.trace(element + " --" + e + "--> " + successor + String.format(" [%f * %f = %f]", this.getProbability(e), successor.getSingleSitedProbability(), prob) + "\nprob = " + prob);
                 }
                 
                 // Abort Probability
                 // We need to have seen at least this number of hits before we will use a 
                 // different probability that a transaction could abort
                 if (element.getTotalHits() >= MarkovGraph.MIN_HITS_FOR_NO_ABORT) {
-                    est.addAbortProbability(e.getProbability() * successor.getAbortProbability());
+                    est.addAbortProbability(this.getProbability(e) * successor.getAbortProbability());
                 } else {
                     est.setAbortProbability(1.0f);
                 }
@@ -132,8 +188,8 @@ public class MarkovProbabilityCalculator extends VertexTreeWalker<MarkovVertex,
                         // Figure out whether it is a read or a write
                         if (catalog_stmt.getReadonly()) {
                             if (trace.get()) LOG.trace(String.format("%s does not modify partition %d. Setting writing probability based on children [%s]", element, partition, qtype));
-                            est.addWriteProbability(partition, (e.getProbability() * successor.getWriteProbability(partition)));
-                            est.addReadOnlyProbability(partition, (e.getProbability() * successor.getReadOnlyProbability(partition)));
+                            est.addWriteProbability(partition, (this.getProbability(e) * successor.getWriteProbability(partition)));
+                            est.addReadOnlyProbability(partition, (this.getProbability(e) * successor.getReadOnlyProbability(partition)));
                         } else {
                             if (trace.get()) LOG.trace(String.format("%s modifies partition %d. Setting writing probability to 1.0 [%s]", element, partition, qtype));
                             est.setWriteProbability(partition, 1.0f);
@@ -143,9 +199,9 @@ public class MarkovProbabilityCalculator extends VertexTreeWalker<MarkovVertex,
                     // This vertex doesn't access the partition, but successor vertices might so
                     // the probability is based on the edge probabilities 
                     } else {
-                        est.addDoneProbability(partition, (e.getProbability() * successor.getDoneProbability(partition)));
-                        est.addWriteProbability(partition, (e.getProbability() * successor.getWriteProbability(partition)));
-                        est.addReadOnlyProbability(partition, (e.getProbability() * successor.getReadOnlyProbability(partition)));
+                        est.addDoneProbability(partition, (this.getProbability(e) * successor.getDoneProbability(partition)));
+                        est.addWriteProbability(partition, (this.getProbability(e) * successor.getWriteProbability(partition)));
+                        est.addReadOnlyProbability(partition, (this.getProbability(e) * successor.getReadOnlyProbability(partition)));
                     }
                 } // FOR (PartitionId)
             } // FOR (Edge)
@@ -14,6 +14,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.apache.commons.collections15.map.ListOrderedMap;
 import org.apache.log4j.Logger;
@@ -115,7 +116,7 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
      * For example, the ABORT probability is global to all partitions, so we only need to store one
      * value for it
      */
-    private static final int DEFAULT_PARTITION_ID = 0;
+    protected static final int DEFAULT_PARTITION_ID = 0;
     
     /**
      * The Query Instance Index is the counter for the number of times this particular Statement
@@ -154,8 +155,9 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
 
     /**
      * Mapping from Probability type to another map from partition id
+     * The whole table is replaced when the MarkovGraph's probabilities are recomputed
      */
-    public float probabilities[][];
+    public volatile float probabilities[][];
     
     // ----------------------------------------------------------------------------
     // TRANSIENT DATA MEMBERS
@@ -164,7 +166,9 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
     /**
      * The number of times this vertex has been touched in the current on-line run
      */
-    public transient int instancehits = 0;
+    public transient volatile int instancehits = 0;
+    private static final AtomicIntegerFieldUpdater<MarkovVertex> INSTANCEHITS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(MarkovVertex.class, "instancehits");
     
     /**
      * The execution times of the transactions in the on-line run
@@ -534,7 +538,20 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
      * @return
      */
     private float getSpecificProbability(MarkovVertex.Probability ptype, int partition) {
-        float value = this.probabilities[ptype.ordinal()][partition];
+        return (MarkovVertex.getSpecificProbability(this.probabilities, ptype, partition));
+    }
+    
+    /**
+     * Returns the probability from the given probability table if it is set, otherwise returns
+     * the default value for the probability type. This is used by CompactMarkovGraph for the
+     * tables that it took at the time of its snapshot.
+     * @param probabilities
+     * @param ptype
+     * @param partition
+     * @return
+     */
+    protected static float getSpecificProbability(float probabilities[][], MarkovVertex.Probability ptype, int partition) {
+        float value = probabilities[ptype.ordinal()][partition];
         if (value == MarkovUtil.NULL_MARKER) value = ptype.default_value;
         
         // Handle funky rounding error that I think is due to casting
@@ -571,6 +588,17 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
         this.probabilities[ptype.ordinal()][partition] = probability;
     }
 
+    /**
+     * Replace this vertex's probability tables with the ones that were calculated
+     * for the given staging copy of this vertex. Anybody reading the probabilities
+     * while this happens will either see the old tables or the new ones.
+     * @param staged
+     */
+    protected void publishProbabilities(MarkovVertex staged) {
+        assert(staged.getCatalogItem().equals(this.getCatalogItem()));
+        this.probabilities = staged.probabilities;
+    }
+    
     /**
      * Reset all probabilities. Keeps partitions in maps
      */
@@ -756,8 +784,9 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
    
     @Override
     public void applyInstanceHitsToTotalHits() {
-        this.totalhits += this.instancehits;
-        this.instancehits = 0;
+        // Transactions can still be updating our counter while we do this,
+        // so we have to make sure that we don't lose any of their hits
+        this.totalhits += INSTANCEHITS_UPDATER.getAndSet(this, 0);
     }
     @Override
     public void incrementTotalHits() {
@@ -777,7 +806,7 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
     }
     @Override
     public int incrementInstanceHits() {
-        return (++this.instancehits);
+        return (INSTANCEHITS_UPDATER.incrementAndGet(this));
     }
     
     // ----------------------------------------------------------------------------
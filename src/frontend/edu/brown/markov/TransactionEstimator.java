@@ -88,6 +88,12 @@ public class TransactionEstimator implements Loggable {
     
     private transient boolean enable_recomputes = false;
     
+    /**
+     * If this is set, then we will let this thread recompute our MarkovGraphs
+     * instead of doing it ourselves
+     */
+    private transient MarkovGraphUpdater updater = null;
+    
     // ----------------------------------------------------------------------------
     // TRANSACTION STATE
     // ----------------------------------------------------------------------------
@@ -378,6 +384,19 @@ public class TransactionEstimator implements Loggable {
        this.enable_recomputes = true;
     }
     
+    /**
+     * Hand off all of the work of recomputing MarkovGraph probabilities to the
+     * given MarkovGraphUpdater.
+     * @param updater
+     */
+    public void setMarkovGraphUpdater(MarkovGraphUpdater updater) {
+        this.updater = updater;
+    }
+    
+    public MarkovGraphUpdater getMarkovGraphUpdater() {
+        return (this.updater);
+    }
+    
     public ParameterMappingsSet getCorrelations() {
         return this.correlations;
     }
@@ -501,20 +520,20 @@ public class TransactionEstimator implements Loggable {
             // Calculate initial path estimate
             if (t) LOG.trace("Estimating initial execution path for " + AbstractTransaction.formatTxnName(catalog_proc, txn_id));
             start.addInstanceTime(txn_id, start_time);
-            synchronized (markov) {
+            // We don't need to lock the MarkovGraph here because the MarkovPathEstimator
+            // walks the graph's immutable CompactMarkovGraph snapshot
+            try {
+                estimator.traverse(start);
+                // if (catalog_proc.getName().equalsIgnoreCase("NewBid")) throw new Exception ("Fake!");
+            } catch (Throwable e) {
                 try {
-                    estimator.traverse(start);
-                    // if (catalog_proc.getName().equalsIgnoreCase("NewBid")) throw new Exception ("Fake!");
-                } catch (Throwable e) {
-                    try {
-                        GraphvizExport<MarkovVertex, MarkovEdge> gv = MarkovUtil.exportGraphviz(markov, true, markov.getPath(estimator.getVisitPath()));
-                        LOG.error("GRAPH #" + markov.getGraphId() + " DUMP: " + gv.writeToTempFile(catalog_proc));
-                    } catch (Exception ex) {
-                        throw new RuntimeException(ex);
-                    }
-                    throw new RuntimeException("Failed to estimate path for " + AbstractTransaction.formatTxnName(catalog_proc, txn_id), e);
+                    GraphvizExport<MarkovVertex, MarkovEdge> gv = MarkovUtil.exportGraphviz(markov, true, markov.getPath(estimator.getVisitPath()));
+                    LOG.error("GRAPH #" + markov.getGraphId() + " DUMP: " + gv.writeToTempFile(catalog_proc));
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
                 }
-            } // SYNCH
+                throw new RuntimeException("Failed to estimate path for " + AbstractTransaction.formatTxnName(catalog_proc, txn_id), e);
+            }
         } else {
             if (d) LOG.info(String.format("Using cached MarkovPathEstimator for %s [hashCode=%d, ratio=%.02f]",
                                           AbstractTransaction.formatTxnName(catalog_proc, txn_id), estimator.getEstimate().hashCode(), markov.getAccuracyRatio()));
@@ -640,7 +659,8 @@ public class TransactionEstimator implements Loggable {
         
         // Once the workload shifts we detect it and trigger this method. Recomputes
         // the graph with the data we collected with the current workload method.
-        if (this.enable_recomputes && markov.shouldRecompute(this.txn_count.get(), RECOMPUTE_TOLERANCE)) {
+        // If we have a MarkovGraphUpdater, then it will take care of this for us in the background
+        if (this.updater == null && this.enable_recomputes && markov.shouldRecompute(this.txn_count.get(), RECOMPUTE_TOLERANCE)) {
             markov.calculateProbabilities();
         }
         return (estimate);
@@ -700,18 +720,18 @@ public class TransactionEstimator implements Loggable {
         assert(next_v != null) : "Missing " + vtype;
         
         // If no edge exists to the next vertex, then we need to create one
-        synchronized (g) {
-            MarkovEdge next_e = g.findEdge(current, next_v);
-            if (next_e == null) next_e = g.addToEdge(current, next_v);
-            s.setCurrent(next_v, next_e); // For post-txn processing...
+        // addToEdge() takes the graph's structural lock and the hit counters are atomic,
+        // so we don't need to lock the whole graph here
+        MarkovEdge next_e = g.addToEdge(current, next_v);
+        s.setCurrent(next_v, next_e); // For post-txn processing...
 
-            // Update counters
-            // We want to update the counters for the entire path right here so that
-            // nobody gets incomplete numbers if they recompute probabilities
-            for (MarkovVertex v : s.actual_path) v.incrementInstanceHits();
-            for (MarkovEdge e : s.actual_path_edges) e.incrementInstanceHits();
-            next_v.addInstanceTime(txn_id, s.getExecutionTimeOffset(timestamp));
-        } // SYNCH
+        // Update counters
+        // The vertices need to be updated before the edges so that anybody that recomputes
+        // the probabilities at the same time never sees an edge with more hits than its vertex
+        for (MarkovVertex v : s.actual_path) v.incrementInstanceHits();
+        for (MarkovEdge e : s.actual_path_edges) e.incrementInstanceHits();
+        next_v.addInstanceTime(txn_id, s.getExecutionTimeOffset(timestamp));
+        if (this.updater != null) this.updater.queue(g);
         
         // Store this as the last accurate MarkovPathEstimator for this graph
         if (hstore_conf.site.markov_path_caching && this.cached_estimators.containsKey(s.markov) == false && s.initial_estimate.isValid()) {
@@ -755,19 +775,25 @@ public class TransactionEstimator implements Loggable {
         MarkovVertex next_v = null;
         MarkovEdge next_e = null;
 
-        // Synchronize on the single vertex so that it's more fine-grained than the entire graph
+        // Synchronize on the single vertex so that two txns don't both add the same new vertex
+        // after it. We only need the graph's read lock to look at the edges that are already there
         synchronized (current) {
-            Collection<MarkovEdge> edges = markov.getOutEdges(current); 
-            if (t) LOG.trace("Examining " + edges.size() + " edges from " + current + " for Txn #" + state.txn_id);
-            for (MarkovEdge e : edges) {
-                MarkovVertex v = markov.getDest(e);
-                if (v.isEqual(catalog_stmt, partitions, state.touched_partitions, queryInstanceIndex)) {
-                    if (t) LOG.trace("Found next vertex " + v + " for Txn #" + state.txn_id);
-                    next_v = v;
-                    next_e = e;
-                    break;
-                }
-            } // FOR
+            markov.getLock().readLock().lock();
+            try {
+                Collection<MarkovEdge> edges = markov.getOutEdges(current); 
+                if (t) LOG.trace("Examining " + edges.size() + " edges from " + current + " for Txn #" + state.txn_id);
+                for (MarkovEdge e : edges) {
+                    MarkovVertex v = markov.getDest(e);
+                    if (v.isEqual(catalog_stmt, partitions, state.touched_partitions, queryInstanceIndex)) {
+                        if (t) LOG.trace("Found next vertex " + v + " for Txn #" + state.txn_id);
+                        next_v = v;
+                        next_e = e;
+                        break;
+                    }
+                } // FOR
+            } finally {
+                markov.getLock().readLock().unlock();
+            }
         
             // If we fail to find the next vertex, that means we have to dynamically create a new 
             // one. The graph is self-managed, so we don't need to worry about whether 
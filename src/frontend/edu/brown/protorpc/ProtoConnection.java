@@ -84,18 +84,32 @@ public class ProtoConnection {
     }
 
     public boolean tryWrite(MessageLite message) {
+        bufferWrite(message);
+        return connection.tryFlush();
+    }
+
+    /** Serializes message into the connection's output buffer without writing it to the
+     * channel. Multiple messages can be buffered and then sent together with a single call
+     * to {@link #tryFlush()}.
+     */
+    public void bufferWrite(MessageLite message) {
         try {
             codedOutput.writeRawLittleEndian32(message.getSerializedSize());
             message.writeTo(codedOutput);
             // writes to the underlying output stream 
             codedOutput.flush();  
-
-            return connection.tryFlush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /** See {@link NonBlockingConnection#tryFlush()}.
+     * @see NonBlockingConnection#tryFlush()
+     */
+    public boolean tryFlush() {
+        return connection.tryFlush();
+    }
+
     // TODO: Only keep one of getConnection and getChannel?
     public NonBlockingConnection getConnection() {
         return connection;
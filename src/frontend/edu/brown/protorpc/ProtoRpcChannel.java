@@ -31,6 +31,14 @@ public class ProtoRpcChannel extends AbstractEventHandler implements RpcChannel
     private final HashMap<Integer, ProtoRpcController> pendingRpcs =
             new HashMap<Integer, ProtoRpcController>();
     private int reconnectIntervalSeconds;
+    private boolean coalesceWrites = false;
+    private boolean flushPending = false;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushBufferedWrites();
+        }
+    };
 
     /** A factory interface for connecting to an RPC server. */
     public interface ConnectFactory {
@@ -112,6 +120,18 @@ public class ProtoRpcChannel extends AbstractEventHandler implements RpcChannel
         reconnectIntervalSeconds = reconnectSeconds;
     }
 
+    /**
+     * If enabled, RPC requests are only buffered when callMethod() is invoked. All of the
+     * requests that are buffered before the event loop gets a chance to run are then
+     * written to the connection together, so that many small requests to the same
+     * destination only require a single write to the socket.
+     *
+     * @param coalesceWrites true to defer writes to the event loop thread.
+     */
+    public synchronized void setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+    }
+
     public void callMethod(Descriptors.MethodDescriptor method,
             RpcController controller, Message request,
             Message responsePrototype, RpcCallback<Message> done) {
@@ -130,6 +150,15 @@ public class ProtoRpcChannel extends AbstractEventHandler implements RpcChannel
             // System.err.println("Sending RPC sequence " + sequence);
             RpcRequest rpcRequest = makeRpcRequest(sequence, method, request);
             sequence += 1;
+            if (coalesceWrites) {
+                connection.bufferWrite(rpcRequest);
+                if (!flushPending) {
+                    flushPending = true;
+                    eventLoop.runInEventThread(flushTask);
+                }
+                if (debug) LOG.debug(String.format("%d: Buffered RPC %s sequence %d", hashCode(), method.getFullName(), sequence));
+                return;
+            }
             boolean blocked = connection.tryWrite(rpcRequest);
             if (blocked) {
                 // the write blocked: wait for write callbacks
@@ -140,6 +169,19 @@ public class ProtoRpcChannel extends AbstractEventHandler implements RpcChannel
         }
     }
 
+    /** Writes out all of the requests that were buffered by callMethod(). This is invoked in
+     * the event loop thread. */
+    private synchronized void flushBufferedWrites() {
+        flushPending = false;
+        if (connection == null) return;
+        boolean blocked = connection.tryFlush();
+        if (blocked) {
+            // the write blocked: wait for write callbacks
+            eventLoop.registerWrite(connection.getChannel(), this);
+        }
+        if (LOG.isDebugEnabled()) LOG.debug(String.format("%d: Flushed buffered RPCs blocked = %b", hashCode(), blocked));
+    }
+
     public static RpcRequest makeRpcRequest(
             int sequence, Descriptors.MethodDescriptor method, Message request) {
         RpcRequest.Builder requestBuilder = RpcRequest.newBuilder();
@@ -30,6 +30,7 @@ package edu.brown.utils;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -38,9 +39,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.commons.collections15.map.ListOrderedMap;
-import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.log4j.Logger;
 import org.voltdb.StoredProcedureInvocation;
 import org.voltdb.VoltTableRow;
@@ -71,7 +72,6 @@ import edu.brown.hashing.DefaultHasher;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
 import edu.brown.plannodes.PlanNodeUtil;
-import edu.brown.pools.FastObjectPool;
 import edu.brown.statistics.Histogram;
 import edu.brown.workload.QueryTrace;
 import edu.brown.workload.TransactionTrace;
@@ -97,9 +97,11 @@ public class PartitionEstimator {
     private Database catalog_db;
     private final AbstractHasher hasher;
     private final Set<Integer> all_partitions = new HashSet<Integer>();
+    private final BitSet all_partitions_bits = new BitSet();
     private int num_partitions;
 
     private final HashMap<Procedure, ProcParameter> cache_procPartitionParameters = new HashMap<Procedure, ProcParameter>();
+    private final HashMap<Procedure, int[]> cache_procPartitionParameterOffsets = new HashMap<Procedure, int[]>();
     private final Map<Table, Column> cache_tablePartitionColumns = new HashMap<Table, Column>();
     private final Map<Statement, Collection<Integer>> cache_stmtPartitionParameters = new HashMap<Statement, Collection<Integer>>();
 
@@ -109,14 +111,18 @@ public class PartitionEstimator {
     private final Map<String, CacheEntry> cache_fragmentEntries = new HashMap<String, CacheEntry>();
 
     /**
-     * Statement Key -> CacheEntry(Column Key -> StmtParam Indexes)
+     * PlanFragment Id -> CacheEntry
+     * This is the routing table used at runtime. It is indexed by the PlanFragment's
+     * catalog id so that we don't need to build a CatalogKey for every look-up.
+     * A new array is swapped in whenever we get a new catalog.
      */
-    private final Map<String, CacheEntry> cache_statementEntries = new HashMap<String, CacheEntry>();
+    private volatile AtomicReferenceArray<CacheEntry> cache_fragmentIdEntries = new AtomicReferenceArray<CacheEntry>(0);
 
     /**
-     * Table Key -> All cache entries for Statements that reference Table
+     * Statement Key -> CacheEntry(Column Key -> StmtParam Indexes)
      */
-    private final Map<String, Set<CacheEntry>> table_cache_xref = new HashMap<String, Set<CacheEntry>>();
+    private final Map<String, CacheEntry> cache_statementEntries = new HashMap<String, CacheEntry>();
+
 
     /**
      * CacheEntry ColumnKey -> Set<StmtParameterIndex>
@@ -129,8 +135,14 @@ public class PartitionEstimator {
         private final Collection<String> broadcast_tables = new HashSet<String>();
 
         private transient Table tables[];
+        /** The CatalogKey for each table in the tables array */
+        private transient String table_key_arr[];
         /** Whether the table in the tables array is replicated */
         private transient boolean is_replicated[];
+        /** The partitioning column for each table in the tables array */
+        private transient Column partition_cols[];
+        /** The StmtParameter offsets for each table's partitioning column (may be null) */
+        private transient int partition_param_idxs[][];
         private transient boolean is_array[]; // parameters
         private transient boolean is_valid = true;
         private transient boolean cache_valid = false;
@@ -214,14 +226,23 @@ public class PartitionEstimator {
                         if (trace.get())
                             LOG.trace("Generating list of tables used by cache entry");
                         
-                        this.tables = new Table[this.table_keys.size()];
-                        this.is_replicated = new boolean[this.tables.length];
+                        Table new_tables[] = new Table[this.table_keys.size()];
+                        this.table_key_arr = new String[new_tables.length];
+                        this.is_replicated = new boolean[new_tables.length];
+                        this.partition_cols = new Column[new_tables.length];
+                        this.partition_param_idxs = new int[new_tables.length][];
                         int i = 0;
                         for (String table_key : this.table_keys) {
                             Table catalog_tbl = CatalogKey.getFromKey(catalog_db, table_key, Table.class);
-                            this.tables[i] = catalog_tbl;
-                            this.is_replicated[i++] = catalog_tbl.getIsreplicated();
+                            Column catalog_col = cache_tablePartitionColumns.get(catalog_tbl);
+                            new_tables[i] = catalog_tbl;
+                            this.table_key_arr[i] = table_key;
+                            this.is_replicated[i] = catalog_tbl.getIsreplicated();
+                            this.partition_cols[i] = catalog_col;
+                            this.partition_param_idxs[i] = (catalog_col != null ? this.get(catalog_col) : null);
+                            i++;
                         } // FOR
+                        this.tables = new_tables;
                     }
                     this.cache_valid = true;
                 } // SYNCH
@@ -251,45 +272,31 @@ public class PartitionEstimator {
     }; // END CLASS
 
     /**
-     * Set<Integer> pool used by calculatePartitionsForCache
+     * Scratch BitSets used while calculating partitions. The PartitionEstimator is
+     * shared by all of the threads at a site, so each thread gets its own set.
+     * We don't use a FastObjectPool here because returning an object to it allocates.
      */
-    private final FastObjectPool<Set<Integer>> partitionSetPool = new FastObjectPool<Set<Integer>>(new BasePoolableObjectFactory() {
-        @Override
-        public Object makeObject() throws Exception {
-            return (new HashSet<Integer>());
-        }
-
-        public void passivateObject(Object obj) throws Exception {
-            @SuppressWarnings("unchecked")
-            Set<Integer> set = (Set<Integer>) obj;
-            set.clear();
+    private static class PartitionScratch {
+        /** Used by calculatePartitionsForCache */
+        private final BitSet table_partitions = new BitSet();
+        /** Used by the Set<Integer> wrappers */
+        private final BitSet frag_partitions = new BitSet();
+        /** Used for multi-column partitioning */
+        // XXX: Why is this hardcoded?
+        private final BitSet mc_partitions[] = {
+            new BitSet(),
+            new BitSet(),
+            new BitSet(),
+            new BitSet()
         };
-    }, 100);
+    } // CLASS
 
-    /**
-     * Set<Integer>[4] pool used by calculatePartitionsForCache
-     */
-    private final FastObjectPool<HashSet<Integer>[]> mcPartitionSetPool = new FastObjectPool<HashSet<Integer>[]>(new BasePoolableObjectFactory() {
+    private final ThreadLocal<PartitionScratch> scratch = new ThreadLocal<PartitionScratch>() {
         @Override
-        public Object makeObject() throws Exception {
-            // XXX: Why is this hardcoded?
-            return (new HashSet[] {
-                    new HashSet<Integer>(),
-                    new HashSet<Integer>(),
-                    new HashSet<Integer>(),
-                    new HashSet<Integer>()
-             });
+        protected PartitionScratch initialValue() {
+            return (new PartitionScratch());
         }
-
-        public void passivateObject(Object obj) throws Exception {
-            @SuppressWarnings("unchecked")
-            HashSet<Integer> sets[] = (HashSet<Integer>[]) obj;
-            for (HashSet<Integer> s : sets) {
-                s.clear();
-            } // FOR
-
-        };
-    }, 1000);
+    };
 
     // ----------------------------------------------------------------------------
     // CONSTRUCTORS
@@ -383,6 +390,7 @@ public class PartitionEstimator {
                     catalog_param = catalog_proc.getParameters().get(param_idx);
                 }
                 this.cache_procPartitionParameters.put(catalog_proc, catalog_param);
+                this.cache_procPartitionParameterOffsets.put(catalog_proc, this.calculatePartitionParameterOffsets(catalog_param));
                 if (debug.get())
                     LOG.debug(catalog_proc + " ProcParameter Cache: " + (catalog_param != null ? catalog_param.fullName() : catalog_param));
             }
@@ -412,12 +420,31 @@ public class PartitionEstimator {
         for (CacheEntry entry : this.cache_statementEntries.values()) {
             entry.cache_valid = false;
         }
+        
+        // Swap in a new routing table that is large enough for all of the
+        // PlanFragments in this catalog
+        int max_frag_id = -1;
+        for (Procedure catalog_proc : this.catalog_db.getProcedures()) {
+            for (Statement catalog_stmt : catalog_proc.getStatements()) {
+                for (PlanFragment catalog_frag : catalog_stmt.getFragments()) {
+                    max_frag_id = Math.max(max_frag_id, catalog_frag.getId());
+                } // FOR
+                for (PlanFragment catalog_frag : catalog_stmt.getMs_fragments()) {
+                    max_frag_id = Math.max(max_frag_id, catalog_frag.getId());
+                } // FOR
+            } // FOR
+        } // FOR
+        this.cache_fragmentIdEntries = new AtomicReferenceArray<CacheEntry>(max_frag_id + 1);
 
         // Generate a list of all the partition ids, so that we can quickly
         // add them to the output when estimating later on
         if (this.all_partitions.size() != this.hasher.getNumPartitions()) {
             this.all_partitions.clear();
             this.all_partitions.addAll(CatalogUtil.getAllPartitionIds(this.catalog_db));
+            this.all_partitions_bits.clear();
+            for (Integer p : this.all_partitions) {
+                this.all_partitions_bits.set(p.intValue());
+            } // FOR
             this.num_partitions = this.all_partitions.size();
             assert (this.hasher.getNumPartitions() == this.num_partitions);
             if (debug.get())
@@ -431,8 +458,10 @@ public class PartitionEstimator {
      */
     public void clear() {
         this.cache_procPartitionParameters.clear();
+        this.cache_procPartitionParameterOffsets.clear();
         this.cache_tablePartitionColumns.clear();
         this.cache_fragmentEntries.clear();
+        this.cache_fragmentIdEntries = new AtomicReferenceArray<CacheEntry>(this.cache_fragmentIdEntries.length());
         this.cache_statementEntries.clear();
         this.cache_stmtPartitionParameters.clear();
     }
@@ -463,7 +492,6 @@ public class PartitionEstimator {
             // CatalogUtil.getDisplayName(catalog_stmt);
             stmt_cache.setValid();
         }
-        Collection<Table> stmt_tables = CatalogUtil.getReferencedTables(catalog_stmt);
         if (debug.get())
             LOG.debug("Generating partitioning cache for " + catalog_stmt);
 
@@ -696,7 +724,9 @@ public class PartitionEstimator {
 
                 // Store the Fragment cache and update the Table xref mapping
                 this.cache_fragmentEntries.put(frag_key, frag_cache);
-                this.addTableCacheXref(frag_cache, frag_tables);
+                if (catalog_frag.getId() < this.cache_fragmentIdEntries.length()) {
+                    this.cache_fragmentIdEntries.set(catalog_frag.getId(), frag_cache);
+                }
             } // FOR (fragment)
 
             // Then for updates we need to look to see whether they are updating an attribute 
@@ -740,25 +770,8 @@ public class PartitionEstimator {
             } // IF (UPDATE)
         } // FOR (single-partition vs multi-partition)
 
-        // Add the Statement cache entry and update the Table xref map
+        // Add the Statement cache entry
         this.cache_statementEntries.put(stmt_key, stmt_cache);
-        this.addTableCacheXref(stmt_cache, stmt_tables);
-    }
-
-    /**
-     * Update the cache entry xref mapping for a set of tables
-     * 
-     * @param entry
-     * @param tables
-     */
-    private void addTableCacheXref(CacheEntry entry, Collection<Table> tables) {
-        for (Table catalog_tbl : tables) {
-            String table_key = CatalogKey.createKey(catalog_tbl);
-            if (!this.table_cache_xref.containsKey(table_key)) {
-                this.table_cache_xref.put(table_key, new HashSet<CacheEntry>());
-            }
-            this.table_cache_xref.get(table_key).add(entry);
-        } // FOR
     }
 
     // ----------------------------------------------------------------------------
@@ -813,6 +826,34 @@ public class PartitionEstimator {
     // BASE PARTITION METHODS
     // ----------------------------------------------------------------------------
 
+    /**
+     * Returns the offsets of the input parameters that getBasePartition() needs in
+     * order to calculate the base partition for the given Procedure. This allows the caller to
+     * only deserialize those parameters. Returns null if the Procedure does not have a
+     * pre-defined partitioning parameter.
+     * @param catalog_proc
+     * @return
+     */
+    public int[] getBasePartitionParameterOffsets(Procedure catalog_proc) {
+        return (this.cache_procPartitionParameterOffsets.get(catalog_proc));
+    }
+
+    private int[] calculatePartitionParameterOffsets(ProcParameter catalog_param) {
+        if (catalog_param == null || catalog_param instanceof NullProcParameter) {
+            return (null);
+        } else if (catalog_param instanceof RandomProcParameter) {
+            return (new int[0]);
+        } else if (catalog_param instanceof MultiProcParameter) {
+            MultiProcParameter mpp = (MultiProcParameter) catalog_param;
+            int offsets[] = new int[mpp.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = mpp.get(i).getIndex();
+            } // FOR
+            return (offsets);
+        }
+        return (new int[]{ catalog_param.getIndex() });
+    }
+
     /**
      * Returns the target partition for a StoredProcedureInvocation instance
      * 
@@ -1016,6 +1057,23 @@ public class PartitionEstimator {
         return (all_partitions);
     }
 
+    /**
+     * Add all of the partitions that the given Statement will touch into the
+     * given BitSet. The BitSet is not cleared first.
+     * This does not allocate any new objects.
+     * 
+     * @param partitions
+     * @param catalog_stmt
+     * @param params
+     * @param base_partition
+     * @throws Exception
+     */
+    public BitSet getAllPartitions(final BitSet partitions, final Statement catalog_stmt, final Object params[], final int base_partition) throws Exception {
+        CatalogMap<PlanFragment> fragments = (catalog_stmt.getHas_singlesited() ? catalog_stmt.getFragments() : catalog_stmt.getMs_fragments());
+        this.getAllFragmentPartitions(null, partitions, fragments.values(), params, base_partition);
+        return (partitions);
+    }
+
     // ----------------------------------------------------------------------------
     // STATEMENT PARTITION METHODS
     // ----------------------------------------------------------------------------
@@ -1143,6 +1201,8 @@ public class PartitionEstimator {
      */
     public void getAllFragmentPartitions(final Map<PlanFragment, Set<Integer>> frag_partitions, final Set<Integer> frag_all_partitions, PlanFragment fragments[], final Object params[],
             final Integer base_partition) throws Exception {
+        final BitSet bits = this.scratch.get().frag_partitions;
+        
         // Loop through this Statement's plan fragments and get the partitions
         for (PlanFragment catalog_frag : fragments) {
             Set<Integer> partitions = null;
@@ -1162,11 +1222,13 @@ public class PartitionEstimator {
             }
             assert (partitions != null);
 
+            bits.clear();
             this.calculatePartitionsForFragment(null,
-                                                 partitions,
+                                                 bits,
                                                  catalog_frag,
                                                  params,
                                                  base_partition);
+            addAll(partitions, bits);
 
             // If there were no partitions, then the PlanFragment needs to be
             // execute on the base partition
@@ -1181,6 +1243,43 @@ public class PartitionEstimator {
         } // FOR
     }
 
+    /**
+     * Populate the partitions for each PlanFragment into the BitSet at the same
+     * offset in frag_partitions (each one is cleared first). If frag_all_partitions
+     * is not null, then the union of all of the PlanFragments' partitions will be
+     * added into it. Either array may be null.
+     * Unlike the Set<Integer> version, this doesn't box any of the PartitionIds.
+     * 
+     * @param frag_partitions
+     * @param frag_all_partitions
+     * @param fragments
+     * @param params
+     * @param base_partition
+     * @throws Exception
+     */
+    public void getAllFragmentPartitions(final BitSet frag_partitions[], final BitSet frag_all_partitions, final PlanFragment fragments[], final Object params[],
+            final int base_partition) throws Exception {
+        assert(frag_partitions == null || frag_partitions.length >= fragments.length);
+        for (int i = 0; i < fragments.length; i++) {
+            final BitSet partitions = (frag_partitions != null ? frag_partitions[i] : frag_all_partitions);
+            assert (partitions != null);
+            if (frag_partitions != null) partitions.clear();
+
+            this.calculatePartitionsForFragment(null,
+                                                 partitions,
+                                                 fragments[i],
+                                                 params,
+                                                 base_partition);
+
+            // See above
+            if (partitions.isEmpty())
+                partitions.set(base_partition);
+
+            if (frag_partitions != null && frag_all_partitions != null)
+                frag_all_partitions.or(partitions);
+        } // FOR
+    }
+
     /**
      * Return the list partitions that this fragment needs to be sent to based
      * on the parameters
@@ -1192,7 +1291,25 @@ public class PartitionEstimator {
      * @throws Exception
      */
     public Set<Integer> getPartitions(final PlanFragment catalog_frag, Object params[], Integer base_partition) throws Exception {
+        BitSet bits = new BitSet();
+        this.calculatePartitionsForFragment(null, bits, catalog_frag, params, base_partition);
         Set<Integer> partitions = new HashSet<Integer>();
+        addAll(partitions, bits);
+        return (partitions);
+    }
+
+    /**
+     * Add the partitions that this fragment needs to be sent to based
+     * on the parameters into the given BitSet. The BitSet is not cleared first.
+     * 
+     * @param partitions
+     * @param catalog_frag
+     * @param params
+     * @param base_partition
+     * @return
+     * @throws Exception
+     */
+    public BitSet getPartitions(final BitSet partitions, final PlanFragment catalog_frag, Object params[], Integer base_partition) throws Exception {
         this.calculatePartitionsForFragment(null, partitions, catalog_frag, params, base_partition);
         return (partitions);
     }
@@ -1208,7 +1325,7 @@ public class PartitionEstimator {
      * @return
      * @throws Exception
      */
-    private void calculatePartitionsForFragment(final Map<String, Set<Integer>> entry_partitions, final Set<Integer> all_partitions, PlanFragment catalog_frag, Object params[], Integer base_partition)
+    private void calculatePartitionsForFragment(final Map<String, Set<Integer>> entry_partitions, final BitSet all_partitions, PlanFragment catalog_frag, Object params[], Integer base_partition)
             throws Exception {
         if (trace.get())
             LOG.trace("Estimating partitions for PlanFragment #" + catalog_frag.fullName());
@@ -1228,6 +1345,14 @@ public class PartitionEstimator {
     }
 
     private PartitionEstimator.CacheEntry getFragmentCacheEntry(PlanFragment catalog_frag) throws Exception {
+        // Fast path: look it up by the PlanFragment's id
+        final AtomicReferenceArray<CacheEntry> routing = this.cache_fragmentIdEntries;
+        final int frag_id = catalog_frag.getId();
+        if (frag_id < routing.length()) {
+            PartitionEstimator.CacheEntry cache_entry = routing.get(frag_id);
+            if (cache_entry != null) return (cache_entry);
+        }
+        
         String frag_key = CatalogKey.createKey(catalog_frag);
         // Check whether we have generate the cache entries for this Statement
         // The CacheEntry object just tells us what input parameter to use for
@@ -1242,6 +1367,9 @@ public class PartitionEstimator {
                     this.generateCache(catalog_stmt);
                     cache_entry = this.cache_fragmentEntries.get(frag_key);
                 }
+                else if (frag_id < routing.length()) {
+                    routing.set(frag_id, cache_entry);
+                }
             } // SYNCHRONIZED
         }
         assert (cache_entry != null) : "Failed to retrieve CacheEntry for " + catalog_frag.fullName();
@@ -1255,7 +1383,7 @@ public class PartitionEstimator {
      * @return
      */
     private void calculatePartitionsForCache(final Map<String, Set<Integer>> entry_table_partitions,
-                                             final Collection<Integer> entry_all_partitions,
+                                             final BitSet entry_all_partitions,
                                              final PartitionEstimator.CacheEntry cache_entry,
                                              final Object params[],
                                              final Integer base_partition) throws Exception {
@@ -1271,8 +1399,8 @@ public class PartitionEstimator {
             } // FOR
         }
 
-        final Set<Integer> table_partitions = this.partitionSetPool.borrowObject();
-        assert (table_partitions != null);
+        final PartitionScratch scratch = this.scratch.get();
+        final BitSet table_partitions = scratch.table_partitions;
         table_partitions.clear();
 
         // Go through each table referenced in this CacheEntry and look-up the parameters that the 
@@ -1290,7 +1418,7 @@ public class PartitionEstimator {
             LOG.trace("Calculating partitions for " + cache_entry.query_type + "\n" + StringUtil.formatMaps(m));
         }
 
-        for (int table_idx = 0; table_idx < cache_entry.is_replicated.length; table_idx++) {
+        for (int table_idx = 0; table_idx < tables.length; table_idx++) {
             final Table catalog_tbl = tables[table_idx];
             final boolean is_replicated = cache_entry.is_replicated[table_idx];
 
@@ -1304,11 +1432,11 @@ public class PartitionEstimator {
                     if (trace.get())
                         LOG.trace("Cache entry " + cache_entry + " will execute on the local partition");
                     if (base_partition != null)
-                        table_partitions.add(base_partition);
+                        table_partitions.set(base_partition.intValue());
                 } else if (stmt_type == QueryType.INSERT || stmt_type == QueryType.UPDATE || stmt_type == QueryType.DELETE) {
                     if (trace.get())
                         LOG.trace("Cache entry " + cache_entry + " must be broadcast to all partitions");
-                    table_partitions.addAll(this.all_partitions);
+                    table_partitions.or(this.all_partitions_bits);
                 } else {
                     assert (false) : "Unexpected query type: " + stmt_type;
                 }
@@ -1316,7 +1444,7 @@ public class PartitionEstimator {
             // Otherwise calculate the partition value based on this table's partitioning column
             else {
                 // Grab the parameter mapping for this column
-                Column catalog_col = cache_tablePartitionColumns.get(catalog_tbl);
+                Column catalog_col = cache_entry.partition_cols[table_idx];
                 if (trace.get())
                     LOG.trace("Partitioning Column: " + (catalog_col != null ? catalog_col.fullName() : catalog_col));
 
@@ -1328,10 +1456,13 @@ public class PartitionEstimator {
                     if (cache_entry.isMarkedContainsOR()) {
                         if (debug.get())
                             LOG.warn("Trying to use multi-column partitioning [" + catalog_col.fullName() + "] on query that contains an 'OR': " + cache_entry);
-                        table_partitions.addAll(this.all_partitions);
+                        table_partitions.or(this.all_partitions_bits);
                     } else {
                         MultiColumn mc = (MultiColumn) catalog_col;
-                        HashSet<Integer> mc_partitions[] = this.mcPartitionSetPool.borrowObject();
+                        BitSet mc_partitions[] = scratch.mc_partitions;
+                        for (BitSet s : mc_partitions) {
+                            s.clear();
+                        } // FOR
 
                         if (trace.get())
                             LOG.trace("Calculating columns for multi-partition colunmn: " + mc);
@@ -1353,7 +1484,7 @@ public class PartitionEstimator {
                             if (mc_partitions[i].isEmpty()) {
                                 if (debug.get())
                                     LOG.warn(String.format("No partitions for %s from %s. Cache entry %s must be broadcast to all partitions", mc_column.fullName(), mc.fullName(), cache_entry));
-                                table_partitions.addAll(this.all_partitions);
+                                table_partitions.or(this.all_partitions_bits);
                                 is_valid = false;
                                 break;
                             }
@@ -1366,19 +1497,18 @@ public class PartitionEstimator {
                         // We therefore just need to take the cross product of
                         // the two sets and hash them together
                         if (is_valid) {
-                            for (int part0 : mc_partitions[0]) {
-                                for (int part1 : mc_partitions[1]) {
+                            for (int part0 = mc_partitions[0].nextSetBit(0); part0 >= 0; part0 = mc_partitions[0].nextSetBit(part0+1)) {
+                                for (int part1 = mc_partitions[1].nextSetBit(0); part1 >= 0; part1 = mc_partitions[1].nextSetBit(part1+1)) {
                                     int partition = this.hasher.multiValueHash(part0, part1);
-                                    table_partitions.add(partition);
+                                    table_partitions.set(partition);
                                     if (trace.get())
                                         LOG.trace(String.format("MultiColumn Partitions[%d, %d] => %d", part0, part1, partition));
                                 } // FOR
                             } // FOR
                         }
-                        this.mcPartitionSetPool.returnObject(mc_partitions);
                     }
                 } else {
-                    int param_idxs[] = cache_entry.get(catalog_col);
+                    int param_idxs[] = cache_entry.partition_param_idxs[table_idx];
                     if (trace.get())
                         LOG.trace("Param Indexes: " + param_idxs);
 
@@ -1388,7 +1518,7 @@ public class PartitionEstimator {
                         if (debug.get())
                             LOG.debug(String.format("No parameter mapping for %s. Fragment must be broadcast to all partitions",
                                                     CatalogUtil.getDisplayName(catalog_col)));
-                        table_partitions.addAll(this.all_partitions);
+                        table_partitions.or(this.all_partitions_bits);
 
                         // If there is nothing special, just shove off and have
                         // this method figure things out for us
@@ -1399,28 +1529,39 @@ public class PartitionEstimator {
                     }
                 }
             } // ELSE
-            assert (table_partitions.size() <= this.num_partitions);
+            assert (table_partitions.cardinality() <= this.num_partitions);
 
             if (entry_table_partitions != null) {
-                String table_key = CatalogKey.createKey(catalog_tbl);
+                String table_key = cache_entry.table_key_arr[table_idx];
                 Set<Integer> table_p = entry_table_partitions.get(table_key);
                 if (table_p == null) {
-                    entry_table_partitions.put(table_key, new HashSet<Integer>(table_partitions));
+                    table_p = new HashSet<Integer>();
+                    entry_table_partitions.put(table_key, table_p);
                 } else {
                     table_p.clear();
-                    table_p.addAll(table_partitions);
                 }
+                addAll(table_p, table_partitions);
             }
             if (entry_all_partitions != null) {
-                entry_all_partitions.addAll(table_partitions);
+                entry_all_partitions.or(table_partitions);
             }
-            if (entry_table_partitions == null && entry_all_partitions.size() == this.num_partitions)
+            if (entry_table_partitions == null && entry_all_partitions.cardinality() == this.num_partitions)
                 break;
         } // FOR
-        this.partitionSetPool.returnObject(table_partitions);
         return;
     }
 
+    /**
+     * Add all of the PartitionIds in the given BitSet into the output Collection
+     * @param partitions
+     * @param bits
+     */
+    private static void addAll(final Collection<Integer> partitions, final BitSet bits) {
+        for (int p = bits.nextSetBit(0); p >= 0; p = bits.nextSetBit(p+1)) {
+            partitions.add(p);
+        } // FOR
+    }
+
     /**
      * Calculate the partitions touched for the given column
      * 
@@ -1429,7 +1570,7 @@ public class PartitionEstimator {
      * @param param_idxs
      * @param catalog_col
      */
-    private Set<Integer> calculatePartitions(final Set<Integer> partitions, Object params[], boolean is_array[], int param_idxs[], Column catalog_col) {
+    private BitSet calculatePartitions(final BitSet partitions, Object params[], boolean is_array[], int param_idxs[], Column catalog_col) {
         // Note that we have to go through all of the mappings from the
         // partitioning column
         // to parameters. This can occur when the partitioning column is
@@ -1447,14 +1588,14 @@ public class PartitionEstimator {
                     int partition_id = this.hasher.hash(value, catalog_col);
                     if (trace.get())
                         LOG.trace(CatalogUtil.getDisplayName(catalog_col) + " HASHING PARAM ARRAY[" + param_idx + "][" + i + "]: " + value + " -> " + partition_id);
-                    partitions.add(partition_id);
+                    partitions.set(partition_id);
                 } // FOR
                 // Primitive
             } else {
                 int partition_id = this.hasher.hash(params[param_idx], catalog_col);
                 if (trace.get())
                     LOG.trace(CatalogUtil.getDisplayName(catalog_col) + " HASHING PARAM[" + param_idx + "]: " + params[param_idx] + " -> " + partition_id);
-                partitions.add(partition_id);
+                partitions.set(partition_id);
             }
         } // FOR
         return (partitions);
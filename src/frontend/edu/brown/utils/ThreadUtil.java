@@ -239,6 +239,18 @@ public abstract class ThreadUtil {
         ThreadUtil.run(threads, pool, true);
     }
 
+    /**
+     * Execute all the given Runnables in the given pool. The calling thread will
+     * block until they all finish, but the pool is left running so that it can be reused
+     * 
+     * @param <R>
+     * @param threads
+     * @param pool
+     */
+    public static <R extends Runnable> void runPool(final Collection<R> threads, ExecutorService pool) {
+        ThreadUtil.run(threads, pool, false);
+    }
+
     /**
      * For a given list of threads, execute them all (up to max_concurrent at a
      * time) and return once they have completed. If max_concurrent is null,
@@ -0,0 +1,878 @@
+package edu.brown.workload;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.voltdb.VoltType;
+import org.voltdb.catalog.Database;
+import org.voltdb.types.TimestampType;
+
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.utils.ArgumentsParser;
+import edu.brown.utils.FileUtil;
+import edu.brown.workload.filters.Filter;
+import edu.brown.workload.filters.Filter.FilterResult;
+import edu.brown.workload.filters.ProcedureNameFilter;
+
+/**
+ * Compact binary encoding of a workload trace.
+ * <p>
+ * A binary trace file starts with a magic number and a version byte, followed by a
+ * stream of records. Procedure names and Statement CatalogKeys are dictionary-encoded:
+ * a NAME record assigns the next id to a string the first time that the writer sees it,
+ * and every TXN record after that refers to it by its id. Integers (including txn ids,
+ * timestamps, and parameters) are written as zigzag varints, and txn ids and start
+ * timestamps are stored as deltas from the previous txn in the file.
+ * <p>
+ * Each TXN record puts the procedure id and the txn's id/start deltas in a small header
+ * followed by the length of the rest of the record. This lets the Reader skip over txns
+ * for procedures that the caller's ProcedureNameFilter will never accept without having to
+ * decode their parameters and queries (the binary equivalent of the regex prefilter in
+ * Workload.load()).
+ * <p>
+ * The Reader memory-maps the file in windows and decodes one TransactionTrace at a time,
+ * so a trace can be iterated (and fed through a Filter) without materializing it on the heap.
+ * Workload.load() will automatically use it for files that start with the binary magic number,
+ * and Workload.stream() will iterate over one without loading it at all.
+ */
+public abstract class BinaryWorkloadTrace {
+    private static final Logger LOG = Logger.getLogger(BinaryWorkloadTrace.class);
+    private static final LoggerBoolean debug = new LoggerBoolean(LOG.isDebugEnabled());
+    private static final LoggerBoolean trace = new LoggerBoolean(LOG.isTraceEnabled());
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    /** "HSWT" */
+    public static final int MAGIC = 0x48535754;
+    public static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+
+    /**
+     * How much of the file the Reader maps into memory at a time
+     */
+    public static final int DEFAULT_MAP_SIZE = 64 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // ----------------------------------------------------------------------------
+    // RECORD TAGS
+    // ----------------------------------------------------------------------------
+
+    private static final byte RECORD_NAME = 1;
+    private static final byte RECORD_TXN = 2;
+
+    // ----------------------------------------------------------------------------
+    // TRACE ELEMENT FLAGS
+    // ----------------------------------------------------------------------------
+
+    private static final int FLAG_ABORTED = 0x01;
+    private static final int FLAG_START = 0x02;
+    private static final int FLAG_STOP = 0x04;
+    private static final int FLAG_WEIGHT = 0x08;
+    private static final int FLAG_OUTPUT = 0x10;
+
+    // ----------------------------------------------------------------------------
+    // VALUE TAGS
+    // ----------------------------------------------------------------------------
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_BOOLEAN = 1;
+    private static final byte VALUE_BYTE = 2;
+    private static final byte VALUE_SHORT = 3;
+    private static final byte VALUE_INTEGER = 4;
+    private static final byte VALUE_LONG = 5;
+    private static final byte VALUE_FLOAT = 6;
+    private static final byte VALUE_DOUBLE = 7;
+    private static final byte VALUE_STRING = 8;
+    private static final byte VALUE_TIMESTAMP = 9;
+    private static final byte VALUE_DECIMAL = 10;
+    private static final byte VALUE_OBJECT_ARRAY = 16;
+    private static final byte VALUE_BYTE_ARRAY = 17;
+    private static final byte VALUE_SHORT_ARRAY = 18;
+    private static final byte VALUE_INT_ARRAY = 19;
+    private static final byte VALUE_LONG_ARRAY = 20;
+
+    /**
+     * Returns true if the given file starts with the binary workload trace magic number
+     * @param path
+     * @return
+     */
+    public static boolean isBinaryTrace(File path) {
+        if (path.isFile() == false || path.length() < HEADER_SIZE) return (false);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(path));
+            return (in.readInt() == MAGIC);
+        } catch (IOException ex) {
+            return (false);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // IGNORE
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // WRITER
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Appends TransactionTraces to a binary trace stream
+     */
+    public static class Writer implements Closeable {
+        private final OutputStream out;
+        private final Map<String, Integer> names = new HashMap<String, Integer>();
+        private final RecordBuffer header = new RecordBuffer(64);
+        private final RecordBuffer body = new RecordBuffer(1024);
+        private long last_txn_id = 0;
+        private long last_start = 0;
+        private long txn_ctr = 0;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new BufferedOutputStream(out, 65536);
+            this.header.writeInt(MAGIC);
+            this.header.writeByte(VERSION);
+            this.flushHeader();
+        }
+
+        public Writer(File path) throws IOException {
+            this(new FileOutputStream(path));
+        }
+
+        /**
+         * Returns the number of txns written so far
+         */
+        public long getTransactionCount() {
+            return (this.txn_ctr);
+        }
+
+        public void write(TransactionTrace txn_trace) throws IOException {
+            int proc_id = this.getNameId(txn_trace.catalog_item_name);
+            int stmt_ids[] = new int[txn_trace.getQueries().size()];
+            for (int i = 0; i < stmt_ids.length; i++) {
+                stmt_ids[i] = this.getNameId(txn_trace.getQueries().get(i).catalog_item_name);
+            } // FOR
+
+            // HEADER
+            int flags = flags(txn_trace);
+            this.header.writeByte(RECORD_TXN);
+            this.header.writeByte(flags);
+            this.header.writeVarInt(proc_id);
+            this.header.writeZigZag(txn_trace.txn_id - this.last_txn_id);
+            this.last_txn_id = txn_trace.txn_id;
+            long base = 0;
+            if (txn_trace.start_timestamp != null) {
+                base = txn_trace.start_timestamp.longValue();
+                this.header.writeZigZag(base - this.last_start);
+                this.last_start = base;
+            }
+
+            // BODY
+            this.writeElement(txn_trace, flags, base);
+            this.body.writeVarInt(stmt_ids.length);
+            int i = 0;
+            for (QueryTrace query_trace : txn_trace.getQueries()) {
+                int query_flags = flags(query_trace);
+                this.body.writeByte(query_flags);
+                this.body.writeVarInt(stmt_ids[i++]);
+                this.body.writeVarInt(query_trace.getBatchId());
+                long query_base = base;
+                if (query_trace.start_timestamp != null) {
+                    query_base = query_trace.start_timestamp.longValue();
+                    this.body.writeZigZag(query_base - base);
+                }
+                this.writeElement(query_trace, query_flags, query_base);
+            } // FOR
+
+            this.header.writeVarInt(this.body.size());
+            this.flushHeader();
+            this.out.write(this.body.bytes(), 0, this.body.size());
+            this.body.clear();
+            this.txn_ctr++;
+            if (trace.get()) LOG.trace(String.format("Wrote %s [queries=%d]", txn_trace, stmt_ids.length));
+        }
+
+        /**
+         * Everything after the timestamp that is common between txns and queries
+         */
+        private void writeElement(AbstractTraceElement<?> element, int flags, long base) throws IOException {
+            if ((flags & FLAG_STOP) != 0) {
+                this.body.writeZigZag(element.stop_timestamp.longValue() - base);
+            }
+            if ((flags & FLAG_WEIGHT) != 0) {
+                this.body.writeZigZag(element.weight);
+            }
+            writeValues(this.body, element.params);
+            if ((flags & FLAG_OUTPUT) != 0) {
+                Object output[][][] = element.output;
+                this.body.writeVarInt(output.length);
+                for (int i = 0; i < output.length; i++) {
+                    VoltType types[] = (element.output_types != null ? element.output_types[i] : null);
+                    this.body.writeVarInt(types == null ? 0 : types.length + 1);
+                    if (types != null) {
+                        for (VoltType type : types) {
+                            this.body.writeByte((type == null ? VoltType.NULL : type).getValue());
+                        } // FOR
+                    }
+                    Object data[][] = output[i];
+                    this.body.writeVarInt(data == null ? 0 : data.length + 1);
+                    if (data != null) {
+                        for (Object row[] : data) {
+                            writeValues(this.body, row);
+                        } // FOR
+                    }
+                } // FOR
+            }
+        }
+
+        private int getNameId(String name) throws IOException {
+            Integer id = this.names.get(name);
+            if (id == null) {
+                id = this.names.size();
+                this.names.put(name, id);
+                this.header.writeByte(RECORD_NAME);
+                this.header.writeString(name);
+                this.flushHeader();
+            }
+            return (id.intValue());
+        }
+
+        private void flushHeader() throws IOException {
+            this.out.write(this.header.bytes(), 0, this.header.size());
+            this.header.clear();
+        }
+
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    } // CLASS
+
+    private static int flags(AbstractTraceElement<?> element) {
+        int flags = 0;
+        if (element.aborted) flags |= FLAG_ABORTED;
+        if (element.start_timestamp != null) flags |= FLAG_START;
+        if (element.stop_timestamp != null) flags |= FLAG_STOP;
+        if (element.weight != 1) flags |= FLAG_WEIGHT;
+        if (element.output != null) flags |= FLAG_OUTPUT;
+        return (flags);
+    }
+
+    private static void writeValues(RecordBuffer buffer, Object values[]) {
+        buffer.writeVarInt(values == null ? 0 : values.length + 1);
+        if (values != null) {
+            for (Object value : values) {
+                writeValue(buffer, value);
+            } // FOR
+        }
+    }
+
+    private static void writeValue(RecordBuffer buffer, Object value) {
+        if (value == null) {
+            buffer.writeByte(VALUE_NULL);
+        } else if (value instanceof Long) {
+            buffer.writeByte(VALUE_LONG);
+            buffer.writeZigZag(((Long)value).longValue());
+        } else if (value instanceof Integer) {
+            buffer.writeByte(VALUE_INTEGER);
+            buffer.writeZigZag(((Integer)value).longValue());
+        } else if (value instanceof String) {
+            buffer.writeByte(VALUE_STRING);
+            buffer.writeString((String)value);
+        } else if (value instanceof Double) {
+            buffer.writeByte(VALUE_DOUBLE);
+            buffer.writeLong(Double.doubleToLongBits(((Double)value).doubleValue()));
+        } else if (value instanceof TimestampType) {
+            buffer.writeByte(VALUE_TIMESTAMP);
+            buffer.writeZigZag(((TimestampType)value).getTime());
+        } else if (value instanceof Short) {
+            buffer.writeByte(VALUE_SHORT);
+            buffer.writeZigZag(((Short)value).longValue());
+        } else if (value instanceof Byte) {
+            buffer.writeByte(VALUE_BYTE);
+            buffer.writeZigZag(((Byte)value).longValue());
+        } else if (value instanceof Boolean) {
+            buffer.writeByte(VALUE_BOOLEAN);
+            buffer.writeByte(((Boolean)value).booleanValue() ? 1 : 0);
+        } else if (value instanceof Float) {
+            buffer.writeByte(VALUE_FLOAT);
+            buffer.writeInt(Float.floatToIntBits(((Float)value).floatValue()));
+        } else if (value instanceof BigDecimal) {
+            buffer.writeByte(VALUE_DECIMAL);
+            buffer.writeString(value.toString());
+        } else if (value instanceof Object[]) {
+            buffer.writeByte(VALUE_OBJECT_ARRAY);
+            Object inner[] = (Object[])value;
+            buffer.writeVarInt(inner.length);
+            for (Object v : inner) {
+                writeValue(buffer, v);
+            } // FOR
+        } else if (value instanceof long[]) {
+            buffer.writeByte(VALUE_LONG_ARRAY);
+            long inner[] = (long[])value;
+            buffer.writeVarInt(inner.length);
+            for (long v : inner) {
+                buffer.writeZigZag(v);
+            } // FOR
+        } else if (value instanceof int[]) {
+            buffer.writeByte(VALUE_INT_ARRAY);
+            int inner[] = (int[])value;
+            buffer.writeVarInt(inner.length);
+            for (int v : inner) {
+                buffer.writeZigZag(v);
+            } // FOR
+        } else if (value instanceof short[]) {
+            buffer.writeByte(VALUE_SHORT_ARRAY);
+            short inner[] = (short[])value;
+            buffer.writeVarInt(inner.length);
+            for (short v : inner) {
+                buffer.writeZigZag(v);
+            } // FOR
+        } else if (value instanceof byte[]) {
+            buffer.writeByte(VALUE_BYTE_ARRAY);
+            byte inner[] = (byte[])value;
+            buffer.writeVarInt(inner.length);
+            buffer.write(inner, 0, inner.length);
+        } else {
+            throw new IllegalArgumentException("Unable to serialize trace value of type " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Growable byte array that we encode records into before we write them out
+     */
+    private static final class RecordBuffer {
+        private byte bytes[];
+        private int size = 0;
+
+        RecordBuffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+        byte[] bytes() {
+            return (this.bytes);
+        }
+        int size() {
+            return (this.size);
+        }
+        void clear() {
+            this.size = 0;
+        }
+        private void ensure(int needed) {
+            if (this.size + needed > this.bytes.length) {
+                byte temp[] = new byte[Math.max(this.bytes.length * 2, this.size + needed)];
+                System.arraycopy(this.bytes, 0, temp, 0, this.size);
+                this.bytes = temp;
+            }
+        }
+        void writeByte(int b) {
+            this.ensure(1);
+            this.bytes[this.size++] = (byte)b;
+        }
+        void write(byte b[], int offset, int length) {
+            this.ensure(length);
+            System.arraycopy(b, offset, this.bytes, this.size, length);
+            this.size += length;
+        }
+        void writeInt(int v) {
+            this.ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                this.bytes[this.size++] = (byte)(v >>> shift);
+            } // FOR
+        }
+        void writeLong(long v) {
+            this.ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.bytes[this.size++] = (byte)(v >>> shift);
+            } // FOR
+        }
+        void writeVarInt(long v) {
+            assert(v >= 0) : "Unexpected negative varint " + v;
+            this.ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                this.bytes[this.size++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            } // WHILE
+            this.bytes[this.size++] = (byte)v;
+        }
+        void writeZigZag(long v) {
+            long encoded = (v << 1) ^ (v >> 63);
+            this.ensure(10);
+            while ((encoded & ~0x7FL) != 0) {
+                this.bytes[this.size++] = (byte)((encoded & 0x7F) | 0x80);
+                encoded >>>= 7;
+            } // WHILE
+            this.bytes[this.size++] = (byte)encoded;
+        }
+        void writeString(String s) {
+            byte b[] = s.getBytes(UTF8);
+            this.writeVarInt(b.length);
+            this.write(b, 0, b.length);
+        }
+    } // CLASS
+
+    // ----------------------------------------------------------------------------
+    // READER
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Streams the TransactionTraces out of a binary trace file. Every iterator walks
+     * through its own memory-mapped windows of the file, so only the txn that it last
+     * returned needs to be on the heap.
+     */
+    public static class Reader implements Iterable<TransactionTrace>, Closeable {
+        private final File path;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long length;
+        private final int map_size;
+
+        public Reader(File path) throws IOException {
+            this(path, DEFAULT_MAP_SIZE);
+        }
+
+        protected Reader(File path, int map_size) throws IOException {
+            this.path = path;
+            this.map_size = map_size;
+            this.file = new RandomAccessFile(path, "r");
+            this.channel = this.file.getChannel();
+            this.length = this.channel.size();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && this.channel.read(header, header.position()) > 0) {
+                // Keep reading
+            } // WHILE
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                this.close();
+                throw new IOException("'" + path + "' is not a binary workload trace");
+            }
+            byte version = header.get();
+            if (version != VERSION) {
+                this.close();
+                throw new IOException(String.format("Unsupported binary workload trace version %d in '%s'", version, path));
+            }
+        }
+
+        public File getPath() {
+            return (this.path);
+        }
+
+        @Override
+        public Iterator<TransactionTrace> iterator() {
+            return (this.iterator(null));
+        }
+
+        /**
+         * Return an iterator that only returns the txns that are allowed by the given filter.
+         * The iterator stops when the filter returns HALT.
+         * @param filter
+         * @return
+         */
+        public Iterator<TransactionTrace> iterator(Filter filter) {
+            return (new Cursor(filter));
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.file.close();
+        }
+
+        private class Cursor implements Iterator<TransactionTrace> {
+            private final Filter filter;
+            private final Set<String> include_procs;
+            private final List<String> names = new ArrayList<String>();
+            /** For each dictionary id, whether it is a procedure that the prefilter will skip */
+            private final List<Boolean> skip_procs = new ArrayList<Boolean>();
+            private MappedByteBuffer buffer;
+            /** The file offset of the first byte in the buffer */
+            private long buffer_offset;
+            private long last_txn_id = 0;
+            private long last_start = 0;
+            private TransactionTrace peek;
+            private boolean done = false;
+            private long skip_ctr = 0;
+
+            Cursor(Filter filter) {
+                this.filter = filter;
+                Set<String> procs = null;
+                if (filter != null) {
+                    for (ProcedureNameFilter f : filter.getFilters(ProcedureNameFilter.class)) {
+                        if (f.getProcedureNames().isEmpty()) continue;
+                        if (procs == null) procs = new HashSet<String>();
+                        procs.addAll(f.getProcedureNames());
+                    } // FOR
+                }
+                this.include_procs = procs;
+                this.map(HEADER_SIZE, 0);
+            }
+
+            /**
+             * Map the next window of the file so that it starts at the given offset and
+             * has at least the given number of bytes (if the file is that long)
+             */
+            private void map(long offset, int needed) {
+                long size = Math.min(Math.max(map_size, needed), length - offset);
+                try {
+                    this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to map binary workload trace '" + path + "'", ex);
+                }
+                this.buffer_offset = offset;
+            }
+
+            /**
+             * Make sure that the current window has at least the given number of bytes
+             * left in it. Returns false if there is not that much left in the file.
+             */
+            private boolean ensure(int needed) {
+                if (this.buffer.remaining() >= needed) return (true);
+                long offset = this.buffer_offset + this.buffer.position();
+                if (length - offset < needed) return (false);
+                this.map(offset, needed);
+                return (true);
+            }
+
+            private boolean hasMoreBytes() {
+                return (this.buffer_offset + this.buffer.position() < length);
+            }
+
+            private TransactionTrace readNext() {
+                while (this.hasMoreBytes()) {
+                    // The record header is always smaller than this, but the last
+                    // record in the file might be shorter
+                    this.ensure((int)Math.min(64, length - this.buffer_offset - this.buffer.position()));
+                    byte tag = this.buffer.get();
+                    if (tag == RECORD_NAME) {
+                        int len = (int)readVarInt(this.buffer);
+                        if (this.ensure(len) == false) throw this.truncated();
+                        String name = readString(this.buffer, len);
+                        this.names.add(name);
+                        this.skip_procs.add(this.include_procs != null && this.include_procs.contains(name) == false);
+                        continue;
+                    } else if (tag != RECORD_TXN) {
+                        throw new RuntimeException(String.format("Unexpected record tag %d at offset %d in '%s'",
+                                                                 tag, this.buffer_offset + this.buffer.position() - 1, path));
+                    }
+
+                    int flags = this.buffer.get();
+                    int proc_id = (int)readVarInt(this.buffer);
+                    long txn_id = this.last_txn_id + readZigZag(this.buffer);
+                    this.last_txn_id = txn_id;
+                    Long start = null;
+                    if ((flags & FLAG_START) != 0) {
+                        start = this.last_start + readZigZag(this.buffer);
+                        this.last_start = start;
+                    }
+                    int len = (int)readVarInt(this.buffer);
+                    if (this.skip_procs.get(proc_id)) {
+                        this.skip(len);
+                        this.skip_ctr++;
+                        continue;
+                    }
+                    if (this.ensure(len) == false) throw this.truncated();
+
+                    TransactionTrace txn_trace = new TransactionTrace();
+                    txn_trace.txn_id = txn_id;
+                    txn_trace.catalog_item_name = this.names.get(proc_id);
+                    long base = (start != null ? start.longValue() : 0);
+                    this.readElement(txn_trace, flags, start, base);
+
+                    int num_queries = (int)readVarInt(this.buffer);
+                    for (int i = 0; i < num_queries; i++) {
+                        int query_flags = this.buffer.get();
+                        String stmt_key = this.names.get((int)readVarInt(this.buffer));
+                        int batch_id = (int)readVarInt(this.buffer);
+                        Long query_start = null;
+                        if ((query_flags & FLAG_START) != 0) {
+                            query_start = base + readZigZag(this.buffer);
+                        }
+                        QueryTrace query_trace = new QueryTrace(stmt_key, null, batch_id);
+                        this.readElement(query_trace, query_flags, query_start, (query_start != null ? query_start.longValue() : base));
+                        txn_trace.addQuery(query_trace);
+                    } // FOR
+                    return (txn_trace);
+                } // WHILE
+                return (null);
+            }
+
+            private void readElement(AbstractTraceElement<?> element, int flags, Long start, long base) {
+                element.start_timestamp = start;
+                element.stop_timestamp = ((flags & FLAG_STOP) != 0 ? base + readZigZag(this.buffer) : null);
+                element.aborted = ((flags & FLAG_ABORTED) != 0);
+                if ((flags & FLAG_WEIGHT) != 0) {
+                    element.weight = (short)readZigZag(this.buffer);
+                }
+                element.params = readValues(this.buffer);
+                if ((flags & FLAG_OUTPUT) != 0) {
+                    int num_tables = (int)readVarInt(this.buffer);
+                    element.output = new Object[num_tables][][];
+                    element.output_types = new VoltType[num_tables][];
+                    for (int i = 0; i < num_tables; i++) {
+                        int num_types = (int)readVarInt(this.buffer);
+                        if (num_types > 0) {
+                            element.output_types[i] = new VoltType[num_types - 1];
+                            for (int j = 0; j < num_types - 1; j++) {
+                                VoltType type = VoltType.get(this.buffer.get());
+                                element.output_types[i][j] = (type == VoltType.NULL ? null : type);
+                            } // FOR
+                        }
+                        int num_rows = (int)readVarInt(this.buffer);
+                        if (num_rows > 0) {
+                            element.output[i] = new Object[num_rows - 1][];
+                            for (int j = 0; j < num_rows - 1; j++) {
+                                element.output[i][j] = readValues(this.buffer);
+                            } // FOR
+                        }
+                    } // FOR
+                }
+            }
+
+            private void skip(int len) {
+                if (this.buffer.remaining() >= len) {
+                    this.buffer.position(this.buffer.position() + len);
+                } else {
+                    long offset = this.buffer_offset + this.buffer.position() + len;
+                    if (offset > length) throw this.truncated();
+                    this.map(offset, 0);
+                }
+            }
+
+            private RuntimeException truncated() {
+                return (new RuntimeException("Binary workload trace '" + path + "' is truncated"));
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (this.peek == null && this.done == false) {
+                    TransactionTrace txn_trace = this.readNext();
+                    if (txn_trace == null) {
+                        this.done = true;
+                        break;
+                    } else if (this.filter != null) {
+                        FilterResult result = this.filter.apply(txn_trace);
+                        if (trace.get()) LOG.trace(txn_trace + " Filter Result: " + result);
+                        if (result == FilterResult.HALT) {
+                            if (debug.get()) LOG.debug("Got HALT response from filter! Stopping iterator");
+                            this.done = true;
+                            break;
+                        } else if (result == FilterResult.SKIP) {
+                            continue;
+                        }
+                    }
+                    this.peek = txn_trace;
+                } // WHILE
+                if (this.done && debug.get() && this.skip_ctr > 0)
+                    LOG.debug(String.format("Skipped %d txns in '%s' using procedure prefilter", this.skip_ctr, path.getName()));
+                return (this.peek != null);
+            }
+
+            @Override
+            public TransactionTrace next() {
+                if (this.hasNext() == false) throw new NoSuchElementException();
+                TransactionTrace current = this.peek;
+                this.peek = null;
+                return (current);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        } // CLASS
+    } // CLASS
+
+    private static long readVarInt(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return (result);
+        } // FOR
+        throw new RuntimeException("Malformed varint in binary workload trace");
+    }
+
+    private static long readZigZag(ByteBuffer buffer) {
+        long encoded = readVarInt(buffer);
+        return ((encoded >>> 1) ^ -(encoded & 1));
+    }
+
+    private static String readString(ByteBuffer buffer, int len) {
+        byte b[] = new byte[len];
+        buffer.get(b);
+        return (new String(b, UTF8));
+    }
+
+    private static Object[] readValues(ByteBuffer buffer) {
+        int cnt = (int)readVarInt(buffer);
+        if (cnt == 0) return (null);
+        Object values[] = new Object[cnt - 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(buffer);
+        } // FOR
+        return (values);
+    }
+
+    private static Object readValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case VALUE_NULL:
+                return (null);
+            case VALUE_BOOLEAN:
+                return (Boolean.valueOf(buffer.get() != 0));
+            case VALUE_BYTE:
+                return (Byte.valueOf((byte)readZigZag(buffer)));
+            case VALUE_SHORT:
+                return (Short.valueOf((short)readZigZag(buffer)));
+            case VALUE_INTEGER:
+                return (Integer.valueOf((int)readZigZag(buffer)));
+            case VALUE_LONG:
+                return (Long.valueOf(readZigZag(buffer)));
+            case VALUE_FLOAT:
+                return (Float.valueOf(Float.intBitsToFloat(buffer.getInt())));
+            case VALUE_DOUBLE:
+                return (Double.valueOf(Double.longBitsToDouble(buffer.getLong())));
+            case VALUE_STRING:
+                return (readString(buffer, (int)readVarInt(buffer)));
+            case VALUE_TIMESTAMP:
+                return (new TimestampType(readZigZag(buffer)));
+            case VALUE_DECIMAL:
+                return (new BigDecimal(readString(buffer, (int)readVarInt(buffer))));
+            case VALUE_OBJECT_ARRAY: {
+                Object inner[] = new Object[(int)readVarInt(buffer)];
+                for (int i = 0; i < inner.length; i++) {
+                    inner[i] = readValue(buffer);
+                } // FOR
+                return (inner);
+            }
+            case VALUE_LONG_ARRAY: {
+                long inner[] = new long[(int)readVarInt(buffer)];
+                for (int i = 0; i < inner.length; i++) {
+                    inner[i] = readZigZag(buffer);
+                } // FOR
+                return (inner);
+            }
+            case VALUE_INT_ARRAY: {
+                int inner[] = new int[(int)readVarInt(buffer)];
+                for (int i = 0; i < inner.length; i++) {
+                    inner[i] = (int)readZigZag(buffer);
+                } // FOR
+                return (inner);
+            }
+            case VALUE_SHORT_ARRAY: {
+                short inner[] = new short[(int)readVarInt(buffer)];
+                for (int i = 0; i < inner.length; i++) {
+                    inner[i] = (short)readZigZag(buffer);
+                } // FOR
+                return (inner);
+            }
+            case VALUE_BYTE_ARRAY: {
+                byte inner[] = new byte[(int)readVarInt(buffer)];
+                buffer.get(inner);
+                return (inner);
+            }
+            default:
+                throw new RuntimeException("Unexpected value tag " + tag + " in binary workload trace");
+        } // SWITCH
+    }
+
+    // ----------------------------------------------------------------------------
+    // CONVERTER
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Convert a JSON workload trace file into the binary trace format.
+     * The JSON file is read one line at a time, so the workload is never
+     * entirely in memory. Invalid lines are skipped.
+     * @param input_path
+     * @param output_path
+     * @param catalog_db
+     * @return the number of txns that were written out
+     * @throws Exception
+     */
+    public static long convert(File input_path, File output_path, Database catalog_db) throws Exception {
+        BufferedReader in = FileUtil.getReader(input_path);
+        Writer writer = new Writer(output_path);
+        int line_ctr = 0;
+        try {
+            String line = null;
+            while ((line = in.readLine()) != null) {
+                line_ctr++;
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                JSONObject jsonObject = null;
+                try {
+                    jsonObject = new JSONObject(line);
+                } catch (JSONException ex) {
+                    LOG.warn(String.format("Ignoring invalid TransactionTrace on line %d of '%s'", line_ctr, input_path));
+                    continue;
+                }
+                if (jsonObject.has(TransactionTrace.Members.TXN_ID.name()) == false) {
+                    throw new Exception("Unexpected serialization line in workload trace file '" + input_path.getAbsolutePath() + "'");
+                }
+                TransactionTrace txn_trace = TransactionTrace.loadFromJSONObject(jsonObject, catalog_db);
+                if (txn_trace == null) {
+                    throw new Exception("Failed to deserialize transaction trace on line " + line_ctr);
+                }
+                writer.write(txn_trace);
+                if (debug.get() && writer.getTransactionCount() % 10000 == 0)
+                    LOG.debug("Converted " + writer.getTransactionCount() + " transactions...");
+            } // WHILE
+        } finally {
+            in.close();
+            writer.close();
+        }
+        return (writer.getTransactionCount());
+    }
+
+    public static void main(String[] vargs) throws Exception {
+        ArgumentsParser args = ArgumentsParser.load(vargs);
+        args.require(ArgumentsParser.PARAM_CATALOG);
+        if (args.getOptParamCount() != 2) {
+            LOG.fatal("Usage: " + BinaryWorkloadTrace.class.getSimpleName() + " <json-trace> <binary-trace>");
+            System.exit(1);
+        }
+        File input_path = new File(args.getOptParam(0));
+        File output_path = new File(args.getOptParam(1));
+
+        long start = System.currentTimeMillis();
+        long num_txns = convert(input_path, output_path, args.catalog_db);
+        long stop = System.currentTimeMillis();
+        LOG.info(String.format("Converted %d txns from '%s' [%d bytes] to '%s' [%d bytes] in %.1f seconds",
+                               num_txns, input_path, input_path.length(), output_path, output_path.length(), (stop - start) / 1000d));
+    }
+}
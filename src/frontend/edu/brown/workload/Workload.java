@@ -27,6 +27,7 @@ package edu.brown.workload;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -88,6 +89,12 @@ public class Workload implements WorkloadTrace, Iterable<TransactionTrace> {
     private File input_path;
     private File output_path;
     
+    /**
+     * If this is set, then the Workload is in streaming mode and its iterators
+     * will decode the txns directly from this binary trace instead of from xact_trace
+     */
+    private transient BinaryWorkloadTrace.Reader stream_reader;
+    
     /** Stats Path **/
     protected String stats_output;
     protected boolean saved_stats = false;
@@ -339,7 +346,10 @@ public class Workload implements WorkloadTrace, Iterable<TransactionTrace> {
     }
     
     /**
-     * 
+     * Load the trace records from the given file. This can either be a JSON trace
+     * or a trace that was converted with BinaryWorkloadTrace. Either way, every txn
+     * that passes the filter is kept in memory. Use stream() to make a single pass
+     * over a binary trace without loading it.
      * @param input_path
      * @param catalog_db
      * @param limit
@@ -350,6 +360,11 @@ public class Workload implements WorkloadTrace, Iterable<TransactionTrace> {
         this.input_path = new File(input_path);
         long start = System.currentTimeMillis();
         
+        if (BinaryWorkloadTrace.isBinaryTrace(this.input_path)) {
+            this.loadBinary(catalog_db, filter, start);
+            return;
+        }
+        
         // HACK: Throw out traces unless they have the procedures that we're looking for
         Pattern temp_pattern = null;
         if (filter != null) {
@@ -407,7 +422,86 @@ public class Workload implements WorkloadTrace, Iterable<TransactionTrace> {
         return;
     }
     
+    /**
+     * Load a binary workload trace. The BinaryWorkloadTrace.Reader applies the filter
+     * as it decodes each txn, so we only ever hold on to the txns that we keep.
+     * The txns that we keep still all end up in xact_trace (see stream()).
+     * @param catalog_db
+     * @param filter
+     * @param start
+     * @throws Exception
+     */
+    private void loadBinary(Database catalog_db, Filter filter, long start) throws Exception {
+        int txn_ctr = 0;
+        int query_ctr = 0;
+        int weightedTxn_ctr = 0;
+        int weightedQuery_ctr = 0;
+        
+        BinaryWorkloadTrace.Reader reader = new BinaryWorkloadTrace.Reader(this.input_path);
+        try {
+            Iterator<TransactionTrace> it = reader.iterator(filter);
+            while (it.hasNext()) {
+                TransactionTrace xact = it.next();
+                txn_ctr++;
+                if (debug.get() && txn_ctr % 10000 == 0) LOG.debug("Processed " + txn_ctr + " transactions...");
+                query_ctr += xact.getQueryCount();
+                weightedTxn_ctr += xact.weight;
+                for (QueryTrace q : xact.getQueries()) {
+                    weightedQuery_ctr += q.weight;
+                } // FOR
+                this.addTransaction(xact.getCatalogItem(catalog_db), xact, true);
+            } // WHILE
+        } finally {
+            reader.close();
+        }
+        VerifyWorkload.verify(catalog_db, this);
+        
+        long stop = System.currentTimeMillis();
+        LOG.info(String.format("Loaded %d txns / %d queries from binary trace '%s' in %.1f seconds",
+                               this.xact_trace.size(), query_ctr, this.input_path.getName(), (stop - start) / 1000d));
+        if (txn_ctr != weightedTxn_ctr || query_ctr != weightedQuery_ctr) {
+            LOG.info(String.format("Weighted Workload: %d txns / %d queries", weightedTxn_ctr, weightedQuery_ctr));
+        }
+    }
 
+    /**
+     * Put this Workload into streaming mode for the given binary workload trace.
+     * Instead of loading the txns into memory, every iterator returned by this Workload
+     * will decode them directly out of the file one at a time. Only iteration is supported
+     * in this mode: the txns are never added to this Workload, so the counts, histograms,
+     * and lookup methods will not include them. To materialize just part of the trace,
+     * pass a Filter to the Workload(Workload, Filter) copy constructor.
+     * @param input_path
+     * @throws Exception
+     */
+    public void stream(String input_path) throws Exception {
+        File path = new File(input_path);
+        if (BinaryWorkloadTrace.isBinaryTrace(path) == false) {
+            throw new IllegalArgumentException("Unable to stream '" + input_path + "' because it is not a binary workload trace");
+        }
+        this.closeStream();
+        this.stream_reader = new BinaryWorkloadTrace.Reader(path);
+        this.input_path = path;
+        if (debug.get()) LOG.debug("Streaming workload trace from binary file '" + input_path + "'");
+    }
+    
+    /**
+     * Returns true if this Workload's iterators are reading from a binary trace
+     */
+    public boolean isStreaming() {
+        return (this.stream_reader != null);
+    }
+    
+    /**
+     * Close the binary trace that this Workload is streaming from (if any)
+     * @throws IOException
+     */
+    public void closeStream() throws IOException {
+        if (this.stream_reader != null) {
+            this.stream_reader.close();
+            this.stream_reader = null;
+        }
+    }
     
     // ----------------------------------------------------------
     // ITERATORS METHODS
@@ -426,10 +520,12 @@ public class Workload implements WorkloadTrace, Iterable<TransactionTrace> {
      */
     @Override
     public Iterator<TransactionTrace> iterator() {
+        if (this.stream_reader != null) return (this.stream_reader.iterator());
         return (new Workload.WorkloadIterator());
     }
 
     public Iterator<TransactionTrace> iterator(Filter filter) {
+        if (this.stream_reader != null) return (this.stream_reader.iterator(filter));
         return (new Workload.WorkloadIterator(filter));
     }
     
@@ -108,13 +108,47 @@ public class ParameterSet implements FastSerializable, Poolable {
             throw new RuntimeException("Invalid partition parameter requested.");
         }
         for (int i = 0; i < partitionIndex; ++i) {
-            readOneParameter(in);
+            skipOneParameter(in);
         }
         Object retval = readOneParameter(in);
         unserializedParams.rewind();
         return retval;
     }
 
+    /**
+     * Deserialize only the parameters at the given offsets from a serialized ParameterSet.
+     * The other parameters are skipped over without creating objects for them wherever possible.
+     * The values are written into params at the same offsets.
+     * @param in a FastDeserializer positioned at the start of the serialized ParameterSet
+     * @param indexes
+     * @param params
+     * @throws IOException
+     */
+    public static void readParameters(FastDeserializer in, int indexes[], Object params[]) throws IOException {
+        int paramLen = in.readShort();
+        int last = -1;
+        for (int idx : indexes) {
+            if (idx >= paramLen) {
+                throw new IOException("Invalid parameter offset " + idx + " for ParameterSet with " + paramLen + " parameters");
+            }
+            last = Math.max(last, idx);
+        } // FOR
+        for (int i = 0; i <= last; i++) {
+            boolean found = false;
+            for (int idx : indexes) {
+                if (idx == i) {
+                    found = true;
+                    break;
+                }
+            } // FOR
+            if (found) {
+                params[i] = readOneParameter(in);
+            } else {
+                skipOneParameter(in);
+            }
+        } // FOR
+    }
+
     @Override
     public void readExternal(FastDeserializer in) throws IOException {
         int paramLen = in.readShort();
@@ -265,6 +299,46 @@ public class ParameterSet implements FastSerializable, Poolable {
         return new String(b);
     }
 
+    /**
+     * Move the FastDeserializer past the next parameter. Fixed-width values and strings
+     * are skipped without being deserialized.
+     */
+    static private void skipOneParameter(FastDeserializer in) throws IOException {
+        ByteBuffer buffer = in.buffer();
+        int position = buffer.position();
+        byte nextTypeByte = buffer.get(position);
+        if (nextTypeByte != ARRAY) {
+            switch (VoltType.get(nextTypeByte)) {
+                case NULL:
+                    buffer.position(position + 1);
+                    return;
+                case TINYINT:
+                case BOOLEAN:
+                    buffer.position(position + 2);
+                    return;
+                case SMALLINT:
+                    buffer.position(position + 3);
+                    return;
+                case INTEGER:
+                    buffer.position(position + 5);
+                    return;
+                case BIGINT:
+                case FLOAT:
+                case TIMESTAMP:
+                    buffer.position(position + 9);
+                    return;
+                case STRING: {
+                    int len = buffer.getInt(position + 1);
+                    buffer.position(position + 5 + (len == VoltType.NULL_STRING_LENGTH ? 0 : len));
+                    return;
+                }
+                default:
+                    // Fall through and deserialize it
+            } // SWITCH
+        }
+        readOneParameter(in);
+    }
+
     static private Object readOneParameter(FastDeserializer in) throws IOException {
         byte nextTypeByte = in.readByte();
         if (nextTypeByte == ARRAY) {
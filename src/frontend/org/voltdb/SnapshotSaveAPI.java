@@ -31,7 +31,9 @@ import org.voltdb.sysprocs.saverestore.SnapshotUtil;
 
 import edu.brown.catalog.CatalogUtil;
 import edu.brown.hstore.HStore;
+import edu.brown.hstore.HStoreSite;
 import edu.brown.hstore.PartitionExecutor.SystemProcedureExecutionContext;
+import edu.brown.hstore.wal.CommandLogWriter;
 
 /**
  * SnapshotSaveAPI extracts reusuable snapshot production code
@@ -146,6 +148,7 @@ public class SnapshotSaveAPI
                 assert(SnapshotSiteProcessor.ExecutionSitesCurrentlySnapshotting.get() == -1);
 
                 final List<Table> tables = SnapshotUtil.getTablesToSave(context.getDatabase());
+                final HStoreSite hstore_site = context.getExecutionSite().getHStoreSite();
 
                 SnapshotUtil.recordSnapshotTableList(
                         startTime,
@@ -203,6 +206,13 @@ public class SnapshotSaveAPI
                                             "Snapshot " + snapshotRecord.nonce + " finished at " +
                                              completed.timeFinished + " and took " + duration
                                              + " seconds ");
+                                    // Let the command log know that it can throw away
+                                    // everything that this snapshot covers
+                                    if (completed.result) {
+                                        for (CommandLogWriter writer : hstore_site.getCommandLogWriters()) {
+                                            writer.finishCheckpoint(snapshotRecord.nonce);
+                                        } // FOR
+                                    }
                                 }
                             }
                         };
@@ -1,15 +1,14 @@
 package org.voltdb;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.Iterator;
 
 import org.apache.log4j.Logger;
 import org.voltdb.catalog.Procedure;
 import org.voltdb.messaging.FastSerializer;
-import org.voltdb.types.SortDirectionType;
-import org.voltdb.utils.Pair;
+import org.voltdb.messaging.SerializationArena;
 import org.voltdb.utils.ReduceInputIterator;
-import org.voltdb.utils.VoltTableUtil;
 
 import com.google.protobuf.ByteString;
 
@@ -18,7 +17,9 @@ import edu.brown.hstore.Hstoreservice.TransactionReduceResponse.ReduceResult;
 import edu.brown.hstore.PartitionExecutor;
 import edu.brown.hstore.callbacks.TransactionMapWrapperCallback;
 import edu.brown.hstore.callbacks.TransactionReduceWrapperCallback;
+import edu.brown.hstore.internal.MapReduceSliceMessage;
 import edu.brown.hstore.txns.MapReduceTransaction;
+import edu.brown.hstore.util.MapReduceSpill;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
 import edu.brown.utils.PartitionEstimator;
@@ -36,9 +37,15 @@ public abstract class VoltMapReduceProcedure<K> extends VoltProcedure {
     // This reduceInputQuery is prepared to executed REDUCE by internal system instead of Java code
     private SQLStmt reduceInputQuery;
 
+    /**
+     * Whether the implementing class overrides combine()
+     */
+    private boolean has_combiner;
+
     // Thread-local data
     private MapReduceTransaction mr_ts;
     private VoltTable map_output;
+    private VoltTable combine_output;
     
     private VoltTable reduce_input;
     private VoltTable reduce_output;
@@ -68,6 +75,18 @@ public abstract class VoltMapReduceProcedure<K> extends VoltProcedure {
      */
     public abstract void reduce(K key, Iterator<VoltTableRow> rows);
     
+    /**
+     * Optional combiner that is invoked on each partition's MAP output before it
+     * is shuffled to the reducers. The rows for each key are passed in the same way
+     * as reduce(), and the combined rows should be emitted with combineEmit() using
+     * the MapOutput schema. The default implementation does nothing and is never invoked.
+     * @param key
+     * @param rows
+     */
+    public void combine(K key, Iterator<VoltTableRow> rows) {
+        // Nothing to do
+    }
+    
     // -----------------------------------------------------------------
     // INTERNAL METHODS
     // -----------------------------------------------------------------
@@ -81,6 +100,16 @@ public abstract class VoltMapReduceProcedure<K> extends VoltProcedure {
         this.mapInputQuery = this.getSQLStmt(catalogProc.getMapinputquery());
         assert (this.mapInputQuery != null) : "Missing MapInputQuery " + catalogProc.getMapinputquery();
         this.reduceInputQuery = this.getSQLStmt(catalogProc.getReduceinputquery());
+        
+        // Check whether we need to run the combiner after the MAP phase
+        try {
+            Method m = this.getClass().getMethod("combine", Object.class, Iterator.class);
+            this.has_combiner = (m.getDeclaringClass().equals(VoltMapReduceProcedure.class) == false);
+        } catch (NoSuchMethodException ex) {
+            throw new RuntimeException("Unexpected error when looking for combine() in " + this.getClass().getSimpleName(), ex);
+        }
+        if (debug.get() && this.has_combiner)
+            LOG.debug(String.format("%s has a combiner", catalogProc.getName()));
     }
     
     /**
@@ -130,31 +159,25 @@ public abstract class VoltMapReduceProcedure<K> extends VoltProcedure {
                 hstore_site.getTransactionQueueManager().lockFinished(txn_id, Status.OK, this.partitionId);
             }
             
+            VoltTable map_input = mapResult[0];
             if (debug.get())
                 LOG.debug(String.format("MAP: About to process %d records for %s on partition %d",
-                          mapResult[0].getRowCount(), this.m_localTxnState, this.partitionId));
+                          map_input.getRowCount(), this.m_localTxnState, this.partitionId));
 
             if (debug.get())
-                LOG.debug(String.format("<MapInputTable> Partition:%d\n %s", this.partitionId,mapResult[0]));
+                LOG.debug(String.format("<MapInputTable> Partition:%d\n %s", this.partitionId, map_input));
 
-            while (mapResult[0].advanceRow()) {
-                this.map(mapResult[0].getRow());
-            } // WHILE
-            
-            if (debug.get())
-                LOG.debug(String.format("MAP: %s generated %d results on partition %d",
-                          this.m_localTxnState, this.map_output.getRowCount(), this.partitionId));
-            if (debug.get())
-                LOG.debug(String.format("<MapOutputTable> Partition:%d\n %s", this.partitionId,this.map_output));
-            
+            // The result of the MAP input query is a consistent view of this partition
+            // so we don't need to hold on to the partition while we process it. If it's big,
+            // then we'll go through it in slices and let the PartitionExecutor execute other
+            // transactions in between each slice.
+            if (this.canSlice(map_input.getRowCount())) {
+                this.executeSlice(new MapReduceSliceMessage(mr_ts, this.partitionId, map_input));
+            } else {
+                this.mapRows(map_input, -1);
+                this.finishMap();
+            }
             result = mr_ts.getMapOutputByPartition(this.partitionId);
-
-            // Always invoke the TransactionMapWrapperCallback to let somebody know that
-            // we finished the MAP phase at this partition
-            TransactionMapWrapperCallback callback = mr_ts.getTransactionMapWrapperCallback();
-            assert (callback != null) : "Unexpected null callback for " + mr_ts;
-            assert (callback.isInitialized()) : "Unexpected uninitalized callback for " + mr_ts;
-            callback.run(this.partitionId);
         }
 
         else if (mr_ts.isReducePhase()) {
@@ -174,59 +197,230 @@ public abstract class VoltMapReduceProcedure<K> extends VoltProcedure {
                 LOG.debug(String.format("<ReduceInputTable> Partition:%d\n %s", this.partitionId,this.reduce_input));
             
             
-            // Sort the the MAP_OUTPUT table
-            // Build an "smart" iterator that loops through the MAP_OUTPUT table key-by-key
-            VoltTable sorted = VoltTableUtil.sort(this.reduce_input, Pair.of(0, SortDirectionType.ASC));
-            //VoltTable sorted = VoltTableUtil.sort(mr_ts.getReduceInputByPartition(this.partitionId), Pair.of(0, SortDirectionType.ASC));
-            assert(sorted != null);
-            if (debug.get())
-                LOG.debug(String.format("<Sorted_ReduceInputTable> Partition:%d\n %s", this.partitionId,sorted));
-            
             this.reduce_output = mr_ts.getReduceOutputByPartition(this.partitionId);
             assert(this.reduce_output != null);
   
-            // Make a Hstore.PartitionResult
-            ReduceInputIterator<K> rows = new ReduceInputIterator<K>(sorted);
-
-            // Loop over that iterator and call runReduce
-            if (debug.get())
-                LOG.debug(String.format("REDUCE: About to process %d records for %s on partition %d",
-                          sorted.getRowCount(), this.m_localTxnState, this.partitionId));
-            
-            while (rows.hasNext()) {
-                K key = rows.getKey();
-                this.reduce(key, rows); 
+            ReduceInputIterator<K> rows = null;
+            MapReduceSpill.MergeIterator<K> merged = null;
+            int num_rows = this.reduce_input.getRowCount();
+            MapReduceSpill spill = mr_ts.getReduceSpillByPartition(this.partitionId);
+            if (spill != null) {
+                // Some of our REDUCE input was spilled out to disk, so we need to write
+                // out whatever is left and then merge all of the sorted runs together
+                mr_ts.spillReduceInput(this.partitionId);
+                try {
+                    merged = spill.merge();
+                } catch (IOException ex) {
+                    throw new RuntimeException(String.format("Unexpected error when merging %s spilled reduceInput data for partition %d",
+                                                             mr_ts, this.partitionId), ex);
+                }
+                if (debug.get())
+                    LOG.debug(String.format("REDUCE: About to merge %d spilled runs for %s on partition %d",
+                              spill.getRunCount(), this.m_localTxnState, this.partitionId));
+            } else {
+                // Build an "smart" iterator that sorts the REDUCE input by its key
+                // and then loops through it key-by-key
+                rows = new ReduceInputIterator<K>(this.reduce_input, true);
+                if (debug.get())
+                    LOG.debug(String.format("REDUCE: About to process %d records for %s on partition %d",
+                              num_rows, this.m_localTxnState, this.partitionId));
             }
             
-            if (debug.get())
-                LOG.debug(String.format("<ReduceOutputTable> Partition:%d\n %s", this.partitionId,this.reduce_output));
-            
-            // Loop over that iterator and call runReduce
-            if (debug.get())
-                LOG.debug(String.format("REDUCE: %s generated %d results on partition %d",
-                          this.m_localTxnState, this.reduce_output.getRowCount(), this.partitionId));
-            ByteString reduceOutData = null;
-            try {
-                ByteBuffer b = ByteBuffer.wrap(FastSerializer.serialize(reduce_output));
-                reduceOutData = ByteString.copyFrom(b.array()); 
-            } catch (Exception ex) {
-                throw new RuntimeException(String.format("Unexpected error when serializing %s reduceOutput data for partition %d",
-                                                         mr_ts, this.partitionId), ex);
+            // We can only yield in between slices if we're running in the PartitionExecutor
+            if (this.hstore_conf.site.mr_reduce_blocking && (spill != null || this.canSlice(num_rows))) {
+                this.executeSlice(new MapReduceSliceMessage(mr_ts, this.partitionId, rows, merged));
+            } else {
+                if (merged != null) {
+                    this.reduceRows(merged, -1);
+                } else {
+                    this.reduceRows(rows, -1);
+                }
+                this.finishReduce();
             }
-            ReduceResult.Builder builder = ReduceResult.newBuilder()
-                                                       .setData(reduceOutData)
-                                                       .setPartitionId(this.partitionId)
-                                                       .setStatus(Status.OK);
-           
-            TransactionReduceWrapperCallback callback = mr_ts.getTransactionReduceWrapperCallback();
-            assert (callback != null) : "Unexpected null TransactionReduceWrapperCallback for " + mr_ts;
-            assert (callback.isInitialized()) : "Unexpected uninitalized TransactionReduceWrapperCallback for " + mr_ts;
-            callback.run(builder.build());
         }
         
         return (result);
     }
     
+    /**
+     * Returns true if the given number of input rows should be processed in slices
+     * @param num_rows
+     */
+    private boolean canSlice(int num_rows) {
+        int slice_size = this.hstore_conf.site.mr_slice_size;
+        return (slice_size > 0 && num_rows > slice_size);
+    }
+    
+    /**
+     * Process the next slice of the MAP or REDUCE phase for the transaction
+     * in the given message. If there is still more work to do, then the message is given
+     * back to the PartitionExecutor so that it can execute something else first.
+     * @param msg
+     */
+    @SuppressWarnings("unchecked")
+    public final void executeSlice(MapReduceSliceMessage msg) {
+        this.mr_ts = msg.getTransaction();
+        assert(msg.getPartition() == this.partitionId);
+        int slice_size = this.hstore_conf.site.mr_slice_size;
+        int slice = msg.incrementSlices();
+        boolean more;
+        
+        if (msg.isMap()) {
+            this.map_output = this.mr_ts.getMapOutputByPartition(this.partitionId);
+            more = this.mapRows(msg.getMapInput(), slice_size);
+            if (more == false) this.finishMap();
+        } else {
+            this.reduce_output = this.mr_ts.getReduceOutputByPartition(this.partitionId);
+            if (msg.getReduceMerge() != null) {
+                more = this.reduceRows((MapReduceSpill.MergeIterator<K>)msg.getReduceMerge(), slice_size);
+            } else {
+                more = this.reduceRows((ReduceInputIterator<K>)msg.getReduceInput(), slice_size);
+            }
+            if (more == false) this.finishReduce();
+        }
+        if (trace.get())
+            LOG.trace(String.format("%s - Finished %s slice #%d on partition %d [more=%s]",
+                                    this.mr_ts, (msg.isMap() ? "MAP" : "REDUCE"), slice, this.partitionId, more));
+        if (more) this.executor.queueMapReduceSlice(msg);
+    }
+    
+    /**
+     * Invoke map() for up to limit rows from the MAP input
+     * Returns true if there are still more rows to process
+     * @param input
+     * @param limit the max number of rows to process (negative for all of them)
+     */
+    private boolean mapRows(VoltTable input, int limit) {
+        int ctr = 0;
+        while ((limit < 0 || ctr++ < limit) && input.advanceRow()) {
+            this.map(input);
+        } // WHILE
+        return (input.getActiveRowIndex() + 1 < input.getRowCount());
+    }
+    
+    /**
+     * Invoke reduce() for each key in the REDUCE input until we have processed at least limit rows.
+     * Returns true if there are still more rows to process
+     * @param rows
+     * @param limit the max number of rows to process (negative for all of them)
+     */
+    private boolean reduceRows(ReduceInputIterator<K> rows, int limit) {
+        int ctr = 0;
+        while (limit < 0 || ctr < limit) {
+            if (rows.nextKey() == false) return (false);
+            int before = rows.getPosition();
+            this.reduce(rows.getKey(), rows);
+            ctr += Math.max(1, rows.getPosition() - before);
+        } // WHILE
+        return (rows.hasKey());
+    }
+    
+    /**
+     * Invoke reduce() for each key in the merged run files that were spilled to disk
+     * until we have processed at least limit rows. The rows for each key are streamed
+     * from the run files, so a single key can be bigger than what we keep in memory.
+     * Returns true if there are still more rows to process
+     * @param rows
+     * @param limit the max number of rows to process (negative for all of them)
+     */
+    private boolean reduceRows(MapReduceSpill.MergeIterator<K> rows, int limit) {
+        int ctr = 0;
+        while (limit < 0 || ctr < limit) {
+            if (rows.nextKey() == false) return (false);
+            int before = rows.getPosition();
+            this.reduce(rows.getKey(), rows);
+            ctr += Math.max(1, rows.getPosition() - before);
+        } // WHILE
+        return (rows.getFinish() == false);
+    }
+    
+    /**
+     * Run the combiner (if there is one) and then let the TransactionMapWrapperCallback
+     * know that we finished the MAP phase at this partition
+     */
+    private void finishMap() {
+        if (debug.get())
+            LOG.debug(String.format("MAP: %s generated %d results on partition %d",
+                      this.mr_ts, this.map_output.getRowCount(), this.partitionId));
+        if (debug.get())
+            LOG.debug(String.format("<MapOutputTable> Partition:%d\n %s", this.partitionId,this.map_output));
+        
+        // Combine the rows for each key before they get shuffled to the reducers
+        if (this.has_combiner && this.map_output.getRowCount() > 1) {
+            this.combineMapOutput();
+        }
+        
+        // Always invoke the TransactionMapWrapperCallback to let somebody know that
+        // we finished the MAP phase at this partition
+        TransactionMapWrapperCallback callback = this.mr_ts.getTransactionMapWrapperCallback();
+        assert (callback != null) : "Unexpected null callback for " + this.mr_ts;
+        assert (callback.isInitialized()) : "Unexpected uninitalized callback for " + this.mr_ts;
+        callback.run(this.partitionId);
+    }
+    
+    /**
+     * Run the combiner over the in-memory MAP output for this partition
+     * and replace it with the combined rows
+     */
+    private void combineMapOutput() {
+        this.combine_output = new VoltTable(this.map_output);
+        ReduceInputIterator<K> rows = new ReduceInputIterator<K>(this.map_output, true);
+        while (rows.nextKey()) {
+            this.combine(rows.getKey(), rows);
+        } // WHILE
+        if (debug.get())
+            LOG.debug(String.format("COMBINE: %s reduced %d MAP results to %d on partition %d",
+                      this.mr_ts, this.map_output.getRowCount(),
+                      this.combine_output.getRowCount(), this.partitionId));
+        this.mr_ts.setMapOutputByPartition(this.partitionId, this.combine_output);
+        this.map_output = this.combine_output;
+        this.combine_output = null;
+    }
+    
+    /**
+     * Hand the in-memory MAP output for this partition off to be spilled to disk.
+     * If there is a combiner, then we run it first so that we write out less data.
+     */
+    private void spillMapOutput() {
+        if (this.has_combiner && this.map_output.getRowCount() > 1) {
+            this.combineMapOutput();
+        }
+        this.map_output = this.mr_ts.queueMapOutputSpill(this.partitionId);
+    }
+    
+    /**
+     * Send the REDUCE output for this partition back to the TransactionReduceWrapperCallback
+     */
+    private void finishReduce() {
+        if (debug.get())
+            LOG.debug(String.format("<ReduceOutputTable> Partition:%d\n %s", this.partitionId,this.reduce_output));
+        
+        if (debug.get())
+            LOG.debug(String.format("REDUCE: %s generated %d results on partition %d",
+                      this.mr_ts, this.reduce_output.getRowCount(), this.partitionId));
+        ByteString reduceOutData = null;
+        SerializationArena arena = SerializationArena.get();
+        FastSerializer fs = arena.acquireSerializer();
+        try {
+            reduce_output.writeExternal(fs);
+            reduceOutData = ByteString.copyFrom(fs.getBBContainer().b); 
+        } catch (Exception ex) {
+            throw new RuntimeException(String.format("Unexpected error when serializing %s reduceOutput data for partition %d",
+                                                     mr_ts, this.partitionId), ex);
+        } finally {
+            arena.release(fs);
+        }
+        ReduceResult.Builder builder = ReduceResult.newBuilder()
+                                                   .setData(reduceOutData)
+                                                   .setPartitionId(this.partitionId)
+                                                   .setStatus(Status.OK);
+       
+        TransactionReduceWrapperCallback callback = this.mr_ts.getTransactionReduceWrapperCallback();
+        assert (callback != null) : "Unexpected null TransactionReduceWrapperCallback for " + this.mr_ts;
+        assert (callback.isInitialized()) : "Unexpected uninitalized TransactionReduceWrapperCallback for " + this.mr_ts;
+        callback.run(builder.build());
+    }
+    
     /**
      * 
      * @param key
@@ -234,7 +428,22 @@ public abstract class VoltMapReduceProcedure<K> extends VoltProcedure {
      */
     public final void mapEmit(K key, Object row[]) {
         assert(key == row[0]);
-        this.map_output.addRow(row);       
+        this.map_output.addRow(row);
+        
+        // Spill the MAP output out to disk if it's too big
+        long spill_threshold = this.mr_ts.getSpillThreshold();
+        if (spill_threshold >= 0 && this.map_output.getUnderlyingBufferSize() > spill_threshold) {
+            this.spillMapOutput();
+        }
+    }
+
+    /**
+     * Emit a combined MapOutput row from combine()
+     * @param row
+     */
+    public final void combineEmit(Object row[]) {
+        assert(this.combine_output != null) : "combineEmit() can only be invoked from combine()";
+        this.combine_output.addRow(row);
     }
 
     /**
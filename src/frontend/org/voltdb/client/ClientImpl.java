@@ -18,8 +18,12 @@
 package org.voltdb.client;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
@@ -28,10 +32,12 @@ import org.voltdb.VoltTable;
 import org.voltdb.catalog.Catalog;
 import org.voltdb.catalog.Database;
 import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Site;
 import org.voltdb.messaging.FastSerializer;
 import org.voltdb.utils.DBBPool.BBContainer;
 
 import edu.brown.catalog.CatalogUtil;
+import edu.brown.hstore.HStoreThreadManager;
 import edu.brown.hstore.Hstoreservice;
 import edu.brown.hstore.conf.HStoreConf;
 import edu.brown.logging.LoggerUtil;
@@ -69,12 +75,16 @@ final class ClientImpl implements Client {
 
     /**
      * If we have a catalog, then we'll enable client-side hints
+     * The catalog may be retrieved from the cluster after the client has
+     * already started, so m_catalog is always set last
      */
-    private Catalog m_catalog;
+    private volatile Catalog m_catalog;
     private Database m_catalogDb;
     private PartitionEstimator m_pEstimator;
     private int m_partitionSiteXref[];
+    private final AtomicBoolean m_catalogRequested = new AtomicBoolean(false);
     private final HStoreConf m_hstoreConf;
+    private final boolean m_pipelining;
     private final ProfileMeasurement m_queueTime = new ProfileMeasurement("queue");
 
     /** Create a new client without any initial connections. */
@@ -120,19 +130,73 @@ final class ClientImpl implements Client {
 
         m_hstoreConf = HStoreConf.singleton(true);
 
-        if (catalog != null && m_hstoreConf.client.txn_hints) {
-            m_catalog = catalog;
-            m_catalogDb = CatalogUtil.getDatabase(m_catalog);
-            m_pEstimator = new PartitionEstimator(m_catalogDb);
-            m_partitionSiteXref = CatalogUtil.getPartitionSiteXrefArray(m_catalog);
-    }
-
         m_distributer = new Distributer(
                 expectedOutgoingMessageSize,
                 maxArenaSizes,
                 heavyweight,
                 statsSettings);
         m_distributer.addClientStatusListener(new CSL());
+        
+        m_pipelining = (heavyweight == false && m_hstoreConf.client.pipeline_window > 0);
+        if (m_pipelining) {
+            m_distributer.setPipelining(m_hstoreConf.client.pipeline_window,
+                                        m_hstoreConf.client.pipeline_bytes);
+        }
+        
+        if (catalog != null && m_hstoreConf.client.txn_hints) {
+            m_catalogRequested.set(true);
+            this.setCatalog(catalog);
+        }
+    }
+    
+    /**
+     * Enable client-side hints using the partitioning information in the given catalog.
+     * This also tells the Distributer where each site is so that it can send requests
+     * directly to the site with their base partition.
+     * @param catalog
+     */
+    private void setCatalog(Catalog catalog) {
+        m_catalogDb = CatalogUtil.getDatabase(catalog);
+        m_pEstimator = new PartitionEstimator(m_catalogDb);
+        m_partitionSiteXref = CatalogUtil.getPartitionSiteXrefArray(catalog);
+        
+        Map<InetSocketAddress, Integer> siteAddresses = new HashMap<InetSocketAddress, Integer>();
+        for (Site catalog_site : CatalogUtil.getAllSites(catalog)) {
+            InetSocketAddress addr = new InetSocketAddress(catalog_site.getHost().getIpaddr(),
+                                                           catalog_site.getProc_port());
+            if (addr.isUnresolved()) {
+                LOG.warn(String.format("Unable to resolve address of %s: %s",
+                                       HStoreThreadManager.formatSiteName(catalog_site.getId()), addr));
+                continue;
+            }
+            siteAddresses.put(addr, catalog_site.getId());
+        } // FOR
+        int matched = m_distributer.setSiteAddresses(siteAddresses);
+        if (debug.get())
+            LOG.debug(String.format("Enabled client-side txn hints [partitions=%d, sites=%d, matchedConnections=%d]",
+                                    m_partitionSiteXref.length, siteAddresses.size(), matched));
+        m_catalog = catalog;
+    }
+    
+    /**
+     * Retrieve the catalog from the cluster so that we can compute the base partition
+     * of each request before we send it.
+     * If this fails, then the client will keep working without hints.
+     */
+    private void fetchCatalog() {
+        if (debug.get())
+            LOG.debug("Retrieving catalog from cluster to enable client-side txn hints");
+        try {
+            ClientResponse cresponse = this.callProcedure("@GetCatalog");
+            VoltTable vt = cresponse.getResults()[0];
+            boolean adv = vt.advanceRow();
+            assert(adv);
+            Catalog catalog = new Catalog();
+            catalog.execute(vt.getString(0));
+            this.setCatalog(catalog);
+        } catch (Exception ex) {
+            LOG.warn("Failed to retrieve catalog from cluster. Client-side txn hints are disabled", ex);
+        }
     }
 
     /**
@@ -152,6 +216,13 @@ final class ClientImpl implements Client {
         final String subProgram = (program == null) ? "" : program;
         final String subPassword = (password == null) ? "" : password;
         m_distributer.createConnection(site_id, host, port, subProgram, subPassword);
+        
+        // If we don't have a catalog yet, then we'll ask the cluster for it
+        // using the first connection that we make
+        if (m_hstoreConf.client.txn_hints && m_hstoreConf.client.txn_hints_fetch_catalog &&
+            m_catalogRequested.compareAndSet(false, true)) {
+            this.fetchCatalog();
+        }
     }
 
     /**
@@ -193,6 +264,8 @@ final class ClientImpl implements Client {
                 m_expectedOutgoingMessageSize,
                 true,
                 site_id);
+        // Don't make a synchronous call wait for the pipeline window
+        if (m_pipelining) m_distributer.flush();
         m_queueTime.addThinkTime(start, ProfileMeasurement.getTime());
 
         try {
@@ -18,6 +18,7 @@
 package org.voltdb.client;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -28,6 +29,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -39,6 +41,7 @@ import org.voltdb.VoltType;
 import org.voltdb.messaging.FastDeserializer;
 import org.voltdb.messaging.FastSerializable;
 import org.voltdb.messaging.FastSerializer;
+import org.voltdb.messaging.SerializationArena;
 import org.voltdb.network.Connection;
 import org.voltdb.network.QueueMonitor;
 import org.voltdb.network.VoltNetwork;
@@ -71,16 +74,30 @@ class Distributer {
     // collection of connections to the cluster
     private final ArrayList<NodeConnection> m_connections = new ArrayList<NodeConnection>();
     
+    /**
+     * Read-only snapshot of m_connections that queue() uses to pick a connection
+     * without taking a lock. It is replaced (never modified) whenever a connection is
+     * added or removed while holding the Distributer's monitor.
+     */
+    private volatile NodeConnection m_connectionArray[] = new NodeConnection[0];
+    
     /** SiteId -> NodeConnection */
-    private final Map<Integer, Collection<NodeConnection>> m_connectionSiteXref = new HashMap<Integer, Collection<NodeConnection>>();
+    private final Map<Integer, Collection<NodeConnection>> m_connectionSiteXref = new ConcurrentHashMap<Integer, Collection<NodeConnection>>();
+
+    /**
+     * The address of each site's client port (if we know them).
+     * This allows us to figure out which site a connection goes to even
+     * if the client didn't tell us when it created the connection.
+     */
+    private volatile Map<InetSocketAddress, Integer> m_siteAddresses = null;
 
-    private final ArrayList<ClientStatusListener> m_listeners = new ArrayList<ClientStatusListener>();
+    private final CopyOnWriteArrayList<ClientStatusListener> m_listeners = new CopyOnWriteArrayList<ClientStatusListener>();
 
     //Selector and connection handling, does all work in blocking selection thread
     private final VoltNetwork m_network;
 
     // Temporary until a distribution/affinity algorithm is written
-    private int m_nextConnection = 0;
+    private final AtomicInteger m_nextConnection = new AtomicInteger(0);
 
     private final int m_expectedOutgoingMessageSize;
 
@@ -90,7 +107,12 @@ class Distributer {
 
     private final String m_hostname;
     
-    private final ConcurrentHashMap<Thread, FastSerializer> m_serializers = new ConcurrentHashMap<Thread, FastSerializer>();
+    /**
+     * The size of each connection's pipeline batch. Invocations are only pipelined
+     * if this is greater than zero. See setPipelining()
+     */
+    private volatile int m_pipelineBytes = -1;
+    private Thread m_pipelineFlusher = null;
 
     /**
      * Server's instances id. Unique for the cluster
@@ -198,7 +220,14 @@ class Distributer {
         private Connection m_connection;
         private String m_hostname;
         private int m_port;
+        private InetSocketAddress m_address;
+        private Integer m_siteId;
         private boolean m_isConnected = true;
+        
+        /**
+         * The buffer that pipelined invocations are packed into until it is written out
+         */
+        private BBContainer m_pipelineBatch = null;
 
         private long m_invocationsCompleted = 0;
         private long m_lastInvocationsCompleted = 0;
@@ -248,6 +277,54 @@ class Distributer {
             }
             m_connection.writeStream().enqueue(f);
         }
+        
+        /**
+         * Pack a serialized invocation into this connection's pipeline batch.
+         * The batch is handed to the write stream once it does not have room for the
+         * next invocation or when the Distributer's pipeline flusher calls flush().
+         * @param now
+         * @param handle
+         * @param name
+         * @param serialized
+         * @param callback
+         */
+        public void createPipelinedWork(long now, long handle, String name, ByteBuffer serialized, ProcedureCallback callback) {
+            synchronized (this) {
+                if (!m_isConnected) {
+                    final ClientResponse r = new ClientResponseImpl(-1, -1, -1, Status.ABORT_CONNECTION_LOST,
+                            new VoltTable[0], "Connection to database host (" + m_hostname +
+                            ") was lost before a response was received");
+                    callback.clientCallback(r);
+                    return;
+                }
+                m_callbacks.put(handle, new CallbackValues(now, callback, name));
+                m_callbacksToInvoke.incrementAndGet();
+                
+                if (m_pipelineBatch != null && m_pipelineBatch.b.remaining() < serialized.remaining()) {
+                    this.flush();
+                }
+                if (m_pipelineBatch == null) {
+                    m_pipelineBatch = m_pool.acquire(Math.max(m_pipelineBytes, serialized.remaining()));
+                    m_pipelineBatch.b.clear();
+                }
+                m_pipelineBatch.b.put(serialized);
+            } // SYNCH
+        }
+        
+        /**
+         * Write out any pipelined invocations that are waiting in this connection's batch
+         */
+        public synchronized void flush() {
+            if (m_pipelineBatch == null) return;
+            BBContainer c = m_pipelineBatch;
+            m_pipelineBatch = null;
+            c.b.flip();
+            if (c.b.hasRemaining() && m_isConnected) {
+                m_connection.writeStream().enqueue(c);
+            } else {
+                c.discard();
+            }
+        }
 
         private void updateStats(
                 String name,
@@ -376,12 +453,23 @@ class Distributer {
                 //Prevent queueing of new work to this connection
                 synchronized (Distributer.this) {
                     m_connections.remove(this);
+                    m_connectionArray = m_connections.toArray(new NodeConnection[m_connections.size()]);
+                    if (m_siteId != null) {
+                        synchronized (m_connectionSiteXref) {
+                            Collection<NodeConnection> nc = m_connectionSiteXref.get(m_siteId);
+                            if (nc != null) nc.remove(this);
+                        } // SYNCH
+                    }
                     //Notify listeners that a connection has been lost
                     for (ClientStatusListener s : m_listeners) {
                         s.connectionLost(m_hostname, m_connections.size());
                     }
                 }
                 m_isConnected = false;
+                if (m_pipelineBatch != null) {
+                    m_pipelineBatch.discard();
+                    m_pipelineBatch = null;
+                }
 
                 //Invoke callbacks for all queued invocations with a failure response
                 final ClientResponse r =
@@ -400,14 +488,12 @@ class Distributer {
                 @Override
                 public void run() {
                     /*
-                     * Synchronization on Distributer.this is critical to ensure that queue
-                     * does not report backpressure AFTER the write stream reports that backpressure
-                     * has ended thus resulting in a lost wakeup.
+                     * queue() doesn't hold a lock when it reports backpressure, so it
+                     * checks the connections again after it does. That makes sure that we
+                     * don't lose this wakeup if it reports backpressure after we get here.
                      */
-                    synchronized (Distributer.this) {
-                        for (final ClientStatusListener csl : m_listeners) {
-                            csl.backpressure(false);
-                        }
+                    for (final ClientStatusListener csl : m_listeners) {
+                        csl.backpressure(false);
                     }
                 }
             };
@@ -464,6 +550,7 @@ class Distributer {
     }
 
     void drain() throws NoConnectionsException, InterruptedException {
+        this.flush();
         boolean more;
         do {
             more = false;
@@ -484,6 +571,53 @@ class Distributer {
         }
     }
 
+    /**
+     * Write out all of the pipelined invocations that are waiting to be sent
+     */
+    void flush() {
+        for (NodeConnection cxn : m_connectionArray) {
+            cxn.flush();
+        } // FOR
+    }
+
+    /**
+     * Enable pipelining for invocations that are serialized by the caller's thread.
+     * Invocations for the same connection are packed into a single buffer of
+     * the given size, which is written to the socket once it is full or by a
+     * background thread after at most the given window of time.
+     * @param window How long (in milliseconds) an invocation can wait in a batch
+     * @param bytes The size of each connection's batch buffer
+     */
+    synchronized void setPipelining(final int window, int bytes) {
+        assert(window > 0);
+        assert(bytes > 0);
+        if (m_useMultipleThreads) {
+            LOG.warn("Unable to pipeline invocations when the network uses multiple threads");
+            return;
+        }
+        m_pipelineBytes = bytes;
+        if (m_pipelineFlusher != null) return;
+        
+        m_pipelineFlusher = new Thread() {
+            @Override
+            public void run() {
+                while (m_pipelineBytes > 0) {
+                    try {
+                        Thread.sleep(window);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                    Distributer.this.flush();
+                } // WHILE
+            }
+        };
+        m_pipelineFlusher.setName("Distributer-Pipeline");
+        m_pipelineFlusher.setDaemon(true);
+        m_pipelineFlusher.start();
+        if (debug.get())
+            LOG.debug(String.format("Enabled pipelining [window=%dms, bytes=%d]", window, bytes));
+    }
+
     Distributer() {
         this( 128, null, false, null);
     }
@@ -612,28 +746,67 @@ class Distributer {
         }
         m_buildString = (String)connectionStuff[2];
         NodeConnection cxn = new NodeConnection(numbers);
-        m_connections.add(cxn);
+        cxn.m_address = (InetSocketAddress)aChannel.socket().getRemoteSocketAddress();
+        
+        // If they didn't tell us what site this connection is for, then
+        // we'll see whether we can figure it out from its address
+        Map<InetSocketAddress, Integer> siteAddresses = m_siteAddresses;
+        if (site_id == null && siteAddresses != null) {
+            site_id = siteAddresses.get(cxn.m_address);
+        }
         if (site_id != null) {
             if (debug.get())
                 LOG.debug(String.format("Created connection for Site %s: %s", HStoreThreadManager.formatSiteName(site_id), cxn));
-            synchronized (m_connectionSiteXref) {
-                Collection<NodeConnection> nc = m_connectionSiteXref.get(site_id);
-                if (nc == null) {
-                    nc = new ArrayList<NodeConnection>();
-                    m_connectionSiteXref.put(site_id, nc);
-                }
-                nc.add(cxn);    
-            } // SYNCH
+            this.addSiteConnection(site_id, cxn);
         }
         
         Connection c = m_network.registerChannel(aChannel, cxn);
         cxn.m_hostname = c.getHostname();
         cxn.m_port = port;
         cxn.m_connection = c;
+        
+        // Don't let queue() see the connection until it is registered
+        m_connections.add(cxn);
+        m_connectionArray = m_connections.toArray(new NodeConnection[m_connections.size()]);
         if (debug.get()) 
             LOG.debug("From what I can tell, we have a connection: " + cxn);
     }
 
+    private void addSiteConnection(Integer site_id, NodeConnection cxn) {
+        synchronized (m_connectionSiteXref) {
+            Collection<NodeConnection> nc = m_connectionSiteXref.get(site_id);
+            if (nc == null) {
+                nc = new CopyOnWriteArrayList<NodeConnection>();
+                m_connectionSiteXref.put(site_id, nc);
+            }
+            nc.add(cxn);
+            cxn.m_siteId = site_id;
+        } // SYNCH
+    }
+    
+    /**
+     * Tell the Distributer where each site's client port is.
+     * Any connection that was created without a site id but whose remote address
+     * matches one of these sites will now be used for requests that are sent
+     * directly to that site. Returns the number of connections that were matched.
+     * @param siteAddresses SiteAddress -> SiteId
+     */
+    public synchronized int setSiteAddresses(Map<InetSocketAddress, Integer> siteAddresses) {
+        m_siteAddresses = siteAddresses;
+        int matched = 0;
+        for (NodeConnection cxn : m_connections) {
+            if (cxn.m_siteId != null) continue;
+            Integer site_id = siteAddresses.get(cxn.m_address);
+            if (site_id != null) {
+                if (debug.get())
+                    LOG.debug(String.format("Matched %s to Site %s", cxn, HStoreThreadManager.formatSiteName(site_id)));
+                this.addSiteConnection(site_id, cxn);
+                matched++;
+            }
+        } // FOR
+        return (matched);
+    }
+
 //    private HashMap<String, Long> reportedSizes = new HashMap<String, Long>();
 
     /**
@@ -666,7 +839,8 @@ class Distributer {
         boolean backpressure = true;
         long now = System.currentTimeMillis();
         
-        final int totalConnections = m_connections.size();
+        final NodeConnection connections[] = m_connectionArray;
+        final int totalConnections = connections.length;
 
         if (totalConnections == 0) {
             throw new NoConnectionsException("No connections.");
@@ -690,35 +864,42 @@ class Distributer {
         }
         
         // If we didn't get a direct site connection then we'll grab the next 
-        // connection in our round-robin look up
-        // Synchronization is necessary to ensure that m_connections is not modified
-        // as well as to ensure that backpressure is reported correctly
+        // connection in our round-robin look up. We only claim one slot per invocation
+        // and then probe the connections after it, so threads don't contend on anything
+        // other than the counter. Each connection's backpressure flag is a volatile read.
         if (cxn == null) {
-            // int queuedInvocations = 0;
-            synchronized (this) {
-                for (int i=0; i < totalConnections; ++i) {
-                    int idx = Math.abs(++m_nextConnection % totalConnections);
-                    cxn = m_connections.get(idx);
-                    if (trace.get())
-                        LOG.trace("m_nextConnection = " + idx + " / " + totalConnections + " [" + cxn + "]");
-                    // queuedInvocations += cxn.m_callbacks.size();
-                    if (cxn.hadBackPressure() == false || ignoreBackpressure) {
-                        // serialize and queue the invocation
-                        backpressure = false;
-                        break;
-                    }
-                } // FOR
-            } // SYNCH
+            final int start = m_nextConnection.getAndIncrement() & Integer.MAX_VALUE;
+            for (int i=0; i < totalConnections; ++i) {
+                int idx = (start + i) % totalConnections;
+                cxn = connections[idx];
+                if (trace.get())
+                    LOG.trace("m_nextConnection = " + idx + " / " + totalConnections + " [" + cxn + "]");
+                if (cxn.hadBackPressure() == false || ignoreBackpressure) {
+                    // serialize and queue the invocation
+                    backpressure = false;
+                    break;
+                }
+            } // FOR
         } 
         if (backpressure) {
             cxn = null;
             for (ClientStatusListener s : m_listeners) {
                 s.backpressure(true);
             }
+            // A connection may have come off backpressure (and told the listeners)
+            // after we checked it but before we told the listeners that there was backpressure. 
+            // So we have to check again so that the client doesn't wait forever.
+            for (NodeConnection c : connections) {
+                if (c.hadBackPressure() == false) {
+                    for (ClientStatusListener s : m_listeners) {
+                        s.backpressure(false);
+                    }
+                    break;
+                }
+            } // FOR
         }
         
         /*
-         * Do the heavy weight serialization outside the synchronized block.
          * createWork synchronizes on an individual connection which allows for more concurrency
          */
         if (cxn != null) {
@@ -728,17 +909,36 @@ class Distributer {
             
             if (m_useMultipleThreads) {
                 cxn.createWork(now, invocation.getClientHandle(), invocation.getProcName(), invocation, cb);
+            } else if (m_pipelineBytes > 0) {
+                // Serialize into this thread's reusable FastSerializer and then
+                // pack the message into the connection's current batch
+                final SerializationArena arena = SerializationArena.get();
+                final FastSerializer fs = arena.acquireSerializer();
+                try {
+                    ByteBuffer b = fs.writeObjectForMessaging(invocation).b;
+                    cxn.createPipelinedWork(now, invocation.getClientHandle(), invocation.getProcName(), b, cb);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    arena.release(fs);
+                }
             } else {
                 
-                final FastSerializer fs = new FastSerializer(m_pool, expectedSerializedSize);
-//                FastSerializer fs = this.getSerializer();
-//                fs.reset();
+                // Serialize into this thread's reusable FastSerializer and then copy the
+                // message into a buffer of exactly the right size. The write stream owns
+                // that buffer once it's queued, so we can't hand it the serializer's buffer.
+                final SerializationArena arena = SerializationArena.get();
+                final FastSerializer fs = arena.acquireSerializer();
                 BBContainer c = null;
                 try {
-                    c = fs.writeObjectForMessaging(invocation);
+                    ByteBuffer b = fs.writeObjectForMessaging(invocation).b;
+                    c = m_pool.acquire(b.remaining());
+                    c.b.put(b);
+                    c.b.flip();
                 } catch (IOException e) {
-                    fs.getBBContainer().discard();
                     throw new RuntimeException(e);
+                } finally {
+                    arena.release(fs);
                 }
                 cxn.createWork(now, invocation.getClientHandle(), invocation.getProcName(), c, cb);
             }
@@ -759,22 +959,6 @@ class Distributer {
         return !backpressure;
     }
     
-    /**
-     * Return a thread-safe FastSerializer
-     * @return
-     */
-    @SuppressWarnings("unused")
-    private FastSerializer getSerializer() {
-        Thread t = Thread.currentThread();
-        FastSerializer fs = this.m_serializers.get(t);
-        if (fs == null) {
-            fs = new FastSerializer(m_pool);
-            this.m_serializers.put(t, fs);
-        }
-        assert(fs != null);
-        return (fs);
-    }
-
     /**
      * Shutdown the VoltNetwork allowing the Ports to close and free resources
      * like memory pools
@@ -784,6 +968,11 @@ class Distributer {
         if (m_statsLoader != null) {
             m_statsLoader.stop();
         }
+        if (m_pipelineFlusher != null) {
+            m_pipelineBytes = -1;
+            m_pipelineFlusher.interrupt();
+            m_pipelineFlusher.join();
+        }
         m_network.shutdown();
         synchronized (this) {
             try {
@@ -812,13 +1001,11 @@ class Distributer {
         }
     }
 
-    synchronized void addClientStatusListener(ClientStatusListener listener) {
-        if (!m_listeners.contains(listener)) {
-            m_listeners.add(listener);
-        }
+    void addClientStatusListener(ClientStatusListener listener) {
+        m_listeners.addIfAbsent(listener);
     }
 
-    synchronized boolean removeClientStatusListener(ClientStatusListener listener) {
+    boolean removeClientStatusListener(ClientStatusListener listener) {
         return m_listeners.remove(listener);
     }
 
@@ -1033,7 +1220,7 @@ class Distributer {
         return m_buildString;
     }
     public int getConnectionCount() {
-        return m_connections.size();
+        return m_connectionArray.length;
     }
     
 }
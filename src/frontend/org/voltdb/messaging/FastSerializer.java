@@ -130,6 +130,16 @@ public class FastSerializer implements DataOutput {
         return buffer.b.position();
     }
 
+    /** @return the capacity of the underlying buffer. */
+    public int capacity() {
+        return buffer.b.capacity();
+    }
+
+    /** Return the underlying buffer to its pool. This FastSerializer cannot be used afterwards. */
+    public void discard() {
+        buffer.discard();
+    }
+
     /** Clears the contents of the underlying buffer, making it ready for more writes. */
     public void clear() {
         buffer.b.clear();
@@ -172,9 +182,16 @@ public class FastSerializer implements DataOutput {
      * @return The byte array representation for <code>object</code>.
      */
     public static byte[] serialize(FastSerializable object) throws IOException {
-        FastSerializer out = new FastSerializer();
-        object.writeExternal(out);
-        return out.getBBContainer().b.array();
+        // Serialize into one of this thread's pooled buffers and only copy out
+        // the bytes that were written
+        final SerializationArena arena = SerializationArena.get();
+        final FastSerializer out = arena.acquireSerializer();
+        try {
+            object.writeExternal(out);
+            return out.getBytes();
+        } finally {
+            arena.release(out);
+        }
     }
 
     public BBContainer writeObjectForMessaging(FastSerializable object) throws IOException {
@@ -0,0 +1,134 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2010 VoltDB Inc.
+ *
+ * VoltDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VoltDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VoltDB.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.voltdb.messaging;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import org.voltdb.utils.DBBPool;
+
+/**
+ * A per-thread arena of reusable serialization buffers.
+ * <p>
+ * Each thread gets its own {@link DBBPool} of direct buffers that no other thread
+ * allocates from, and a small free list of FastSerializers and FastDeserializers that
+ * are backed by it. A FastSerializer keeps whatever buffer it grew to when it is returned
+ * to the arena, so once a thread has warmed up, serializing a one-off message
+ * (e.g., a VoltTable or ParameterSet that is about to be copied into a protocol buffer)
+ * does not need to allocate or grow a new buffer.
+ * <p>
+ * Every acquire must be paired with a release on the same thread once the caller
+ * is done with the serialized bytes.
+ */
+public final class SerializationArena {
+
+    /**
+     * The maximum number of idle serializers/deserializers that each thread keeps around
+     */
+    static final int MAX_IDLE = 4;
+
+    /**
+     * Serializers whose buffers have grown past this size are not kept in the arena
+     */
+    static final int MAX_RETAINED_CAPACITY = DBBPool.MAX_ALLOCATION_SIZE;
+
+    private static final ThreadLocal<SerializationArena> ARENAS = new ThreadLocal<SerializationArena>() {
+        @Override
+        protected SerializationArena initialValue() {
+            return new SerializationArena();
+        }
+    };
+
+    /**
+     * Return the arena for the current thread
+     */
+    public static SerializationArena get() {
+        return ARENAS.get();
+    }
+
+    private final DBBPool m_pool = new DBBPool(false, false);
+    private final ArrayDeque<FastSerializer> m_serializers = new ArrayDeque<FastSerializer>(MAX_IDLE);
+    private final ArrayDeque<FastDeserializer> m_deserializers = new ArrayDeque<FastDeserializer>(MAX_IDLE);
+    private int m_serializersCreated = 0;
+
+    private SerializationArena() {
+        // Use get()
+    }
+
+    /**
+     * Borrow an empty FastSerializer that allocates from this thread's buffer pool.
+     * The serialized bytes will be in a direct buffer, so use getBBContainer() or getBytes()
+     * to get them out of the serializer rather than ByteBuffer.array().
+     */
+    public FastSerializer acquireSerializer() {
+        FastSerializer fs = m_serializers.poll();
+        if (fs == null) {
+            fs = new FastSerializer(m_pool);
+            m_serializersCreated++;
+        }
+        return fs;
+    }
+
+    /**
+     * Return a FastSerializer to the arena. The serializer's buffer is kept for the next
+     * caller unless it has grown too large.
+     */
+    public void release(FastSerializer fs) {
+        fs.clear();
+        if (m_serializers.size() < MAX_IDLE && fs.capacity() <= MAX_RETAINED_CAPACITY) {
+            m_serializers.push(fs);
+        } else {
+            fs.discard();
+        }
+    }
+
+    /**
+     * Borrow a FastDeserializer that will read from the given buffer
+     */
+    public FastDeserializer acquireDeserializer(ByteBuffer buffer) {
+        FastDeserializer fds = m_deserializers.poll();
+        if (fds == null) {
+            fds = new FastDeserializer();
+        }
+        return fds.setBuffer(buffer);
+    }
+
+    /**
+     * Return a FastDeserializer to the arena.
+     */
+    public void release(FastDeserializer fds) {
+        fds.setBuffer(null);
+        if (m_deserializers.size() < MAX_IDLE) {
+            m_deserializers.push(fds);
+        }
+    }
+
+    /**
+     * Returns the number of FastSerializers that this arena has had to create
+     */
+    public int getSerializersCreated() {
+        return m_serializersCreated;
+    }
+
+    /**
+     * Returns the total number of bytes that this arena's buffer pool has allocated
+     */
+    public long getBytesAllocated() {
+        return m_pool.bytesAllocatedLocally();
+    }
+}
@@ -192,6 +192,13 @@ public class NIOWriteStream implements WriteStream {
      */
     static final int MAX_GATHERING_WRITE = 262144;
 
+    /**
+     * The maximum number of buffers that the stream will pass to a single gathering write.
+     * Small messages (e.g., ClientResponses for short transactions) that were queued
+     * since the last time the stream was drained are coalesced into one write syscall.
+     */
+    static final int MAX_GATHERING_BUFFERS = 64;
+
     /**
      * Does the work of queueing addititional buffers that have been serialized
      * and choosing between gathering and regular writes to the channel. Also splits up very large
@@ -240,7 +247,7 @@ public class NIOWriteStream implements WriteStream {
              * If it is to large to use as part of a gathering write then branch and just focus on
              * writing the one
              */
-            final int queuedForWrite = 0;
+            int queuedForWrite = 0;
             final BBContainer peekedBuffer = m_queuedBuffers.peek();
             if (peekedBuffer.b.remaining() > MAX_GATHERING_WRITE) {
                 /*
@@ -273,11 +280,11 @@ public class NIOWriteStream implements WriteStream {
                 }
             } else {
                 /*
-                 * Iterate over the queued buffers until we have 10, there are none left, or
+                 * Iterate over the queued buffers until we have MAX_GATHERING_BUFFERS, there are none left, or
                  * adding another would make the write too big
                  */
                 final int queuedBuffersSize = m_queuedBuffers.size();
-                buffers = new ByteBuffer[queuedBuffersSize < 10 ? queuedBuffersSize : 10];
+                buffers = new ByteBuffer[Math.min(queuedBuffersSize, MAX_GATHERING_BUFFERS)];
                 int ii = 0;
                 for (final BBContainer c : m_queuedBuffers) {
 
@@ -328,7 +335,8 @@ public class NIOWriteStream implements WriteStream {
                      * and the buffer can be added to the list for the gathering write
                      */
                     buffers[ii++] = c.b;
-                    if (ii == 10) {
+                    queuedForWrite = potentialQueuedForWrite;
+                    if (ii == MAX_GATHERING_BUFFERS) {
                         break;
                     }
                 }
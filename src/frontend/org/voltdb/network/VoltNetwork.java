@@ -69,11 +69,16 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
@@ -82,43 +87,43 @@ import org.voltdb.utils.EstTimeUpdater;
 import org.voltdb.utils.Pair;
 import org.voltdb.utils.VoltLoggerFactory;
 
-/** Produces work for registered ports that are selected for read, write */
+/**
+ * Produces work for registered ports that are selected for read, write.
+ * The ports are divided up round-robin between one or more SelectorLoops,
+ * each of which has its own Selector and can run in its own thread. 
+ */
  public class VoltNetwork implements Runnable {
     
     private static final Logger m_logger = Logger.getLogger(VoltNetwork.class);
     private static final Logger networkLog =
         Logger.getLogger("NETWORK", VoltLoggerFactory.instance());
     
-    private final Selector m_selector;
+    private final SelectorLoop m_loops[];
+    private final AtomicInteger m_nextLoop = new AtomicInteger(0);
     private final ArrayDeque<Runnable> m_tasks = new ArrayDeque<Runnable>();
-    // keep two lists and swap them in and out to minimize contention
-    private final ArrayDeque<VoltPort> m_selectorUpdates_1 = new ArrayDeque<VoltPort>();//Used as the lock for swapping lists
-    private final ArrayDeque<VoltPort> m_selectorUpdates_2 = new ArrayDeque<VoltPort>();
-    private ArrayDeque<VoltPort> m_activeUpdateList = m_selectorUpdates_1;
     private volatile boolean m_shouldStop = false;//volatile boolean is sufficient
-    private final Thread m_thread;
-    private final HashSet<VoltPort> m_ports = new HashSet<VoltPort>();
+    private final boolean m_provideOwnThread;
+    private final Set<VoltPort> m_ports = Collections.newSetFromMap(new ConcurrentHashMap<VoltPort, Boolean>());
     private final boolean m_useBlockingSelect;
     private final boolean m_useExecutorService;
     private final ArrayList<WeakReference<Thread>> m_networkThreads = new ArrayList<WeakReference<Thread>>();
     private final ArrayList<DBBPool> m_poolsToClearOnShutdown = new ArrayList<DBBPool>();
 
     /**
-     * Synchronizes registration and unregistration of channels
-     */
-    private final ReentrantReadWriteLock m_registrationLock = new ReentrantReadWriteLock();
-
-    /**
-     * Start this VoltNetwork's thread;
+     * Start a thread for each of this VoltNetwork's selector loops
      */
     public void start() {
-        m_thread.start();
+        for (SelectorLoop loop : m_loops) {
+            Thread t = new Thread(loop, (m_loops.length == 1 ? "Volt Network" : "Volt Network - " + loop.m_id));
+            t.setDaemon(true);
+            t.start();
+        }
     }
 
     /** Used for test only! */
     public VoltNetwork(Selector selector) {
-        m_thread = null;
-        m_selector = selector;
+        m_provideOwnThread = false;
+        m_loops = new SelectorLoop[] { new SelectorLoop(0, selector) };
         m_useBlockingSelect = true;
         m_useExecutorService = false;
     }
@@ -127,20 +132,31 @@ import org.voltdb.utils.VoltLoggerFactory;
         this( true, true, null);
     }
 
-    /**
-     * Initialize a m_selector and become ready to perform real work
-     * If the network is not going to provide any threads provideOwnThread should be false
-     * and runOnce should be called periodically
-     **/
     public VoltNetwork(boolean useExecutorService, boolean blockingSelect, Integer threads) {
-        m_thread = new Thread(this, "Volt Network");
-        m_thread.setDaemon(true);
+        this(useExecutorService, blockingSelect, threads, 1);
+    }
 
+    /**
+     * Initialize the selectors and become ready to perform real work
+     * @param useExecutorService if true, the ports will be invoked by a pool of helper threads
+     *                           instead of the selector loop that selected them. All of the
+     *                           selector loops share that pool's task queue, so this should
+     *                           be false when there is more than one loop.
+     * @param blockingSelect
+     * @param threads the number of helper threads (null to size it by the number of processors)
+     * @param selectorThreads the number of selector loops to divide the ports between
+     **/
+    public VoltNetwork(boolean useExecutorService, boolean blockingSelect, Integer threads, int selectorThreads) {
+        assert(selectorThreads > 0) : "Invalid number of selector loops " + selectorThreads;
+        m_provideOwnThread = true;
         m_useExecutorService = useExecutorService;
         m_useBlockingSelect = blockingSelect;
 
+        m_loops = new SelectorLoop[selectorThreads];
         try {
-            m_selector = Selector.open();
+            for (int ii = 0; ii < m_loops.length; ii++) {
+                m_loops[ii] = new SelectorLoop(ii, Selector.open());
+            }
         } catch (IOException ex) {
             m_logger.fatal(null, ex);
             throw new RuntimeException(ex);
@@ -215,42 +231,40 @@ import org.voltdb.utils.VoltLoggerFactory;
         }
     }
 
-
-    /**
-     * Lock that causes the selection thread to wait for all threads that
-     * are in the process of registering or unregistering channels to finish
-     */
-    private void waitForRegistrationLock() {
-        m_registrationLock.writeLock().lock();
-        m_registrationLock.writeLock().unlock();
-    }
-
     /**
-     * Acquire a lock that stops the selection thread while a channel is being registered/unregistered
+     * Return the number of selector loops that the ports are divided between
      */
-    private void acquireRegistrationLock() {
-        m_registrationLock.readLock().lock();
-        m_selector.wakeup();
+    public int getSelectorLoopCount() {
+        return m_loops.length;
     }
 
     /**
-     * Release a lock that stops the selection thread while a channel is being registered/unregistered
+     * Return the selector loop with the given id so that the caller can run it
+     * in a thread of its own choosing (e.g., to set the thread's CPU affinity)
      */
-    private void releaseRegistrationLock() {
-        m_registrationLock.readLock().unlock();
+    public Runnable getSelectorLoop(int id) {
+        return m_loops[id];
     }
 
     /** Instruct the network to stop after the current loop */
     public void shutdown() throws InterruptedException {
-        if (m_thread != null) {
-            synchronized (this) {
-                m_shouldStop = true;
-                m_selector.wakeup();
-                wait();
+        m_shouldStop = true;
+        if (m_provideOwnThread == false) {
+            return;
+        }
+        for (SelectorLoop loop : m_loops) {
+            loop.m_selector.wakeup();
+        }
+        for (SelectorLoop loop : m_loops) {
+            if (loop.m_started) {
+                loop.m_finished.await();
             }
-            m_thread.join();
-        } else {
-            m_shouldStop = true;
+        }
+        synchronized (m_poolsToClearOnShutdown) {
+            for (DBBPool p : m_poolsToClearOnShutdown) {
+                p.clear();
+            }
+            m_poolsToClearOnShutdown.clear();
         }
     }
 
@@ -259,8 +273,8 @@ import org.voltdb.utils.VoltLoggerFactory;
     }
 
     /**
-     * Register a channel with the selector and create a Connection that will pass incoming events
-     * to the provided handler.
+     * Register a channel with the next selector loop and create a Connection
+     * that will pass incoming events to the provided handler.
      * @param channel
      * @param handler
      * @throws IOException
@@ -278,21 +292,21 @@ import org.voltdb.utils.VoltLoggerFactory;
                     handler,
                     handler.getExpectedOutgoingMessageSize(),
                     channel.socket().getInetAddress().getHostName());
-        synchronized (m_ports) {
-            m_ports.add(port);
-        }
+        SelectorLoop loop = m_loops[(m_nextLoop.getAndIncrement() & Integer.MAX_VALUE) % m_loops.length];
+        port.m_selectorLoop = loop.m_id;
+        m_ports.add(port);
         port.registering();
 
-        acquireRegistrationLock();
+        loop.acquireRegistrationLock();
         try {
-            SelectionKey key = channel.register (m_selector, interestOps, port);
+            SelectionKey key = channel.register (loop.m_selector, interestOps, port);
 
             port.setKey (key);
             port.registered();
 
             return port;
         } finally {
-            releaseRegistrationLock();
+            loop.releaseRegistrationLock();
         }
     }
 
@@ -304,156 +318,72 @@ import org.voltdb.utils.VoltLoggerFactory;
         VoltPort port = (VoltPort)c;
         assert(c != null);
         SelectionKey selectionKey = port.getKey();
+        SelectorLoop loop = m_loops[port.m_selectorLoop];
 
-        acquireRegistrationLock();
+        loop.acquireRegistrationLock();
         try {
-            synchronized (m_ports) {
-                if (!m_ports.contains(port)) {
-                    return;
-                }
+            // Removing the port first makes sure that only one thread unregisters it
+            if (!m_ports.remove(port)) {
+                return;
             }
             port.unregistering();
             selectionKey.cancel();
             selectionKey.attach(null);
-            synchronized (m_ports) {
-                m_ports.remove(port);
-            }
         } finally {
-            releaseRegistrationLock();
+            loop.releaseRegistrationLock();
         }
         port.unregistered();
     }
 
     /** Set interest registrations for a port */
     public void addToChangeList(VoltPort port) {
-        synchronized (m_selectorUpdates_1) {
-            m_activeUpdateList.add(port);
-        }
-        if (m_useBlockingSelect) {
-            m_selector.wakeup();
-        }
+        m_loops[port.m_selectorLoop].addToChangeList(port);
     }
 
+    /**
+     * Run all of the selector loops. The first loop runs in the calling thread
+     * and each of the other loops are given a new thread.
+     */
     @Override
     public void run() {
-        while (m_shouldStop == false) {
-            try {
-                while (m_shouldStop == false) {
-                    waitForRegistrationLock();
-                    if (m_useBlockingSelect) {
-                        m_selector.select(5);
-                    } else {
-                        m_selector.selectNow();
-                    }
-                    installInterests();
-                    invokeCallbacks();
-                    EstTimeUpdater.update(System.currentTimeMillis());
-                }
-            } catch (Exception ex) {
-                m_logger.error(null, ex);
-            }
+        final String name = Thread.currentThread().getName();
+        for (int ii = 1; ii < m_loops.length; ii++) {
+            Thread t = new Thread(m_loops[ii], name + "-" + ii);
+            t.setDaemon(true);
+            t.start();
         }
-
-        p_shutdown();
+        m_loops[0].run();
     }
 
+    /**
+     * Wait for all of the helper threads to finish their tasks.
+     * Synchronized so that only one selector loop joins them
+     */
     private synchronized void p_shutdown() {
-        //Synchronized so the interruption won't interrupt the network thread
-        //while it is waiting for the executor service to shutdown
         try {
-            try {
-                synchronized (m_networkThreads) {
-                    synchronized (m_tasks) {
-                        m_tasks.notifyAll();
-                    }
-                    for (final WeakReference<Thread> r : m_networkThreads) {
-                        final Thread t = r.get();
-                        if (t != null) {
-                            t.join();
-                        }
-                    }
-                }
-            } catch (InterruptedException e) {
-                m_logger.error(e);
-            }
-
-            Set<SelectionKey> keys = m_selector.keys();
-
-            for (SelectionKey key : keys) {
-                VoltPort port = (VoltPort) key.attachment();
-                if (port != null) {
-                    unregisterChannel (port);
+            synchronized (m_networkThreads) {
+                synchronized (m_tasks) {
+                    m_tasks.notifyAll();
                 }
-            }
-
-            synchronized (m_poolsToClearOnShutdown) {
-                for (DBBPool p : m_poolsToClearOnShutdown) {
-                    p.clear();
+                for (final WeakReference<Thread> r : m_networkThreads) {
+                    final Thread t = r.get();
+                    if (t != null) {
+                        t.join();
+                    }
                 }
-                m_poolsToClearOnShutdown.clear();
-            }
-
-            try {
-                m_selector.close();
-            } catch (IOException e) {
-                m_logger.error(null, e);
             }
-        } finally {
-            this.notifyAll();
+        } catch (InterruptedException e) {
+            m_logger.error(e);
         }
     }
 
     protected void installInterests() {
-        // swap the update lists to avoid contention while
-        // draining the requested values. also guarantees
-        // that the end of the list will be reached if code
-        // appends to the update list without bound.
-        ArrayDeque<VoltPort> oldlist;
-        synchronized(m_selectorUpdates_1) {
-            if (m_activeUpdateList == m_selectorUpdates_1) {
-                oldlist = m_selectorUpdates_1;
-                m_activeUpdateList = m_selectorUpdates_2;
-            }
-            else {
-                oldlist = m_selectorUpdates_2;
-                m_activeUpdateList = m_selectorUpdates_1;
-            }
-        }
-
-        while (!oldlist.isEmpty()) {
-            final VoltPort port = oldlist.poll();
-            if (port.isRunning()) {
-                continue;
-            }
-            if (port.isDead()) {
-                unregisterChannel(port);
-                try {
-                    port.m_selectionKey.channel().close();
-                } catch (IOException e) {}
-            } else if (port.hasQueuedRunnables()) {
-                port.lockForHandlingWork();
-                port.getKey().interestOps(0);
-                m_selector.selectedKeys().remove(port.getKey());
-                synchronized (m_tasks) {
-                    m_tasks.offer(getPortCallRunnable(port));
-                    m_tasks.notify();
-                }
-            } else {
-                resumeSelection(port);
-            }
-        }
+        m_loops[0].installInterests();
     }
 
-    private void resumeSelection( VoltPort port) {
-        SelectionKey key = port.getKey();
-
-        if (key.isValid()) {
-            key.interestOps (port.interestOps());
-        } else {
-            synchronized (m_ports) {
-                m_ports.remove(port);
-            }
-        }
+    /** Set the selected interest set on the port and run it. */
+    protected void invokeCallbacks() {
+        m_loops[0].invokeCallbacks();
     }
 
     private Runnable getPortCallRunnable(final VoltPort port) {
@@ -476,48 +406,6 @@ import org.voltdb.utils.VoltLoggerFactory;
         };
     }
 
-    /** Set the selected interest set on the port and run it. */
-    protected void invokeCallbacks() {
-        final Set<SelectionKey> selectedKeys = m_selector.selectedKeys();
-        final ArrayList<Runnable> generatedTasks = new ArrayList<Runnable>();
-        for(SelectionKey key : selectedKeys) {
-            final VoltPort port = (VoltPort) key.attachment();
-            if (port == null) {
-                continue;
-            }
-            try {
-                port.lockForHandlingWork();
-                key.interestOps(0);
-
-                final Runnable runner = getPortCallRunnable(port);
-
-                if (m_useExecutorService) {
-                    generatedTasks.add(runner);
-                } else {
-                    runner.run();
-                }
-            }
-            catch (CancelledKeyException e) {
-                e.printStackTrace();
-                // no need to do anything here until
-                // shutdown makes more sense
-            }
-        }
-
-        if (!generatedTasks.isEmpty()) {
-            synchronized (m_tasks) {
-                m_tasks.addAll(generatedTasks);
-                if (m_tasks.size() > 1) {
-                    m_tasks.notifyAll();
-                } else {
-                    m_tasks.notify();
-                }
-            }
-        }
-
-        selectedKeys.clear();
-    }
-
     public Map<Long, Pair<String, long[]>> getIOStats(boolean interval) {
         final HashMap<Long, Pair<String, long[]>> retval =
             new HashMap<Long, Pair<String, long[]>>();
@@ -525,25 +413,23 @@ import org.voltdb.utils.VoltLoggerFactory;
         long totalMessagesRead = 0;
         long totalWritten = 0;
         long totalMessagesWritten = 0;
-        synchronized (m_ports) {
-            for (VoltPort p : m_ports) {
-                final long read = p.readStream().getBytesRead(interval);
-                final long writeInfo[] = p.writeStream().getBytesAndMessagesWritten(interval);
-                final long messagesRead = p.getMessagesRead(interval);
-                totalRead += read;
-                totalMessagesRead += messagesRead;
-                totalWritten += writeInfo[0];
-                totalMessagesWritten += writeInfo[1];
-                retval.put(
-                        p.connectionId(),
-                        Pair.of(
-                                p.m_remoteHost,
-                                new long[] {
-                                        read,
-                                        messagesRead,
-                                        writeInfo[0],
-                                        writeInfo[1] }));
-            }
+        for (VoltPort p : m_ports) {
+            final long read = p.readStream().getBytesRead(interval);
+            final long writeInfo[] = p.writeStream().getBytesAndMessagesWritten(interval);
+            final long messagesRead = p.getMessagesRead(interval);
+            totalRead += read;
+            totalMessagesRead += messagesRead;
+            totalWritten += writeInfo[0];
+            totalMessagesWritten += writeInfo[1];
+            retval.put(
+                    p.connectionId(),
+                    Pair.of(
+                            p.m_remoteHost,
+                            new long[] {
+                                    read,
+                                    messagesRead,
+                                    writeInfo[0],
+                                    writeInfo[1] }));
         }
         retval.put(
                 -1L,
@@ -556,4 +442,192 @@ import org.voltdb.utils.VoltLoggerFactory;
                                 totalMessagesWritten }));
         return retval;
     }
+
+    /**
+     * A single Selector and the ports that are registered with it.
+     * Other threads hand off interest updates for this loop's ports through
+     * a lock-free queue and only wake up the selector if it isn't already
+     * going to wake up on its own.
+     */
+    private final class SelectorLoop implements Runnable {
+        private final int m_id;
+        private final Selector m_selector;
+        private final ConcurrentLinkedQueue<VoltPort> m_selectorUpdates = new ConcurrentLinkedQueue<VoltPort>();
+        private final AtomicInteger m_numSelectorUpdates = new AtomicInteger(0);
+        private final AtomicBoolean m_wakeupPending = new AtomicBoolean(false);
+        private final CountDownLatch m_finished = new CountDownLatch(1);
+        private volatile boolean m_started = false;
+
+        /**
+         * Synchronizes registration and unregistration of channels
+         */
+        private final ReentrantReadWriteLock m_registrationLock = new ReentrantReadWriteLock();
+
+        private SelectorLoop(int id, Selector selector) {
+            m_id = id;
+            m_selector = selector;
+        }
+
+        /**
+         * Lock that causes the selection thread to wait for all threads that
+         * are in the process of registering or unregistering channels to finish
+         */
+        private void waitForRegistrationLock() {
+            m_registrationLock.writeLock().lock();
+            m_registrationLock.writeLock().unlock();
+        }
+
+        /**
+         * Acquire a lock that stops the selection thread while a channel is being registered/unregistered
+         */
+        private void acquireRegistrationLock() {
+            m_registrationLock.readLock().lock();
+            m_selector.wakeup();
+        }
+
+        /**
+         * Release a lock that stops the selection thread while a channel is being registered/unregistered
+         */
+        private void releaseRegistrationLock() {
+            m_registrationLock.readLock().unlock();
+        }
+
+        private void addToChangeList(VoltPort port) {
+            m_selectorUpdates.offer(port);
+            m_numSelectorUpdates.incrementAndGet();
+            // Only the first update since the last select needs to wake up the selector
+            if (m_useBlockingSelect && m_wakeupPending.compareAndSet(false, true)) {
+                m_selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            m_started = true;
+            try {
+                while (m_shouldStop == false) {
+                    try {
+                        while (m_shouldStop == false) {
+                            waitForRegistrationLock();
+                            m_wakeupPending.set(false);
+                            if (m_useBlockingSelect) {
+                                m_selector.select(5);
+                            } else {
+                                m_selector.selectNow();
+                            }
+                            installInterests();
+                            invokeCallbacks();
+                            EstTimeUpdater.update(System.currentTimeMillis());
+                        }
+                    } catch (Exception ex) {
+                        m_logger.error(null, ex);
+                    }
+                }
+
+                p_shutdown();
+                for (SelectionKey key : m_selector.keys()) {
+                    VoltPort port = (VoltPort) key.attachment();
+                    if (port != null) {
+                        unregisterChannel (port);
+                    }
+                }
+                try {
+                    m_selector.close();
+                } catch (IOException e) {
+                    m_logger.error(null, e);
+                }
+            } finally {
+                m_finished.countDown();
+            }
+        }
+
+        private void installInterests() {
+            // only drain the updates that were queued before we started so
+            // that we are guaranteed to finish if other threads append to
+            // the update list without bound.
+            int toDrain = m_numSelectorUpdates.get();
+            while (toDrain-- > 0) {
+                final VoltPort port = m_selectorUpdates.poll();
+                if (port == null) {
+                    break;
+                }
+                m_numSelectorUpdates.decrementAndGet();
+                if (port.isRunning()) {
+                    continue;
+                }
+                if (port.isDead()) {
+                    unregisterChannel(port);
+                    try {
+                        port.m_selectionKey.channel().close();
+                    } catch (IOException e) {}
+                } else if (port.hasQueuedRunnables()) {
+                    port.lockForHandlingWork();
+                    port.getKey().interestOps(0);
+                    m_selector.selectedKeys().remove(port.getKey());
+                    final Runnable runner = getPortCallRunnable(port);
+                    if (m_useExecutorService) {
+                        synchronized (m_tasks) {
+                            m_tasks.offer(runner);
+                            m_tasks.notify();
+                        }
+                    } else {
+                        runner.run();
+                    }
+                } else {
+                    resumeSelection(port);
+                }
+            }
+        }
+
+        private void resumeSelection( VoltPort port) {
+            SelectionKey key = port.getKey();
+
+            if (key.isValid()) {
+                key.interestOps (port.interestOps());
+            } else {
+                m_ports.remove(port);
+            }
+        }
+
+        private void invokeCallbacks() {
+            final Set<SelectionKey> selectedKeys = m_selector.selectedKeys();
+            final ArrayList<Runnable> generatedTasks = new ArrayList<Runnable>();
+            for(SelectionKey key : selectedKeys) {
+                final VoltPort port = (VoltPort) key.attachment();
+                if (port == null) {
+                    continue;
+                }
+                try {
+                    port.lockForHandlingWork();
+                    key.interestOps(0);
+
+                    final Runnable runner = getPortCallRunnable(port);
+
+                    if (m_useExecutorService) {
+                        generatedTasks.add(runner);
+                    } else {
+                        runner.run();
+                    }
+                }
+                catch (CancelledKeyException e) {
+                    e.printStackTrace();
+                    // no need to do anything here until
+                    // shutdown makes more sense
+                }
+            }
+
+            if (!generatedTasks.isEmpty()) {
+                synchronized (m_tasks) {
+                    m_tasks.addAll(generatedTasks);
+                    if (m_tasks.size() > 1) {
+                        m_tasks.notifyAll();
+                    } else {
+                        m_tasks.notify();
+                    }
+                }
+            }
+
+            selectedKeys.clear();
+        }
+    } // CLASS
 }
@@ -38,6 +38,9 @@ public class VoltPort implements Callable<VoltPort>, Connection
     /** The network this port participates in */
     private final VoltNetwork m_network;
 
+    /** The id of the VoltNetwork selector loop that this port is registered with */
+    int m_selectorLoop = 0;
+
     /** The currently selected operations on this port. */
     private int m_readyOps = 0;
 
@@ -83,10 +83,11 @@ public class ResetProfiling extends VoltSystemProcedure {
                     
                     // COMMAND LOGGER
                     if (hstore_conf.site.commandlog_profiling) {
-                        CommandLogWriter commandLog = hstore_site.getCommandLogWriter();
-                        commandLog.getLoggerWritingTime().reset();
-                        commandLog.getLoggerBlockedTime().reset();
-                        commandLog.getLoggerNetworkTime().reset();
+                        for (CommandLogWriter commandLog : hstore_site.getCommandLogWriters()) {
+                            commandLog.getLoggerWritingTime().reset();
+                            commandLog.getLoggerBlockedTime().reset();
+                            commandLog.getLoggerNetworkTime().reset();
+                        } // FOR
                     }
                 }
                 
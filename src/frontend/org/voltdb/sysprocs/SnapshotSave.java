@@ -33,6 +33,7 @@ import org.voltdb.sysprocs.saverestore.SnapshotUtil;
 import edu.brown.catalog.CatalogUtil;
 import edu.brown.hstore.PartitionExecutor;
 import edu.brown.hstore.PartitionExecutor.SystemProcedureExecutionContext;
+import edu.brown.hstore.wal.CommandLogWriter;
 import edu.brown.utils.CollectionUtil;
 import edu.brown.utils.PartitionEstimator;
 
@@ -119,6 +120,15 @@ public class SnapshotSave extends VoltSystemProcedure
             final String file_nonce = (String) params.toArray()[1];
             final long startTime = (Long)params.toArray()[2];
             byte block = (Byte)params.toArray()[3];
+            
+            // Everything that this partition executed before us will be in the snapshot,
+            // so our txn id is the command log's watermark for this partition
+            PartitionExecutor executor = context.getExecutionSite();
+            CommandLogWriter commandLogger = executor.getHStoreSite().getCommandLogWriter(executor.getPartitionId());
+            if (commandLogger != null) {
+                commandLogger.startCheckpoint(file_path, file_nonce, executor.getPartitionId(), txn_id);
+            }
+            
             SnapshotSaveAPI saveAPI = new SnapshotSaveAPI();
             VoltTable result = saveAPI.startSnapshotting(file_path, file_nonce, block, startTime, context, hostname);
             return new DependencySet(SnapshotSave.DEP_createSnapshotTargets, result);
@@ -1,90 +1,300 @@
 package org.voltdb.utils;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.voltdb.VoltTable;
 import org.voltdb.VoltTableRow;
+import org.voltdb.VoltType;
 
+/**
+ * Iterates over the rows of a REDUCE input table key-by-key. The first column of
+ * the table is the key. Each group of rows with the same key is returned by
+ * this iterator until hasNext() returns false at the group boundary, and then
+ * nextKey() moves on to the next group.
+ * <p>
+ * The keys are extracted once per row into primitive arrays, so grouping (and sorting)
+ * the input never has to box the key values. If the table is not already sorted
+ * by its key, then the iterator can sort the rows itself without copying the table.
+ * The sort is a stable merge sort that skips merging runs that are already in order,
+ * so input that is made up of sorted chunks (e.g., combined MAP output from each partition)
+ * is grouped in close to linear time.
+ * @param <K>
+ */
 public class ReduceInputIterator<K> implements Iterator<VoltTableRow> {
-    
-    final VoltTable table;
-    boolean isAdvanced;
-    int jump;
-    boolean isFinish;
-    boolean isStart;
-    
-    K oldKey;
+
+    private static final int NULL_GROUP = -1;
+
+    private enum KeyKind {
+        LONG,
+        TIMESTAMP,
+        DOUBLE,
+        OBJECT;
+    }
+
+    private final VoltType keyType;
+    private final KeyKind keyKind;
+    private final VoltTableRow rows[];
+    private final long longKeys[];
+    private final double doubleKeys[];
+    private final Object objectKeys[];
+
+    /**
+     * The offsets into rows in the order that they will be returned
+     */
+    private final int order[];
+
+    /**
+     * The position in order of the current row
+     */
+    private int cursor = -1;
+
+    /**
+     * The offset of the first row of the current group
+     */
+    private int group = NULL_GROUP;
+    private K key;
+
+    /**
+     * Whether the current row has been returned by next()
+     */
+    private boolean consumed = true;
+
+    /**
+     * Whether hasNext() found the start of a new group that nextKey() has not returned yet
+     */
+    private boolean pending = false;
+    private boolean isFinish = false;
+
+    /**
+     * Constructor
+     * The table must already be sorted by its first column
+     * @param table
+     */
     public ReduceInputIterator(VoltTable table) {
-        this.table = table;
-        oldKey = null;
-        isAdvanced = false;
-        isFinish = false;
-        jump = 3;
+        this(table, false);
+    }
+
+    /**
+     * Constructor
+     * @param table
+     * @param sort if true, the rows will be sorted by their key before they are grouped
+     */
+    public ReduceInputIterator(VoltTable table, boolean sort) {
+        int num_rows = table.getRowCount();
+        this.keyType = table.getColumnType(0);
+        switch (this.keyType) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+            case BOOLEAN:
+                this.keyKind = KeyKind.LONG;
+                break;
+            case TIMESTAMP:
+                this.keyKind = KeyKind.TIMESTAMP;
+                break;
+            case FLOAT:
+                this.keyKind = KeyKind.DOUBLE;
+                break;
+            default:
+                this.keyKind = KeyKind.OBJECT;
+        } // SWITCH
+        this.longKeys = (this.keyKind == KeyKind.LONG || this.keyKind == KeyKind.TIMESTAMP ? new long[num_rows] : null);
+        this.doubleKeys = (this.keyKind == KeyKind.DOUBLE ? new double[num_rows] : null);
+        this.objectKeys = (this.keyKind == KeyKind.OBJECT ? new Object[num_rows] : null);
+
+        this.rows = new VoltTableRow[num_rows];
+        this.order = new int[num_rows];
+        table.resetRowPosition();
+        int i = 0;
+        while (table.advanceRow()) {
+            this.rows[i] = table.cloneRow();
+            switch (this.keyKind) {
+                case LONG:
+                    this.longKeys[i] = table.getLong(0);
+                    break;
+                case TIMESTAMP:
+                    this.longKeys[i] = table.getTimestampAsLong(0);
+                    break;
+                case DOUBLE:
+                    this.doubleKeys[i] = table.getDouble(0);
+                    break;
+                default:
+                    this.objectKeys[i] = table.get(0, this.keyType);
+            } // SWITCH
+            this.order[i] = i;
+            i++;
+        } // WHILE
+        table.resetRowPosition();
+        assert(i == num_rows);
+
+        if (sort && num_rows > 1) {
+            this.sort(this.order, new int[num_rows], 0, num_rows);
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // KEY METHODS
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Compare the keys of the rows at the given offsets
+     * Null values always come first
+     */
+    @SuppressWarnings("unchecked")
+    private int compareKeys(int row0, int row1) {
+        switch (this.keyKind) {
+            case LONG:
+            case TIMESTAMP: {
+                long k0 = this.longKeys[row0];
+                long k1 = this.longKeys[row1];
+                return (k0 < k1 ? -1 : (k0 == k1 ? 0 : 1));
+            }
+            case DOUBLE:
+                return (Double.compare(this.doubleKeys[row0], this.doubleKeys[row1]));
+            default: {
+                Object k0 = this.objectKeys[row0];
+                Object k1 = this.objectKeys[row1];
+                if (k0 == null) return (k1 == null ? 0 : -1);
+                if (k1 == null) return (1);
+                return (((Comparable<Object>)k0).compareTo(k1));
+            }
+        } // SWITCH
     }
-    
+
+    /**
+     * Stable merge sort of the row offsets in [low, high) by their keys
+     */
+    private void sort(int a[], int tmp[], int low, int high) {
+        if (high - low < 2) return;
+        int mid = (low + high) >>> 1;
+        this.sort(a, tmp, low, mid);
+        this.sort(a, tmp, mid, high);
+
+        // If the two halves are already in order then we don't need to merge them
+        if (this.compareKeys(a[mid - 1], a[mid]) <= 0) return;
+
+        System.arraycopy(a, low, tmp, low, high - low);
+        int i = low;
+        int j = mid;
+        for (int k = low; k < high; k++) {
+            if (j >= high || (i < mid && this.compareKeys(tmp[i], tmp[j]) <= 0)) {
+                a[k] = tmp[i++];
+            } else {
+                a[k] = tmp[j++];
+            }
+        } // FOR
+    }
+
+    // ----------------------------------------------------------------------------
+    // ITERATOR METHODS
+    // ----------------------------------------------------------------------------
+
+    private boolean advance() {
+        if (this.cursor + 1 >= this.rows.length) {
+            this.isFinish = true;
+            return (false);
+        }
+        this.cursor++;
+        this.consumed = false;
+        return (true);
+    }
+
+    private void startGroup() {
+        this.group = this.order[this.cursor];
+        this.key = null;
+        this.pending = true;
+    }
+
+    /**
+     * Returns true if there are any rows left in the input
+     */
     public boolean hasKey() {
-        boolean result = this.table.advanceRow();
-        return result;
+        return (this.isFinish == false && (this.consumed == false || this.cursor + 1 < this.rows.length));
     }
-    
+
+    /**
+     * Move to the next group of rows. Any rows in the current group that
+     * have not been returned by next() are skipped.
+     * Returns false if there are no more groups.
+     */
+    public boolean nextKey() {
+        if (this.group == NULL_GROUP) {
+            if (this.advance() == false) return (false);
+            this.startGroup();
+        }
+        else if (this.pending == false) {
+            while (this.hasNext()) {
+                this.consumed = true;
+            } // WHILE
+            if (this.pending == false) return (false);
+        }
+        this.pending = false;
+        return (true);
+    }
+
+    /**
+     * Return the key of the current group
+     * The key is only boxed once per group
+     */
     @SuppressWarnings("unchecked")
     public K getKey() {
-        return (K) this.table.get(0);
+        if (this.key == null && this.group != NULL_GROUP) {
+            this.key = (K)this.rows[this.group].get(0, this.keyType);
+        }
+        return (this.key);
+    }
+
+    /**
+     * Return the number of rows that this iterator has moved past
+     */
+    public int getPosition() {
+        return (this.isFinish ? this.rows.length : Math.max(0, this.cursor));
     }
-    
+
     public boolean getFinish(){
         return this.isFinish;
     }
-    
+
     /*
      * if there is next same key tuple in this VoltTable rows
      * @see java.util.Iterator#hasNext()
      */
     @Override
     public boolean hasNext() {
-        if(isFinish == false){
-            // this is the first time outer while
-            if(jump == 3 && isAdvanced) { 
-                jump = 2;
-                return true;
-            }
-            if(jump < 2 ) {
-                jump ++;
-                return true;
-            }
-            if(isAdvanced) oldKey = this.getKey();
-                
-                if(this.hasKey()) {
-                    isAdvanced = true;
-                    
-                    if(oldKey == null || oldKey.equals(this.getKey())) { 
-                       
-                        return true;
-                    }else {
-                        jump = 0;
-                        oldKey = null;
-                        return false;
-                    }
-                }else {
-                    isFinish = true;
-                    return false;
-                }
-            
-            
-        } else
-            return false; // isFinish
+        if (this.isFinish) return (false);
+        // The current row hasn't been returned yet
+        if (this.consumed == false) return (true);
+        if (this.advance() == false) return (false);
+
+        if (this.group == NULL_GROUP) {
+            this.startGroup();
+            return (true);
+        }
+        else if (this.compareKeys(this.group, this.order[this.cursor]) == 0) {
+            return (true);
+        }
+        // We've hit the start of the next group
+        this.startGroup();
+        return (false);
     }
 
+    /**
+     * Returns the current row. The row is not advanced until the next
+     * invocation of hasNext(), so calling this more than once will return the same row.
+     */
     @Override
     public VoltTableRow next() {
-        assert (this.isAdvanced); 
-       
-        return  this.table.getRow();
+        if (this.isFinish || this.cursor < 0) {
+            throw new NoSuchElementException();
+        }
+        this.consumed = true;
+        return (this.rows[this.order[this.cursor]]);
     }
 
     @Override
     public void remove() {
         throw new NotImplementedException("Cannot remove from a VoltTable");
-        //throw new UnsupportedOperationException("Cannot remove from a VoltTable");
     }
 }
@@ -12311,6 +12311,1389 @@ public final class Hstoreservice {
     // @@protoc_insertion_point(class_scope:edu.brown.hstore.TimeSyncResponse)
   }
   
+  public static final class ReplayReadyRequest extends
+      com.google.protobuf.GeneratedMessage {
+    // Use ReplayReadyRequest.newBuilder() to construct.
+    private ReplayReadyRequest() {
+      initFields();
+    }
+    private ReplayReadyRequest(boolean noInit) {}
+    
+    private static final ReplayReadyRequest defaultInstance;
+    public static ReplayReadyRequest getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public ReplayReadyRequest getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayReadyRequest_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayReadyRequest_fieldAccessorTable;
+    }
+    
+    // required int32 sender_site = 1;
+    public static final int SENDER_SITE_FIELD_NUMBER = 1;
+    private boolean hasSenderSite;
+    private int senderSite_ = 0;
+    public boolean hasSenderSite() { return hasSenderSite; }
+    public int getSenderSite() { return senderSite_; }
+    
+    // required int64 watermark = 2;
+    public static final int WATERMARK_FIELD_NUMBER = 2;
+    private boolean hasWatermark;
+    private long watermark_ = 0L;
+    public boolean hasWatermark() { return hasWatermark; }
+    public long getWatermark() { return watermark_; }
+    
+    // optional string snapshot_nonce = 3;
+    public static final int SNAPSHOT_NONCE_FIELD_NUMBER = 3;
+    private boolean hasSnapshotNonce;
+    private java.lang.String snapshotNonce_ = "";
+    public boolean hasSnapshotNonce() { return hasSnapshotNonce; }
+    public java.lang.String getSnapshotNonce() { return snapshotNonce_; }
+    
+    private void initFields() {
+    }
+    public final boolean isInitialized() {
+      if (!hasSenderSite) return false;
+      if (!hasWatermark) return false;
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      getSerializedSize();
+      if (hasSenderSite()) {
+        output.writeInt32(1, getSenderSite());
+      }
+      if (hasWatermark()) {
+        output.writeInt64(2, getWatermark());
+      }
+      if (hasSnapshotNonce()) {
+        output.writeString(3, getSnapshotNonce());
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      if (hasSenderSite()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(1, getSenderSite());
+      }
+      if (hasWatermark()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(2, getWatermark());
+      }
+      if (hasSnapshotNonce()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeStringSize(3, getSnapshotNonce());
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input, extensionRegistry)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyRequest parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(edu.brown.hstore.Hstoreservice.ReplayReadyRequest prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private edu.brown.hstore.Hstoreservice.ReplayReadyRequest result;
+      
+      // Construct using edu.brown.hstore.Hstoreservice.ReplayReadyRequest.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new edu.brown.hstore.Hstoreservice.ReplayReadyRequest();
+        return builder;
+      }
+      
+      protected edu.brown.hstore.Hstoreservice.ReplayReadyRequest internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new edu.brown.hstore.Hstoreservice.ReplayReadyRequest();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayReadyRequest.getDescriptor();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayReadyRequest getDefaultInstanceForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayReadyRequest.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public edu.brown.hstore.Hstoreservice.ReplayReadyRequest build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private edu.brown.hstore.Hstoreservice.ReplayReadyRequest buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayReadyRequest buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        edu.brown.hstore.Hstoreservice.ReplayReadyRequest returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof edu.brown.hstore.Hstoreservice.ReplayReadyRequest) {
+          return mergeFrom((edu.brown.hstore.Hstoreservice.ReplayReadyRequest)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(edu.brown.hstore.Hstoreservice.ReplayReadyRequest other) {
+        if (other == edu.brown.hstore.Hstoreservice.ReplayReadyRequest.getDefaultInstance()) return this;
+        if (other.hasSenderSite()) {
+          setSenderSite(other.getSenderSite());
+        }
+        if (other.hasWatermark()) {
+          setWatermark(other.getWatermark());
+        }
+        if (other.hasSnapshotNonce()) {
+          setSnapshotNonce(other.getSnapshotNonce());
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 8: {
+              setSenderSite(input.readInt32());
+              break;
+            }
+            case 16: {
+              setWatermark(input.readInt64());
+              break;
+            }
+            case 26: {
+              setSnapshotNonce(input.readString());
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // required int32 sender_site = 1;
+      public boolean hasSenderSite() {
+        return result.hasSenderSite();
+      }
+      public int getSenderSite() {
+        return result.getSenderSite();
+      }
+      public Builder setSenderSite(int value) {
+        result.hasSenderSite = true;
+        result.senderSite_ = value;
+        return this;
+      }
+      public Builder clearSenderSite() {
+        result.hasSenderSite = false;
+        result.senderSite_ = 0;
+        return this;
+      }
+      
+      // required int64 watermark = 2;
+      public boolean hasWatermark() {
+        return result.hasWatermark();
+      }
+      public long getWatermark() {
+        return result.getWatermark();
+      }
+      public Builder setWatermark(long value) {
+        result.hasWatermark = true;
+        result.watermark_ = value;
+        return this;
+      }
+      public Builder clearWatermark() {
+        result.hasWatermark = false;
+        result.watermark_ = 0L;
+        return this;
+      }
+      
+      // optional string snapshot_nonce = 3;
+      public boolean hasSnapshotNonce() {
+        return result.hasSnapshotNonce();
+      }
+      public java.lang.String getSnapshotNonce() {
+        return result.getSnapshotNonce();
+      }
+      public Builder setSnapshotNonce(java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  result.hasSnapshotNonce = true;
+        result.snapshotNonce_ = value;
+        return this;
+      }
+      public Builder clearSnapshotNonce() {
+        result.hasSnapshotNonce = false;
+        result.snapshotNonce_ = getDefaultInstance().getSnapshotNonce();
+        return this;
+      }
+      
+      // @@protoc_insertion_point(builder_scope:edu.brown.hstore.ReplayReadyRequest)
+    }
+    
+    static {
+      defaultInstance = new ReplayReadyRequest(true);
+      edu.brown.hstore.Hstoreservice.internalForceInit();
+      defaultInstance.initFields();
+    }
+    
+    // @@protoc_insertion_point(class_scope:edu.brown.hstore.ReplayReadyRequest)
+  }
+  
+  public static final class ReplayReadyResponse extends
+      com.google.protobuf.GeneratedMessage {
+    // Use ReplayReadyResponse.newBuilder() to construct.
+    private ReplayReadyResponse() {
+      initFields();
+    }
+    private ReplayReadyResponse(boolean noInit) {}
+    
+    private static final ReplayReadyResponse defaultInstance;
+    public static ReplayReadyResponse getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public ReplayReadyResponse getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayReadyResponse_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayReadyResponse_fieldAccessorTable;
+    }
+    
+    // required int32 sender_site = 1;
+    public static final int SENDER_SITE_FIELD_NUMBER = 1;
+    private boolean hasSenderSite;
+    private int senderSite_ = 0;
+    public boolean hasSenderSite() { return hasSenderSite; }
+    public int getSenderSite() { return senderSite_; }
+    
+    private void initFields() {
+    }
+    public final boolean isInitialized() {
+      if (!hasSenderSite) return false;
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      getSerializedSize();
+      if (hasSenderSite()) {
+        output.writeInt32(1, getSenderSite());
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      if (hasSenderSite()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(1, getSenderSite());
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input, extensionRegistry)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayReadyResponse parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(edu.brown.hstore.Hstoreservice.ReplayReadyResponse prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private edu.brown.hstore.Hstoreservice.ReplayReadyResponse result;
+      
+      // Construct using edu.brown.hstore.Hstoreservice.ReplayReadyResponse.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new edu.brown.hstore.Hstoreservice.ReplayReadyResponse();
+        return builder;
+      }
+      
+      protected edu.brown.hstore.Hstoreservice.ReplayReadyResponse internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new edu.brown.hstore.Hstoreservice.ReplayReadyResponse();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDescriptor();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayReadyResponse getDefaultInstanceForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public edu.brown.hstore.Hstoreservice.ReplayReadyResponse build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private edu.brown.hstore.Hstoreservice.ReplayReadyResponse buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayReadyResponse buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        edu.brown.hstore.Hstoreservice.ReplayReadyResponse returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof edu.brown.hstore.Hstoreservice.ReplayReadyResponse) {
+          return mergeFrom((edu.brown.hstore.Hstoreservice.ReplayReadyResponse)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(edu.brown.hstore.Hstoreservice.ReplayReadyResponse other) {
+        if (other == edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDefaultInstance()) return this;
+        if (other.hasSenderSite()) {
+          setSenderSite(other.getSenderSite());
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 8: {
+              setSenderSite(input.readInt32());
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // required int32 sender_site = 1;
+      public boolean hasSenderSite() {
+        return result.hasSenderSite();
+      }
+      public int getSenderSite() {
+        return result.getSenderSite();
+      }
+      public Builder setSenderSite(int value) {
+        result.hasSenderSite = true;
+        result.senderSite_ = value;
+        return this;
+      }
+      public Builder clearSenderSite() {
+        result.hasSenderSite = false;
+        result.senderSite_ = 0;
+        return this;
+      }
+      
+      // @@protoc_insertion_point(builder_scope:edu.brown.hstore.ReplayReadyResponse)
+    }
+    
+    static {
+      defaultInstance = new ReplayReadyResponse(true);
+      edu.brown.hstore.Hstoreservice.internalForceInit();
+      defaultInstance.initFields();
+    }
+    
+    // @@protoc_insertion_point(class_scope:edu.brown.hstore.ReplayReadyResponse)
+  }
+  
+  public static final class ReplayBarrierRequest extends
+      com.google.protobuf.GeneratedMessage {
+    // Use ReplayBarrierRequest.newBuilder() to construct.
+    private ReplayBarrierRequest() {
+      initFields();
+    }
+    private ReplayBarrierRequest(boolean noInit) {}
+    
+    private static final ReplayBarrierRequest defaultInstance;
+    public static ReplayBarrierRequest getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public ReplayBarrierRequest getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayBarrierRequest_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayBarrierRequest_fieldAccessorTable;
+    }
+    
+    // required int32 sender_site = 1;
+    public static final int SENDER_SITE_FIELD_NUMBER = 1;
+    private boolean hasSenderSite;
+    private int senderSite_ = 0;
+    public boolean hasSenderSite() { return hasSenderSite; }
+    public int getSenderSite() { return senderSite_; }
+    
+    // required int64 transaction_id = 2;
+    public static final int TRANSACTION_ID_FIELD_NUMBER = 2;
+    private boolean hasTransactionId;
+    private long transactionId_ = 0L;
+    public boolean hasTransactionId() { return hasTransactionId; }
+    public long getTransactionId() { return transactionId_; }
+    
+    // required bool initial = 3;
+    public static final int INITIAL_FIELD_NUMBER = 3;
+    private boolean hasInitial;
+    private boolean initial_ = false;
+    public boolean hasInitial() { return hasInitial; }
+    public boolean getInitial() { return initial_; }
+    
+    // repeated int64 multipartition_ids = 4;
+    public static final int MULTIPARTITION_IDS_FIELD_NUMBER = 4;
+    private java.util.List<java.lang.Long> multipartitionIds_ =
+      java.util.Collections.emptyList();
+    public java.util.List<java.lang.Long> getMultipartitionIdsList() {
+      return multipartitionIds_;
+    }
+    public int getMultipartitionIdsCount() { return multipartitionIds_.size(); }
+    public long getMultipartitionIds(int index) {
+      return multipartitionIds_.get(index);
+    }
+    
+    private void initFields() {
+    }
+    public final boolean isInitialized() {
+      if (!hasSenderSite) return false;
+      if (!hasTransactionId) return false;
+      if (!hasInitial) return false;
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      getSerializedSize();
+      if (hasSenderSite()) {
+        output.writeInt32(1, getSenderSite());
+      }
+      if (hasTransactionId()) {
+        output.writeInt64(2, getTransactionId());
+      }
+      if (hasInitial()) {
+        output.writeBool(3, getInitial());
+      }
+      for (long element : getMultipartitionIdsList()) {
+        output.writeInt64(4, element);
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      if (hasSenderSite()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(1, getSenderSite());
+      }
+      if (hasTransactionId()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(2, getTransactionId());
+      }
+      if (hasInitial()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(3, getInitial());
+      }
+      {
+        int dataSize = 0;
+        for (long element : getMultipartitionIdsList()) {
+          dataSize += com.google.protobuf.CodedOutputStream
+            .computeInt64SizeNoTag(element);
+        }
+        size += dataSize;
+        size += 1 * getMultipartitionIdsList().size();
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input, extensionRegistry)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierRequest parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(edu.brown.hstore.Hstoreservice.ReplayBarrierRequest prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private edu.brown.hstore.Hstoreservice.ReplayBarrierRequest result;
+      
+      // Construct using edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new edu.brown.hstore.Hstoreservice.ReplayBarrierRequest();
+        return builder;
+      }
+      
+      protected edu.brown.hstore.Hstoreservice.ReplayBarrierRequest internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new edu.brown.hstore.Hstoreservice.ReplayBarrierRequest();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.getDescriptor();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierRequest getDefaultInstanceForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierRequest build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private edu.brown.hstore.Hstoreservice.ReplayBarrierRequest buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierRequest buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        if (result.multipartitionIds_ != java.util.Collections.EMPTY_LIST) {
+          result.multipartitionIds_ =
+            java.util.Collections.unmodifiableList(result.multipartitionIds_);
+        }
+        edu.brown.hstore.Hstoreservice.ReplayBarrierRequest returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof edu.brown.hstore.Hstoreservice.ReplayBarrierRequest) {
+          return mergeFrom((edu.brown.hstore.Hstoreservice.ReplayBarrierRequest)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(edu.brown.hstore.Hstoreservice.ReplayBarrierRequest other) {
+        if (other == edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.getDefaultInstance()) return this;
+        if (other.hasSenderSite()) {
+          setSenderSite(other.getSenderSite());
+        }
+        if (other.hasTransactionId()) {
+          setTransactionId(other.getTransactionId());
+        }
+        if (other.hasInitial()) {
+          setInitial(other.getInitial());
+        }
+        if (!other.multipartitionIds_.isEmpty()) {
+          if (result.multipartitionIds_.isEmpty()) {
+            result.multipartitionIds_ = new java.util.ArrayList<java.lang.Long>();
+          }
+          result.multipartitionIds_.addAll(other.multipartitionIds_);
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 8: {
+              setSenderSite(input.readInt32());
+              break;
+            }
+            case 16: {
+              setTransactionId(input.readInt64());
+              break;
+            }
+            case 24: {
+              setInitial(input.readBool());
+              break;
+            }
+            case 32: {
+              addMultipartitionIds(input.readInt64());
+              break;
+            }
+            case 34: {
+              int length = input.readRawVarint32();
+              int limit = input.pushLimit(length);
+              while (input.getBytesUntilLimit() > 0) {
+                addMultipartitionIds(input.readInt64());
+              }
+              input.popLimit(limit);
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // required int32 sender_site = 1;
+      public boolean hasSenderSite() {
+        return result.hasSenderSite();
+      }
+      public int getSenderSite() {
+        return result.getSenderSite();
+      }
+      public Builder setSenderSite(int value) {
+        result.hasSenderSite = true;
+        result.senderSite_ = value;
+        return this;
+      }
+      public Builder clearSenderSite() {
+        result.hasSenderSite = false;
+        result.senderSite_ = 0;
+        return this;
+      }
+      
+      // required int64 transaction_id = 2;
+      public boolean hasTransactionId() {
+        return result.hasTransactionId();
+      }
+      public long getTransactionId() {
+        return result.getTransactionId();
+      }
+      public Builder setTransactionId(long value) {
+        result.hasTransactionId = true;
+        result.transactionId_ = value;
+        return this;
+      }
+      public Builder clearTransactionId() {
+        result.hasTransactionId = false;
+        result.transactionId_ = 0L;
+        return this;
+      }
+      
+      // required bool initial = 3;
+      public boolean hasInitial() {
+        return result.hasInitial();
+      }
+      public boolean getInitial() {
+        return result.getInitial();
+      }
+      public Builder setInitial(boolean value) {
+        result.hasInitial = true;
+        result.initial_ = value;
+        return this;
+      }
+      public Builder clearInitial() {
+        result.hasInitial = false;
+        result.initial_ = false;
+        return this;
+      }
+      
+      // repeated int64 multipartition_ids = 4;
+      public java.util.List<java.lang.Long> getMultipartitionIdsList() {
+        return java.util.Collections.unmodifiableList(result.multipartitionIds_);
+      }
+      public int getMultipartitionIdsCount() {
+        return result.getMultipartitionIdsCount();
+      }
+      public long getMultipartitionIds(int index) {
+        return result.getMultipartitionIds(index);
+      }
+      public Builder setMultipartitionIds(int index, long value) {
+        result.multipartitionIds_.set(index, value);
+        return this;
+      }
+      public Builder addMultipartitionIds(long value) {
+        if (result.multipartitionIds_.isEmpty()) {
+          result.multipartitionIds_ = new java.util.ArrayList<java.lang.Long>();
+        }
+        result.multipartitionIds_.add(value);
+        return this;
+      }
+      public Builder addAllMultipartitionIds(
+          java.lang.Iterable<? extends java.lang.Long> values) {
+        if (result.multipartitionIds_.isEmpty()) {
+          result.multipartitionIds_ = new java.util.ArrayList<java.lang.Long>();
+        }
+        super.addAll(values, result.multipartitionIds_);
+        return this;
+      }
+      public Builder clearMultipartitionIds() {
+        result.multipartitionIds_ = java.util.Collections.emptyList();
+        return this;
+      }
+      
+      // @@protoc_insertion_point(builder_scope:edu.brown.hstore.ReplayBarrierRequest)
+    }
+    
+    static {
+      defaultInstance = new ReplayBarrierRequest(true);
+      edu.brown.hstore.Hstoreservice.internalForceInit();
+      defaultInstance.initFields();
+    }
+    
+    // @@protoc_insertion_point(class_scope:edu.brown.hstore.ReplayBarrierRequest)
+  }
+  
+  public static final class ReplayBarrierResponse extends
+      com.google.protobuf.GeneratedMessage {
+    // Use ReplayBarrierResponse.newBuilder() to construct.
+    private ReplayBarrierResponse() {
+      initFields();
+    }
+    private ReplayBarrierResponse(boolean noInit) {}
+    
+    private static final ReplayBarrierResponse defaultInstance;
+    public static ReplayBarrierResponse getDefaultInstance() {
+      return defaultInstance;
+    }
+    
+    public ReplayBarrierResponse getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+    
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayBarrierResponse_descriptor;
+    }
+    
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return edu.brown.hstore.Hstoreservice.internal_static_edu_brown_hstore_ReplayBarrierResponse_fieldAccessorTable;
+    }
+    
+    // required int32 sender_site = 1;
+    public static final int SENDER_SITE_FIELD_NUMBER = 1;
+    private boolean hasSenderSite;
+    private int senderSite_ = 0;
+    public boolean hasSenderSite() { return hasSenderSite; }
+    public int getSenderSite() { return senderSite_; }
+    
+    private void initFields() {
+    }
+    public final boolean isInitialized() {
+      if (!hasSenderSite) return false;
+      return true;
+    }
+    
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      getSerializedSize();
+      if (hasSenderSite()) {
+        output.writeInt32(1, getSenderSite());
+      }
+      getUnknownFields().writeTo(output);
+    }
+    
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+    
+      size = 0;
+      if (hasSenderSite()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(1, getSenderSite());
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+    
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input, extensionRegistry)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static edu.brown.hstore.Hstoreservice.ReplayBarrierResponse parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(edu.brown.hstore.Hstoreservice.ReplayBarrierResponse prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+    
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder> {
+      private edu.brown.hstore.Hstoreservice.ReplayBarrierResponse result;
+      
+      // Construct using edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.newBuilder()
+      private Builder() {}
+      
+      private static Builder create() {
+        Builder builder = new Builder();
+        builder.result = new edu.brown.hstore.Hstoreservice.ReplayBarrierResponse();
+        return builder;
+      }
+      
+      protected edu.brown.hstore.Hstoreservice.ReplayBarrierResponse internalGetResult() {
+        return result;
+      }
+      
+      public Builder clear() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "Cannot call clear() after build().");
+        }
+        result = new edu.brown.hstore.Hstoreservice.ReplayBarrierResponse();
+        return this;
+      }
+      
+      public Builder clone() {
+        return create().mergeFrom(result);
+      }
+      
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDescriptor();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierResponse getDefaultInstanceForType() {
+        return edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDefaultInstance();
+      }
+      
+      public boolean isInitialized() {
+        return result.isInitialized();
+      }
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierResponse build() {
+        if (result != null && !isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return buildPartial();
+      }
+      
+      private edu.brown.hstore.Hstoreservice.ReplayBarrierResponse buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        if (!isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return buildPartial();
+      }
+      
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierResponse buildPartial() {
+        if (result == null) {
+          throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+        }
+        edu.brown.hstore.Hstoreservice.ReplayBarrierResponse returnMe = result;
+        result = null;
+        return returnMe;
+      }
+      
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof edu.brown.hstore.Hstoreservice.ReplayBarrierResponse) {
+          return mergeFrom((edu.brown.hstore.Hstoreservice.ReplayBarrierResponse)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+      
+      public Builder mergeFrom(edu.brown.hstore.Hstoreservice.ReplayBarrierResponse other) {
+        if (other == edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDefaultInstance()) return this;
+        if (other.hasSenderSite()) {
+          setSenderSite(other.getSenderSite());
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+      
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                return this;
+              }
+              break;
+            }
+            case 8: {
+              setSenderSite(input.readInt32());
+              break;
+            }
+          }
+        }
+      }
+      
+      
+      // required int32 sender_site = 1;
+      public boolean hasSenderSite() {
+        return result.hasSenderSite();
+      }
+      public int getSenderSite() {
+        return result.getSenderSite();
+      }
+      public Builder setSenderSite(int value) {
+        result.hasSenderSite = true;
+        result.senderSite_ = value;
+        return this;
+      }
+      public Builder clearSenderSite() {
+        result.hasSenderSite = false;
+        result.senderSite_ = 0;
+        return this;
+      }
+      
+      // @@protoc_insertion_point(builder_scope:edu.brown.hstore.ReplayBarrierResponse)
+    }
+    
+    static {
+      defaultInstance = new ReplayBarrierResponse(true);
+      edu.brown.hstore.Hstoreservice.internalForceInit();
+      defaultInstance.initFields();
+    }
+    
+    // @@protoc_insertion_point(class_scope:edu.brown.hstore.ReplayBarrierResponse)
+  }
+  
   public static abstract class HStoreService
       implements com.google.protobuf.Service {
     protected HStoreService() {}
@@ -12376,6 +13759,16 @@ public final class Hstoreservice {
           edu.brown.hstore.Hstoreservice.TimeSyncRequest request,
           com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.TimeSyncResponse> done);
       
+      public abstract void replayReady(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayReadyRequest request,
+          com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayReadyResponse> done);
+      
+      public abstract void replayBarrier(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayBarrierRequest request,
+          com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayBarrierResponse> done);
+      
     }
     
     public static com.google.protobuf.Service newReflectiveService(
@@ -12477,6 +13870,22 @@ public final class Hstoreservice {
           impl.timeSync(controller, request, done);
         }
         
+        @Override
+        public  void replayReady(
+            com.google.protobuf.RpcController controller,
+            edu.brown.hstore.Hstoreservice.ReplayReadyRequest request,
+            com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayReadyResponse> done) {
+          impl.replayReady(controller, request, done);
+        }
+        
+        @Override
+        public  void replayBarrier(
+            com.google.protobuf.RpcController controller,
+            edu.brown.hstore.Hstoreservice.ReplayBarrierRequest request,
+            com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayBarrierResponse> done) {
+          impl.replayBarrier(controller, request, done);
+        }
+        
       };
     }
     
@@ -12523,6 +13932,10 @@ public final class Hstoreservice {
               return impl.shutdown(controller, (edu.brown.hstore.Hstoreservice.ShutdownRequest)request);
             case 11:
               return impl.timeSync(controller, (edu.brown.hstore.Hstoreservice.TimeSyncRequest)request);
+            case 12:
+              return impl.replayReady(controller, (edu.brown.hstore.Hstoreservice.ReplayReadyRequest)request);
+            case 13:
+              return impl.replayBarrier(controller, (edu.brown.hstore.Hstoreservice.ReplayBarrierRequest)request);
             default:
               throw new java.lang.AssertionError("Can't get here.");
           }
@@ -12561,6 +13974,10 @@ public final class Hstoreservice {
               return edu.brown.hstore.Hstoreservice.ShutdownRequest.getDefaultInstance();
             case 11:
               return edu.brown.hstore.Hstoreservice.TimeSyncRequest.getDefaultInstance();
+            case 12:
+              return edu.brown.hstore.Hstoreservice.ReplayReadyRequest.getDefaultInstance();
+            case 13:
+              return edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.getDefaultInstance();
             default:
               throw new java.lang.AssertionError("Can't get here.");
           }
@@ -12599,6 +14016,10 @@ public final class Hstoreservice {
               return edu.brown.hstore.Hstoreservice.ShutdownResponse.getDefaultInstance();
             case 11:
               return edu.brown.hstore.Hstoreservice.TimeSyncResponse.getDefaultInstance();
+            case 12:
+              return edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDefaultInstance();
+            case 13:
+              return edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDefaultInstance();
             default:
               throw new java.lang.AssertionError("Can't get here.");
           }
@@ -12667,6 +14088,16 @@ public final class Hstoreservice {
         edu.brown.hstore.Hstoreservice.TimeSyncRequest request,
         com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.TimeSyncResponse> done);
     
+    public abstract void replayReady(
+        com.google.protobuf.RpcController controller,
+        edu.brown.hstore.Hstoreservice.ReplayReadyRequest request,
+        com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayReadyResponse> done);
+    
+    public abstract void replayBarrier(
+        com.google.protobuf.RpcController controller,
+        edu.brown.hstore.Hstoreservice.ReplayBarrierRequest request,
+        com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayBarrierResponse> done);
+    
     public static final
         com.google.protobuf.Descriptors.ServiceDescriptor
         getDescriptor() {
@@ -12749,6 +14180,16 @@ public final class Hstoreservice {
             com.google.protobuf.RpcUtil.<edu.brown.hstore.Hstoreservice.TimeSyncResponse>specializeCallback(
               done));
           return;
+        case 12:
+          this.replayReady(controller, (edu.brown.hstore.Hstoreservice.ReplayReadyRequest)request,
+            com.google.protobuf.RpcUtil.<edu.brown.hstore.Hstoreservice.ReplayReadyResponse>specializeCallback(
+              done));
+          return;
+        case 13:
+          this.replayBarrier(controller, (edu.brown.hstore.Hstoreservice.ReplayBarrierRequest)request,
+            com.google.protobuf.RpcUtil.<edu.brown.hstore.Hstoreservice.ReplayBarrierResponse>specializeCallback(
+              done));
+          return;
         default:
           throw new java.lang.AssertionError("Can't get here.");
       }
@@ -12787,6 +14228,10 @@ public final class Hstoreservice {
           return edu.brown.hstore.Hstoreservice.ShutdownRequest.getDefaultInstance();
         case 11:
           return edu.brown.hstore.Hstoreservice.TimeSyncRequest.getDefaultInstance();
+        case 12:
+          return edu.brown.hstore.Hstoreservice.ReplayReadyRequest.getDefaultInstance();
+        case 13:
+          return edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.getDefaultInstance();
         default:
           throw new java.lang.AssertionError("Can't get here.");
       }
@@ -12825,6 +14270,10 @@ public final class Hstoreservice {
           return edu.brown.hstore.Hstoreservice.ShutdownResponse.getDefaultInstance();
         case 11:
           return edu.brown.hstore.Hstoreservice.TimeSyncResponse.getDefaultInstance();
+        case 12:
+          return edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDefaultInstance();
+        case 13:
+          return edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDefaultInstance();
         default:
           throw new java.lang.AssertionError("Can't get here.");
       }
@@ -13025,6 +14474,36 @@ public final class Hstoreservice {
             edu.brown.hstore.Hstoreservice.TimeSyncResponse.class,
             edu.brown.hstore.Hstoreservice.TimeSyncResponse.getDefaultInstance()));
       }
+      
+      public  void replayReady(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayReadyRequest request,
+          com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayReadyResponse> done) {
+        channel.callMethod(
+          getDescriptor().getMethods().get(12),
+          controller,
+          request,
+          edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDefaultInstance(),
+          com.google.protobuf.RpcUtil.generalizeCallback(
+            done,
+            edu.brown.hstore.Hstoreservice.ReplayReadyResponse.class,
+            edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDefaultInstance()));
+      }
+      
+      public  void replayBarrier(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayBarrierRequest request,
+          com.google.protobuf.RpcCallback<edu.brown.hstore.Hstoreservice.ReplayBarrierResponse> done) {
+        channel.callMethod(
+          getDescriptor().getMethods().get(13),
+          controller,
+          request,
+          edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDefaultInstance(),
+          com.google.protobuf.RpcUtil.generalizeCallback(
+            done,
+            edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.class,
+            edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDefaultInstance()));
+      }
     }
     
     public static BlockingInterface newBlockingStub(
@@ -13092,6 +14571,16 @@ public final class Hstoreservice {
           com.google.protobuf.RpcController controller,
           edu.brown.hstore.Hstoreservice.TimeSyncRequest request)
           throws com.google.protobuf.ServiceException;
+      
+      public edu.brown.hstore.Hstoreservice.ReplayReadyResponse replayReady(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayReadyRequest request)
+          throws com.google.protobuf.ServiceException;
+      
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierResponse replayBarrier(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayBarrierRequest request)
+          throws com.google.protobuf.ServiceException;
     }
     
     private static final class BlockingStub implements BlockingInterface {
@@ -13244,6 +14733,30 @@ public final class Hstoreservice {
           edu.brown.hstore.Hstoreservice.TimeSyncResponse.getDefaultInstance());
       }
       
+      
+      public edu.brown.hstore.Hstoreservice.ReplayReadyResponse replayReady(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayReadyRequest request)
+          throws com.google.protobuf.ServiceException {
+        return (edu.brown.hstore.Hstoreservice.ReplayReadyResponse) channel.callBlockingMethod(
+          getDescriptor().getMethods().get(12),
+          controller,
+          request,
+          edu.brown.hstore.Hstoreservice.ReplayReadyResponse.getDefaultInstance());
+      }
+      
+      
+      public edu.brown.hstore.Hstoreservice.ReplayBarrierResponse replayBarrier(
+          com.google.protobuf.RpcController controller,
+          edu.brown.hstore.Hstoreservice.ReplayBarrierRequest request)
+          throws com.google.protobuf.ServiceException {
+        return (edu.brown.hstore.Hstoreservice.ReplayBarrierResponse) channel.callBlockingMethod(
+          getDescriptor().getMethods().get(13),
+          controller,
+          request,
+          edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.getDefaultInstance());
+      }
+      
     }
   }
   
@@ -13387,6 +14900,26 @@ public final class Hstoreservice {
   private static
     com.google.protobuf.GeneratedMessage.FieldAccessorTable
       internal_static_edu_brown_hstore_TimeSyncResponse_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_edu_brown_hstore_ReplayReadyRequest_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_edu_brown_hstore_ReplayReadyRequest_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_edu_brown_hstore_ReplayReadyResponse_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_edu_brown_hstore_ReplayReadyResponse_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_edu_brown_hstore_ReplayBarrierRequest_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_edu_brown_hstore_ReplayBarrierRequest_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_edu_brown_hstore_ReplayBarrierResponse_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_edu_brown_hstore_ReplayBarrierResponse_fieldAccessorTable;
   
   public static com.google.protobuf.Descriptors.FileDescriptor
       getDescriptor() {
@@ -13480,42 +15013,54 @@ public final class Hstoreservice {
       "\030\001 \002(\005\"4\n\017TimeSyncRequest\022\023\n\013sender_site" +
       "\030\001 \002(\005\022\014\n\004t0_s\030\002 \002(\003\"Q\n\020TimeSyncResponse" +
       "\022\023\n\013sender_site\030\001 \002(\005\022\014\n\004t0_s\030\002 \002(\003\022\014\n\004t" +
-      "0_r\030\003 \002(\003\022\014\n\004t1_s\030\004 \002(\003*\240\001\n\006Status\022\006\n\002OK" +
-      "\020\000\022\016\n\nABORT_USER\020\001\022\022\n\016ABORT_GRACEFUL\020\002\022\024" +
-      "\n\020ABORT_UNEXPECTED\020\003\022\031\n\025ABORT_CONNECTION" +
-      "_LOST\020\004\022\024\n\020ABORT_MISPREDICT\020\005\022\021\n\rABORT_R" +
-      "ESTART\020\006\022\020\n\014ABORT_REJECT\020\0072\321\t\n\rHStoreSer" +
-      "vice\022f\n\017TransactionInit\022(.edu.brown.hsto",
-      "re.TransactionInitRequest\032).edu.brown.hs" +
-      "tore.TransactionInitResponse\022f\n\017Transact" +
-      "ionWork\022(.edu.brown.hstore.TransactionWo" +
-      "rkRequest\032).edu.brown.hstore.Transaction" +
-      "WorkResponse\022x\n\023TransactionPrefetch\022+.ed" +
-      "u.brown.hstore.TransactionPrefetchResult" +
-      "\0324.edu.brown.hstore.TransactionPrefetchA" +
-      "cknowledgement\022c\n\016TransactionMap\022\'.edu.b" +
-      "rown.hstore.TransactionMapRequest\032(.edu." +
-      "brown.hstore.TransactionMapResponse\022l\n\021T",
-      "ransactionReduce\022*.edu.brown.hstore.Tran" +
-      "sactionReduceRequest\032+.edu.brown.hstore." +
-      "TransactionReduceResponse\022o\n\022Transaction" +
-      "Prepare\022+.edu.brown.hstore.TransactionPr" +
-      "epareRequest\032,.edu.brown.hstore.Transact" +
-      "ionPrepareResponse\022l\n\021TransactionFinish\022" +
-      "*.edu.brown.hstore.TransactionFinishRequ" +
-      "est\032+.edu.brown.hstore.TransactionFinish" +
-      "Response\022r\n\023TransactionRedirect\022,.edu.br" +
-      "own.hstore.TransactionRedirectRequest\032-.",
-      "edu.brown.hstore.TransactionRedirectResp" +
-      "onse\022Q\n\010SendData\022!.edu.brown.hstore.Send" +
-      "DataRequest\032\".edu.brown.hstore.SendDataR" +
-      "esponse\022W\n\nInitialize\022#.edu.brown.hstore" +
-      ".InitializeRequest\032$.edu.brown.hstore.In" +
-      "itializeResponse\022Q\n\010Shutdown\022!.edu.brown" +
-      ".hstore.ShutdownRequest\032\".edu.brown.hsto" +
-      "re.ShutdownResponse\022Q\n\010TimeSync\022!.edu.br" +
-      "own.hstore.TimeSyncRequest\032\".edu.brown.h" +
-      "store.TimeSyncResponse"
+      "0_r\030\003 \002(\003\022\014\n\004t1_s\030\004 \002(\003\"T\n\022ReplayReadyRe" +
+      "quest\022\023\n\013sender_site\030\001 \002(\005\022\021\n\twatermark\030" +
+      "\002 \002(\003\022\026\n\016snapshot_nonce\030\003 \001(\t\"*\n\023ReplayR" +
+      "eadyResponse\022\023\n\013sender_site\030\001 \002(\005\"p\n\024Rep" +
+      "layBarrierRequest\022\023\n\013sender_site\030\001 \002(\005\022\026" +
+      "\n\016transaction_id\030\002 \002(\003\022\017\n\007initial\030\003 \002(\010\022",
+      "\032\n\022multipartition_ids\030\004 \003(\003\",\n\025ReplayBar" +
+      "rierResponse\022\023\n\013sender_site\030\001 \002(\005*\240\001\n\006St" +
+      "atus\022\006\n\002OK\020\000\022\016\n\nABORT_USER\020\001\022\022\n\016ABORT_GR" +
+      "ACEFUL\020\002\022\024\n\020ABORT_UNEXPECTED\020\003\022\031\n\025ABORT_" +
+      "CONNECTION_LOST\020\004\022\024\n\020ABORT_MISPREDICT\020\005\022" +
+      "\021\n\rABORT_RESTART\020\006\022\020\n\014ABORT_REJECT\020\0072\217\013\n" +
+      "\rHStoreService\022f\n\017TransactionInit\022(.edu." +
+      "brown.hstore.TransactionInitRequest\032).ed" +
+      "u.brown.hstore.TransactionInitResponse\022f" +
+      "\n\017TransactionWork\022(.edu.brown.hstore.Tra",
+      "nsactionWorkRequest\032).edu.brown.hstore.T" +
+      "ransactionWorkResponse\022x\n\023TransactionPre" +
+      "fetch\022+.edu.brown.hstore.TransactionPref" +
+      "etchResult\0324.edu.brown.hstore.Transactio" +
+      "nPrefetchAcknowledgement\022c\n\016TransactionM" +
+      "ap\022\'.edu.brown.hstore.TransactionMapRequ" +
+      "est\032(.edu.brown.hstore.TransactionMapRes" +
+      "ponse\022l\n\021TransactionReduce\022*.edu.brown.h" +
+      "store.TransactionReduceRequest\032+.edu.bro" +
+      "wn.hstore.TransactionReduceResponse\022o\n\022T",
+      "ransactionPrepare\022+.edu.brown.hstore.Tra" +
+      "nsactionPrepareRequest\032,.edu.brown.hstor" +
+      "e.TransactionPrepareResponse\022l\n\021Transact" +
+      "ionFinish\022*.edu.brown.hstore.Transaction" +
+      "FinishRequest\032+.edu.brown.hstore.Transac" +
+      "tionFinishResponse\022r\n\023TransactionRedirec" +
+      "t\022,.edu.brown.hstore.TransactionRedirect" +
+      "Request\032-.edu.brown.hstore.TransactionRe" +
+      "directResponse\022Q\n\010SendData\022!.edu.brown.h" +
+      "store.SendDataRequest\032\".edu.brown.hstore",
+      ".SendDataResponse\022W\n\nInitialize\022#.edu.br" +
+      "own.hstore.InitializeRequest\032$.edu.brown" +
+      ".hstore.InitializeResponse\022Q\n\010Shutdown\022!" +
+      ".edu.brown.hstore.ShutdownRequest\032\".edu." +
+      "brown.hstore.ShutdownResponse\022Q\n\010TimeSyn" +
+      "c\022!.edu.brown.hstore.TimeSyncRequest\032\".e" +
+      "du.brown.hstore.TimeSyncResponse\022Z\n\013Repl" +
+      "ayReady\022$.edu.brown.hstore.ReplayReadyRe" +
+      "quest\032%.edu.brown.hstore.ReplayReadyResp" +
+      "onse\022`\n\rReplayBarrier\022&.edu.brown.hstore",
+      ".ReplayBarrierRequest\032\'.edu.brown.hstore" +
+      ".ReplayBarrierResponse"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
       new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -13746,6 +15291,38 @@ public final class Hstoreservice {
               new java.lang.String[] { "SenderSite", "T0S", "T0R", "T1S", },
               edu.brown.hstore.Hstoreservice.TimeSyncResponse.class,
               edu.brown.hstore.Hstoreservice.TimeSyncResponse.Builder.class);
+          internal_static_edu_brown_hstore_ReplayReadyRequest_descriptor =
+            getDescriptor().getMessageTypes().get(26);
+          internal_static_edu_brown_hstore_ReplayReadyRequest_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_edu_brown_hstore_ReplayReadyRequest_descriptor,
+              new java.lang.String[] { "SenderSite", "Watermark", "SnapshotNonce", },
+              edu.brown.hstore.Hstoreservice.ReplayReadyRequest.class,
+              edu.brown.hstore.Hstoreservice.ReplayReadyRequest.Builder.class);
+          internal_static_edu_brown_hstore_ReplayReadyResponse_descriptor =
+            getDescriptor().getMessageTypes().get(27);
+          internal_static_edu_brown_hstore_ReplayReadyResponse_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_edu_brown_hstore_ReplayReadyResponse_descriptor,
+              new java.lang.String[] { "SenderSite", },
+              edu.brown.hstore.Hstoreservice.ReplayReadyResponse.class,
+              edu.brown.hstore.Hstoreservice.ReplayReadyResponse.Builder.class);
+          internal_static_edu_brown_hstore_ReplayBarrierRequest_descriptor =
+            getDescriptor().getMessageTypes().get(28);
+          internal_static_edu_brown_hstore_ReplayBarrierRequest_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_edu_brown_hstore_ReplayBarrierRequest_descriptor,
+              new java.lang.String[] { "SenderSite", "TransactionId", "Initial", "MultipartitionIds", },
+              edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.class,
+              edu.brown.hstore.Hstoreservice.ReplayBarrierRequest.Builder.class);
+          internal_static_edu_brown_hstore_ReplayBarrierResponse_descriptor =
+            getDescriptor().getMessageTypes().get(29);
+          internal_static_edu_brown_hstore_ReplayBarrierResponse_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_edu_brown_hstore_ReplayBarrierResponse_descriptor,
+              new java.lang.String[] { "SenderSite", },
+              edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.class,
+              edu.brown.hstore.Hstoreservice.ReplayBarrierResponse.Builder.class);
           return null;
         }
       };
@@ -8,6 +8,10 @@ import com.google.protobuf.RpcController;
 import edu.brown.hstore.Hstoreservice.HStoreService;
 import edu.brown.hstore.Hstoreservice.InitializeRequest;
 import edu.brown.hstore.Hstoreservice.InitializeResponse;
+import edu.brown.hstore.Hstoreservice.ReplayBarrierRequest;
+import edu.brown.hstore.Hstoreservice.ReplayBarrierResponse;
+import edu.brown.hstore.Hstoreservice.ReplayReadyRequest;
+import edu.brown.hstore.Hstoreservice.ReplayReadyResponse;
 import edu.brown.hstore.Hstoreservice.SendDataRequest;
 import edu.brown.hstore.Hstoreservice.SendDataResponse;
 import edu.brown.hstore.Hstoreservice.ShutdownRequest;
@@ -149,6 +153,18 @@ public class MockHStoreCoordinator extends HStoreCoordinator {
             
         }
 
+        @Override
+        public void replayReady(RpcController controller, ReplayReadyRequest request, RpcCallback<ReplayReadyResponse> done) {
+            receiveReplayReady(request);
+            done.run(ReplayReadyResponse.newBuilder().setSenderSite(hstore_site.getSiteId()).build());
+        }
+        
+        @Override
+        public void replayBarrier(RpcController controller, ReplayBarrierRequest request, RpcCallback<ReplayBarrierResponse> done) {
+            receiveReplayBarrier(request);
+            done.run(ReplayBarrierResponse.newBuilder().setSenderSite(hstore_site.getSiteId()).build());
+        }
+
         @Override
         public void timeSync(RpcController controller, TimeSyncRequest request, RpcCallback<TimeSyncResponse> done) {
             // TODO Auto-generated method stub
@@ -333,6 +333,44 @@ public class TestBatchPlanner extends BaseTestCase {
         assertEquals(NUM_PARTITIONS-1, remote_frags);
     }
     
+    /**
+     * testMultiSitedPlanCaching
+     */
+    public void testMultiSitedPlanCaching() throws Exception {
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        boolean orig = hstore_conf.site.planner_caching;
+        hstore_conf.site.planner_caching = true;
+
+        try {
+            this.init(MULTISITE_PROCEDURE, MULTISITE_STATEMENT, MULTISITE_PROCEDURE_ARGS);
+            BatchPlanner planner = new BatchPlanner(batch, this.catalog_proc, p_estimator);
+            BatchPlanner.BatchPlan plan = planner.plan(TXN_ID, CLIENT_HANDLE, LOCAL_PARTITION, this.all_partitions, false, this.touched_partitions, this.args);
+            assertFalse(plan.hasMisprediction());
+            plan.getWorkFragments(TXN_ID, fragments);
+            List<WorkFragment> fragments0 = new ArrayList<WorkFragment>(fragments);
+
+            // The same batch at the same partition should get back the exact same WorkFragments
+            fragments.clear();
+            plan = planner.plan(TXN_ID + 1, CLIENT_HANDLE, LOCAL_PARTITION, this.all_partitions, false, this.touched_partitions, this.args);
+            assertFalse(plan.hasMisprediction());
+            plan.getWorkFragments(TXN_ID + 1, fragments);
+            assertEquals(fragments0.size(), fragments.size());
+            for (int i = 0, cnt = fragments0.size(); i < cnt; i++) {
+                assertSame(fragments0.get(i), fragments.get(i));
+            } // FOR
+
+            // But it should not use them if the fragments go to different partitions
+            fragments.clear();
+            plan = planner.plan(TXN_ID + 2, CLIENT_HANDLE, REMOTE_PARTITION, this.all_partitions, false, this.touched_partitions, this.args);
+            assertFalse(plan.hasMisprediction());
+            plan.getWorkFragments(TXN_ID + 2, fragments);
+            assertEquals(1, getLocalFragmentCount(fragments, LOCAL_PARTITION));
+            assertEquals(NUM_PARTITIONS, getRemoteFragmentCount(fragments, LOCAL_PARTITION));
+        } finally {
+            hstore_conf.site.planner_caching = orig;
+        }
+    }
+
     /**
      * testMultiSitedRemotePlan
      */
@@ -6,7 +6,11 @@ import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -14,8 +18,10 @@ import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
 import org.voltdb.catalog.Partition;
 import org.voltdb.catalog.Site;
+import org.voltdb.exceptions.ServerFaultException;
 
 import edu.brown.BaseTestCase;
+import edu.brown.hstore.Hstoreservice.ReplayReadyRequest;
 import edu.brown.hstore.conf.HStoreConf;
 import edu.brown.utils.ProjectType;
 import edu.brown.utils.ThreadUtil;
@@ -168,6 +174,108 @@ public class TestHStoreCoordinator extends BaseTestCase {
         } // FOR
     }
 
+    /**
+     * testReplayReady
+     */
+    @Test
+    public void testReplayReady() throws Exception {
+        final long watermark = 12345l;
+        final String nonce = "replay";
+        final List<ReplayReadyRequest> requests = new ArrayList<ReplayReadyRequest>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 1; i < NUM_SITES; i++) {
+            final HStoreCoordinator m = this.coordinators[i];
+            threads.add(new Thread() {
+                public void run() {
+                    ReplayReadyRequest request = m.awaitReplayReady(10000);
+                    synchronized (requests) {
+                        requests.add(request);
+                    } // SYNCH
+                };
+            });
+        } // FOR
+        for (Thread t : threads) t.start();
+        
+        // Nobody should get past the barrier until site zero says so
+        ThreadUtil.sleep(100);
+        assertTrue(requests.isEmpty());
+        
+        // This will block until everyone acknowledges it
+        this.coordinators[0].replayReady(watermark, nonce);
+        for (Thread t : threads) t.join();
+        assertEquals(NUM_SITES - 1, requests.size());
+        for (ReplayReadyRequest request : requests) {
+            assertEquals(0, request.getSenderSite());
+            assertEquals(watermark, request.getWatermark());
+            assertEquals(nonce, request.getSnapshotNonce());
+        } // FOR
+    }
+    
+    /**
+     * testReplayReadyTimeout
+     */
+    @Test
+    public void testReplayReadyTimeout() throws Exception {
+        // Site zero never says that it restored the snapshot
+        try {
+            this.coordinators[1].awaitReplayReady(100);
+            fail("Expected recovery to fail");
+        } catch (ServerFaultException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Timed out"));
+        }
+    }
+    
+    /**
+     * testReplayBarrier
+     */
+    @Test
+    public void testReplayBarrier() throws Exception {
+        // Site one has a multi-partition txn in its log. Nobody else does
+        final long txn_id = 1000l;
+        for (int i = 0; i < NUM_SITES; i++) {
+            Collection<Long> mp_txns = (i == 1 ? Collections.singleton(txn_id) : Collections.<Long>emptySet());
+            this.coordinators[i].replayBarrier(-1, mp_txns);
+        } // FOR
+        for (int i = 0; i < NUM_SITES; i++) {
+            Map<Long, Integer> barriers = this.coordinators[i].awaitReplayMultiPartitionTxns(10000);
+            assertEquals(1, barriers.size());
+            assertEquals(1, barriers.get(txn_id).intValue());
+        } // FOR
+        
+        // Site one can't replay it until everyone else gets there
+        final List<Integer> others = new ArrayList<Integer>();
+        for (int i = 0; i < NUM_SITES; i++) {
+            if (i != 1) others.add(i);
+        } // FOR
+        final AtomicBoolean released = new AtomicBoolean(false);
+        Thread t = new Thread() {
+            public void run() {
+                coordinators[1].awaitReplayBarrier(txn_id, others, 10000);
+                released.set(true);
+            };
+        };
+        t.start();
+        for (int i : others) {
+            ThreadUtil.sleep(50);
+            assertFalse(released.get());
+            this.coordinators[i].replayBarrier(txn_id, null);
+        } // FOR
+        t.join();
+        assertTrue(released.get());
+        
+        // And everyone else waits for site one to finish it
+        try {
+            this.coordinators[0].awaitReplayBarrier(txn_id + 1, Collections.singleton(1), 100);
+            fail("Expected recovery to fail");
+        } catch (ServerFaultException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Timed out"));
+        }
+        this.coordinators[1].replayBarrier(txn_id + 1, null);
+        for (int i : others) {
+            this.coordinators[i].awaitReplayBarrier(txn_id + 1, Collections.singleton(1), 10000);
+        } // FOR
+    }
+
     /**
      * testStopConnection
      */
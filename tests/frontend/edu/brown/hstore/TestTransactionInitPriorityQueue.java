@@ -0,0 +1,114 @@
+package edu.brown.hstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.voltdb.catalog.Site;
+
+import edu.brown.BaseTestCase;
+import edu.brown.catalog.CatalogUtil;
+import edu.brown.hstore.TransactionInitPriorityQueue.QueueState;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.utils.CollectionUtil;
+import edu.brown.utils.ProjectType;
+
+public class TestTransactionInitPriorityQueue extends BaseTestCase {
+
+    private static final int NUM_THREADS = 4;
+    private static final int NUM_TXNS = 5000;
+    
+    HStoreSite hstore_site;
+    TransactionInitPriorityQueue queue;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TM1);
+        Site catalog_site = CollectionUtil.first(CatalogUtil.getCluster(catalog).getSites());
+        assertNotNull(catalog_site);
+        this.hstore_site = new MockHStoreSite(catalog_site, HStoreConf.singleton());
+        this.queue = new TransactionInitPriorityQueue(hstore_site, 0, 0);
+    }
+    
+    /**
+     * testOutOfOrder
+     */
+    @Test
+    public void testOutOfOrder() throws Exception {
+        TransactionInitPriorityQueue queue = new TransactionInitPriorityQueue(hstore_site, 0, 1000);
+        assertTrue(queue.offer(2000l, true));
+        assertEquals(QueueState.BLOCKED_SAFETY, queue.getQueueState());
+        assertNull(queue.poll());
+        
+        // A smaller txn should become the next one to release if it shows
+        // up before the larger one was released
+        assertTrue(queue.offer(1000l, true));
+        assertNull(queue.peek());
+        
+        // But once it is released, we can't take anything smaller than it
+        queue.m_blockTime = 0;
+        assertEquals(1000l, queue.poll().longValue());
+        assertFalse(queue.offer(999l, true));
+        assertFalse(queue.offer(500l, true));
+        queue.m_blockTime = 0;
+        assertEquals(2000l, queue.poll().longValue());
+        assertFalse(queue.offer(1500l, true));
+        assertTrue(queue.isEmpty());
+    }
+    
+    /**
+     * testConcurrentOfferPoll
+     */
+    @Test
+    public void testConcurrentOfferPoll() throws Exception {
+        // Each thread offers its own increasing sequence of txn ids, but the
+        // threads are interleaved so the queue will get them out of order
+        final AtomicInteger accepted = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int offset = t;
+            new Thread() {
+                public void run() {
+                    for (int i = 1; i <= NUM_TXNS; i++) {
+                        if (queue.offer(Long.valueOf(i * NUM_THREADS + offset), true)) {
+                            accepted.incrementAndGet();
+                        }
+                        if (i % 100 == 0) Thread.yield();
+                    } // FOR
+                    latch.countDown();
+                }
+            }.start();
+        } // FOR
+        
+        // Then make sure that the txn ids that we get out only ever increase
+        final List<Long> released = new ArrayList<Long>();
+        Thread poller = new Thread() {
+            public void run() {
+                while (true) {
+                    boolean done = stop.get();
+                    Long txnId = queue.poll();
+                    if (txnId != null) {
+                        released.add(txnId);
+                    } else if (done && queue.isEmpty()) {
+                        break;
+                    }
+                } // WHILE
+            }
+        };
+        poller.start();
+        latch.await();
+        stop.set(true);
+        poller.join();
+        
+        assertFalse(released.isEmpty());
+        assertEquals(accepted.get(), released.size());
+        for (int i = 1; i < released.size(); i++) {
+            assertTrue(String.format("Released #%d after #%d", released.get(i), released.get(i-1)),
+                       released.get(i) > released.get(i-1));
+        } // FOR
+    }
+}
@@ -0,0 +1,183 @@
+package edu.brown.hstore.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.brown.BaseTestCase;
+import edu.brown.rand.DefaultRandomGenerator;
+
+public class TestConcurrentLongSkipList extends BaseTestCase {
+
+    static final int NUM_KEYS = 1000;
+    static final int NUM_THREADS = 4;
+
+    ConcurrentLongSkipList list;
+    final DefaultRandomGenerator rng = new DefaultRandomGenerator();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.list = new ConcurrentLongSkipList();
+    }
+
+    /**
+     * testAddRemove
+     */
+    public void testAddRemove() throws Exception {
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (int i = 0; i < NUM_KEYS; i++) {
+            long key = rng.nextInt(NUM_KEYS * 10);
+            assertEquals(expected.add(key), this.list.add(key));
+        } // FOR
+        assertEquals(expected.size(), this.list.size());
+        for (Long key : expected) {
+            assertTrue(key.toString(), this.list.contains(key.longValue()));
+        } // FOR
+
+        // Iteration should be in ascending order
+        List<Long> actual = new ArrayList<Long>(this.list);
+        assertEquals(new ArrayList<Long>(expected), actual);
+
+        // Remove half of them
+        for (int i = 0; i < actual.size(); i += 2) {
+            long key = actual.get(i);
+            assertTrue(this.list.remove(key));
+            assertFalse(this.list.remove(key));
+            assertFalse(this.list.contains(key));
+            expected.remove(key);
+        } // FOR
+        assertEquals(expected.size(), this.list.size());
+        assertEquals(new ArrayList<Long>(expected), new ArrayList<Long>(this.list));
+    }
+
+    /**
+     * testPollFirst
+     */
+    public void testPollFirst() throws Exception {
+        assertEquals(ConcurrentLongSkipList.NULL_KEY, this.list.peekFirst());
+        assertEquals(ConcurrentLongSkipList.NULL_KEY, this.list.pollFirst());
+        assertNull(this.list.poll());
+        assertTrue(this.list.isEmpty());
+
+        List<Long> keys = new ArrayList<Long>();
+        for (long i = 0; i < NUM_KEYS; i++) {
+            keys.add(i);
+        } // FOR
+        Collections.shuffle(keys);
+        for (Long key : keys) {
+            assertTrue(this.list.offer(key));
+        } // FOR
+
+        for (long i = 0; i < NUM_KEYS; i++) {
+            assertEquals(i, this.list.peekFirst());
+            assertEquals(Long.valueOf(i), this.list.poll());
+        } // FOR
+        assertTrue(this.list.isEmpty());
+        assertEquals(0, this.list.size());
+    }
+
+    /**
+     * testConcurrentPollFirst
+     */
+    public void testConcurrentPollFirst() throws Exception {
+        for (long i = 0; i < NUM_KEYS * NUM_THREADS; i++) {
+            this.list.add(i);
+        } // FOR
+
+        // Have multiple threads poll from the list at the same time and make sure
+        // that each key was only given out once
+        final AtomicInteger polled[] = new AtomicInteger[NUM_KEYS * NUM_THREADS];
+        for (int i = 0; i < polled.length; i++) {
+            polled[i] = new AtomicInteger(0);
+        } // FOR
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            new Thread() {
+                public void run() {
+                    long key;
+                    while ((key = list.pollFirst()) != ConcurrentLongSkipList.NULL_KEY) {
+                        polled[(int)key].incrementAndGet();
+                    } // WHILE
+                    latch.countDown();
+                }
+            }.start();
+        } // FOR
+        latch.await();
+
+        for (int i = 0; i < polled.length; i++) {
+            assertEquals(Integer.toString(i), 1, polled[i].get());
+        } // FOR
+        assertTrue(this.list.isEmpty());
+        assertEquals(0, this.list.size());
+    }
+
+    /**
+     * testConcurrentAdd
+     */
+    public void testConcurrentAdd() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int offset = t;
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < NUM_KEYS; i++) {
+                        list.add(i * NUM_THREADS + offset);
+                    } // FOR
+                    latch.countDown();
+                }
+            }.start();
+        } // FOR
+        latch.await();
+
+        assertEquals(NUM_KEYS * NUM_THREADS, this.list.size());
+        long last = -1;
+        for (Long key : this.list) {
+            assertEquals(last + 1, key.longValue());
+            last = key;
+        } // FOR
+    }
+
+    /**
+     * testTake
+     */
+    public void testTake() throws Exception {
+        // Nothing in the list, so we should time out
+        long start = System.currentTimeMillis();
+        assertNull(this.list.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 40);
+        
+        // Then make sure that the blocked threads wake up when somebody adds a key
+        final List<Long> taken = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final boolean timeout = (t % 2 == 0);
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < NUM_KEYS; i++) {
+                            Long key = (timeout ? list.poll(10, TimeUnit.SECONDS) : list.take());
+                            assertNotNull(key);
+                            taken.add(key);
+                        } // FOR
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        } // FOR
+        for (long key = 0; key < NUM_KEYS * NUM_THREADS; key++) {
+            this.list.put(key);
+            if (key % 100 == 0) Thread.yield();
+        } // FOR
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(this.list.isEmpty());
+        assertEquals(NUM_KEYS * NUM_THREADS, taken.size());
+        assertEquals(NUM_KEYS * NUM_THREADS, new TreeSet<Long>(taken).size());
+    }
+}
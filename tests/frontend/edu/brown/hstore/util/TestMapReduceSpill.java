@@ -0,0 +1,185 @@
+package edu.brown.hstore.util;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import edu.brown.statistics.Histogram;
+import edu.brown.utils.FileUtil;
+
+public class TestMapReduceSpill extends TestCase {
+
+    static final VoltTable.ColumnInfo[] SCHEMA = new VoltTable.ColumnInfo[] {
+        new VoltTable.ColumnInfo("KEY", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("COUNTER", VoltType.BIGINT),
+    };
+    static final int NUM_RUNS = 4;
+    static final int NUM_ROWS = 500;
+    static final int NUM_KEYS = 50;
+    static final int BLOCK_SIZE = 512;
+    static final Random rand = new Random();
+
+    private File dir;
+    private MapReduceSpill spill;
+    private final Histogram<Long> expected = new Histogram<Long>();
+
+    @Override
+    protected void setUp() throws Exception {
+        this.dir = FileUtil.getTempDirectory();
+        this.spill = new MapReduceSpill(this.dir, "test", BLOCK_SIZE);
+
+        VoltTable table = new VoltTable(SCHEMA);
+        for (int run = 0; run < NUM_RUNS; run++) {
+            for (int i = 0; i < NUM_ROWS; i++) {
+                long key = rand.nextInt(NUM_KEYS);
+                table.addRow(key, 1l);
+                this.expected.put(key);
+            } // FOR
+            this.spill.spill(table);
+            table.clearRowData();
+        } // FOR
+        assertEquals(NUM_RUNS, this.spill.getRunCount());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.spill.cleanup();
+        this.dir.delete();
+    }
+
+    /**
+     * testSpill
+     */
+    public void testSpill() throws Exception {
+        assertTrue(this.spill.hasRuns());
+        assertTrue(this.spill.getSpillBytes() > 0);
+        assertEquals(NUM_RUNS, this.dir.listFiles().length);
+
+        this.spill.cleanup();
+        assertFalse(this.spill.hasRuns());
+        assertEquals(0, this.dir.listFiles().length);
+    }
+
+    /**
+     * testMerge
+     */
+    public void testMerge() throws Exception {
+        Histogram<Long> actual = new Histogram<Long>();
+        Set<Long> seen = new HashSet<Long>();
+        long last = -1;
+        MapReduceSpill.MergeIterator<Long> rows = this.spill.merge();
+        while (rows.nextKey()) {
+            // The keys should be in order and we should only see each key once
+            long key = rows.getKey();
+            assertTrue(last + " -> " + key, last < key);
+            assertTrue(Long.toString(key), seen.add(key));
+            while (rows.hasNext()) {
+                assertEquals(key, rows.next().getLong(0));
+                actual.put(key);
+            } // WHILE
+            last = key;
+        } // WHILE
+        assertTrue(rows.getFinish());
+        assertEquals(NUM_RUNS * NUM_ROWS, actual.getSampleCount());
+        assertEquals(NUM_RUNS * NUM_ROWS, rows.getPosition());
+        for (Long key : this.expected.values()) {
+            assertEquals(key.toString(), this.expected.get(key), actual.get(key));
+        } // FOR
+    }
+
+    /**
+     * testMergeHotKey
+     */
+    public void testMergeHotKey() throws Exception {
+        // Add a key that is much bigger than a single block in every run
+        long hot_key = NUM_KEYS / 2;
+        int hot_rows = BLOCK_SIZE;
+        VoltTable table = new VoltTable(SCHEMA);
+        for (int run = 0; run < NUM_RUNS; run++) {
+            for (int i = 0; i < hot_rows; i++) {
+                table.addRow(hot_key, 1l);
+                this.expected.put(hot_key);
+            } // FOR
+            this.spill.spill(table);
+            table.clearRowData();
+        } // FOR
+
+        Histogram<Long> actual = new Histogram<Long>();
+        MapReduceSpill.MergeIterator<Long> rows = this.spill.merge();
+        while (rows.nextKey()) {
+            long key = rows.getKey();
+            // Skip over some of the rows for the other keys to make sure
+            // that nextKey() still moves us to the next group
+            int ctr = 0;
+            while (rows.hasNext()) {
+                assertEquals(key, rows.next().getLong(0));
+                actual.put(key);
+                if (key != hot_key && ++ctr == 2) break;
+            } // WHILE
+        } // WHILE
+        assertEquals(this.expected.get(hot_key), actual.get(hot_key));
+        assertTrue(actual.get(hot_key) >= NUM_RUNS * hot_rows);
+        assertEquals(this.expected.getValueCount(), actual.getValueCount());
+    }
+
+    /**
+     * testQueueSpill
+     */
+    public void testQueueSpill() throws Exception {
+        // The tables are written out by the spill service thread
+        for (int run = 0; run < NUM_RUNS; run++) {
+            VoltTable table = new VoltTable(SCHEMA);
+            for (int i = 0; i < NUM_ROWS; i++) {
+                long key = rand.nextInt(NUM_KEYS);
+                table.addRow(key, 1l);
+                this.expected.put(key);
+            } // FOR
+            this.spill.queueSpill(table);
+        } // FOR
+        this.spill.waitForSpills();
+        assertEquals(NUM_RUNS * 2, this.spill.getRunCount());
+
+        // The merge should include everything that was queued
+        long total = 0;
+        MapReduceSpill.MergeIterator<Long> rows = this.spill.merge();
+        while (rows.nextKey()) {
+            while (rows.hasNext()) {
+                rows.next();
+                total++;
+            } // WHILE
+        } // WHILE
+        assertEquals(this.expected.getSampleCount(), total);
+    }
+
+    /**
+     * testCleanupQueuedSpills
+     */
+    public void testCleanupQueuedSpills() throws Exception {
+        // Anything that is still queued when we clean up must not leave a run file behind
+        for (int run = 0; run < NUM_RUNS; run++) {
+            VoltTable table = new VoltTable(SCHEMA);
+            for (int i = 0; i < NUM_ROWS; i++) {
+                table.addRow((long)rand.nextInt(NUM_KEYS), 1l);
+            } // FOR
+            this.spill.queueSpill(table);
+        } // FOR
+        this.spill.cleanup();
+        assertFalse(this.spill.hasRuns());
+        assertEquals(0, this.dir.listFiles().length);
+
+        // And nothing gets written out after the cleanup
+        VoltTable table = new VoltTable(SCHEMA);
+        table.addRow(1l, 1l);
+        this.spill.spill(table);
+        this.spill.queueSpill(table);
+        this.spill.waitForSpills();
+        assertFalse(this.spill.hasRuns());
+        assertEquals(0, this.dir.listFiles().length);
+    }
+}
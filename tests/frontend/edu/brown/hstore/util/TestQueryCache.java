@@ -103,6 +103,83 @@ public class TestQueryCache extends BaseTestCase {
         
     }
     
+    /**
+     * testGlobalCacheGet
+     */
+    public void testGlobalCacheGet() throws Exception {
+        int fragmentId = 2222;
+        int partitionId = 1;
+        int tableIds[] = { 1, 3 };
+        ParameterSet params = new ParameterSet("Squirrels", 1981);
+        VoltTable result = new VoltTable(TARGET_RESULT);
+        result.addRow(9900l);
+        this.cache.addGlobalQueryResult(fragmentId, partitionId, params, result, tableIds);
+        
+        // Make sure that we get back a different VoltTable with the same data
+        // and that it isn't tied to the ParameterSet that we passed in
+        params.setParameters("Squi" + "rrels", 1981);
+        VoltTable cacheResult = this.cache.getGlobalCachedResult(fragmentId, partitionId, params);
+        assertNotNull(cacheResult);
+        assertNotSame(result, cacheResult);
+        assertEquals(1, cacheResult.getRowCount());
+        assertEquals(9900l, cacheResult.asScalarLong());
+        
+        // Different partitions or parameters should not match
+        assertNull(this.cache.getGlobalCachedResult(fragmentId, partitionId+1, params));
+        assertNull(this.cache.getGlobalCachedResult(fragmentId, partitionId, new ParameterSet("WuTang!", 1981)));
+        
+        // Modifying a table that we didn't read from should not invalidate the entry
+        this.cache.invalidateTables(new int[]{ 2 });
+        assertNotNull(this.cache.getGlobalCachedResult(fragmentId, partitionId, params));
+        
+        // But modifying one that we did read should
+        this.cache.invalidateTables(new int[]{ 3 });
+        assertNull(this.cache.getGlobalCachedResult(fragmentId, partitionId, params));
+        assertEquals(0, this.cache.getGlobalCacheSize());
+    }
     
+    /**
+     * testGlobalCacheEviction
+     */
+    public void testGlobalCacheEviction() throws Exception {
+        int partitionId = 1;
+        int tableIds[] = { 1 };
+        ParameterSet params = new ParameterSet("Squirrels", 1981);
+        VoltTable result = new VoltTable(TARGET_RESULT);
+        result.addRow(9900l);
+        
+        for (int i = 0; i < globalBufferSize; i++) {
+            this.cache.addGlobalQueryResult(i, partitionId, params, result, tableIds);
+        } // FOR
+        assertEquals(globalBufferSize, this.cache.getGlobalCacheSize());
+        
+        // Touch the first entry so that it is no longer the least recently used one
+        assertNotNull(this.cache.getGlobalCachedResult(0, partitionId, params));
+        this.cache.addGlobalQueryResult(globalBufferSize, partitionId, params, result, tableIds);
+        assertEquals(globalBufferSize, this.cache.getGlobalCacheSize());
+        assertEquals(1, this.cache.getGlobalCacheEvictions());
+        assertNotNull(this.cache.getGlobalCachedResult(0, partitionId, params));
+        assertNull(this.cache.getGlobalCachedResult(1, partitionId, params));
+        assertNotNull(this.cache.getGlobalCachedResult(globalBufferSize, partitionId, params));
+    }
     
+    /**
+     * testPurgeTransaction
+     */
+    public void testPurgeTransaction() throws Exception {
+        Long txnId = new Long(123456);
+        int fragmentId = 1111;
+        int partitionId = 1;
+        ParameterSet params = new ParameterSet("Squirrels", 1981);
+        VoltTable result = new VoltTable(TARGET_RESULT);
+        result.addRow(9900l);
+        
+        this.cache.addTransactionQueryResult(txnId, fragmentId, partitionId, params, result);
+        assertNotNull(this.cache.getTransactionCachedResult(txnId, fragmentId, partitionId, params));
+        assertNull(this.cache.getTransactionCachedResult(txnId+1, fragmentId, partitionId, params));
+        assertNull(this.cache.getGlobalCachedResult(fragmentId, partitionId, params));
+        
+        this.cache.purgeTransaction(txnId);
+        assertNull(this.cache.getTransactionCachedResult(txnId, fragmentId, partitionId, params));
+    }
 }
@@ -0,0 +1,303 @@
+package edu.brown.hstore.wal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.StoredProcedureInvocation;
+import org.voltdb.TransactionIdManager;
+import org.voltdb.VoltProcedure;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Site;
+import org.voltdb.messaging.FastDeserializer;
+import org.voltdb.sysprocs.saverestore.SnapshotUtil;
+
+import com.google.protobuf.RpcCallback;
+
+import edu.brown.BaseTestCase;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.benchmark.tm1.procedures.UpdateSubscriberData;
+import edu.brown.catalog.CatalogUtil;
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.MockHStoreSite;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.utils.CollectionUtil;
+import edu.brown.utils.FileUtil;
+import edu.brown.utils.ProjectType;
+import edu.brown.utils.ThreadUtil;
+
+public class TestCommandLogReplayer extends BaseTestCase {
+
+    static final int BASE_PARTITION = 0;
+    
+    @SuppressWarnings("unchecked")
+    static final Class<? extends VoltProcedure>[] TARGET_PROC = (Class<? extends VoltProcedure>[])new Class<?>[]{
+        UpdateLocation.class,
+        UpdateSubscriberData.class
+    };
+    static final Object TARGET_PARAMS[][] = new Object[][]{{ 12345l, "ABCDEF"},{ 666l, 777l, 888l, 999l}};
+    
+    /**
+     * Records every request that the replayer submits instead of executing it
+     */
+    private static class ReplayHStoreSite extends MockHStoreSite {
+        private final List<StoredProcedureInvocation> invocations = new ArrayList<StoredProcedureInvocation>();
+        
+        public ReplayHStoreSite(Site catalog_site, HStoreConf hstore_conf) {
+            super(catalog_site, hstore_conf);
+        }
+        @Override
+        public void processInvocation(ByteBuffer buffer, RpcCallback<ClientResponseImpl> clientCallback) {
+            StoredProcedureInvocation spi = null;
+            try {
+                spi = new FastDeserializer(buffer).readObject(StoredProcedureInvocation.class);
+                spi.buildParameterSet();
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            synchronized (this.invocations) {
+                this.invocations.add(spi);
+            } // SYNCH
+            clientCallback.run(new ClientResponseImpl(spi.getClientHandle(),
+                                                      spi.getClientHandle(),
+                                                      BASE_PARTITION,
+                                                      Status.OK,
+                                                      HStoreConstants.EMPTY_RESULT,
+                                                      ""));
+        }
+    }
+    
+    ReplayHStoreSite hstore_site;
+    Procedure catalog_proc[];
+    File outputFile;
+    File snapshotDir;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TM1);
+        this.catalog_proc = new Procedure[2];
+        this.catalog_proc[0] = this.getProcedure(TARGET_PROC[0]);
+        this.catalog_proc[1] = this.getProcedure(TARGET_PROC[1]);
+        
+        Site catalog_site = CollectionUtil.first(CatalogUtil.getCluster(catalog).getSites());
+        assertEquals(0, catalog_site.getId());
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_timeout = 1000;
+        hstore_conf.site.commandlog_replay = true;
+        hstore_site = new ReplayHStoreSite(catalog_site, hstore_conf);
+        
+        outputFile = FileUtil.getTempFile("log");
+        snapshotDir = FileUtil.getTempDirectory();
+        hstore_conf.site.commandlog_replay_snapshot_dir = snapshotDir.getAbsolutePath();
+    }
+    
+    @Override
+    public void tearDown() throws Exception {
+        HStoreConf.singleton().site.commandlog_replay = false;
+        if (outputFile != null) {
+            if (outputFile.exists()) outputFile.delete();
+            CommandLogCheckpoint.getCheckpointFile(outputFile).delete();
+        }
+        if (snapshotDir != null) {
+            for (File f : snapshotDir.listFiles()) f.delete();
+            snapshotDir.delete();
+        }
+    }
+    
+    private void writeEntry(CommandLogWriter writer, long txnId, int idx) {
+        LocalTransaction ts = new LocalTransaction(hstore_site);
+        ts.testInit(new Long(txnId),
+                    BASE_PARTITION,
+                    Collections.singleton(BASE_PARTITION),
+                    catalog_proc[idx],
+                    TARGET_PARAMS[idx]);
+        ClientResponseImpl cresponse = new ClientResponseImpl(txnId,
+                                                              0l,
+                                                              BASE_PARTITION,
+                                                              Status.OK,
+                                                              HStoreConstants.EMPTY_RESULT,
+                                                              "");
+        writer.appendToLog(ts, cresponse);
+    }
+    
+    /**
+     * Write out a snapshot digest that does not have any tables in it
+     * SnapshotUtil.recordSnapshotTableList() does not end the table list
+     * with a newline if it is empty, so it can't read those back in.
+     */
+    private void writeDigest(long snapshotTime, String nonce) throws Exception {
+        byte contents[] = (Long.toString(snapshotTime) + "\n").getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        ByteBuffer buffer = ByteBuffer.allocate(contents.length + 4);
+        buffer.putInt((int)crc.getValue());
+        buffer.put(contents);
+        FileOutputStream out = new FileOutputStream(new File(snapshotDir, SnapshotUtil.constructDigestFilenameForNonce(nonce)));
+        out.write(buffer.array());
+        out.close();
+    }
+    
+    /**
+     * Returns the txn ids of all of the non-sysproc requests that were replayed
+     */
+    private List<Long> getReplayedTxnIds() {
+        List<Long> txnIds = new ArrayList<Long>();
+        for (StoredProcedureInvocation spi : hstore_site.invocations) {
+            if (spi.getProcName().startsWith("@") == false) txnIds.add(spi.getClientHandle());
+        } // FOR
+        Collections.sort(txnIds);
+        return (txnIds);
+    }
+    
+    private StoredProcedureInvocation getSnapshotRestore() {
+        StoredProcedureInvocation restore = null;
+        for (StoredProcedureInvocation spi : hstore_site.invocations) {
+            if (spi.getProcName().equals("@SnapshotRestore")) {
+                assertNull(restore);
+                restore = spi;
+            }
+        } // FOR
+        return (restore);
+    }
+    
+    /**
+     * testSnapshotWatermark
+     */
+    @Test
+    public void testSnapshotWatermark() throws Exception {
+        long snapshotTime = System.currentTimeMillis();
+        long watermark = CommandLogReplayer.getSnapshotWatermark(snapshotTime);
+        
+        // Any txn id that was created in the millisecond before the snapshot
+        // started has to come before the watermark. Anything created
+        // on or after the snapshot's start time cannot.
+        long before = TransactionIdManager.makeIdFromComponents(snapshotTime - 1, 8191, 1023);
+        assertTrue(before < watermark);
+        for (long counter : new long[]{ 0, 1, 8191 }) {
+            long after = TransactionIdManager.makeIdFromComponents(snapshotTime, counter, 0);
+            assertTrue(after >= watermark);
+            assertTrue(TransactionIdManager.makeIdFromComponents(snapshotTime + 1, counter, 0) > watermark);
+        } // FOR
+        assertEquals(snapshotTime, TransactionIdManager.getTimestampFromTransactionId(watermark));
+    }
+    
+    /**
+     * testReplayFromSnapshot
+     */
+    @Test
+    public void testReplayFromSnapshot() throws Exception {
+        long snapshotTime = System.currentTimeMillis();
+        String nonce = "replay";
+        this.writeDigest(snapshotTime, nonce);
+        
+        // Write out entries with txn ids on both sides of the snapshot's watermark
+        long expected[] = {
+            TransactionIdManager.makeIdFromComponents(snapshotTime, 0, 0),
+            TransactionIdManager.makeIdFromComponents(snapshotTime, 1, 0),
+            TransactionIdManager.makeIdFromComponents(snapshotTime + 100, 0, 0),
+        };
+        long skipped[] = {
+            TransactionIdManager.makeIdFromComponents(snapshotTime - 100, 0, 0),
+            TransactionIdManager.makeIdFromComponents(snapshotTime - 1, 8191, 1023),
+        };
+        CommandLogWriter writer = new CommandLogWriter(hstore_site, outputFile);
+        for (int i = 0; i < skipped.length; i++) {
+            this.writeEntry(writer, skipped[i], i % 2);
+        } // FOR
+        for (int i = 0; i < expected.length; i++) {
+            this.writeEntry(writer, expected[i], i % 2);
+        } // FOR
+        writer.flush();
+        writer.shutdown();
+        
+        CommandLogReplayer replayer = new CommandLogReplayer(hstore_site, Collections.singleton(outputFile));
+        assertEquals(expected.length, replayer.run());
+        
+        StoredProcedureInvocation restore = this.getSnapshotRestore();
+        assertNotNull(restore);
+        assertEquals(snapshotDir.getAbsolutePath(), restore.getParams().toArray()[0]);
+        assertEquals(nonce, restore.getParams().toArray()[1]);
+        
+        List<Long> replayed = this.getReplayedTxnIds();
+        assertEquals(expected.length, replayed.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], replayed.get(i).longValue());
+        } // FOR
+    }
+    
+    /**
+     * testReplayFromCheckpoint
+     */
+    @Test
+    public void testReplayFromCheckpoint() throws Exception {
+        // Even if there is a newer snapshot on disk, we should use the one
+        // that the log's checkpoint was taken for
+        long snapshotTime = System.currentTimeMillis();
+        this.writeDigest(snapshotTime + 10000, "newer");
+        
+        long txnId = TransactionIdManager.makeIdFromComponents(snapshotTime, 0, 0);
+        CommandLogWriter writer = new CommandLogWriter(hstore_site, outputFile);
+        this.writeEntry(writer, txnId++, 0);
+        this.writeEntry(writer, txnId++, 1);
+        writer.flush();
+        
+        // This entry is written after the checkpoint's position but its txn
+        // id is below the watermark, so the snapshot already has it
+        long watermark = txnId + 10;
+        writer.startCheckpoint(snapshotDir.getAbsolutePath(), "checkpoint", BASE_PARTITION, watermark);
+        this.writeEntry(writer, txnId, 0);
+        long expected[] = { watermark, watermark + 1 };
+        this.writeEntry(writer, expected[0], 1);
+        this.writeEntry(writer, expected[1], 0);
+        writer.flush();
+        writer.finishCheckpoint("checkpoint");
+        for (int i = 0; i < 100 && writer.getCheckpoint() != null; i++) {
+            writer.flush();
+            ThreadUtil.sleep(10);
+        } // FOR
+        assertNull(writer.getCheckpoint());
+        writer.shutdown();
+        assertNotNull(CommandLogCheckpoint.load(outputFile));
+        
+        CommandLogReplayer replayer = new CommandLogReplayer(hstore_site, Collections.singleton(outputFile));
+        assertEquals(expected.length, replayer.run());
+        
+        StoredProcedureInvocation restore = this.getSnapshotRestore();
+        assertNotNull(restore);
+        assertEquals("checkpoint", restore.getParams().toArray()[1]);
+        
+        List<Long> replayed = this.getReplayedTxnIds();
+        assertEquals(expected.length, replayed.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], replayed.get(i).longValue());
+        } // FOR
+    }
+    
+    /**
+     * testReplayWithoutSnapshot
+     */
+    @Test
+    public void testReplayWithoutSnapshot() throws Exception {
+        // If there is nothing to restore, then we have to replay the entire log
+        long txnId = TransactionIdManager.makeIdFromComponents(System.currentTimeMillis(), 0, 0);
+        CommandLogWriter writer = new CommandLogWriter(hstore_site, outputFile);
+        for (int i = 0; i < 4; i++) {
+            this.writeEntry(writer, txnId + i, i % 2);
+        } // FOR
+        writer.flush();
+        writer.shutdown();
+        
+        CommandLogReplayer replayer = new CommandLogReplayer(hstore_site, Collections.singleton(outputFile));
+        assertEquals(4, replayer.run());
+        assertNull(this.getSnapshotRestore());
+        assertEquals(4, this.getReplayedTxnIds().size());
+    }
+}
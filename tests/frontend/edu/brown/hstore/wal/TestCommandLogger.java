@@ -26,7 +26,9 @@
 package edu.brown.hstore.wal;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
@@ -48,6 +50,7 @@ import edu.brown.hstore.txns.LocalTransaction;
 import edu.brown.utils.CollectionUtil;
 import edu.brown.utils.FileUtil;
 import edu.brown.utils.ProjectType;
+import edu.brown.utils.ThreadUtil;
 
 /**
  * @author mkirsch
@@ -89,8 +92,337 @@ public class TestCommandLogger extends BaseTestCase {
 
     @Override
     public void tearDown() throws Exception {
-        if (outputFile != null && outputFile.exists())
-            outputFile.delete();
+        HStoreConf.singleton().site.commandlog_replay = false;
+        HStoreConf.singleton().site.commandlog_mmap = false;
+        if (outputFile != null) {
+            if (outputFile.exists()) outputFile.delete();
+            CommandLogCheckpoint.getCheckpointFile(outputFile).delete();
+            for (File f : CommandLogWriter.getSegmentFiles(outputFile)) f.delete();
+            for (File f : CommandLogWriter.getSegmentFiles(new File(outputFile.getPath() + ".free"))) f.delete();
+        }
+    }
+    
+    private long writeEntry(CommandLogWriter writer, int idx) {
+        LocalTransaction ts = new LocalTransaction(hstore_site);
+        long txnId = TXN_ID.incrementAndGet(); 
+        ts.testInit(new Long(txnId),
+                    BASE_PARTITION,
+                    Collections.singleton(BASE_PARTITION),
+                    catalog_proc[idx],
+                    TARGET_PARAMS[idx]);
+        ClientResponseImpl cresponse = new ClientResponseImpl(txnId,
+                                                              0l,
+                                                              BASE_PARTITION,
+                                                              Status.OK,
+                                                              HStoreConstants.EMPTY_RESULT,
+                                                              "");
+        boolean ret = writer.appendToLog(ts, cresponse);
+        assertFalse(ret);
+        return (txnId);
+    }
+    
+    /**
+     * testPartitionedWriter
+     */
+    @Test
+    public void testPartitionedWriter() throws Exception {
+        logger.shutdown();
+        
+        CommandLogWriter writer = new CommandLogWriter(hstore_site, outputFile, Collections.singleton(BASE_PARTITION));
+        assertEquals(1, writer.getPartitions().size());
+        assertEquals(BASE_PARTITION, CollectionUtil.first(writer.getPartitions()).intValue());
+        
+        long txnId[] = new long[2];
+        for (int i = 0; i < txnId.length; i++) {
+            txnId[i] = this.writeEntry(writer, i);
+        } // FOR
+        writer.flush();
+        writer.shutdown();
+        
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        int ctr = 0;
+        for (LogEntry entry : reader) {
+            assertEquals(txnId[ctr], entry.getTransactionId().longValue());
+            assertEquals(catalog_proc[ctr].getId(), entry.getProcedureId());
+            ctr++;
+        } // FOR
+        assertEquals(txnId.length, ctr);
+    }
+    
+    /**
+     * testSegments
+     */
+    @Test
+    public void testSegments() throws Exception {
+        logger.shutdown();
+        outputFile.delete();
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_mmap = true;
+        hstore_conf.site.commandlog_segment_size = 1;
+        
+        // Write out a few txns to the first segment
+        CommandLogWriter writer = new CommandLogWriter(hstore_site, outputFile);
+        for (int i = 0; i < 3; i++) {
+            this.writeEntry(writer, i % 2);
+            writer.flush();
+        } // FOR
+        writer.shutdown();
+        List<File> segments = CommandLogWriter.getSegmentFiles(outputFile);
+        assertEquals(1, segments.size());
+        File segment = CollectionUtil.first(segments);
+        assertEquals(hstore_conf.site.commandlog_segment_size * 1048576l, segment.length());
+        int ctr = 0;
+        for (@SuppressWarnings("unused") LogEntry entry : new CommandLogReader(segment.getAbsolutePath())) {
+            ctr++;
+        } // FOR
+        assertEquals(3, ctr);
+        
+        // Now start a new log. It should reuse the old segment file, but we
+        // should not be able to see any of the old entries
+        writer = new CommandLogWriter(hstore_site, outputFile);
+        long txnId = this.writeEntry(writer, 1);
+        writer.flush();
+        writer.shutdown();
+        segments = CommandLogWriter.getLogFiles(outputFile);
+        assertEquals(1, segments.size());
+        ctr = 0;
+        for (LogEntry entry : new CommandLogReader(CollectionUtil.first(segments).getAbsolutePath())) {
+            assertEquals(txnId, entry.getTransactionId().longValue());
+            ctr++;
+        } // FOR
+        assertEquals(1, ctr);
+        
+        // And if we are replaying, then we should append to the existing segment
+        hstore_conf.site.commandlog_replay = true;
+        writer = new CommandLogWriter(hstore_site, outputFile);
+        long nextTxnId = this.writeEntry(writer, 0);
+        writer.flush();
+        writer.shutdown();
+        long expected[] = { txnId, nextTxnId };
+        ctr = 0;
+        for (LogEntry entry : new CommandLogReader(CollectionUtil.first(segments).getAbsolutePath())) {
+            assertEquals(expected[ctr++], entry.getTransactionId().longValue());
+        } // FOR
+        assertEquals(expected.length, ctr);
+    }
+    
+    private CommandLogCheckpoint waitForCheckpoint(CommandLogWriter writer) throws Exception {
+        File f = CommandLogCheckpoint.getCheckpointFile(outputFile);
+        for (int i = 0; i < 100 && writer.getCheckpoint() != null; i++) {
+            writer.flush();
+            ThreadUtil.sleep(10);
+        } // FOR
+        assertNull(writer.getCheckpoint());
+        assertTrue(f.getAbsolutePath(), f.exists());
+        return (CommandLogCheckpoint.load(outputFile));
+    }
+    
+    /**
+     * testCheckpoint
+     */
+    @Test
+    public void testCheckpoint() throws Exception {
+        long txnId[] = new long[5];
+        txnId[0] = this.writeEntry(logger, 0);
+        txnId[1] = this.writeEntry(logger, 1);
+        logger.flush();
+        
+        // Everything that we write after the snapshot starts should
+        // come after the checkpoint's position in the log
+        long watermark = TXN_ID.get() + 1;
+        logger.startCheckpoint("/tmp", "checkpoint", BASE_PARTITION, watermark);
+        assertNotNull(logger.getCheckpoint());
+        txnId[2] = this.writeEntry(logger, 0);
+        txnId[3] = this.writeEntry(logger, 1);
+        logger.flush();
+        
+        // Nothing should be written out until the snapshot is finished
+        logger.finishCheckpoint("xxx");
+        assertNotNull(logger.getCheckpoint());
+        assertFalse(CommandLogCheckpoint.getCheckpointFile(outputFile).exists());
+        logger.finishCheckpoint("checkpoint");
+        CommandLogCheckpoint cp = this.waitForCheckpoint(logger);
+        
+        // We should still be able to write to the log after it was truncated
+        txnId[4] = this.writeEntry(logger, 0);
+        logger.flush();
+        logger.shutdown();
+        assertEquals("/tmp", cp.snapshot_path);
+        assertEquals("checkpoint", cp.snapshot_nonce);
+        assertEquals(watermark, cp.getWatermark(BASE_PARTITION));
+        assertEquals(watermark, cp.getWatermark(HStoreConstants.NULL_PARTITION_ID));
+        assertEquals(-1, cp.segment);
+        assertTrue(cp.hasPosition());
+        assertTrue(cp.offset < outputFile.length());
+        
+        // Starting from the checkpoint should skip the entries that
+        // were written before the snapshot
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath(), cp.offset);
+        int ctr = 2;
+        for (LogEntry entry : reader) {
+            assertEquals(txnId[ctr++], entry.getTransactionId().longValue());
+        } // FOR
+        assertEquals(txnId.length, ctr);
+        
+        // And the log file should have been truncated so that it only
+        // has the entries that were written after the checkpoint
+        reader = new CommandLogReader(outputFile.getAbsolutePath());
+        ctr = 2;
+        for (LogEntry entry : reader) {
+            assertEquals(txnId[ctr++], entry.getTransactionId().longValue());
+        } // FOR
+        assertEquals(txnId.length, ctr);
+        
+        // A new log should throw away the old checkpoint
+        logger = new CommandLogWriter(hstore_site, outputFile);
+        logger.shutdown();
+        assertNull(CommandLogCheckpoint.load(outputFile));
+    }
+    
+    /**
+     * testCheckpointSegments
+     */
+    @Test
+    public void testCheckpointSegments() throws Exception {
+        logger.shutdown();
+        outputFile.delete();
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_mmap = true;
+        hstore_conf.site.commandlog_segment_size = 1;
+        
+        // Fake an older segment by copying the first one. Reopening the log for replay
+        // will then append to the second segment
+        CommandLogWriter writer = new CommandLogWriter(hstore_site, outputFile);
+        this.writeEntry(writer, 0);
+        writer.flush();
+        writer.shutdown();
+        File first = CommandLogWriter.getSegmentFile(outputFile, 0);
+        File second = CommandLogWriter.getSegmentFile(outputFile, 1);
+        FileOutputStream out = new FileOutputStream(second);
+        out.write(FileUtil.readBytesFromFile(first.getAbsolutePath()));
+        out.close();
+        hstore_conf.site.commandlog_replay = true;
+        writer = new CommandLogWriter(hstore_site, outputFile);
+        
+        writer.startCheckpoint("/tmp", "segments", BASE_PARTITION, TXN_ID.get() + 1);
+        long txnId = this.writeEntry(writer, 1);
+        writer.finishCheckpoint("segments");
+        CommandLogCheckpoint cp = this.waitForCheckpoint(writer);
+        writer.shutdown();
+        assertEquals(1, cp.segment);
+        
+        // The first segment is no longer needed, so it should have been recycled
+        List<File> segments = CommandLogWriter.getSegmentFiles(outputFile);
+        assertEquals(1, segments.size());
+        assertEquals(second, CollectionUtil.first(segments));
+        CommandLogReader reader = new CommandLogReader(second.getAbsolutePath(), cp.offset);
+        int ctr = 0;
+        for (LogEntry entry : reader) {
+            assertEquals(txnId, entry.getTransactionId().longValue());
+            ctr++;
+        } // FOR
+        assertEquals(1, ctr);
+    }
+    
+    /**
+     * testReplayAppend
+     */
+    @Test
+    public void testReplayAppend() throws Exception {
+        long txnId[] = new long[3];
+        txnId[0] = this.writeEntry(logger, 0);
+        logger.flush();
+        logger.flush(); // Empty blocks should not show up in the file
+        txnId[1] = this.writeEntry(logger, 1);
+        logger.flush();
+        logger.shutdown();
+        
+        // Pretend that we crashed in the middle of writing out a block
+        long validLength = outputFile.length();
+        FileOutputStream out = new FileOutputStream(outputFile, true);
+        out.write(new byte[]{ 0, 0, 0, 99, 1, 2, 3 });
+        out.close();
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        int ctr = 0;
+        for (LogEntry entry : reader) {
+            assertEquals(txnId[ctr++], entry.getTransactionId().longValue());
+        }
+        assertEquals(2, ctr);
+        assertEquals(validLength, reader.getValidLength());
+        
+        // Reopening the log for replay should chop off the garbage and keep
+        // appending to the end of the existing file
+        HStoreConf.singleton().site.commandlog_replay = true;
+        CommandLogWriter writer = new CommandLogWriter(hstore_site, outputFile);
+        assertEquals(validLength, outputFile.length());
+        txnId[2] = this.writeEntry(writer, 0);
+        writer.flush();
+        writer.shutdown();
+        
+        reader = new CommandLogReader(outputFile.getAbsolutePath());
+        ctr = 0;
+        for (LogEntry entry : reader) {
+            assertEquals(txnId[ctr], entry.getTransactionId().longValue());
+            assertEquals(catalog_proc[ctr == 1 ? 1 : 0].getId(), entry.getProcedureId());
+            ctr++;
+        }
+        assertEquals(txnId.length, ctr);
+    }
+    
+    /**
+     * testCorruptBlock
+     */
+    @Test
+    public void testCorruptBlock() throws Exception {
+        // Write each txn out in its own block and remember where they end
+        long txnId[] = new long[3];
+        long blockEnd[] = new long[txnId.length + 1];
+        blockEnd[0] = outputFile.length();
+        for (int i = 0; i < txnId.length; i++) {
+            txnId[i] = this.writeEntry(logger, i % 2);
+            logger.flush();
+            blockEnd[i+1] = outputFile.length();
+        } // FOR
+        logger.shutdown();
+        byte original[] = FileUtil.readBytesFromFile(outputFile.getAbsolutePath());
+        
+        // Garbage in the last block is a torn write, so we should just stop there
+        this.corruptBlock(original, blockEnd[2], blockEnd[3]);
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        int ctr = 0;
+        for (LogEntry entry : reader) {
+            assertEquals(txnId[ctr++], entry.getTransactionId().longValue());
+        } // FOR
+        assertEquals(2, ctr);
+        assertEquals(blockEnd[2], reader.getValidLength());
+        
+        // But garbage in the middle of the log means that we would lose
+        // committed txns if we ignored the rest of it
+        this.corruptBlock(original, blockEnd[1], blockEnd[2]);
+        reader = new CommandLogReader(outputFile.getAbsolutePath());
+        ctr = 0;
+        try {
+            for (LogEntry entry : reader) {
+                assertEquals(txnId[ctr++], entry.getTransactionId().longValue());
+            } // FOR
+            fail("Failed to throw an error for a corrupt block in the middle of the log");
+        } catch (RuntimeException ex) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Write the log back out with the data of the block between
+     * the given offsets (but not its length) replaced with garbage
+     */
+    private void corruptBlock(byte original[], long start, long end) throws Exception {
+        byte contents[] = original.clone();
+        for (int i = (int)start + 4; i < end; i++) {
+            contents[i] = (byte)0xFF;
+        } // FOR
+        FileOutputStream out = new FileOutputStream(outputFile);
+        out.write(contents);
+        out.close();
     }
     
     @Test
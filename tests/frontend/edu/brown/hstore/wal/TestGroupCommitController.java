@@ -0,0 +1,116 @@
+/***************************************************************************
+ *   Copyright (C) 2011 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.wal;
+
+import org.junit.Test;
+
+import edu.brown.BaseTestCase;
+
+public class TestGroupCommitController extends BaseTestCase {
+
+    static final long TARGET_LATENCY = 10000l; // us
+    static final double MAX_WINDOW = 500.0; // ms
+    static final int MAX_BATCH_SIZE = 1000;
+    static final long MS = 1000000l; // ns
+    
+    GroupCommitController controller;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.controller = new GroupCommitController(true, TARGET_LATENCY, MAX_WINDOW, MAX_BATCH_SIZE);
+    }
+    
+    /**
+     * testFixedWindow
+     */
+    @Test
+    public void testFixedWindow() throws Exception {
+        controller = new GroupCommitController(false, TARGET_LATENCY, MAX_WINDOW, MAX_BATCH_SIZE);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 5 * MS;
+            controller.recordFlush(100, 1 * MS, now);
+            assertEquals((long)(MAX_WINDOW * MS), controller.getWindow());
+            assertEquals(MAX_BATCH_SIZE, controller.getBatchSize());
+        } // FOR
+    }
+    
+    /**
+     * testLowLoad
+     */
+    @Test
+    public void testLowLoad() throws Exception {
+        // Nothing is known yet, so we should flush right away
+        assertEquals(0, controller.getWindow());
+        assertEquals(1, controller.getBatchSize());
+        
+        // One txn every 100ms with a 1ms fsync should never wait
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 100 * MS;
+            controller.recordFlush(1, 1 * MS, now);
+            assertEquals(0, controller.getWindow());
+            assertEquals(1, controller.getBatchSize());
+        } // FOR
+        assertEquals(10.0, controller.getArrivalRate(), 0.5);
+    }
+    
+    /**
+     * testHighLoad
+     */
+    @Test
+    public void testHighLoad() throws Exception {
+        // 100 txns per ms with a 2ms fsync. We should wait for as long
+        // as we can without going over our target latency
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 5 * MS;
+            controller.recordFlush(500, 2 * MS, now);
+        } // FOR
+        long fsyncP99 = controller.getFsyncP99Latency();
+        assertTrue(fsyncP99 >= 2 * MS);
+        assertTrue(controller.getWindow() > 0);
+        assertEquals(TARGET_LATENCY * 1000l - fsyncP99, controller.getWindow());
+        assertTrue(controller.getBatchSize() > 1);
+        assertTrue(controller.getBatchSize() <= MAX_BATCH_SIZE);
+    }
+    
+    /**
+     * testSlowDisk
+     */
+    @Test
+    public void testSlowDisk() throws Exception {
+        // If the fsync alone takes longer than our target, then there
+        // is nothing to gain by waiting
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 20 * MS;
+            controller.recordFlush(2000, 20 * MS, now);
+            assertEquals(0, controller.getWindow());
+        } // FOR
+    }
+}
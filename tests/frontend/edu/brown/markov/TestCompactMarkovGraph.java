@@ -0,0 +1,177 @@
+package edu.brown.markov;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.voltdb.VoltProcedure;
+import org.voltdb.benchmark.tpcc.procedures.neworder;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Statement;
+
+import edu.brown.BaseTestCase;
+import edu.brown.mappings.ParameterMappingsSet;
+import edu.brown.markov.containers.MarkovGraphsContainer;
+import edu.brown.utils.ProjectType;
+
+public class TestCompactMarkovGraph extends BaseTestCase {
+
+    private static final Class<? extends VoltProcedure> TARGET_PROCEDURE = neworder.class;
+    private static final int NUM_PARTITIONS = 4;
+
+    private Procedure catalog_proc;
+    private MarkovGraph markov;
+    private final List<MarkovVertex> query_vertices = new ArrayList<MarkovVertex>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TPCC);
+        this.addPartitions(NUM_PARTITIONS);
+        this.catalog_proc = this.getProcedure(TARGET_PROCEDURE);
+
+        // START -> QUERY[p] -> COMMIT for each partition
+        this.markov = new MarkovGraph(this.catalog_proc).initialize();
+        Statement catalog_stmt = this.getStatement(this.catalog_proc, "getWarehouseTaxRate");
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            MarkovVertex v = new MarkovVertex(catalog_stmt, new Integer[]{ p }, new Integer[0]);
+            assertTrue(this.markov.addVertex(v));
+            this.markov.addToEdge(this.markov.getStartVertex(), v).probability = (p + 1) / 10f;
+            this.markov.addToEdge(v, this.markov.getCommitVertex()).probability = 1.0f;
+            this.query_vertices.add(v);
+        } // FOR
+    }
+
+    /**
+     * testSnapshot
+     */
+    public void testSnapshot() throws Exception {
+        CompactMarkovGraph compact = this.markov.getCompactGraph();
+        assertNotNull(compact);
+        assertEquals(this.markov.getVertexCount(), compact.getVertexCount());
+        assertEquals(this.markov.getEdgeCount(), compact.getEdgeCount());
+
+        // The start vertex always gets the first id
+        int start_id = compact.getStartVertexId();
+        assertEquals(0, start_id);
+        assertSame(this.markov.getStartVertex(), compact.getVertex(start_id));
+
+        for (MarkovVertex v : this.markov.getVertices()) {
+            int id = compact.getVertexId(v);
+            assertTrue(v.toString(), id >= 0);
+            assertSame(v, compact.getVertex(id));
+            assertEquals(v.toString(), this.markov.getOutEdges(v).size(), compact.getOutDegree(id));
+
+            for (int pos = compact.getFirstEdge(id); pos < compact.getLastEdge(id); pos++) {
+                MarkovEdge e = compact.getEdge(pos);
+                assertSame(e, this.markov.findEdge(v, compact.getEdgeDest(pos)));
+                assertEquals(e.getProbability(), compact.getEdgeProbability(pos));
+            } // FOR
+        } // FOR
+
+        // The START vertex's edges should be sorted by probability in descending order
+        assertEquals(NUM_PARTITIONS, compact.getOutDegree(start_id));
+        int pos = compact.getFirstEdge(start_id);
+        for (int p = NUM_PARTITIONS - 1; p >= 0; p--) {
+            assertSame(this.query_vertices.get(p), compact.getEdgeDest(pos++));
+        } // FOR
+    }
+
+    /**
+     * testTraversal
+     */
+    public void testTraversal() throws Exception {
+        // Without any parameter mappings, the MarkovPathEstimator has to force its way
+        // through the graph, which means that it should always pick the edge with
+        // the greatest probability
+        TransactionEstimator t_estimator = new TransactionEstimator(p_estimator, new ParameterMappingsSet(), new MarkovGraphsContainer());
+        MarkovPathEstimator estimator = new MarkovPathEstimator(this.markov, t_estimator, 0, new Object[0]);
+        estimator.enableForceTraversal(true);
+        estimator.traverse(this.markov.getStartVertex());
+
+        List<MarkovVertex> path = estimator.getVisitPath();
+        assertEquals(path.toString(), 3, path.size());
+        assertSame(this.markov.getStartVertex(), path.get(0));
+        assertSame(this.query_vertices.get(NUM_PARTITIONS - 1), path.get(1));
+        assertSame(this.markov.getCommitVertex(), path.get(2));
+        assertTrue(estimator.getForcedVertices().contains(path.get(1)));
+        assertEquals(0.4f, estimator.getConfidence(), MarkovGraph.PROBABILITY_EPSILON);
+    }
+
+    /**
+     * testRebuild
+     */
+    public void testRebuild() throws Exception {
+        CompactMarkovGraph compact = this.markov.getCompactGraph();
+        assertSame(compact, this.markov.getCompactGraph());
+
+        // Adding a new vertex+edge should give us a new snapshot,
+        // but only after the probabilities are recomputed
+        MarkovVertex v0 = this.query_vertices.get(0);
+        Statement catalog_stmt = this.getStatement(this.catalog_proc, "getDistrict");
+        MarkovVertex v1 = new MarkovVertex(catalog_stmt, new Integer[]{ 0 }, new Integer[]{ 0 });
+        assertEquals(CompactMarkovGraph.NULL_VERTEX_ID, compact.getVertexId(v1));
+        this.markov.addVertex(v1);
+        this.markov.addToEdge(v0, v1);
+        assertSame(compact, this.markov.getCompactGraph());
+        this.markov.calculateProbabilities();
+
+        CompactMarkovGraph next = this.markov.getCompactGraph();
+        assertNotSame(compact, next);
+        assertTrue(next.getVersion() > compact.getVersion());
+        assertEquals(compact.getVertexCount() + 1, next.getVertexCount());
+        assertEquals(compact.getEdgeCount() + 1, next.getEdgeCount());
+        int id = next.getVertexId(v1);
+        assertTrue(id >= 0);
+        assertEquals(2, next.getOutDegree(next.getVertexId(v0)));
+
+        // The old snapshot should not have changed
+        assertEquals(1, compact.getOutDegree(compact.getVertexId(v0)));
+        assertSame(next, this.markov.getCompactGraph());
+    }
+
+    /**
+     * testConcurrentRebuild
+     */
+    public void testConcurrentRebuild() throws Exception {
+        // Keep adding new vertices and edges in another thread while we build snapshots
+        final int num_vertices = 2000;
+        final Statement catalog_stmt = this.getStatement(this.catalog_proc, "getDistrict");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    MarkovVertex last = query_vertices.get(0);
+                    for (int i = 0; i < num_vertices; i++) {
+                        MarkovVertex v = new MarkovVertex(catalog_stmt, new Integer[]{ i % NUM_PARTITIONS }, new Integer[]{ i });
+                        markov.addVertex(v);
+                        markov.addToEdge(last, v);
+                        last = v;
+                    } // FOR
+                } catch (Throwable ex) {
+                    error.set(ex);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        };
+        t.start();
+        while (latch.getCount() > 0) {
+            CompactMarkovGraph compact = this.markov.buildCompactGraph();
+            assertTrue(compact.getVertexCount() <= this.markov.getVertexCount());
+            for (int id = 0; id < compact.getVertexCount(); id++) {
+                for (int pos = compact.getFirstEdge(id); pos < compact.getLastEdge(id); pos++) {
+                    assertNotNull(compact.getEdgeDest(pos));
+                } // FOR
+            } // FOR
+        } // WHILE
+        t.join();
+        assertNull(error.get());
+
+        this.markov.buildCompactGraph();
+        CompactMarkovGraph compact = this.markov.getCompactGraph();
+        assertEquals(this.markov.getVertexCount(), compact.getVertexCount());
+        assertEquals(this.markov.getEdgeCount(), compact.getEdgeCount());
+    }
+}
@@ -0,0 +1,235 @@
+package edu.brown.markov;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.voltdb.VoltProcedure;
+import org.voltdb.benchmark.tpcc.procedures.neworder;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Statement;
+
+import edu.brown.BaseTestCase;
+import edu.brown.utils.ProjectType;
+
+public class TestMarkovGraphUpdater extends BaseTestCase {
+
+    private static final Class<? extends VoltProcedure> TARGET_PROCEDURE = neworder.class;
+    private static final int NUM_PARTITIONS = 4;
+    private static final int NUM_THREADS = 4;
+    private static final int NUM_TXNS = 2000;
+
+    private Procedure catalog_proc;
+    private MarkovGraph markov;
+    private MarkovGraphUpdater updater;
+    private final List<MarkovVertex> query_vertices = new ArrayList<MarkovVertex>();
+    private final List<MarkovEdge> start_edges = new ArrayList<MarkovEdge>();
+    private final List<MarkovEdge> commit_edges = new ArrayList<MarkovEdge>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TPCC);
+        this.addPartitions(NUM_PARTITIONS);
+        this.catalog_proc = this.getProcedure(TARGET_PROCEDURE);
+
+        // START -> QUERY[p] -> COMMIT for each partition
+        this.markov = new MarkovGraph(this.catalog_proc).initialize();
+        Statement catalog_stmt = this.getStatement(this.catalog_proc, "getWarehouseTaxRate");
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            MarkovVertex v = new MarkovVertex(catalog_stmt, new Integer[]{ p }, new Integer[0]);
+            this.markov.addVertex(v);
+            this.start_edges.add(this.markov.addToEdge(this.markov.getStartVertex(), v));
+            this.commit_edges.add(this.markov.addToEdge(v, this.markov.getCommitVertex()));
+            this.query_vertices.add(v);
+        } // FOR
+        this.updater = new MarkovGraphUpdater(null, 1000);
+    }
+
+    /**
+     * Increment the counters for a transaction that went through the given partition's vertex
+     * in the same order that TransactionEstimator does
+     */
+    private void executeTransaction(int partition) {
+        this.markov.getStartVertex().incrementInstanceHits();
+        this.query_vertices.get(partition).incrementInstanceHits();
+        this.markov.getCommitVertex().incrementInstanceHits();
+        this.start_edges.get(partition).incrementInstanceHits();
+        this.commit_edges.get(partition).incrementInstanceHits();
+    }
+
+    /**
+     * testQueue
+     */
+    public void testQueue() throws Exception {
+        assertFalse(this.markov.isUpdatePending());
+        this.updater.queue(this.markov);
+        this.updater.queue(this.markov);
+        assertTrue(this.markov.isUpdatePending());
+
+        // The graph should only get recomputed once
+        for (int i = 0; i < 10; i++) {
+            this.executeTransaction(0);
+        } // FOR
+        assertEquals(1, this.updater.processQueue());
+        assertFalse(this.markov.isUpdatePending());
+        assertEquals(0, this.updater.processQueue());
+        assertEquals(1, this.updater.getUpdateCount());
+        assertEquals(1, this.markov.getRecomputeCount());
+    }
+
+    /**
+     * testPrepareShutdown
+     */
+    public void testPrepareShutdown() throws Exception {
+        this.updater.queue(this.markov);
+        assertTrue(this.markov.isUpdatePending());
+
+        // Dropping the queue should let the graph be queued again
+        this.updater.prepareShutdown(false);
+        assertFalse(this.markov.isUpdatePending());
+        assertEquals(0, this.updater.processQueue());
+        this.updater.queue(this.markov);
+        assertEquals(1, this.updater.processQueue());
+    }
+
+    /**
+     * testPublishProbabilities
+     */
+    public void testPublishProbabilities() throws Exception {
+        CompactMarkovGraph compact = this.markov.getCompactGraph();
+        MarkovVertex start = this.markov.getStartVertex();
+        float orig_probabilities[][] = start.probabilities;
+
+        // Send three times as many txns to partition #1 as partition #0
+        for (int i = 0; i < 100; i++) {
+            this.executeTransaction(i % 4 == 0 ? 0 : 1);
+        } // FOR
+        this.updater.queue(this.markov);
+        assertEquals(1, this.updater.processQueue());
+
+        assertEquals(0.25f, this.start_edges.get(0).getProbability(), MarkovGraph.PROBABILITY_EPSILON);
+        assertEquals(0.75f, this.start_edges.get(1).getProbability(), MarkovGraph.PROBABILITY_EPSILON);
+        assertEquals(1.0f, this.commit_edges.get(0).getProbability(), MarkovGraph.PROBABILITY_EPSILON);
+        for (MarkovVertex v : this.markov.getVertices()) {
+            assertEquals(v.toString(), 0, v.getInstanceHits());
+        } // FOR
+
+        // The vertex probabilities should have been replaced rather than modified in place
+        assertNotSame(orig_probabilities, start.probabilities);
+        assertTrue(start.isSingleSitedProbabilitySet());
+        assertEquals(0.75f, start.getDoneProbability(0), MarkovGraph.PROBABILITY_EPSILON);
+
+        // And there should be a new snapshot with the new edge probabilities
+        CompactMarkovGraph next = this.markov.getCompactGraph();
+        assertNotSame(compact, next);
+        int start_id = next.getStartVertexId();
+        int pos = next.getFirstEdge(start_id);
+        assertSame(this.query_vertices.get(1), next.getEdgeDest(pos));
+        assertEquals(0.75f, next.getEdgeProbability(pos), MarkovGraph.PROBABILITY_EPSILON);
+        assertEquals(0.75f, next.getDoneProbability(start_id, 0), MarkovGraph.PROBABILITY_EPSILON);
+
+        // But the old snapshot should still have the old probabilities for both
+        // the edges and the vertices
+        start_id = compact.getStartVertexId();
+        float expected = MarkovVertex.getSpecificProbability(orig_probabilities, MarkovVertex.Probability.DONE, 0);
+        assertEquals(expected, compact.getDoneProbability(start_id, 0));
+        for (pos = compact.getFirstEdge(start_id); pos < compact.getLastEdge(start_id); pos++) {
+            assertEquals(0.0f, compact.getEdgeProbability(pos));
+        } // FOR
+    }
+
+    /**
+     * testConcurrentStructuralUpdates
+     */
+    public void testConcurrentStructuralUpdates() throws Exception {
+        // Keep adding new vertices and edges to the graph (like TransactionEstimator does
+        // when it sees a new path) while we recompute the probabilities
+        final int num_vertices = 500;
+        final Statement catalog_stmt = this.getStatement(this.catalog_proc, "getDistrict");
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int partition = t % NUM_PARTITIONS;
+            final int offset = t * num_vertices;
+            new Thread() {
+                public void run() {
+                    try {
+                        MarkovVertex prev = query_vertices.get(partition);
+                        for (int i = 0; i < num_vertices; i++) {
+                            MarkovVertex v = new MarkovVertex(catalog_stmt, new Integer[]{ partition }, new Integer[]{ offset + i });
+                            markov.addVertex(v);
+                            markov.addToEdge(prev, v).incrementInstanceHits();
+                            markov.addToEdge(v, markov.getCommitVertex());
+                            executeTransaction(partition);
+                            updater.queue(markov);
+                            prev = v;
+                        } // FOR
+                    } catch (Throwable ex) {
+                        ex.printStackTrace();
+                        failed.set(true);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        } // FOR
+        while (latch.getCount() > 0) {
+            this.updater.processQueue();
+            this.markov.getCompactGraph();
+        } // WHILE
+        latch.await();
+        assertFalse(failed.get());
+
+        int expected_vertices = 3 + NUM_PARTITIONS + (NUM_THREADS * num_vertices);
+        int expected_edges = (NUM_PARTITIONS * 2) + (NUM_THREADS * num_vertices * 2);
+        assertEquals(expected_vertices, this.markov.getVertexCount());
+        assertEquals(expected_edges, this.markov.getEdgeCount());
+        CompactMarkovGraph compact = this.markov.getCompactGraph();
+        assertEquals(expected_vertices, compact.getVertexCount());
+        assertEquals(expected_edges, compact.getEdgeCount());
+    }
+
+    /**
+     * testConcurrentUpdates
+     */
+    public void testConcurrentUpdates() throws Exception {
+        // Make sure that we don't lose any hits when we recompute the
+        // probabilities while transactions are updating the counters
+        final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int partition = t % NUM_PARTITIONS;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < NUM_TXNS; i++) {
+                            executeTransaction(partition);
+                            updater.queue(markov);
+                        } // FOR
+                    } catch (Throwable ex) {
+                        ex.printStackTrace();
+                        failed.set(true);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        } // FOR
+        while (latch.getCount() > 0) {
+            this.updater.processQueue();
+        } // WHILE
+        latch.await();
+        assertFalse(failed.get());
+        this.updater.queue(this.markov);
+        this.updater.processQueue();
+
+        assertEquals(NUM_THREADS * NUM_TXNS, this.markov.getStartVertex().getTotalHits());
+        long total = 0;
+        for (MarkovEdge e : this.start_edges) {
+            assertEquals(e.getTotalHits(), this.markov.getDest(e).getTotalHits());
+            total += e.getTotalHits();
+        } // FOR
+        assertEquals(NUM_THREADS * NUM_TXNS, total);
+    }
+}
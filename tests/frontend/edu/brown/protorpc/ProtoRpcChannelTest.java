@@ -277,6 +277,43 @@ public class ProtoRpcChannelTest {
         assertTrue(channel.writeCalled);
     }
 
+    @Test
+    public void testCoalesceWrites() throws IOException {
+        rpcChannel.setCoalesceWrites(true);
+        callAdd(42, callback);
+        callAdd(43, secondCallback);
+        assertFalse(channel.writeCalled);
+        assertEquals(1, eventLoop.threadEvents.size());
+
+        // Both requests should go out with a single write
+        eventLoop.runThreadEvents();
+        assertTrue(channel.writeCalled);
+        assertEquals(1, channel.lastWrites.size());
+        CodedInputStream codedInput = CodedInputStream.newInstance(channel.lastWrites.get(0));
+        for (int sequence = 0; sequence < 2; sequence++) {
+            int length = codedInput.readRawLittleEndian32();
+            int oldLimit = codedInput.pushLimit(length);
+            RpcRequest request = RpcRequest.parseFrom(codedInput);
+            codedInput.popLimit(oldLimit);
+            assertEquals(sequence, request.getSequenceNumber());
+            assertEquals(42 + sequence, Counter.Value.parseFrom(request.getRequest()).getValue());
+        }
+        assertTrue(codedInput.isAtEnd());
+        channel.clear();
+
+        // The responses are still matched up with the right callbacks
+        respondAdd(1, secondCallback);
+        respondAdd(0, callback);
+
+        // A blocked flush waits for the write callback
+        channel.numBytesToAccept = 1;
+        callAdd(44, callback);
+        eventLoop.runThreadEvents();
+        assertNotNull(eventLoop.writeHandler);
+        channel.numBytesToAccept = -1;
+        assertFalse(eventLoop.writeHandler.writeCallback(null));
+    }
+
     private static final class Listener {
         private final ServerSocket listenSocket;
         private final Thread listenThread;
@@ -98,6 +98,23 @@ public class TestPartitionEstimator extends BaseTestCase {
         assertEquals(stmt_partitions.get(table_key).toString(), proc_partition, CollectionUtil.first(stmt_partitions.get(table_key)));
     }
     
+    /**
+     * testBasePartitionParameterOffsets
+     */
+    public void testBasePartitionParameterOffsets() throws Exception {
+        Procedure catalog_proc = this.getProcedure(neworder.class);
+        int offsets[] = p_estimator.getBasePartitionParameterOffsets(catalog_proc);
+        assertNotNull(offsets);
+        assertEquals(1, offsets.length);
+        assertEquals(catalog_proc.getPartitionparameter(), offsets[0]);
+        
+        // Using just that parameter should give us the same base partition as all of them 
+        Object params[] = new Object[catalog_proc.getParameters().size()];
+        params[offsets[0]] = new Long(BASE_PARTITION);
+        assertEquals(p_estimator.getBasePartition(catalog_proc, params, false), 
+                     p_estimator.getBasePartition(catalog_proc, new Object[]{ new Long(BASE_PARTITION) }, false));
+    }
+    
     /**
      * testMultiProcParameter
      */
@@ -117,6 +134,14 @@ public class TestPartitionEstimator extends BaseTestCase {
         catalog_proc.setPartitionparameter(mpp.getIndex());
         p_estimator.initCatalog(clone_db);
         
+        // We should need both parameters to calculate the base partition
+        int offsets[] = p_estimator.getBasePartitionParameterOffsets(catalog_proc);
+        assertNotNull(offsets);
+        assertEquals(catalog_params.length, offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            assertEquals(catalog_params[i].getIndex(), offsets[i]);
+        } // FOR
+        
         // Case #1: Both parameters have values in the input
         Long params[] = new Long[] {
             new Long(NUM_PARTITIONS-1), // W_ID
@@ -259,6 +284,58 @@ public class TestPartitionEstimator extends BaseTestCase {
         } // FOR
     }
     
+    /**
+     * testBitSetPartitions
+     */
+    public void testBitSetPartitions() throws Exception {
+        // The BitSet versions should always give us the same partitions as the Set<Integer> versions
+        Random rand = new Random(0);
+        PartitionEstimator estimator = new PartitionEstimator(catalog_db, hasher);
+        BitSet stmt_bits = new BitSet();
+        BitSet all_bits = new BitSet();
+        Map<PlanFragment, Set<Integer>> frag_partitions = new HashMap<PlanFragment, Set<Integer>>();
+        Set<Integer> all_partitions = new HashSet<Integer>();
+        for (Procedure catalog_proc : catalog_db.getProcedures()) {
+            if (catalog_proc.getSystemproc()) continue;
+            for (Statement catalog_stmt : catalog_proc.getStatements()) {
+                Object params[] = new Object[catalog_stmt.getParameters().size()];
+                for (int i = 0; i < params.length; i++) {
+                    StmtParameter catalog_param = catalog_stmt.getParameters().get(i);
+                    VoltType type = VoltType.get((byte)catalog_param.getJavatype());
+                    params[i] = (type == VoltType.STRING ? VoltTypeUtil.getRandomValue(type) : rand.nextInt(NUM_PARTITIONS));
+                } // FOR
+                
+                stmt_bits.clear();
+                estimator.getAllPartitions(stmt_bits, catalog_stmt, params, BASE_PARTITION);
+                assertEquals(catalog_stmt.fullName(), estimator.getAllPartitions(catalog_stmt, params, BASE_PARTITION), this.toSet(stmt_bits));
+                
+                PlanFragment fragments[] = catalog_stmt.getMs_fragments().values();
+                BitSet frag_bits[] = new BitSet[fragments.length];
+                for (int i = 0; i < frag_bits.length; i++) {
+                    frag_bits[i] = new BitSet();
+                    frag_bits[i].set(NUM_PARTITIONS); // Should get cleared 
+                } // FOR
+                all_bits.clear();
+                frag_partitions.clear();
+                all_partitions.clear();
+                estimator.getAllFragmentPartitions(frag_bits, all_bits, fragments, params, BASE_PARTITION);
+                estimator.getAllFragmentPartitions(frag_partitions, all_partitions, fragments, params, BASE_PARTITION);
+                for (int i = 0; i < fragments.length; i++) {
+                    assertEquals(fragments[i].fullName(), frag_partitions.get(fragments[i]), this.toSet(frag_bits[i]));
+                } // FOR
+                assertEquals(catalog_stmt.fullName(), all_partitions, this.toSet(all_bits));
+            } // FOR
+        } // FOR
+    }
+    
+    private Set<Integer> toSet(BitSet bits) {
+        Set<Integer> s = new HashSet<Integer>();
+        for (int p = bits.nextSetBit(0); p >= 0; p = bits.nextSetBit(p+1)) {
+            s.add(p);
+        } // FOR
+        return (s);
+    }
+    
     /**
      * testGetPartitionsFragments
      */
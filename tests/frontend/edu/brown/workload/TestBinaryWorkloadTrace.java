@@ -0,0 +1,222 @@
+package edu.brown.workload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.voltdb.VoltType;
+import org.voltdb.catalog.CatalogType;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Statement;
+import org.voltdb.utils.VoltTypeUtil;
+
+import edu.brown.BaseTestCase;
+import edu.brown.utils.FileUtil;
+import edu.brown.utils.ProjectType;
+import edu.brown.workload.filters.ProcedureNameFilter;
+
+public class TestBinaryWorkloadTrace extends BaseTestCase {
+
+    private static final int NUM_TXNS = 50;
+    private static final String TARGET_PROCEDURES[] = { "neworder", "slev", "delivery" };
+
+    private final Random rand = new Random(1);
+    private final List<TransactionTrace> txns = new ArrayList<TransactionTrace>();
+    private File binary_path;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TPCC);
+
+        long txn_id = 1000;
+        long timestamp = System.nanoTime();
+        for (int i = 0; i < NUM_TXNS; i++) {
+            Procedure catalog_proc = this.getProcedure(TARGET_PROCEDURES[i % TARGET_PROCEDURES.length]);
+            TransactionTrace txn_trace = new TransactionTrace(txn_id, catalog_proc, this.makeParams(catalog_proc.getParameters(), "type"));
+            txn_id += 1 + rand.nextInt(100);
+            timestamp += rand.nextInt(100000);
+            txn_trace.setTimestamps(timestamp, timestamp + rand.nextInt(100000));
+            if (i % 7 == 0) txn_trace.setWeight(3);
+
+            int batch_id = 0;
+            for (Statement catalog_stmt : catalog_proc.getStatements()) {
+                QueryTrace query_trace = new QueryTrace(catalog_stmt, this.makeParams(catalog_stmt.getParameters(), "javatype"), batch_id++ / 2);
+                long query_start = timestamp + rand.nextInt(1000);
+                query_trace.setTimestamps(query_start, (batch_id % 3 == 0 ? null : query_start + rand.nextInt(1000)));
+                if (batch_id == 1) {
+                    query_trace.setOutput(new Object[][]{ { 1l, "abc", 0.5d }, { 2l, "xyz", 9.5d } });
+                }
+                txn_trace.addQuery(query_trace);
+            } // FOR
+            if (i % 5 == 0) txn_trace.abort();
+            this.txns.add(txn_trace);
+        } // FOR
+
+        this.binary_path = FileUtil.getTempFile("trace", true);
+        BinaryWorkloadTrace.Writer writer = new BinaryWorkloadTrace.Writer(this.binary_path);
+        for (TransactionTrace txn_trace : this.txns) {
+            writer.write(txn_trace);
+        } // FOR
+        writer.close();
+        assertEquals(NUM_TXNS, writer.getTransactionCount());
+    }
+
+    private <T extends CatalogType> Object[] makeParams(Iterable<T> catalog_params, String type_name) {
+        List<Object> params = new ArrayList<Object>();
+        for (T catalog_param : catalog_params) {
+            VoltType type = VoltType.get(((Integer)catalog_param.getField(type_name)).byteValue());
+            Object is_array = catalog_param.getField("isarray");
+            if (is_array != null && (Boolean)is_array) {
+                Object inner[] = new Object[rand.nextInt(10)];
+                for (int j = 0; j < inner.length; j++) {
+                    inner[j] = VoltTypeUtil.getRandomValue(type);
+                } // FOR
+                params.add(inner);
+            } else {
+                params.add(VoltTypeUtil.getRandomValue(type));
+            }
+        } // FOR
+        return (params.toArray());
+    }
+
+    private void compare(TransactionTrace expected, TransactionTrace actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getTransactionId(), actual.getTransactionId());
+        assertEquals(expected.getCatalogItemName(), actual.getCatalogItemName());
+        assertEquals(expected.getWeight(), actual.getWeight());
+        assertEquals(expected.getQueryCount(), actual.getQueryCount());
+        assertEquals(expected.getBatchIds(), actual.getBatchIds());
+        assertEquals(expected.toJSONString(catalog_db), actual.toJSONString(catalog_db));
+    }
+
+    /**
+     * testRoundTrip
+     */
+    public void testRoundTrip() throws Exception {
+        assert(BinaryWorkloadTrace.isBinaryTrace(this.binary_path));
+        BinaryWorkloadTrace.Reader reader = new BinaryWorkloadTrace.Reader(this.binary_path);
+        int i = 0;
+        for (TransactionTrace txn_trace : reader) {
+            this.compare(this.txns.get(i++), txn_trace);
+        } // FOR
+        assertEquals(NUM_TXNS, i);
+
+        // Make sure that we can iterate through it more than once
+        assertEquals(this.txns.get(0).getTransactionId(), reader.iterator().next().getTransactionId());
+        reader.close();
+    }
+
+    /**
+     * testSmallMapWindows
+     */
+    public void testSmallMapWindows() throws Exception {
+        // Force the reader to remap the file in the middle of just about every record
+        BinaryWorkloadTrace.Reader reader = new BinaryWorkloadTrace.Reader(this.binary_path, 16);
+        int i = 0;
+        for (TransactionTrace txn_trace : reader) {
+            this.compare(this.txns.get(i++), txn_trace);
+        } // FOR
+        assertEquals(NUM_TXNS, i);
+        reader.close();
+    }
+
+    /**
+     * testProcedureNameFilter
+     */
+    public void testProcedureNameFilter() throws Exception {
+        String proc_name = TARGET_PROCEDURES[1];
+        List<TransactionTrace> expected = new ArrayList<TransactionTrace>();
+        for (TransactionTrace txn_trace : this.txns) {
+            if (txn_trace.getCatalogItemName().equals(proc_name)) expected.add(txn_trace);
+        } // FOR
+        assertFalse(expected.isEmpty());
+
+        for (int map_size : new int[]{ BinaryWorkloadTrace.DEFAULT_MAP_SIZE, 16 }) {
+            BinaryWorkloadTrace.Reader reader = new BinaryWorkloadTrace.Reader(this.binary_path, map_size);
+            Iterator<TransactionTrace> it = reader.iterator(new ProcedureNameFilter(false).include(proc_name));
+            int i = 0;
+            while (it.hasNext()) {
+                this.compare(expected.get(i++), it.next());
+            } // WHILE
+            assertEquals(expected.size(), i);
+            reader.close();
+        } // FOR
+
+        // A limit on the number of txns should HALT the iterator
+        BinaryWorkloadTrace.Reader reader = new BinaryWorkloadTrace.Reader(this.binary_path);
+        Iterator<TransactionTrace> it = reader.iterator(new ProcedureNameFilter(false).include(proc_name, 2));
+        int i = 0;
+        while (it.hasNext()) {
+            this.compare(expected.get(i++), it.next());
+        } // WHILE
+        assertEquals(2, i);
+        reader.close();
+    }
+
+    /**
+     * testStream
+     */
+    public void testStream() throws Exception {
+        Workload workload = new Workload(catalog);
+        workload.stream(this.binary_path.getAbsolutePath());
+        assert(workload.isStreaming());
+
+        int i = 0;
+        for (TransactionTrace txn_trace : workload) {
+            this.compare(this.txns.get(i++), txn_trace);
+        } // FOR
+        assertEquals(NUM_TXNS, i);
+
+        // The txns are never loaded into the Workload itself
+        assertEquals(0, workload.getTransactionCount());
+        assertNull(workload.getTransaction(this.txns.get(0).getTransactionId()));
+
+        // But we can use a Filter to materialize just the txns that we want
+        String proc_name = TARGET_PROCEDURES[0];
+        int expected = 0;
+        for (TransactionTrace txn_trace : this.txns) {
+            if (txn_trace.getCatalogItemName().equals(proc_name)) expected++;
+        } // FOR
+        Workload filtered = new Workload(workload, new ProcedureNameFilter(false).include(proc_name));
+        assertFalse(filtered.isStreaming());
+        assertEquals(expected, filtered.getTransactionCount());
+
+        workload.closeStream();
+        assertFalse(workload.isStreaming());
+    }
+
+    /**
+     * testConvert
+     */
+    public void testConvert() throws Exception {
+        File json_path = FileUtil.getTempFile("trace", true);
+        FileOutputStream out = new FileOutputStream(json_path);
+        for (TransactionTrace txn_trace : this.txns) {
+            Workload.writeTransactionToStream(catalog_db, txn_trace, out, false);
+        } // FOR
+        out.close();
+
+        File converted_path = FileUtil.getTempFile("trace", true);
+        assertEquals(NUM_TXNS, BinaryWorkloadTrace.convert(json_path, converted_path, catalog_db));
+        assert(converted_path.length() < json_path.length());
+
+        // Loading the binary trace should give us the same workload as loading the JSON trace
+        Workload json_workload = new Workload(catalog);
+        json_workload.load(json_path.getAbsolutePath(), catalog_db);
+        Workload binary_workload = new Workload(catalog);
+        binary_workload.load(converted_path.getAbsolutePath(), catalog_db);
+        assertEquals(json_workload.getTransactionCount(), binary_workload.getTransactionCount());
+        assertEquals(json_workload.getQueryCount(), binary_workload.getQueryCount());
+
+        // The JSON trace is loaded by multiple threads, so the order won't be the same
+        for (TransactionTrace expected : json_workload) {
+            TransactionTrace actual = binary_workload.getTransaction(expected.getTransactionId());
+            assertNotNull(actual);
+            assertEquals(expected.toJSONString(catalog_db), actual.toJSONString(catalog_db));
+            assertEquals(expected.getCatalogItem(catalog_db), actual.getCatalogItem(catalog_db));
+        } // FOR
+    }
+}
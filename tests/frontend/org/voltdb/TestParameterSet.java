@@ -53,6 +53,7 @@ package org.voltdb;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.voltdb.ParameterSet;
 import org.voltdb.messaging.FastDeserializer;
@@ -138,4 +139,38 @@ public class TestParameterSet extends TestCase {
         assertTrue("Array longer than Short.MAX_VALUE didn't fail to serialize",
                    arrayLengthTester(new Object[]{new BigDecimal[Short.MAX_VALUE + 1]}));
     }
+
+    public void testReadParameters() throws IOException {
+        Object expected[] = new Object[] {
+            (byte)1, (short)2, 3, 4l, 5.0d,
+            "six", VoltType.NULL_STRING, new TimestampType(8), true,
+            new long[]{ 10, 11 }, new BigDecimal("12.000000000000"), 13l,
+        };
+        params.setParameters(expected);
+        ByteBuffer buf = ByteBuffer.wrap(FastSerializer.serialize(params));
+
+        // Only the parameters that we ask for should be deserialized
+        int offsets[] = { 11, 2, 6 };
+        Object actual[] = new Object[expected.length];
+        buf.rewind();
+        ParameterSet.readParameters(new FastDeserializer(buf), offsets, actual);
+        for (int i = 0; i < expected.length; i++) {
+            if (i == 2 || i == 6 || i == 11) {
+                assertEquals(Integer.toString(i), expected[i], actual[i]);
+            } else {
+                assertNull(Integer.toString(i), actual[i]);
+            }
+        }
+
+        // We should be able to read each one by itself too
+        for (int i = 0; i < expected.length; i++) {
+            buf.rewind();
+            Object value = ParameterSet.getParameterAtIndex(i, buf);
+            if (expected[i] instanceof long[]) {
+                assertTrue(Arrays.equals((long[])expected[i], (long[])value));
+            } else {
+                assertEquals(Integer.toString(i), expected[i], value);
+            }
+        }
+    }
 }
@@ -29,6 +29,8 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -354,6 +356,160 @@ public class TestDistributer extends TestCase {
         }
     }
 
+    @Test
+    public void testConcurrentQueue() throws Exception {
+        // Invocations queued from multiple threads at the same time should
+        // still be spread evenly over the uncongested connections
+        final int num_threads = 4;
+        final int num_invocations = 30;
+        MockVolt volt0 = null, volt1 = null, volt2 = null;
+        try {
+            volt0 = new MockVolt(20000);
+            volt0.start();
+            volt1 = new MockVolt(20001);
+            volt1.start();
+            volt2 = new MockVolt(20002);
+            volt2.start();
+
+            final Distributer dist = new Distributer();
+            dist.createConnection(null, "localhost", 20000, "", "");
+            dist.createConnection(null, "localhost", 20001, "", "");
+            dist.createConnection(null, "localhost", 20002, "", "");
+            assertEquals(3, dist.getConnectionCount());
+
+            final AtomicInteger handle = new AtomicInteger(0);
+            final AtomicBoolean failed = new AtomicBoolean(false);
+            Thread threads[] = new Thread[num_threads];
+            for (int t = 0; t < num_threads; t++) {
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < num_invocations; i++) {
+                                StoredProcedureInvocation pi = new StoredProcedureInvocation(handle.incrementAndGet(), "i1", new Integer(i));
+                                if (dist.queue(pi, new ProcCallback(), 128, true) == false) {
+                                    failed.set(true);
+                                }
+                            } // FOR
+                        } catch (Exception ex) {
+                            ex.printStackTrace();
+                            failed.set(true);
+                        }
+                    }
+                };
+                threads[t].start();
+            } // FOR
+            for (Thread t : threads) {
+                t.join();
+            } // FOR
+            dist.drain();
+            assertFalse(failed.get());
+
+            int expected = (num_threads * num_invocations) / 3;
+            assertEquals(expected, volt0.handler.roundTrips.get());
+            assertEquals(expected, volt1.handler.roundTrips.get());
+            assertEquals(expected, volt2.handler.roundTrips.get());
+        } finally {
+            for (MockVolt volt : new MockVolt[]{ volt0, volt1, volt2 }) {
+                if (volt != null) {
+                    volt.shutdown();
+                    volt.join();
+                }
+            } // FOR
+        }
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        // Pipelined invocations should not be written out until
+        // the batch is full or the Distributer is flushed
+        MockVolt volt0 = null;
+        int handle = 0;
+        try {
+            volt0 = new MockVolt(20000);
+            volt0.start();
+
+            Distributer dist = new Distributer();
+            dist.setPipelining(60000, 4096);
+            dist.createConnection(null, "localhost", 20000, "", "");
+
+            for (int i = 0; i < 6; i++) {
+                StoredProcedureInvocation pi = new StoredProcedureInvocation(++handle, "i1", new Integer(i));
+                assertTrue(dist.queue(pi, new ProcCallback(), 128, true));
+            } // FOR
+            Thread.sleep(100);
+            assertEquals(0, volt0.handler.roundTrips.get());
+
+            dist.drain();
+            assertEquals(6, volt0.handler.roundTrips.get());
+
+            // Filling up the batch should write it out without a flush
+            int expected = volt0.handler.roundTrips.get();
+            for (int i = 0; i < 1000; i++) {
+                StoredProcedureInvocation pi = new StoredProcedureInvocation(++handle, "i1", new Integer(i));
+                assertTrue(dist.queue(pi, new ProcCallback(), 128, true));
+                expected++;
+            } // FOR
+            long stop = System.currentTimeMillis() + 10000;
+            while (volt0.handler.roundTrips.get() == 6 && System.currentTimeMillis() < stop) {
+                Thread.sleep(10);
+            } // WHILE
+            assertTrue(volt0.handler.roundTrips.get() > 6);
+            dist.drain();
+            assertEquals(expected, volt0.handler.roundTrips.get());
+            dist.shutdown();
+        } finally {
+            if (volt0 != null) {
+                volt0.shutdown();
+                volt0.join();
+            }
+        }
+    }
+
+    @Test
+    public void testSiteAddresses() throws Exception {
+        // Requests for a site should go to the connection whose address
+        // matches that site, even if the connection was created without a site id
+        MockVolt volt0 = null, volt1 = null;
+        int handle = 0;
+        try {
+            volt0 = new MockVolt(20000);
+            volt0.start();
+            volt1 = new MockVolt(20001);
+            volt1.start();
+
+            Distributer dist = new Distributer();
+            dist.createConnection(null, "localhost", 20000, "", "");
+            Map<InetSocketAddress, Integer> siteAddresses = new HashMap<InetSocketAddress, Integer>();
+            siteAddresses.put(new InetSocketAddress("localhost", 20000), 0);
+            siteAddresses.put(new InetSocketAddress("localhost", 20001), 1);
+            assertEquals(1, dist.setSiteAddresses(siteAddresses));
+
+            // This connection should get matched when it is created
+            dist.createConnection(null, "localhost", 20001, "", "");
+
+            for (int i = 0; i < 4; i++) {
+                StoredProcedureInvocation pi = new StoredProcedureInvocation(++handle, "i1", new Integer(1));
+                dist.queue(pi, new ProcCallback(), 128, true, 1);
+            } // FOR
+            StoredProcedureInvocation pi = new StoredProcedureInvocation(++handle, "i1", new Integer(1));
+            dist.queue(pi, new ProcCallback(), 128, true, 0);
+            dist.drain();
+
+            assertEquals(1, volt0.handler.roundTrips.get());
+            assertEquals(4, volt1.handler.roundTrips.get());
+        } finally {
+            if (volt0 != null) {
+                volt0.shutdown();
+                volt0.join();
+            }
+            if (volt1 != null) {
+                volt1.shutdown();
+                volt1.join();
+            }
+        }
+    }
+
     public void testClient() {
        MockVolt volt = null;
 
@@ -0,0 +1,96 @@
+package org.voltdb.messaging;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+public class TestSerializationArena extends TestCase {
+
+    private static final VoltTable.ColumnInfo[] SCHEMA = new VoltTable.ColumnInfo[] {
+        new VoltTable.ColumnInfo("ID", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("NAME", VoltType.STRING),
+    };
+
+    private VoltTable makeTable(int num_rows) {
+        VoltTable table = new VoltTable(SCHEMA);
+        for (int i = 0; i < num_rows; i++) {
+            table.addRow(i, "row" + i);
+        } // FOR
+        return (table);
+    }
+
+    /**
+     * testReuse
+     */
+    public void testReuse() throws Exception {
+        SerializationArena arena = SerializationArena.get();
+        assertSame(arena, SerializationArena.get());
+
+        int created = arena.getSerializersCreated();
+        for (int i = 0; i < 10; i++) {
+            FastSerializer fs = arena.acquireSerializer();
+            try {
+                fs.writeObject(this.makeTable(100));
+                assertTrue(fs.size() > 0);
+            } finally {
+                arena.release(fs);
+            }
+        } // FOR
+        // We should only ever need one serializer if we release it every time
+        assertTrue(arena.getSerializersCreated() - created <= 1);
+
+        // And once it has grown it shouldn't need any more memory
+        long allocated = arena.getBytesAllocated();
+        FastSerializer fs = arena.acquireSerializer();
+        fs.writeObject(this.makeTable(100));
+        arena.release(fs);
+        assertEquals(allocated, arena.getBytesAllocated());
+    }
+
+    /**
+     * testOtherThread
+     */
+    public void testOtherThread() throws Exception {
+        final SerializationArena arena = SerializationArena.get();
+        final SerializationArena other[] = new SerializationArena[1];
+        Thread t = new Thread() {
+            public void run() {
+                other[0] = SerializationArena.get();
+            }
+        };
+        t.start();
+        t.join();
+        assertNotNull(other[0]);
+        assertNotSame(arena, other[0]);
+    }
+
+    /**
+     * testSerialize
+     */
+    public void testSerialize() throws Exception {
+        VoltTable expected = this.makeTable(50);
+        byte bytes[] = FastSerializer.serialize(expected);
+
+        // The array should be exactly the size of the serialized table
+        FastSerializer fs = new FastSerializer();
+        fs.writeObject(expected);
+        assertEquals(fs.size(), bytes.length);
+
+        FastDeserializer fds = SerializationArena.get().acquireDeserializer(ByteBuffer.wrap(bytes));
+        try {
+            VoltTable clone = fds.readObject(VoltTable.class);
+            assertEquals(expected.getRowCount(), clone.getRowCount());
+            expected.resetRowPosition();
+            while (expected.advanceRow()) {
+                assertTrue(clone.advanceRow());
+                assertEquals(expected.getLong(0), clone.getLong(0));
+                assertEquals(expected.getString(1), clone.getString(1));
+            } // WHILE
+        } finally {
+            SerializationArena.get().release(fds);
+        }
+    }
+}
@@ -112,6 +112,7 @@ public class NIOWriteStreamTest extends TestCase {
         private boolean wroteSizeZero = false;
         private boolean didOversizeWrite = false;
         private boolean wrotePartial = false;
+        private int gatheringWrites = 0;
 
         @Override
         public int write(ByteBuffer src) throws IOException {
@@ -150,10 +151,14 @@ public class NIOWriteStreamTest extends TestCase {
 
         public long write(ByteBuffer src[]) throws IOException {
             if (!m_open) throw new IOException();
+            gatheringWrites++;
 
             if (m_behavior == SINK) {
-                int remaining = src[0].remaining();
-                src[0].position(src[0].limit());
+                int remaining = 0;
+                for (ByteBuffer b : src) {
+                    remaining += b.remaining();
+                    b.position(b.limit());
+                }
                 return remaining;
             }
             else if (m_behavior == FULL) {
@@ -325,6 +330,38 @@ public class NIOWriteStreamTest extends TestCase {
         wstream.shutdown();
     }
 
+    public void testGatheringWrite() throws IOException {
+        MockChannel channel = new MockChannel(MockChannel.SINK);
+        MockPort port = new MockPort();
+        NIOWriteStream wstream = new NIOWriteStream(port);
+
+        // Small direct buffers that are queued together should go out in a single write
+        final int num_buffers = NIOWriteStream.MAX_GATHERING_BUFFERS / 2;
+        for (int i = 0; i < num_buffers; i++) {
+            DBBPool.BBContainer c = pool.acquire(16);
+            c.b.clear();
+            c.b.putLong(i);
+            c.b.flip();
+            assertTrue(wstream.enqueue(c));
+        }
+        assertEquals(num_buffers * 8, wstream.drainTo(channel, wstream.swapAndSerializeQueuedWrites(pool)));
+        assertEquals(1, channel.gatheringWrites);
+        assertTrue(wstream.isEmpty());
+
+        // But a single write should never be larger than MAX_GATHERING_WRITE
+        channel.gatheringWrites = 0;
+        final int size = NIOWriteStream.MAX_GATHERING_WRITE / 4;
+        for (int i = 0; i < 8; i++) {
+            DBBPool.BBContainer c = DBBPool.allocateDirect(size);
+            c.b.clear();
+            c.b.limit(size);
+            assertTrue(wstream.enqueue(c));
+        }
+        assertEquals(size * 8, wstream.drainTo(channel, wstream.swapAndSerializeQueuedWrites(pool)));
+        assertEquals(2, channel.gatheringWrites);
+        wstream.shutdown();
+    }
+
     public void testLastWriteDelta() throws Exception {
         final MockChannel channel = new MockChannel(MockChannel.SINK);
         MockPort port = new MockPort();
@@ -28,9 +28,17 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import junit.framework.*;
 
 public class VoltNetworkTest extends TestCase {
@@ -289,4 +297,66 @@ public class VoltNetworkTest extends TestCase {
         vn.shutdown();
         assertEquals(SelectionKey.OP_ACCEPT, vp.readyOps());
     }
+
+    public void testSelectorLoops() throws Exception {
+        final int numLoops = 2;
+        VoltNetwork vn = new VoltNetwork(false, true, null, numLoops);
+        assertEquals(numLoops, vn.getSelectorLoopCount());
+        vn.start();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+        List<SocketChannel> channels = new ArrayList<SocketChannel>();
+        List<VoltPort> ports = new ArrayList<VoltPort>();
+        try {
+            // the ports should be divided round-robin between the loops
+            for (int ii = 0; ii < numLoops * 2; ii++) {
+                SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+                channels.add(channel);
+                VoltPort port = (VoltPort)vn.registerChannel(channel, new MockInputHandler());
+                assertEquals(ii % numLoops, port.m_selectorLoop);
+                assertTrue(port.getKey().isValid());
+                ports.add(port);
+            }
+        } finally {
+            vn.shutdown();
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            server.close();
+        }
+        // all of the ports are unregistered when the loops stop
+        for (VoltPort port : ports) {
+            assertFalse(port.getKey().isValid());
+        }
+    }
+
+    public void testInlineCallbacks() throws Exception {
+        final int numLoops = 2;
+        VoltNetwork vn = new VoltNetwork(false, true, null, numLoops);
+        vn.start();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+        SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        try {
+            // without an executor service the runnable has to be invoked by the selector loop itself
+            VoltPort port = (VoltPort)vn.registerChannel(channel, new MockInputHandler());
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<String> threadName = new AtomicReference<String>();
+            port.scheduleRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    threadName.set(Thread.currentThread().getName());
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(threadName.get(), threadName.get().startsWith("Volt Network"));
+        } finally {
+            vn.shutdown();
+            channel.close();
+            server.close();
+        }
+    }
 }
@@ -90,6 +90,68 @@ public class TestReduceInputIterator extends TestCase {
        
     }
     
+    /**
+     * testSort
+     */
+    public void testSort() throws Exception {
+        // Shuffle the rows and make sure that each key only shows up in one group
+        VoltTable shuffled = new VoltTable(SCHEMA);
+        Histogram<String> expected = new Histogram<String>();
+        for (int i = 0; i < 100; i++) {
+            String name = "Key" + rand.nextInt(10);
+            shuffled.addRow(name, 1l);
+            expected.put(name);
+        } // FOR
+
+        ReduceInputIterator<String> rows = new ReduceInputIterator<String>(shuffled, true);
+        String last = null;
+        int num_groups = 0;
+        while (rows.nextKey()) {
+            String key = rows.getKey();
+            if (last != null) assertTrue(last + " -> " + key, last.compareTo(key) < 0);
+            this.reduce(key, rows);
+            last = key;
+            num_groups++;
+        } // WHILE
+        assertFalse(rows.hasNext());
+        assertEquals(expected.getValueCount(), num_groups);
+
+        this.reduceOutput.resetRowPosition();
+        while (this.reduceOutput.advanceRow()) {
+            String key = this.reduceOutput.getString(0);
+            assertEquals(key, expected.get(key).longValue(), this.reduceOutput.getLong(1));
+        } // WHILE
+    }
+
+    /**
+     * testNextKey
+     */
+    public void testNextKey() throws Exception {
+        // Only look at the first row in each group. The iterator should
+        // skip the rest of them when we move to the next key
+        VoltTable table = new VoltTable(new VoltTable.ColumnInfo[] {
+            new VoltTable.ColumnInfo("ID", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("COUNTER", VoltType.BIGINT),
+        });
+        for (long i = 0; i < NUM_ROWS; i++) {
+            table.addRow(i % 3, i);
+        } // FOR
+
+        ReduceInputIterator<Long> rows = new ReduceInputIterator<Long>(table, true);
+        long expected = 0;
+        while (rows.nextKey()) {
+            assertEquals(expected, rows.getKey().longValue());
+            assertTrue(rows.hasNext());
+            VoltTableRow row = rows.next();
+            assertEquals(expected, row.getLong(0));
+            // The sort should be stable
+            assertEquals(expected, row.getLong(1));
+            expected++;
+        } // WHILE
+        assertEquals(3, expected);
+        assertEquals(NUM_ROWS, rows.getPosition());
+    }
+    
     public void reduce(String key, Iterator<VoltTableRow> rows) {
         long count = 0;
         for (VoltTableRow r : CollectionUtil.iterable(rows)) {
@@ -0,0 +1,88 @@
+package edu.brown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.voltdb.catalog.Catalog;
+import org.voltdb.catalog.Database;
+
+import edu.brown.benchmark.AbstractProjectBuilder;
+import edu.brown.catalog.CatalogUtil;
+import edu.brown.catalog.ClusterConfiguration;
+import edu.brown.catalog.FixCatalog;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.utils.ProjectType;
+
+/**
+ * Catalog and file helpers for the JMH microbenchmarks.
+ * This is the equivalent of BaseTestCase for code that can't extend a JUnit TestCase.
+ */
+public final class MicrobenchmarkUtil {
+
+    private static final Map<String, Catalog> CATALOGS = new HashMap<String, Catalog>();
+    static {
+        // HStoreConf Hack
+        HStoreConf.singleton(true).site.cpu_affinity = false;
+    }
+
+    private MicrobenchmarkUtil() {
+        // Static methods only
+    }
+
+    /**
+     * Return the catalog database for the given project with the given number of partitions
+     * on a single host. We will reuse the project's catalog jar if it has already
+     * been built by the test cases.
+     * @param type
+     * @param num_partitions
+     * @return
+     */
+    public static synchronized Database getDatabase(ProjectType type, int num_partitions) throws Exception {
+        String key = type.name() + "-" + num_partitions;
+        Catalog catalog = CATALOGS.get(key);
+        if (catalog == null) {
+            AbstractProjectBuilder projectBuilder = AbstractProjectBuilder.getProjectBuilder(type);
+            File jar_path = projectBuilder.getJarPath(true);
+            if (jar_path.exists()) {
+                catalog = CatalogUtil.loadCatalogFromJar(jar_path.getAbsolutePath());
+            } else {
+                catalog = projectBuilder.getFullCatalog(false);
+            }
+            ClusterConfiguration cc = new ClusterConfiguration();
+            for (int i = 0; i < num_partitions; i++) {
+                cc.addPartition("localhost", 0, i);
+            } // FOR
+            catalog = FixCatalog.addHostInfo(catalog, cc);
+            CATALOGS.put(key, catalog);
+        }
+        return (CatalogUtil.getDatabase(catalog));
+    }
+
+    /**
+     * Find a supplemental file (e.g., a workload trace or parameter mappings) for the
+     * given project in the "files" directory. We will look in the current directory and then
+     * each of its parents. Returns null if the file does not exist.
+     * @param type
+     * @param target_dir
+     * @param target_ext
+     * @return
+     * @throws IOException
+     */
+    public static File getProjectFile(ProjectType type, String target_dir, String target_ext) throws IOException {
+        File current = new File(".").getCanonicalFile();
+        while (current != null) {
+            File files = new File(current, "files");
+            if (files.isDirectory()) {
+                String file_name = type.name().toLowerCase() + target_ext;
+                for (String name : new String[]{ file_name, file_name + ".gz" }) {
+                    File target_file = new File(files, target_dir + File.separator + name);
+                    if (target_file.isFile()) return (target_file);
+                } // FOR
+            }
+            current = current.getParentFile();
+        } // WHILE
+        return (null);
+    }
+}
@@ -0,0 +1,105 @@
+package edu.brown.hstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.voltdb.ParameterSet;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.catalog.CatalogMap;
+import org.voltdb.catalog.Database;
+import org.voltdb.catalog.PlanFragment;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Statement;
+import org.voltdb.types.QueryType;
+
+import edu.brown.MicrobenchmarkUtil;
+import edu.brown.benchmark.tm1.procedures.GetAccessData;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.catalog.CatalogUtil;
+import edu.brown.hashing.DefaultHasher;
+import edu.brown.hstore.Hstoreservice.WorkFragment;
+import edu.brown.statistics.Histogram;
+import edu.brown.utils.PartitionEstimator;
+import edu.brown.utils.ProjectType;
+
+/**
+ * BatchPlanner.plan() for a single-partition and a distributed TM1 batch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchPlannerBenchmark {
+
+    private static final long CLIENT_HANDLE = 99999l;
+    private static final int LOCAL_PARTITION = 1;
+    private static final int NUM_PARTITIONS = 10;
+
+    @Param({ "true", "false" })
+    public boolean singlePartition;
+
+    private BatchPlanner planner;
+    private ParameterSet args[];
+    private Collection<Integer> predict_partitions;
+    private final Histogram<Integer> touched_partitions = new Histogram<Integer>();
+    private final List<WorkFragment> fragments = new ArrayList<WorkFragment>();
+    private long txn_id = 1000;
+
+    @Setup
+    public void setUp() throws Exception {
+        Database catalog_db = MicrobenchmarkUtil.getDatabase(ProjectType.TM1, NUM_PARTITIONS);
+        PartitionEstimator p_estimator = new PartitionEstimator(catalog_db, new DefaultHasher(catalog_db, NUM_PARTITIONS));
+
+        Procedure catalog_proc;
+        Statement catalog_stmt;
+        Object raw_args[];
+        if (this.singlePartition) {
+            catalog_proc = catalog_db.getProcedures().get(GetAccessData.class.getSimpleName());
+            catalog_stmt = catalog_proc.getStatements().get("GetData");
+            raw_args = new Object[]{ new Long(1), new Long(1) };
+            this.predict_partitions = Collections.singleton(LOCAL_PARTITION);
+        } else {
+            catalog_proc = catalog_db.getProcedures().get(UpdateLocation.class.getSimpleName());
+            catalog_stmt = catalog_proc.getStatements().get("update");
+            raw_args = new Object[]{ new Long(1), new String("XXX") };
+            this.predict_partitions = CatalogUtil.getAllPartitionIds(catalog_db);
+        }
+
+        CatalogMap<PlanFragment> catalog_frags = null;
+        if (catalog_stmt.getQuerytype() == QueryType.INSERT.getValue() || catalog_stmt.getHas_multisited() == false) {
+            catalog_frags = catalog_stmt.getFragments();
+        } else {
+            catalog_frags = catalog_stmt.getMs_fragments();
+        }
+        SQLStmt batch[] = new SQLStmt[] { new SQLStmt(catalog_stmt, catalog_frags) };
+        this.args = new ParameterSet[] { VoltProcedure.getCleanParams(batch[0], raw_args) };
+        this.planner = new BatchPlanner(batch, catalog_proc, p_estimator);
+    }
+
+    @Benchmark
+    public List<WorkFragment> plan() {
+        Long txnId = Long.valueOf(this.txn_id++);
+        this.touched_partitions.clear();
+        this.fragments.clear();
+        BatchPlanner.BatchPlan plan = this.planner.plan(txnId,
+                                                        CLIENT_HANDLE,
+                                                        LOCAL_PARTITION,
+                                                        this.predict_partitions,
+                                                        this.singlePartition,
+                                                        this.touched_partitions,
+                                                        this.args);
+        plan.getWorkFragments(txnId, this.fragments);
+        return (this.fragments);
+    }
+}
@@ -0,0 +1,71 @@
+package edu.brown.hstore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.voltdb.catalog.Database;
+import org.voltdb.catalog.Site;
+
+import edu.brown.MicrobenchmarkUtil;
+import edu.brown.catalog.CatalogUtil;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.utils.CollectionUtil;
+import edu.brown.utils.ProjectType;
+
+/**
+ * TransactionInitPriorityQueue offer() from several network threads while
+ * the TransactionQueueManager's thread polls
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransactionInitPriorityQueueBenchmark {
+
+    private static final int NUM_PARTITIONS = 1;
+
+    private HStoreSite hstore_site;
+    private TransactionInitPriorityQueue queue;
+    private final AtomicLong next_txn_id = new AtomicLong(1000);
+
+    @Setup
+    public void setUp() throws Exception {
+        Database catalog_db = MicrobenchmarkUtil.getDatabase(ProjectType.TM1, NUM_PARTITIONS);
+        Site catalog_site = CollectionUtil.first(CatalogUtil.getCluster(catalog_db).getSites());
+        this.hstore_site = new MockHStoreSite(catalog_site, HStoreConf.singleton());
+    }
+
+    /**
+     * Start each iteration with an empty queue so that a slow poller
+     * doesn't leave a backlog for the next one
+     */
+    @Setup(Level.Iteration)
+    public void resetQueue() {
+        this.queue = new TransactionInitPriorityQueue(this.hstore_site, 0, 0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public boolean offer() {
+        long txn_id = this.next_txn_id.getAndIncrement();
+        this.queue.noteTransactionRecievedAndReturnLastSeen(txn_id);
+        return (this.queue.offer(Long.valueOf(txn_id), true));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Long poll() {
+        return (this.queue.poll());
+    }
+}
@@ -0,0 +1,85 @@
+package edu.brown.hstore.wal;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.catalog.Database;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Site;
+
+import edu.brown.MicrobenchmarkUtil;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.catalog.CatalogUtil;
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreSite;
+import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.MockHStoreSite;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.utils.CollectionUtil;
+import edu.brown.utils.FileUtil;
+import edu.brown.utils.ProjectType;
+
+/**
+ * CommandLogWriter.appendToLog() from a single PartitionExecutor with group commit.
+ * The writer thread flushes the entries to a temp file in the background.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandLogWriterBenchmark {
+
+    private static final int BASE_PARTITION = 0;
+    private static final Object PARAMS[] = { 12345l, "ABCDEF" };
+
+    private HStoreSite hstore_site;
+    private CommandLogWriter writer;
+    private File outputFile;
+    private Procedure catalog_proc;
+    private final Collection<Integer> partitions = Collections.singleton(BASE_PARTITION);
+    private LocalTransaction ts;
+    private long txn_id = 1000;
+
+    @Setup
+    public void setUp() throws Exception {
+        Database catalog_db = MicrobenchmarkUtil.getDatabase(ProjectType.TM1, 1);
+        this.catalog_proc = catalog_db.getProcedures().get(UpdateLocation.class.getSimpleName());
+        Site catalog_site = CollectionUtil.first(CatalogUtil.getCluster(catalog_db).getSites());
+        this.hstore_site = new MockHStoreSite(catalog_site, HStoreConf.singleton());
+        this.outputFile = FileUtil.getTempFile("log");
+        this.writer = new CommandLogWriter(this.hstore_site, this.outputFile, this.partitions);
+        this.ts = new LocalTransaction(this.hstore_site);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.writer.shutdown();
+        this.outputFile.delete();
+        CommandLogCheckpoint.getCheckpointFile(this.outputFile).delete();
+        for (File f : CommandLogWriter.getSegmentFiles(this.outputFile)) f.delete();
+    }
+
+    @Benchmark
+    public boolean append() {
+        long txnId = this.txn_id++;
+        this.ts.testInit(Long.valueOf(txnId), BASE_PARTITION, this.partitions, this.catalog_proc, PARAMS);
+        ClientResponseImpl cresponse = new ClientResponseImpl(txnId,
+                                                              0l,
+                                                              BASE_PARTITION,
+                                                              Status.OK,
+                                                              HStoreConstants.EMPTY_RESULT,
+                                                              "");
+        return (this.writer.appendToLog(this.ts, cresponse));
+    }
+}
@@ -0,0 +1,98 @@
+package edu.brown.markov;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.voltdb.benchmark.tpcc.procedures.neworder;
+import org.voltdb.catalog.Database;
+import org.voltdb.catalog.Procedure;
+
+import edu.brown.MicrobenchmarkUtil;
+import edu.brown.mappings.ParameterMappingsSet;
+import edu.brown.markov.containers.MarkovGraphContainersUtil;
+import edu.brown.markov.containers.MarkovGraphsContainer;
+import edu.brown.utils.PartitionEstimator;
+import edu.brown.utils.ProjectType;
+import edu.brown.workload.TransactionTrace;
+import edu.brown.workload.Workload;
+import edu.brown.workload.filters.BasePartitionTxnFilter;
+import edu.brown.workload.filters.Filter;
+import edu.brown.workload.filters.NoAbortFilter;
+import edu.brown.workload.filters.ProcedureLimitFilter;
+import edu.brown.workload.filters.ProcedureNameFilter;
+
+/**
+ * MarkovPathEstimator path estimation for TPC-C NewOrder txns.
+ * This needs the TPC-C workload trace and parameter mappings from the "files" directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MarkovPathEstimatorBenchmark {
+
+    private static final int WORKLOAD_XACT_LIMIT = 100;
+    private static final int BASE_PARTITION = 1;
+    private static final int NUM_PARTITIONS = 10;
+
+    private MarkovGraph graph;
+    private TransactionEstimator t_estimator;
+    private MarkovPathEstimator estimator;
+    private final List<Object[]> params = new ArrayList<Object[]>();
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        Database catalog_db = MicrobenchmarkUtil.getDatabase(ProjectType.TPCC, NUM_PARTITIONS);
+        Procedure catalog_proc = catalog_db.getProcedures().get(neworder.class.getSimpleName());
+        PartitionEstimator p_estimator = new PartitionEstimator(catalog_db);
+
+        File mappings_file = MicrobenchmarkUtil.getProjectFile(ProjectType.TPCC, "mappings", ".mappings");
+        File workload_file = MicrobenchmarkUtil.getProjectFile(ProjectType.TPCC, "workloads", ".100p-1.trace");
+        if (mappings_file == null || workload_file == null) {
+            throw new IllegalStateException("Unable to find the TPC-C workload trace and parameter mappings in the files directory");
+        }
+        ParameterMappingsSet correlations = new ParameterMappingsSet();
+        correlations.load(mappings_file.getAbsolutePath(), catalog_db);
+
+        Filter filter = new ProcedureNameFilter(false)
+              .include(catalog_proc.getName())
+              .attach(new NoAbortFilter())
+              .attach(new BasePartitionTxnFilter(p_estimator, BASE_PARTITION))
+              .attach(new ProcedureLimitFilter(WORKLOAD_XACT_LIMIT));
+        Workload workload = new Workload(catalog_db.getCatalog());
+        workload.load(workload_file.getAbsolutePath(), catalog_db, filter);
+        for (TransactionTrace txn_trace : workload.getTransactions()) {
+            this.params.add(txn_trace.getParams());
+        } // FOR
+        if (this.params.isEmpty()) {
+            throw new IllegalStateException("No " + catalog_proc.getName() + " txns in " + workload_file);
+        }
+
+        MarkovGraphsContainer markovs = MarkovGraphContainersUtil.createBasePartitionMarkovGraphsContainer(catalog_db, workload, p_estimator);
+        this.graph = markovs.get(BASE_PARTITION, catalog_proc);
+        this.t_estimator = new TransactionEstimator(p_estimator, correlations, markovs);
+        this.estimator = new MarkovPathEstimator(NUM_PARTITIONS);
+    }
+
+    @Benchmark
+    public void estimate(Blackhole bh) {
+        Object args[] = this.params.get(this.next);
+        this.next = (this.next + 1) % this.params.size();
+
+        this.estimator.init(this.graph, this.t_estimator, BASE_PARTITION, args);
+        this.estimator.enableForceTraversal(true);
+        this.estimator.traverse(this.graph.getStartVertex());
+        bh.consume(this.estimator.getEstimate());
+        this.estimator.finish();
+    }
+}
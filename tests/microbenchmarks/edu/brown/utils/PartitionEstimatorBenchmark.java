@@ -0,0 +1,115 @@
+package edu.brown.utils;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.voltdb.catalog.Database;
+import org.voltdb.catalog.PlanFragment;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Statement;
+
+import edu.brown.MicrobenchmarkUtil;
+import edu.brown.benchmark.tm1.procedures.GetAccessData;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.hashing.DefaultHasher;
+
+/**
+ * PartitionEstimator routing for TM1 procedures and queries
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PartitionEstimatorBenchmark {
+
+    private static final int NUM_PARTITIONS = 10;
+    private static final int NUM_PARAMS = 1024;
+
+    private PartitionEstimator p_estimator;
+    private Procedure long_proc;
+    private Procedure string_proc;
+    private Statement catalog_stmt;
+    private Object long_params[][];
+    private Object string_params[][];
+    private PlanFragment fragments[];
+    private final Set<Integer> partitions = new HashSet<Integer>();
+    private final Map<PlanFragment, Set<Integer>> frag_partitions = new HashMap<PlanFragment, Set<Integer>>();
+    private final BitSet partition_bits = new BitSet();
+    private BitSet frag_partition_bits[];
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        Database catalog_db = MicrobenchmarkUtil.getDatabase(ProjectType.TM1, NUM_PARTITIONS);
+        this.p_estimator = new PartitionEstimator(catalog_db, new DefaultHasher(catalog_db, NUM_PARTITIONS));
+        this.long_proc = catalog_db.getProcedures().get(GetAccessData.class.getSimpleName());
+        this.string_proc = catalog_db.getProcedures().get(UpdateLocation.class.getSimpleName());
+        this.catalog_stmt = this.long_proc.getStatements().get("GetData");
+        assert(this.catalog_stmt != null);
+        this.fragments = this.catalog_stmt.getMs_fragments().values();
+        this.frag_partition_bits = new BitSet[this.fragments.length];
+        for (int i = 0; i < this.fragments.length; i++) {
+            this.frag_partition_bits[i] = new BitSet();
+        } // FOR
+
+        Random rand = new Random(0);
+        this.long_params = new Object[NUM_PARAMS][];
+        this.string_params = new Object[NUM_PARAMS][];
+        for (int i = 0; i < NUM_PARAMS; i++) {
+            this.long_params[i] = new Object[]{ (long)rand.nextInt(100000), (long)rand.nextInt(4) };
+            this.string_params[i] = new Object[]{ (long)rand.nextInt(), String.format("%015d", rand.nextInt(100000)) };
+        } // FOR
+    }
+
+    private int nextOffset() {
+        this.next = (this.next + 1) & (NUM_PARAMS - 1);
+        return (this.next);
+    }
+
+    @Benchmark
+    public Integer basePartitionLong() throws Exception {
+        return (this.p_estimator.getBasePartition(this.long_proc, this.long_params[this.nextOffset()], false));
+    }
+
+    @Benchmark
+    public Integer basePartitionString() throws Exception {
+        return (this.p_estimator.getBasePartition(this.string_proc, this.string_params[this.nextOffset()], false));
+    }
+
+    @Benchmark
+    public Set<Integer> statementPartitions() throws Exception {
+        this.partitions.clear();
+        return (this.p_estimator.getAllPartitions(this.partitions, this.catalog_stmt, this.long_params[this.nextOffset()], 0));
+    }
+
+    @Benchmark
+    public BitSet statementPartitionBits() throws Exception {
+        this.partition_bits.clear();
+        return (this.p_estimator.getAllPartitions(this.partition_bits, this.catalog_stmt, this.long_params[this.nextOffset()], 0));
+    }
+
+    @Benchmark
+    public Set<Integer> fragmentPartitions() throws Exception {
+        this.partitions.clear();
+        this.p_estimator.getAllFragmentPartitions(this.frag_partitions, this.partitions, this.fragments, this.long_params[this.nextOffset()], 0);
+        return (this.partitions);
+    }
+
+    @Benchmark
+    public BitSet fragmentPartitionBits() throws Exception {
+        this.partition_bits.clear();
+        this.p_estimator.getAllFragmentPartitions(this.frag_partition_bits, this.partition_bits, this.fragments, this.long_params[this.nextOffset()], 0);
+        return (this.partition_bits);
+    }
+}
@@ -0,0 +1,63 @@
+package org.voltdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.voltdb.messaging.FastDeserializer;
+import org.voltdb.messaging.FastSerializer;
+import org.voltdb.types.TimestampType;
+
+/**
+ * ParameterSet serialization and deserialization
+ * The parameters look like the input of a TPC-C NewOrder txn
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParameterSetBenchmark {
+
+    private static final int NUM_ITEMS = 10;
+
+    private ParameterSet params;
+    private final FastSerializer fs = new FastSerializer();
+    private final FastDeserializer fds = new FastDeserializer();
+    private ByteBuffer serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        long i_ids[] = new long[NUM_ITEMS];
+        long i_w_ids[] = new long[NUM_ITEMS];
+        long i_qtys[] = new long[NUM_ITEMS];
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            i_ids[i] = 1000 + i;
+            i_w_ids[i] = 1;
+            i_qtys[i] = 5;
+        } // FOR
+        this.params = new ParameterSet(1l, 2l, 3l, new TimestampType(), i_ids, i_w_ids, i_qtys, "NEWORDER");
+        this.serialized = ByteBuffer.wrap(FastSerializer.serialize(this.params));
+    }
+
+    @Benchmark
+    public int serialize() throws IOException {
+        this.fs.clear();
+        this.params.writeExternal(this.fs);
+        return (this.fs.size());
+    }
+
+    @Benchmark
+    public ParameterSet deserialize() throws IOException {
+        this.serialized.rewind();
+        this.fds.setBuffer(this.serialized);
+        ParameterSet ps = new ParameterSet();
+        ps.readExternal(this.fds);
+        return (ps);
+    }
+}
@@ -0,0 +1,64 @@
+package org.voltdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * VoltTable construction and iteration
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VoltTableBenchmark {
+
+    private static final VoltTable.ColumnInfo[] SCHEMA = new VoltTable.ColumnInfo[] {
+        new VoltTable.ColumnInfo("ID", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("TYPE", VoltType.INTEGER),
+        new VoltTable.ColumnInfo("VALUE", VoltType.FLOAT),
+        new VoltTable.ColumnInfo("NAME", VoltType.STRING),
+    };
+
+    @Param({ "10", "1000" })
+    public int num_rows;
+
+    private Object rows[][];
+    private VoltTable table;
+
+    @Setup
+    public void setUp() {
+        this.rows = new Object[this.num_rows][];
+        for (int i = 0; i < this.num_rows; i++) {
+            this.rows[i] = new Object[]{ (long)i, i % 10, i * 1.5d, "row" + i };
+        } // FOR
+        this.table = this.construct();
+    }
+
+    @Benchmark
+    public VoltTable construct() {
+        VoltTable vt = new VoltTable(SCHEMA);
+        for (Object row[] : this.rows) {
+            vt.addRow(row);
+        } // FOR
+        return (vt);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+        this.table.resetRowPosition();
+        while (this.table.advanceRow()) {
+            bh.consume(this.table.getLong(0));
+            bh.consume(this.table.getLong(1));
+            bh.consume(this.table.getDouble(2));
+            bh.consume(this.table.getString(3));
+        } // WHILE
+    }
+}